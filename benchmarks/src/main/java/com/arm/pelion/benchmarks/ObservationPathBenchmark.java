@@ -0,0 +1,241 @@
+/**
+ * @file ObservationPathBenchmark.java
+ * @brief EdgeX to edge core observation path benchmark
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.benchmarks;
+
+import com.arm.pelion.shadow.service.coordinator.Orchestrator;
+import com.arm.pelion.shadow.service.core.ErrorLogger;
+import com.arm.pelion.shadow.service.interfaces.DeviceShadowProcessorInterface;
+import com.arm.pelion.shadow.service.json.JSONGenerator;
+import com.arm.pelion.shadow.service.json.JSONParser;
+import com.arm.pelion.shadow.service.preferences.PreferenceManager;
+import com.arm.pelion.shadow.service.processors.edgex.EdgeXServiceProcessor;
+import com.arm.pelion.shadow.service.processors.pelion.PelionShadowServiceProcessor;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Observation path benchmark: recorded EdgeX events (edgex-events.json) are fed through
+ * EdgeXServiceProcessor.onMessageReceive() -> PelionShadowServiceProcessor.sendObservation() -> observation filter
+ * and scheduler -> PelionEdgeCoreClientAPI request building, over a stub edge core transport (StubEdgeCoreClient).
+ * Each operation is one event, complete once edge core has received all of its observations.
+ *
+ * Run with -prof gc for the allocation per event, e.g.: java -jar target/benchmarks.jar ObservationPath -prof gc
+ *
+ * @author Doug Anson
+ */
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ObservationPathBenchmark {
+    // distinct events per trial (each device/resource sees a new value every time... nothing is filtered out)
+    private static final int NUM_EVENTS = 4096;
+
+    // max wait for an event's observations to reach edge core
+    private static final long DELIVERY_TIMEOUT_NS = TimeUnit.SECONDS.toNanos(5);
+
+    @Param({"1", "64"})
+    public int devices;
+
+    private DeviceShadowProcessorInterface m_msp = null;
+    private EdgeXServiceProcessor m_edgex = null;
+    private StubEdgeCoreClient m_edge_core = null;
+    private File m_config = null;
+    private String m_topic = null;
+    private String[] m_events = null;
+    private int[] m_observations = null;
+    private int m_next = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        // the service configuration with our overrides
+        this.m_config = this.writeConfig();
+        System.setProperty("config_file", this.m_config.getName());
+
+        // create the service (as the Manager does... without connecting MQTT or edge core)
+        ErrorLogger logger = new ErrorLogger();
+        PreferenceManager preferences = new PreferenceManager(logger);
+        logger.configureLoggingLevel(preferences);
+        Orchestrator orchestrator = new Orchestrator(logger, preferences);
+        this.m_msp = new PelionShadowServiceProcessor(logger, preferences, orchestrator);
+        this.m_edgex = new EdgeXServiceProcessor(logger, preferences, this.m_msp, orchestrator);
+        orchestrator.setMbedEdgeCoreServiceProcessor(this.m_msp);
+        orchestrator.setEdgeXServiceProcessor(this.m_edgex);
+        this.m_topic = preferences.valueOf("mqtt_edgex_events_topic");
+
+        // edge core is the stub transport
+        this.m_edge_core = new StubEdgeCoreClient();
+        if (this.m_msp.getPelionEdgeCoreClientAPI().connect(this.m_edge_core, this.m_edge_core) == false) {
+            throw new IllegalStateException("unable to register with the stub edge core");
+        }
+        this.m_msp.initialize();
+
+        // shadow the devices up front and build the events
+        List templates = this.readEvents(orchestrator.getJSONParser());
+        for (int i = 0; i < this.devices; ++i) {
+            HashMap<String, Object> mbed_device = new HashMap<>();
+            mbed_device.put("id", "bench-mbed-" + i);
+            mbed_device.put("ep", deviceName(i));
+            mbed_device.put("ept", preferences.valueOf("mbed_default_ept"));
+            HashMap<String, Object> edgex_device = new HashMap<>();
+            edgex_device.put("name", deviceName(i));
+            this.m_msp.getDB().addDevice("bench-mbed-" + i, mbed_device, deviceName(i), edgex_device);
+        }
+        this.buildEvents(templates, orchestrator.getJSONGenerator());
+    }
+
+    @TearDown
+    public void teardown() {
+        this.m_msp.closedown();
+        this.m_config.delete();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long throughput() {
+        return this.deliverNextEvent();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long latency() {
+        return this.deliverNextEvent();
+    }
+
+    // receive the next event (as from MQTT) and wait until edge core has all of its observations
+    private long deliverNextEvent() {
+        int i = this.m_next;
+        this.m_next = (i + 1) % NUM_EVENTS;
+        long expected = this.m_edge_core.writes() + this.m_observations[i];
+        this.m_edgex.onMessageReceive(this.m_topic, this.m_events[i]);
+        long deadline = System.nanoTime() + DELIVERY_TIMEOUT_NS;
+        while (this.m_edge_core.writes() < expected) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("observations not delivered to edge core: " + this.m_events[i]);
+            }
+            Thread.yield();
+        }
+        return expected;
+    }
+
+    // EdgeX device name for the ith device
+    private static String deviceName(int i) {
+        return "bench-device-" + i;
+    }
+
+    // events for the devices round robin, each reading with a value not seen before in the trial
+    private void buildEvents(List templates, JSONGenerator generator) {
+        this.m_events = new String[NUM_EVENTS];
+        this.m_observations = new int[NUM_EVENTS];
+        for (int i = 0; i < NUM_EVENTS; ++i) {
+            Map template = (Map) templates.get((i / this.devices) % templates.size());
+            String device = deviceName(i % this.devices);
+            HashMap<String, Object> event = new HashMap<>(template);
+            event.put("device", device);
+            List template_readings = (List) template.get("readings");
+            Object[] readings = new Object[template_readings.size()];
+            for (int j = 0; j < readings.length; ++j) {
+                HashMap<String, Object> reading = new HashMap<>((Map) template_readings.get(j));
+                reading.put("device", device);
+                reading.put("value", uniqueValue((String) reading.get("value"), i));
+                readings[j] = reading;
+            }
+            event.put("readings", Arrays.asList(readings));
+            this.m_events[i] = generator.generateJson(event);
+            this.m_observations[i] = readings.length;
+        }
+    }
+
+    // the recorded value adjusted to be unique for the ith event (keeps the recorded type: integer or decimal)
+    private static String uniqueValue(String recorded, int i) {
+        if (recorded.indexOf('.') >= 0) {
+            return String.format(Locale.ROOT, "%.6f", Double.parseDouble(recorded) + i * 0.001);
+        }
+        return Long.toString(Long.parseLong(recorded) + i);
+    }
+
+    // the recorded EdgeX events
+    private List readEvents(JSONParser parser) throws IOException {
+        StringBuilder json = new StringBuilder();
+        try (InputStreamReader reader = new InputStreamReader(this.resource("edgex-events.json"), StandardCharsets.UTF_8)) {
+            char[] buffer = new char[4096];
+            int n = 0;
+            while ((n = reader.read(buffer)) > 0) {
+                json.append(buffer, 0, n);
+            }
+        }
+        return parser.parseJsonToArray(json.toString());
+    }
+
+    // write service.properties + benchmark.properties to a config file in the working directory (-Dconfig_file is relative to it)
+    private File writeConfig() throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = this.resource("WEB-INF/classes/service.properties")) {
+            properties.load(in);
+        }
+        try (InputStream in = this.resource("benchmark.properties")) {
+            properties.load(in);
+        }
+        File config = File.createTempFile("benchmark-", ".properties", new File(System.getProperty("user.dir")));
+        config.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(config)) {
+            properties.store(out, "observation path benchmark");
+        }
+        return config;
+    }
+
+    // classpath resource
+    private InputStream resource(String name) throws IOException {
+        InputStream in = ObservationPathBenchmark.class.getClassLoader().getResourceAsStream(name);
+        if (in == null) {
+            throw new IOException("missing benchmark resource: " + name);
+        }
+        return in;
+    }
+}
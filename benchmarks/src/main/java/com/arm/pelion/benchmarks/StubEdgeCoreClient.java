@@ -0,0 +1,88 @@
+/**
+ * @file StubEdgeCoreClient.java
+ * @brief In-process edge core JSON-RPC stub
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.benchmarks;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.kurento.jsonrpc.client.Continuation;
+import org.kurento.jsonrpc.client.JsonRpcClient;
+import org.kurento.jsonrpc.message.Request;
+import org.kurento.jsonrpc.message.Response;
+
+/**
+ * Stub edge core JSON-RPC transport: every request is serialized as it would be for the websocket and answered
+ * immediately with "ok". Counts the "write" (observation) requests so callers can wait for an observation to arrive.
+ * @author Doug Anson
+ */
+public class StubEdgeCoreClient extends JsonRpcClient {
+    private final AtomicLong m_writes = new AtomicLong(0);
+    private final AtomicLong m_bytes = new AtomicLong(0);
+
+    // observations ("write" requests) received
+    public long writes() {
+        return this.m_writes.get();
+    }
+
+    // request bytes "sent"
+    public long bytes() {
+        return this.m_bytes.get();
+    }
+
+    @Override
+    public void connect() throws IOException {
+        // in-process... nothing to connect
+    }
+
+    @Override
+    public void setRequestTimeout(long timeout_ms) {
+        // replies are immediate
+    }
+
+    @Override
+    public Response<JsonElement> sendRequest(Request<JsonObject> request) throws IOException {
+        return this.reply(request);
+    }
+
+    @Override
+    public void sendRequest(Request<JsonObject> request, Continuation<Response<JsonElement>> continuation) throws IOException {
+        continuation.onSuccess(this.reply(request));
+    }
+
+    @Override
+    public void close() throws IOException {
+        // nothing to close
+    }
+
+    // "send" the request (serialize it as the websocket transport would) and create edge core's reply
+    private Response<JsonElement> reply(Request<JsonObject> request) {
+        this.m_bytes.addAndGet(request.toString().length());
+        Response<JsonElement> response = new Response<JsonElement>(request.getId(), new JsonPrimitive("ok"));
+        if ("write".equals(request.getMethod())) {
+            this.m_writes.incrementAndGet();
+        }
+        return response;
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * @file ValueCodecBenchmark.java
+ * @brief JMH benchmark: LWM2M value encoding/decoding (LwM2MValueCodec vs. the previous implementation)
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.benchmarks;
+
+import com.arm.pelion.edge.core.client.api.LwM2MValueCodec;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * LWM2M value codec benchmark. The "legacy" methods are copies of the encode/decode code that LwM2MValueCodec
+ * replaced (PelionEdgeCoreClientAPI.encodeValue() and EdgeXServiceProcessor.convertMbedEncodedPayloadToNativeType()).
+ * Run with -prof gc to compare allocation rates.
+ *
+ * @author Doug Anson
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ValueCodecBenchmark {
+    @Param({"int", "double", "float", "string"})
+    public String type;
+
+    private Object m_value = null;
+    private String m_encoded = null;
+    private StringBuilder m_json = new StringBuilder(256);
+
+    @Setup
+    public void setup() {
+        switch (this.type) {
+            case "int":
+                this.m_value = 123456;
+                break;
+            case "double":
+                this.m_value = 21.734;
+                break;
+            case "float":
+                this.m_value = 21.5f;
+                break;
+            default:
+                this.m_value = "RandomValue_Int8 reading";
+                break;
+        }
+        this.m_encoded = LwM2MValueCodec.encode(this.m_value);
+    }
+
+    @Benchmark
+    public String legacyEncode() {
+        return legacyEncodeValue(this.m_value);
+    }
+
+    @Benchmark
+    public String codecEncode() {
+        return LwM2MValueCodec.encode(this.m_value);
+    }
+
+    @Benchmark
+    public int codecAppend() {
+        // encoding straight into an outgoing (JSON) buffer
+        this.m_json.setLength(0);
+        LwM2MValueCodec.append(this.m_value, this.m_json);
+        return this.m_json.length();
+    }
+
+    @Benchmark
+    public Object legacyDecode() {
+        return legacyDecodeValue(this.m_encoded, this.type);
+    }
+
+    @Benchmark
+    public Object codecDecode() {
+        switch (this.type) {
+            case "int":
+                return LwM2MValueCodec.decodeLong(this.m_encoded);
+            case "string":
+                return LwM2MValueCodec.decodeString(this.m_encoded);
+            default:
+                // floats/doubles are encoded as text... decode the text payload as the legacy path would
+                return LwM2MValueCodec.decodeString(this.m_encoded);
+        }
+    }
+
+    // previous PelionEdgeCoreClientAPI.encodeValue()
+    private static String legacyEncodeValue(Object value) {
+        String encoded_value = null;
+        if (value instanceof Integer) {
+            int i = ((Integer)value);
+            encoded_value = Base64.getEncoder().encodeToString(BigInteger.valueOf(i).toByteArray());
+        }
+        if (value instanceof String) {
+            encoded_value = Base64.getEncoder().encodeToString(((String)value).getBytes());
+        }
+        if (value instanceof Float) {
+            float f = ((Float)value);
+            encoded_value = Base64.getEncoder().encodeToString(("" + f).getBytes());
+        }
+        if (value instanceof Double) {
+            double d = ((Double)value);
+            encoded_value = Base64.getEncoder().encodeToString(("" + d).getBytes());
+        }
+        return encoded_value;
+    }
+
+    // previous EdgeXServiceProcessor.convertMbedEncodedPayloadToNativeType() (int payloads padded to the 8 bytes it required)
+    private static Object legacyDecodeValue(String b64_payload, String type) {
+        byte decoded[] = Base64.getDecoder().decode(b64_payload);
+        if ("int".equals(type)) {
+            ByteBuffer padded = ByteBuffer.allocate(8);
+            padded.position(8 - decoded.length);
+            padded.put(decoded);
+            padded.flip();
+            return padded.order(ByteOrder.BIG_ENDIAN).getLong();
+        }
+        return new String(decoded);
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * @file DeliveryTracker.java
+ * @brief End-to-end delivery tracking for the load test
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.loadtest;
+
+import com.arm.pelion.shadow.service.metrics.LatencyHistogram;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Delivery tracker: each synthetic event carries a sequence number as its tracked reading value. The generator notes
+ * when each sequence number was due to be published and the fake edge core reports when its observation arrived.
+ * Latency is measured from the scheduled (not actual) publish time, so a stalled publisher cannot hide queueing delay.
+ * @author Doug Anson
+ */
+public class DeliveryTracker {
+    private final long[] m_seqs;
+    private final long[] m_scheduled_ns;
+    private final int m_mask;
+    private final AtomicLong m_published = new AtomicLong(0);
+    private final AtomicLong m_delivered = new AtomicLong(0);
+    private final AtomicLong m_unmatched = new AtomicLong(0);
+    private final AtomicReference<LatencyHistogram> m_interval = new AtomicReference<>(new LatencyHistogram());
+    private volatile LatencyHistogram m_total = null;
+
+    // default constructor (tracks the most recent capacity events... rounded up to a power of 2)
+    public DeliveryTracker(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 1024) - 1) << 1;
+        this.m_seqs = new long[size];
+        this.m_scheduled_ns = new long[size];
+        this.m_mask = size - 1;
+    }
+
+    // event with the given sequence number was (due to be) published at scheduled_ns
+    public void published(long seq, long scheduled_ns) {
+        int slot = (int) (seq & this.m_mask);
+        synchronized (this) {
+            this.m_seqs[slot] = seq;
+            this.m_scheduled_ns[slot] = scheduled_ns;
+        }
+        this.m_published.incrementAndGet();
+    }
+
+    // observation for the given sequence number reached edge core
+    public void delivered(long seq) {
+        long now = System.nanoTime();
+        int slot = (int) (seq & this.m_mask);
+        long scheduled_ns = -1;
+        synchronized (this) {
+            if (this.m_seqs[slot] == seq) {
+                scheduled_ns = this.m_scheduled_ns[slot];
+            }
+        }
+        if (scheduled_ns < 0) {
+            // too old (overwritten) or not ours
+            this.m_unmatched.incrementAndGet();
+            return;
+        }
+        this.m_delivered.incrementAndGet();
+        this.m_interval.get().record(now - scheduled_ns);
+        LatencyHistogram total = this.m_total;
+        if (total != null) {
+            total.record(now - scheduled_ns);
+        }
+    }
+
+    // start the measured run (latencies from here on count towards the summary)
+    public void startMeasuring() {
+        this.m_total = new LatencyHistogram();
+    }
+
+    // latencies over the measured run
+    public LatencyHistogram.Snapshot total() {
+        LatencyHistogram total = this.m_total;
+        return (total != null) ? total.snapshot() : new LatencyHistogram().snapshot();
+    }
+
+    // latencies since the last call
+    public LatencyHistogram.Snapshot interval() {
+        return this.m_interval.getAndSet(new LatencyHistogram()).snapshot();
+    }
+
+    // events published
+    public long published() {
+        return this.m_published.get();
+    }
+
+    // observations delivered to edge core
+    public long delivered() {
+        return this.m_delivered.get();
+    }
+
+    // observations that could not be matched to a tracked event
+    public long unmatched() {
+        return this.m_unmatched.get();
+    }
+}
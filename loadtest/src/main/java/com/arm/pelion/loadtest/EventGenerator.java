@@ -0,0 +1,162 @@
+/**
+ * @file EventGenerator.java
+ * @brief Embedded MQTT broker publishing synthetic EdgeX events
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.loadtest;
+
+import io.moquette.broker.Server;
+import io.moquette.broker.config.MemoryConfig;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Event generator: an in-process MQTT broker (moquette) that the service subscribes to, and a publisher thread that
+ * publishes synthetic EdgeX events (as the EdgeX MQTT exporter would) at a fixed rate, round robin across the devices.
+ * The first reading of each event (RandomValue_Int32) carries the event's sequence number for the DeliveryTracker.
+ * @author Doug Anson
+ */
+public class EventGenerator implements Runnable {
+    // extra (untracked) readings that can be added to each event
+    private static final String[] EXTRA_READINGS = {"RandomValue_Int8", "RandomValue_Int16"};
+
+    private final Server m_broker = new Server();
+    private final DeliveryTracker m_tracker;
+    private final String m_topic;
+    private final int m_port;
+    private final int m_devices;
+    private final int m_rate;
+    private final int m_readings;
+    private volatile boolean m_running = false;
+    private Thread m_thread = null;
+
+    // default constructor
+    public EventGenerator(DeliveryTracker tracker, int port, String topic, int devices, int rate, int readings) {
+        this.m_tracker = tracker;
+        this.m_port = port;
+        this.m_topic = topic;
+        this.m_devices = devices;
+        this.m_rate = rate;
+        this.m_readings = Math.max(1, Math.min(readings, 1 + EXTRA_READINGS.length));
+    }
+
+    // start the broker (in memory, anonymous)
+    public void startBroker() throws IOException {
+        Properties config = new Properties();
+        config.setProperty("host", "0.0.0.0");
+        config.setProperty("port", Integer.toString(this.m_port));
+        config.setProperty("websocket_port", "disabled");
+        config.setProperty("allow_anonymous", "true");
+        config.setProperty("persistent_store", "");
+        config.setProperty("immediate_buffer_flush", "true");
+        this.m_broker.startServer(new MemoryConfig(config));
+    }
+
+    // start publishing
+    public void start() {
+        this.m_running = true;
+        this.m_thread = new Thread(this, "loadtest-generator");
+        this.m_thread.setDaemon(true);
+        this.m_thread.start();
+    }
+
+    // stop publishing and stop the broker
+    public void stop() {
+        this.m_running = false;
+        if (this.m_thread != null) {
+            try {
+                this.m_thread.join(1000);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.m_broker.stopServer();
+    }
+
+    // EdgeX device name for the ith device
+    public static String deviceName(int i) {
+        return "loadtest-device-" + i;
+    }
+
+    // publisher: open loop at the configured rate (events are scheduled, not paced by how fast the broker takes them)
+    @Override
+    public void run() {
+        long interval_ns = TimeUnit.SECONDS.toNanos(1) / this.m_rate;
+        long next_ns = System.nanoTime();
+        long seq = 0;
+        while (this.m_running) {
+            // wait until the next event is due
+            long wait_ns = next_ns - System.nanoTime();
+            if (wait_ns > 0) {
+                LockSupport.parkNanos(wait_ns);
+                continue;
+            }
+
+            // publish it
+            String device = deviceName((int) (seq % this.m_devices));
+            this.m_tracker.published(seq, next_ns);
+            this.publish(this.createEvent(device, seq));
+            ++seq;
+            next_ns += interval_ns;
+        }
+    }
+
+    // publish an event to the EdgeX events topic
+    private void publish(String event) {
+        MqttPublishMessage message = MqttMessageBuilders.publish()
+                .topicName(this.m_topic)
+                .retained(false)
+                .qos(MqttQoS.AT_MOST_ONCE)
+                .payload(Unpooled.copiedBuffer(event.getBytes(StandardCharsets.UTF_8)))
+                .build();
+        this.m_broker.internalPublish(message, "loadtest-generator");
+    }
+
+    // synthetic EdgeX (v1) event as published by the EdgeX MQTT exporter
+    private String createEvent(String device, long seq) {
+        long origin = System.currentTimeMillis() * 1000000L;
+        StringBuilder event = new StringBuilder(256 + 160 * this.m_readings);
+        event.append("{\"id\":\"").append(UUID.randomUUID()).append("\",\"device\":\"").append(device)
+                .append("\",\"origin\":").append(origin).append(",\"readings\":[");
+        appendReading(event, device, "RandomValue_Int32", Long.toString(seq), origin);
+        for (int i = 1; i < this.m_readings; ++i) {
+            event.append(',');
+            appendReading(event, device, EXTRA_READINGS[i - 1], Integer.toString(ThreadLocalRandom.current().nextInt(-128, 128)), origin);
+        }
+        return event.append("]}").toString();
+    }
+
+    // a single reading
+    private static void appendReading(StringBuilder event, String device, String name, String value, long origin) {
+        event.append("{\"id\":\"").append(UUID.randomUUID()).append("\",\"origin\":").append(origin)
+                .append(",\"device\":\"").append(device).append("\",\"name\":\"").append(name)
+                .append("\",\"value\":\"").append(value).append("\"}");
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * @file FakeEdgeCore.java
+ * @brief Fake mbed edge core (PT and MGMT JSON-RPC websockets)
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.loadtest;
+
+import com.arm.pelion.edge.core.client.api.LwM2MValueCodec;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fake mbed edge core: serves the protocol translator (/1/pt) and management (/1/mgmt) JSON-RPC websocket APIs and
+ * answers every request after a configurable latency. Observation writes are decoded and reported to the
+ * DeliveryTracker, which closes the loop on the events published by the EventGenerator.
+ * @author Doug Anson
+ */
+public class FakeEdgeCore {
+    // max JSON-RPC message size
+    private static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+
+    private final EventLoopGroup m_boss = new NioEventLoopGroup(1);
+    private final EventLoopGroup m_workers = new NioEventLoopGroup(2);
+    private final List<Channel> m_listeners = new ArrayList<>();
+    private final int[] m_ports;
+    private final Set<String> m_devices = ConcurrentHashMap.newKeySet();
+    private final LongAdder m_writes = new LongAdder();
+    private final DeliveryTracker m_tracker;
+    private final int m_latency_ms;
+
+    // default constructor
+    public FakeEdgeCore(DeliveryTracker tracker, int pt_port, int mgmt_port, int latency_ms) {
+        this.m_tracker = tracker;
+        this.m_latency_ms = latency_ms;
+        this.m_ports = new int[]{pt_port, mgmt_port};
+    }
+
+    // start
+    public void start() throws InterruptedException {
+        // both APIs (/1/pt and /1/mgmt) are served on both ports... the path does not matter here
+        ServerBootstrap bootstrap = new ServerBootstrap()
+                .group(this.m_boss, this.m_workers)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel channel) {
+                        channel.pipeline().addLast(new HttpServerCodec(), new HttpObjectAggregator(MAX_MESSAGE_SIZE),
+                                new WebSocketServerProtocolHandler("/1", null, false, MAX_MESSAGE_SIZE, false, true),
+                                new RpcHandler());
+                    }
+                });
+        for (int port : this.m_ports) {
+            this.m_listeners.add(bootstrap.bind("localhost", port).sync().channel());
+        }
+    }
+
+    // stop
+    public void stop() {
+        for (Channel listener : this.m_listeners) {
+            listener.close().awaitUninterruptibly();
+        }
+        this.m_workers.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        this.m_boss.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    // number of devices registered via device_register
+    public int registeredDevices() {
+        return this.m_devices.size();
+    }
+
+    // number of observation writes received
+    public long writes() {
+        return this.m_writes.sum();
+    }
+
+    // dispatch a JSON-RPC request and create its result
+    private JsonElement dispatch(String method, JsonObject params) {
+        JsonObject result = new JsonObject();
+        switch (method) {
+            case "connect":
+                result.addProperty("sessionId", UUID.randomUUID().toString());
+                return result;
+            case "ping":
+                result.addProperty("value", "pong");
+                return result;
+            case "device_register":
+                this.m_devices.add(params.get("deviceId").getAsString());
+                break;
+            case "device_unregister":
+                this.m_devices.remove(params.get("deviceId").getAsString());
+                break;
+            case "devices":
+                JsonArray data = new JsonArray();
+                for (String ep : this.m_devices) {
+                    JsonObject device = new JsonObject();
+                    device.addProperty("endpointName", ep);
+                    data.add(device);
+                }
+                result.add("data", data);
+                return result;
+            case "write":
+                this.m_writes.increment();
+                this.trackWrite(params);
+                break;
+            default:
+                break;
+        }
+        return new JsonPrimitive("ok");
+    }
+
+    // report the sequence number carried by a write (first resource value written) to the tracker
+    private void trackWrite(JsonObject params) {
+        try {
+            JsonObject resource = params.getAsJsonArray("objects").get(0).getAsJsonObject()
+                    .getAsJsonArray("objectInstances").get(0).getAsJsonObject()
+                    .getAsJsonArray("resources").get(0).getAsJsonObject();
+            if (resource.get("resourceId").getAsInt() == 32) {
+                this.m_tracker.delivered(decodeSequence(resource.get("value").getAsString()));
+            }
+        }
+        catch (RuntimeException ex) {
+            // not one of ours
+        }
+    }
+
+    // sequence numbers arrive as either LWM2M text or (typed) 64 bit integer values
+    private static long decodeSequence(String b64) {
+        try {
+            return Long.parseLong(LwM2MValueCodec.decodeString(b64));
+        }
+        catch (NumberFormatException ex) {
+            return LwM2MValueCodec.decodeLong(b64);
+        }
+    }
+
+    // JSON-RPC over a single websocket connection
+    private class RpcHandler extends SimpleChannelInboundHandler<TextWebSocketFrame> {
+        @Override
+        protected void channelRead0(final ChannelHandlerContext ctx, TextWebSocketFrame frame) {
+            JsonObject request = new JsonParser().parse(frame.text()).getAsJsonObject();
+            if (request.has("id") == false || request.has("method") == false) {
+                // notification (or a response to a server request): nothing to answer
+                return;
+            }
+            JsonObject params = request.has("params") && request.get("params").isJsonObject() ? request.getAsJsonObject("params") : new JsonObject();
+            JsonObject response = new JsonObject();
+            response.addProperty("jsonrpc", "2.0");
+            response.add("id", request.get("id"));
+            response.add("result", dispatch(request.get("method").getAsString(), params));
+            final String reply = response.toString();
+            if (m_latency_ms <= 0) {
+                ctx.writeAndFlush(new TextWebSocketFrame(reply));
+                return;
+            }
+            ctx.executor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    ctx.writeAndFlush(new TextWebSocketFrame(reply));
+                }
+            }, m_latency_ms, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/**
+ * @file FakeEdgeX.java
+ * @brief Fake EdgeX core services and Pelion device directory REST API
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Fake EdgeX: serves the core-metadata (device list, device by name), core-command value editor, export registration,
+ * core-data event and notifications subscription APIs the service calls, for the EventGenerator's devices. Also serves
+ * the single Pelion REST call made during shadow creation (device lookup by endpoint name) over HTTPS, so that shadows
+ * get (fake) Pelion device IDs without a cloud account.
+ * @author Doug Anson
+ */
+public class FakeEdgeX implements HttpHandler {
+    // keystore for the HTTPS (Pelion REST) listener
+    public static final String KEYSTORE = "loadtest.jks";
+    public static final String KEYSTORE_PASSWORD = "arm1234";
+
+    // EdgeX resources exposed by each device (the service maps these to /123/0/0008, /0016 and /0032)
+    private static final List<String> RESOURCES = Arrays.asList("RandomValue_Int8", "RandomValue_Int16", "RandomValue_Int32");
+
+    private final List<HttpServer> m_servers = new ArrayList<>();
+    private final ExecutorService m_executor = Executors.newFixedThreadPool(4);
+    private final LongAdder m_requests = new LongAdder();
+    private final int m_devices;
+
+    // default constructor
+    public FakeEdgeX(int devices, int pelion_port, int... edgex_ports) throws IOException {
+        this.m_devices = devices;
+
+        // EdgeX services (several share a port, so only bind each port once)
+        List<Integer> bound = new ArrayList<>();
+        for (int port : edgex_ports) {
+            if (port > 0 && bound.contains(port) == false) {
+                bound.add(port);
+                this.m_servers.add(HttpServer.create(new InetSocketAddress("localhost", port), 0));
+            }
+        }
+
+        // Pelion REST API (HTTPS)
+        HttpsServer https = HttpsServer.create(new InetSocketAddress("localhost", pelion_port), 0);
+        https.setHttpsConfigurator(new HttpsConfigurator(createSSLContext()));
+        this.m_servers.add(https);
+
+        // all APIs are served by this handler
+        for (HttpServer server : this.m_servers) {
+            server.createContext("/", this);
+            server.setExecutor(this.m_executor);
+        }
+    }
+
+    // start
+    public void start() {
+        for (HttpServer server : this.m_servers) {
+            server.start();
+        }
+    }
+
+    // stop
+    public void stop() {
+        for (HttpServer server : this.m_servers) {
+            server.stop(0);
+        }
+        this.m_executor.shutdownNow();
+    }
+
+    // number of requests served
+    public long requests() {
+        return this.m_requests.sum();
+    }
+
+    // create the (self-signed, localhost) SSL context, generating its keystore if needed
+    private static SSLContext createSSLContext() throws IOException {
+        File keystore = new File(KEYSTORE);
+        if (keystore.exists() == false) {
+            createKeystore(keystore);
+        }
+        try (InputStream in = new FileInputStream(keystore)) {
+            KeyStore ks = KeyStore.getInstance("JKS");
+            ks.load(in, KEYSTORE_PASSWORD.toCharArray());
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(ks, KEYSTORE_PASSWORD.toCharArray());
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(kmf.getKeyManagers(), null, null);
+            return context;
+        }
+        catch (GeneralSecurityException ex) {
+            throw new IOException("unable to load " + keystore + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    // generate a self-signed localhost keystore (also used as the service's truststore)
+    private static void createKeystore(File keystore) throws IOException {
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "loadtest", "-keyalg", "RSA", "-keysize", "2048",
+                "-validity", "3650", "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+                "-keystore", keystore.getPath(), "-storepass", KEYSTORE_PASSWORD, "-keypass", KEYSTORE_PASSWORD, "-storetype", "JKS")
+                .inheritIO().start();
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException("keytool failed creating " + keystore);
+            }
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted creating " + keystore);
+        }
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        this.m_requests.increment();
+        try {
+            // drain any request body
+            InputStream in = exchange.getRequestBody();
+            byte[] buffer = new byte[4096];
+            while (in.read(buffer) > 0) {
+                // discard
+            }
+
+            String method = exchange.getRequestMethod();
+            if ("GET".equals(method)) {
+                this.get(exchange, exchange.getRequestURI().getPath(), exchange.getRequestURI().getRawQuery());
+            }
+            else if ("PUT".equals(method)) {
+                // core-command value updates and core-data events
+                reply(exchange, 200, "");
+            }
+            else {
+                // export registration, notification subscriptions and core-data events
+                reply(exchange, 201, "");
+            }
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    // GET requests
+    private void get(HttpExchange exchange, String path, String query) throws IOException {
+        if (path.equals("/api/v1/device")) {
+            // core-metadata: all devices
+            StringBuilder devices = new StringBuilder("[");
+            for (int i = 0; i < this.m_devices; ++i) {
+                devices.append(i > 0 ? "," : "").append(this.deviceMetadata(EventGenerator.deviceName(i)));
+            }
+            reply(exchange, 200, devices.append(']').toString());
+        }
+        else if (path.startsWith("/api/v1/device/name/")) {
+            // core-metadata: device by name
+            String name = path.substring("/api/v1/device/name/".length());
+            if (this.isDevice(name)) {
+                reply(exchange, 200, this.deviceMetadata(name));
+            }
+            else {
+                reply(exchange, 404, "device not found: " + name);
+            }
+        }
+        else if (path.startsWith("/api/v1/editor/device/name/")) {
+            // core-command: current value
+            reply(exchange, 200, "0");
+        }
+        else if (path.equals("/v3/devices")) {
+            // Pelion device directory: lookup by endpoint name
+            String filter = (query != null) ? URLDecoder.decode(query, "UTF-8") : "";
+            String ep = filter.startsWith("filter=endpoint_name=") ? filter.substring("filter=endpoint_name=".length()) : "";
+            reply(exchange, 200, "{\"data\":[{\"id\":\"loadtest-" + ep + "\",\"endpoint_name\":\"" + ep + "\"}]}");
+        }
+        else {
+            reply(exchange, 404, "not found: " + path);
+        }
+    }
+
+    // is this one of our devices?
+    private boolean isDevice(String name) {
+        String prefix = EventGenerator.deviceName(0);
+        prefix = prefix.substring(0, prefix.length() - 1);
+        if (name.startsWith(prefix) == false) {
+            return false;
+        }
+        try {
+            int i = Integer.parseInt(name.substring(prefix.length()));
+            return i >= 0 && i < this.m_devices;
+        }
+        catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
+    // raw (v1) core-metadata for a device
+    private String deviceMetadata(String name) {
+        StringBuilder metadata = new StringBuilder(512);
+        metadata.append("{\"id\":\"").append(name).append("-id\",\"name\":\"").append(name)
+                .append("\",\"modified\":1,\"profile\":{\"name\":\"loadtest-profile\",\"deviceResources\":[");
+        for (int i = 0; i < RESOURCES.size(); ++i) {
+            metadata.append(i > 0 ? "," : "").append("{\"name\":\"").append(RESOURCES.get(i))
+                    .append("\",\"description\":\"Generated random value\",\"properties\":{\"value\":{\"type\":\"Int")
+                    .append(RESOURCES.get(i).substring("RandomValue_Int".length()))
+                    .append("\",\"defaultValue\":\"0\"},\"units\":{\"defaultValue\":\"random\",\"readWrite\":\"R\"}}}");
+        }
+        return metadata.append("]}}").toString();
+    }
+
+    // write a reply
+    private static void reply(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, bytes.length > 0 ? bytes.length : -1);
+        if (bytes.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+}
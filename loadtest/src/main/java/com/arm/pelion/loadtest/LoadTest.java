@@ -0,0 +1,244 @@
+/**
+ * @file LoadTest.java
+ * @brief Local end-to-end load test harness for the shadow service
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.loadtest;
+
+import com.arm.pelion.shadow.service.core.ErrorLogger;
+import com.arm.pelion.shadow.service.metrics.LatencyHistogram;
+import com.arm.pelion.shadow.service.preferences.PreferenceManager;
+import com.arm.pelion.shadow.service.servlet.Manager;
+import com.arm.pelion.shadow.service.transport.HttpTransport;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local load test: runs the shadow service (in-process, or externally with external=true) against an embedded MQTT
+ * broker publishing synthetic EdgeX events, a fake edge core and a fake EdgeX/Pelion REST API, and reports the end to
+ * end (event scheduled to observation written to edge core) throughput and latency percentiles.
+ *
+ * Usage: java -jar target/loadtest.jar [key=value ...]
+ *   devices=100 rate=1000 (events/s) duration_s=60 warmup_s=10 readings=1 (1..3 per event) edge_latency_ms=0
+ *   report_interval_s=5 mqtt_port=1883 mds_port=8443 external=false
+ * Any other key=value overrides the service configuration (e.g. observation_device_rate=1000).
+ * @author Doug Anson
+ */
+public class LoadTest {
+    // generated service configuration (-Dconfig_file is relative to the working directory)
+    private static final String CONFIG_FILE = "loadtest-service.properties";
+
+    // harness settings and their defaults
+    private static final String[][] DEFAULTS = {
+        {"devices", "100"},
+        {"rate", "1000"},
+        {"duration_s", "60"},
+        {"warmup_s", "10"},
+        {"readings", "1"},
+        {"edge_latency_ms", "0"},
+        {"report_interval_s", "5"},
+        {"mqtt_port", "1883"},
+        {"mds_port", "8443"},
+        {"external", "false"},
+    };
+
+    private final Map<String, String> m_settings = new HashMap<>();
+    private final Properties m_overrides = new Properties();
+
+    // main entry
+    public static void main(String[] args) throws Exception {
+        new LoadTest(args).run();
+        System.exit(0);
+    }
+
+    // default constructor
+    public LoadTest(String[] args) {
+        for (String[] setting : DEFAULTS) {
+            this.m_settings.put(setting[0], setting[1]);
+        }
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("expected key=value: " + arg);
+            }
+            String key = arg.substring(0, eq);
+            String value = arg.substring(eq + 1);
+            if (this.m_settings.containsKey(key)) {
+                this.m_settings.put(key, value);
+            }
+            else {
+                this.m_overrides.setProperty(key, value);
+            }
+        }
+    }
+
+    // run the load test
+    public void run() throws Exception {
+        int devices = this.intSetting("devices");
+        int rate = this.intSetting("rate");
+        int warmup_s = this.intSetting("warmup_s");
+        int duration_s = this.intSetting("duration_s");
+        int report_interval_s = Math.max(1, this.intSetting("report_interval_s"));
+        boolean external = Boolean.parseBoolean(this.m_settings.get("external"));
+
+        // the service configuration pointing at our fakes
+        Properties config = this.writeConfig();
+
+        // track every event for a minute of delivery backlog at the offered rate
+        DeliveryTracker tracker = new DeliveryTracker(rate * 60);
+
+        // start the fakes and the broker
+        FakeEdgeX edgex = new FakeEdgeX(devices, this.intSetting("mds_port"),
+                intValue(config, "edgex_metadata_port"), intValue(config, "edgex_resource_values_port"),
+                intValue(config, "edgex_event_port"), intValue(config, "edgex_registration_port"),
+                intValue(config, "edgex_notifications_port"));
+        edgex.start();
+        FakeEdgeCore edge_core = new FakeEdgeCore(tracker, intValue(config, "mbed_edge_core_pt_port"),
+                intValue(config, "mbed_edge_core_mgmt_port"), this.intSetting("edge_latency_ms"));
+        edge_core.start();
+        EventGenerator generator = new EventGenerator(tracker, this.intSetting("mqtt_port"),
+                config.getProperty("mqtt_edgex_events_topic"), devices, rate, this.intSetting("readings"));
+        generator.startBroker();
+
+        // start the service
+        Manager manager = null;
+        System.setProperty("javax.net.ssl.trustStore", new File(FakeEdgeX.KEYSTORE).getAbsolutePath());
+        System.setProperty("javax.net.ssl.trustStorePassword", FakeEdgeX.KEYSTORE_PASSWORD);
+        if (external) {
+            System.out.println("LoadTest: start the service with -Dconfig_file=" + new File(CONFIG_FILE).getAbsolutePath()
+                    + " -Djavax.net.ssl.trustStore=" + new File(FakeEdgeX.KEYSTORE).getAbsolutePath()
+                    + " -Djavax.net.ssl.trustStorePassword=" + FakeEdgeX.KEYSTORE_PASSWORD + " (waiting for devices to be shadowed)");
+        }
+        else {
+            System.setProperty("config_file", CONFIG_FILE);
+            ErrorLogger logger = new ErrorLogger();
+            PreferenceManager preferences = new PreferenceManager(logger);
+            preferences.setObjectHandle(new HttpTransport(logger, preferences));
+            logger.configureLoggingLevel(preferences);
+            manager = new Manager(logger, preferences);
+            manager.initialize();
+        }
+
+        // wait until the devices are shadowed in edge core (they are created on discovery or on first event)
+        generator.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(external ? 600 : 120);
+        while (edge_core.registeredDevices() < devices && System.nanoTime() < deadline) {
+            Thread.sleep(100);
+        }
+        System.out.println("LoadTest: " + edge_core.registeredDevices() + "/" + devices + " devices shadowed; offering "
+                + rate + " events/s (" + this.intSetting("readings") + " reading(s) each)");
+
+        // warmup, then measure
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmup_s));
+        tracker.interval();
+        tracker.startMeasuring();
+        long start_ns = System.nanoTime();
+        long published_start = tracker.published();
+        long delivered_start = tracker.delivered();
+        for (int elapsed_s = 0; elapsed_s < duration_s; elapsed_s += report_interval_s) {
+            long published = tracker.published();
+            long delivered = tracker.delivered();
+            Thread.sleep(TimeUnit.SECONDS.toMillis(Math.min(report_interval_s, duration_s - elapsed_s)));
+            report("interval", tracker.published() - published, tracker.delivered() - delivered,
+                    Math.min(report_interval_s, duration_s - elapsed_s), tracker.interval());
+        }
+        double measured_s = (System.nanoTime() - start_ns) / 1e9;
+        long published = tracker.published() - published_start;
+        long delivered = tracker.delivered() - delivered_start;
+
+        // stop offering load and let the backlog drain before the summary
+        generator.stop();
+        Thread.sleep(1000);
+        report("total", published, delivered, measured_s, tracker.total());
+        System.out.println(String.format(Locale.ROOT, "LoadTest: lost/unmatched: %d (%.2f%% of published) edge core writes: %d EdgeX requests: %d",
+                tracker.published() - tracker.delivered(), 100.0 * (tracker.published() - tracker.delivered()) / Math.max(1, tracker.published()),
+                edge_core.writes(), edgex.requests()));
+        if (tracker.unmatched() > 0) {
+            System.out.println("LoadTest: " + tracker.unmatched() + " deliveries could not be matched (outside the tracking window)");
+        }
+
+        // closedown
+        if (manager != null) {
+            manager.closedown();
+        }
+        edge_core.stop();
+        edgex.stop();
+    }
+
+    // report a line of results
+    private static void report(String label, long published, long delivered, double seconds, LatencyHistogram.Snapshot latency) {
+        System.out.println(String.format(Locale.ROOT,
+                "LoadTest: %-8s published: %8d delivered: %8d throughput: %9.1f/s latency ms p50: %8.2f p90: %8.2f p99: %8.2f p99.9: %8.2f max: %8.2f",
+                label, published, delivered, delivered / seconds, millis(latency.percentile(50)), millis(latency.percentile(90)),
+                millis(latency.percentile(99)), millis(latency.percentile(99.9)), millis(latency.percentile(100))));
+    }
+
+    // nanoseconds to milliseconds
+    private static double millis(long ns) {
+        return ns / 1e6;
+    }
+
+    // write the service configuration: service.properties + the harness settings + the command line overrides
+    private Properties writeConfig() throws IOException {
+        Properties config = new Properties();
+        try (InputStream in = LoadTest.class.getClassLoader().getResourceAsStream("WEB-INF/classes/service.properties")) {
+            if (in == null) {
+                throw new IOException("missing service.properties");
+            }
+            config.load(in);
+        }
+        config.setProperty("mqtt_hostname", "localhost");
+        config.setProperty("mqtt_port", this.m_settings.get("mqtt_port"));
+        config.setProperty("edgex_ip_address", "localhost");
+        config.setProperty("mbed_edge_core_ws_host", "localhost");
+        config.setProperty("api_endpoint_address", "localhost");
+        config.setProperty("mds_port", this.m_settings.get("mds_port"));
+        config.setProperty("api_key", "loadtest");
+        config.setProperty("mds_bridge_error_level", "critical");
+        config.setProperty("cache_enabled", "false");
+
+        // the receive loop sleeps mqtt_receive_loop_sleep seconds between MQTT messages... don't pace the event stream
+        config.setProperty("mqtt_receive_loop_sleep", "0");
+        config.putAll(this.m_overrides);
+        try (OutputStream out = new FileOutputStream(CONFIG_FILE)) {
+            config.store(out, "load test service configuration");
+        }
+        return config;
+    }
+
+    // harness setting as an int
+    private int intSetting(String key) {
+        return Integer.parseInt(this.m_settings.get(key));
+    }
+
+    // service setting as an int
+    private static int intValue(Properties config, String key) {
+        String value = config.getProperty(key);
+        return (value != null && value.length() > 0) ? Integer.parseInt(value.trim()) : 0;
+    }
+}
@@ -21,12 +21,20 @@
  * limitations under the License.
  *
  */
+import com.arm.pelion.shadow.service.servlet.EdgeXCallbackServlet;
+import com.arm.pelion.shadow.service.servlet.HealthServlet;
 import com.arm.pelion.shadow.service.servlet.Manager;
 import com.arm.pelion.shadow.service.core.ErrorLogger;
-import com.arm.pelion.shadow.service.core.Utils;
+import com.arm.pelion.shadow.service.loggerservlet.LoggerTracker;
 import com.arm.pelion.shadow.service.loggerservlet.LoggerWebSocketServlet;
+import com.arm.pelion.shadow.service.metrics.Gauge;
+import com.arm.pelion.shadow.service.metrics.MetricsRegistry;
+import com.arm.pelion.shadow.service.metrics.MetricsServlet;
+import com.arm.pelion.shadow.service.metrics.TraceServlet;
+import com.arm.pelion.shadow.service.metrics.Tracer;
 import com.arm.pelion.shadow.service.preferences.PreferenceManager;
 import com.arm.pelion.shadow.service.transport.HttpTransport;
+import java.util.concurrent.CountDownLatch;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.servlet.ServletContextHandler;
@@ -38,7 +46,7 @@ import org.eclipse.jetty.util.ssl.SslContextFactory;
  *
  * @author Doug Anson
  */
-public class Main implements Runnable {
+public class Main {
     // our manager
     private Manager m_manager = null;
     
@@ -53,9 +61,6 @@ public class Main implements Runnable {
     // thread count wait time in ms
     private int m_thread_count_check_wait_ms = DEF_THREAD_COUNT_CHECK_WAIT_MS;
     
-    // health refresh interval in ms..
-    private int m_refresh_health_interval_ms = 11000; // 11 seconds
-    
     // Thread count
     private int m_thread_count = 1;   // ourself
     private boolean m_running = false; 
@@ -65,6 +70,7 @@ public class Main implements Runnable {
     private PreferenceManager m_preferences = null;
     private HttpTransport m_http = null;
     private Thread m_logger_thread = null;
+    private final CountDownLatch m_closedown = new CountDownLatch(1);
     
     // main entry 
     public static void main(String[] args) throws Exception {
@@ -122,6 +128,31 @@ public class Main implements Runnable {
         // Logging Service context handler
         ServletHolder logEvents = new ServletHolder("ws-logger",LoggerWebSocketServlet.class);
         logger_context.addServlet(logEvents, "/logger/*");
+        
+        // Metrics context handler (Prometheus text format)
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        metrics.setMaxDevices(m_preferences.intValueOf("metrics_max_devices"));
+        metrics.gauge("log_stream_queue_depth","Log messages queued for websocket streaming",new Gauge() {
+            @Override
+            public long value() {
+                return LoggerTracker.getInstance().queueDepth();
+            }
+        });
+        ServletHolder metricsHolder = new ServletHolder("metrics",new MetricsServlet());
+        logger_context.addServlet(metricsHolder, "/metrics");
+        
+        // Slow event trace context handler (JSON)
+        Tracer.getInstance().configure(m_preferences.booleanValueOf("trace_enabled"),m_preferences.intValueOf("trace_ring_size"),m_preferences.intValueOf("trace_slow_threshold_ms"),m_preferences.intValueOf("trace_slow_sample"),m_preferences.intValueOf("trace_slow_max"));
+        ServletHolder traceHolder = new ServletHolder("traces",new TraceServlet());
+        logger_context.addServlet(traceHolder, "/traces");
+        
+        // Health statistics context handler (latest published health statistics)
+        ServletHolder healthHolder = new ServletHolder("health",new HealthServlet(m_manager));
+        logger_context.addServlet(healthHolder, "/health");
+        
+        // EdgeX metadata change notifications context handler
+        ServletHolder edgexCallbackHolder = new ServletHolder("edgex-callback",new EdgeXCallbackServlet(m_manager));
+        logger_context.addServlet(edgexCallbackHolder, "/edgex/callback");
     }
     
     // primary loop initiation
@@ -142,6 +173,7 @@ public class Main implements Runnable {
                     // close down the manager
                     m_logger.warning("Main: Closing down Manager...");
                     m_manager.closedown();
+                    m_closedown.countDown();
                 }
             }
         );
@@ -150,10 +182,7 @@ public class Main implements Runnable {
             // initialize
             this.initialize();
             
-            // launch our worker thread
-            m_logger.warning("Main: Creating our main worker thread...");
-            Thread t = new Thread(this);
-            t.start();
+            // NOTE: health statistics are refreshed/published by the health check provider's scheduler
             
             // start a thread that runs the WS logger service
             this.m_logger_thread = new Thread() {
@@ -176,12 +205,9 @@ public class Main implements Runnable {
             };
             this.m_logger_thread.start();
             
-            // Wait forever
+            // Wait until closedown (the connection supervisor keeps the underlying connections up)
             m_logger.warning("Main: Enter main loop...");
-            while(true) {
-                this.m_manager.validateUnderlyingConnection();
-                Utils.waitForABit(m_logger, 10000);
-            }
+            this.m_closedown.await();
         }
         catch (Exception ex) {
             m_logger.warning("Main: Exception caught while starting thread count updater task: " + ex.getMessage());
@@ -199,16 +225,4 @@ public class Main implements Runnable {
             m_logger.critical("Main: EXCEPTION during edge core shadow service start(): " + ex.getMessage(),ex);
         }
     }
-
-    @Override
-    public void run() {
-        // DEBUG
-        m_logger.warning("Main: Starting health refresh loop...");
-        
-        // worker thread loop
-        while(true) {
-            this.m_manager.refreshHealthStats();
-            Utils.waitForABit(m_logger,this.m_refresh_health_interval_ms);
-        }
-    }
 }
@@ -29,6 +29,7 @@ import com.arm.pelion.rest.client.api.PelionRestClientAPI;
 import com.arm.pelion.edge.core.client.api.PelionEdgeCoreClientAPI;
 import com.arm.pelion.shadow.service.coordinator.Orchestrator;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Pelion client API for Java (container)
@@ -86,15 +87,16 @@ public class PelionDeviceAPI extends BaseClass {
         return this.preferences().mbedEdgeRunning();
     }
     
-    // connect to the PT
+    // connect to the PT (single attempt)
     public boolean connect() {
         if (m_use_edge == true) {
             if (this.mbedEdgeRunning() == true) {
                 // mbed-edge
                 boolean status = this.m_edge_api.connect();
                 if (status) {
-                    this.register();
+                    status = this.register();
                 }
+                return status;
             }
             return false;
         }
@@ -103,8 +105,9 @@ public class PelionDeviceAPI extends BaseClass {
                 // Pelion API
                 boolean status = this.m_pelion_api.connect();
                 if (status) {
-                    this.register();
+                    status = this.register();
                 }
+                return status;
             }
             return false;
         }
@@ -144,6 +147,36 @@ public class PelionDeviceAPI extends BaseClass {
         }
     }
     
+    // is ready? (connected and registered)
+    public boolean isReady() {
+        if (m_use_edge == true) {
+            if (this.mbedEdgeRunning() == true) {
+                // mbed-edge
+                return this.m_edge_api.isReady();
+            }
+            return false;
+        }
+        else {
+            // Pelion API
+            return this.isConnected();
+        }
+    }
+    
+    // is the given device ready? (connected and its PT session registered)
+    public boolean isReady(String ep) {
+        if (m_use_edge == true) {
+            if (this.mbedEdgeRunning() == true) {
+                // mbed-edge
+                return this.m_edge_api.isReady(ep);
+            }
+            return false;
+        }
+        else {
+            // Pelion API
+            return this.isConnected();
+        }
+    }
+    
     // get device
     public String getDevice(String ep) {
         if (m_use_edge == true) {
@@ -232,4 +265,22 @@ public class PelionDeviceAPI extends BaseClass {
             return false;
         }
     }
+    
+    // send an observation (pipelined: the future completes with the dispatch status)
+    public CompletableFuture<Boolean> sendObservationAsync(String mbed_id,String ep,String uri,Object value) {
+        if (m_use_edge == true) {
+            if (this.mbedEdgeRunning() == true) {
+                // mbed-edge
+                return this.m_edge_api.sendObservationAsync(ep,uri,value);
+            }
+            return CompletableFuture.completedFuture(false);
+        }
+        else {
+            if (this.apiKeySet() == true) {
+                // Pelion API (synchronous)
+                return CompletableFuture.completedFuture(this.m_pelion_api.sendObservation(mbed_id,uri,value));
+            }
+            return CompletableFuture.completedFuture(false);
+        }
+    }
 }
@@ -0,0 +1,226 @@
+/**
+ * @file EdgeCoreLivenessProbe.java
+ * @brief in-process liveness probe for the mbed-edge core PT/MGMT websocket service
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.edge.core.client.api;
+
+import com.arm.pelion.shadow.service.core.BaseClass;
+import com.arm.pelion.shadow.service.core.ErrorLogger;
+import com.arm.pelion.shadow.service.preferences.PreferenceManager;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Mbed Edge Core liveness probe: TCP connect checks of the PT/MGMT websocket ports with a cached result (TTL),
+ * plus push updates from the PT/MGMT websocket connection listeners
+ * @author Doug Anson
+ */
+public class EdgeCoreLivenessProbe extends BaseClass {
+    // Defaults (confirm that the port numbers match scripts/restart_mbed_edge_core.sh)
+    private static final String DEF_WS_HOST = "localhost";
+    private static final int DEF_WS_PORT_PT = 4455;
+    private static final int DEF_WS_PORT_MGMT = 4456;
+    private static final int DEF_PROBE_TTL_MS = 5000;               // 5 seconds
+    private static final int DEF_PROBE_TIMEOUT_MS = 500;            // 1/2 second connect timeout
+    
+    // singleton
+    private static volatile EdgeCoreLivenessProbe m_self = null;
+    
+    // websocket configuration
+    private String m_ws_host = DEF_WS_HOST;
+    private int m_ws_port_pt = DEF_WS_PORT_PT;
+    private int m_ws_port_mgmt = DEF_WS_PORT_MGMT;
+    
+    // probe configuration
+    private int m_probe_ttl_ms = DEF_PROBE_TTL_MS;
+    private int m_probe_timeout_ms = DEF_PROBE_TIMEOUT_MS;
+    
+    // state
+    private volatile boolean m_running = false;
+    private volatile long m_last_probe_ms = 0;
+    private volatile boolean m_pt_connected = false;
+    private volatile boolean m_mgmt_connected = false;
+    
+    // probes requested by the websocket listeners run here (never on the listener's own thread)
+    private final ScheduledExecutorService m_scheduler;
+    private final AtomicBoolean m_probe_pending = new AtomicBoolean(false);
+    
+    /**
+     * Instance Factory
+     *
+     * @param error_logger
+     * @param preference_manager
+     * @return
+     */
+    public static EdgeCoreLivenessProbe getInstance(ErrorLogger error_logger, PreferenceManager preference_manager) {
+        if (EdgeCoreLivenessProbe.m_self == null) {
+            synchronized (EdgeCoreLivenessProbe.class) {
+                if (EdgeCoreLivenessProbe.m_self == null) {
+                    // create our probe
+                    EdgeCoreLivenessProbe.m_self = new EdgeCoreLivenessProbe(error_logger, preference_manager);
+                }
+            }
+        }
+        return EdgeCoreLivenessProbe.m_self;
+    }
+    
+    // default constructor
+    private EdgeCoreLivenessProbe(ErrorLogger logger, PreferenceManager preferences) {
+        super(logger, preferences);
+        
+        // our probe thread
+        this.m_scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r,"edge-core-liveness-probe");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        
+        // websocket configuration
+        String host = this.preferences().valueOf("mbed_edge_core_ws_host");
+        if (host != null && host.length() > 0) {
+            this.m_ws_host = host;
+        }
+        int port = this.preferences().intValueOf("mbed_edge_core_pt_port");
+        if (port > 0) {
+            this.m_ws_port_pt = port;
+        }
+        port = this.preferences().intValueOf("mbed_edge_core_mgmt_port");
+        if (port > 0) {
+            this.m_ws_port_mgmt = port;
+        }
+        
+        // probe configuration
+        this.m_probe_ttl_ms = this.preferences().intValueOf("mbed_edge_core_probe_ttl_ms");
+        if (this.m_probe_ttl_ms <= 0) {
+            this.m_probe_ttl_ms = DEF_PROBE_TTL_MS;
+        }
+        this.m_probe_timeout_ms = this.preferences().intValueOf("mbed_edge_core_probe_timeout_ms");
+        if (this.m_probe_timeout_ms <= 0) {
+            this.m_probe_timeout_ms = DEF_PROBE_TIMEOUT_MS;
+        }
+        
+        // DEBUG
+        this.errorLogger().info("EdgeCoreLivenessProbe: Host: " + this.m_ws_host + " PT: " + this.m_ws_port_pt + " MGMT: " + this.m_ws_port_mgmt + " TTL: " + this.m_probe_ttl_ms + "ms");
+    }
+    
+    // websocket host
+    public String host() {
+        return this.m_ws_host;
+    }
+    
+    // PT websocket port
+    public int ptPort() {
+        return this.m_ws_port_pt;
+    }
+    
+    // MGMT websocket port
+    public int mgmtPort() {
+        return this.m_ws_port_mgmt;
+    }
+    
+    // is mbed edge core running? (live websockets win, otherwise the cached probe result until its TTL expires)
+    public boolean isRunning() {
+        if (this.m_pt_connected && this.m_mgmt_connected) {
+            return true;
+        }
+        if ((System.currentTimeMillis() - this.m_last_probe_ms) < this.m_probe_ttl_ms) {
+            return this.m_running;
+        }
+        return this.probe();
+    }
+    
+    // PT websocket connection state change (called from the websocket connection listener)
+    public void ptConnectionChanged(boolean connected) {
+        this.m_pt_connected = connected;
+        this.connectionChanged(connected);
+    }
+    
+    // MGMT websocket connection state change (called from the websocket connection listener)
+    public void mgmtConnectionChanged(boolean connected) {
+        this.m_mgmt_connected = connected;
+        this.connectionChanged(connected);
+    }
+    
+    // common connection state change handling
+    private void connectionChanged(boolean connected) {
+        if (connected) {
+            // a live websocket means the service is up
+            this.m_last_probe_ms = System.currentTimeMillis();
+            this.setRunning(true);
+        }
+        else {
+            // we lost a websocket... we may have closed it ourselves, so re-probe now rather than assuming the worst
+            this.scheduleProbe();
+        }
+    }
+    
+    // probe on our own thread (the blocking connects would otherwise stall the websocket event loop)... coalesced
+    private void scheduleProbe() {
+        if (this.m_probe_pending.compareAndSet(false,true) == true) {
+            this.m_scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    m_probe_pending.set(false);
+                    probe();
+                }
+            });
+        }
+    }
+    
+    // probe the PT and MGMT ports and cache the result
+    private synchronized boolean probe() {
+        boolean running = this.portOpen(this.m_ws_port_pt) && this.portOpen(this.m_ws_port_mgmt);
+        this.m_last_probe_ms = System.currentTimeMillis();
+        this.setRunning(running);
+        return running;
+    }
+    
+    // TCP connect check
+    private boolean portOpen(int port) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(this.m_ws_host, port), this.m_probe_timeout_ms);
+            return true;
+        }
+        catch (IOException ex) {
+            // DEBUG
+            this.errorLogger().info("EdgeCoreLivenessProbe: Port " + port + " not reachable: " + ex.getMessage());
+        }
+        return false;
+    }
+    
+    // record the running state and update preferences when it changes
+    private void setRunning(boolean running) {
+        if (running != this.m_running) {
+            // DEBUG
+            this.errorLogger().warning("EdgeCoreLivenessProbe: Mbed Edge Core is now " + (running ? "RUNNING" : "DOWN"));
+        }
+        this.m_running = running;
+        this.preferences().mbedEdgeRunning(running);
+    }
+}
@@ -0,0 +1,315 @@
+/**
+ * @file LwM2MValueCodec.java
+ * @brief LWM2M resource value codec (typed values <-> base64 payloads)
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.edge.core.client.api;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * LWM2M resource value codec. Values are encoded as edge core expects them: integers (int/long/short/byte) as minimal
+ * big-endian two's complement bytes, booleans as the integers 0/1, floats/doubles as their decimal text and strings
+ * as UTF-8, all base64 encoded. Encoding and decoding work in per-thread scratch buffers, so the only allocation on
+ * the primitive paths is the resulting String (or none when appending into a caller's buffer). The scratch buffers are
+ * capped: an oversized value is worked in a one-off buffer, so one large string does not pin memory on every thread.
+ *
+ * @author Doug Anson
+ */
+public final class LwM2MValueCodec {
+    // scratch buffers larger than this are not kept between calls
+    private static final int MAX_RETAINED_CHARS = 4096;
+    private static final int MAX_RETAINED_BYTES = 3072;
+    
+    // base64 alphabet and reverse lookup
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final int[] BASE64_INDEX = new int[128];
+    static {
+        for (int i=0;i<BASE64_INDEX.length;++i) {
+            BASE64_INDEX[i] = -1;
+        }
+        for (int i=0;i<BASE64.length;++i) {
+            BASE64_INDEX[BASE64[i]] = i;
+        }
+    }
+
+    // per-thread scratch buffers
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    // static only
+    private LwM2MValueCodec() {
+    }
+
+    // encode a value to base64 (null if the type is not supported)
+    public static String encode(Object value) {
+        Scratch scratch = SCRATCH.get();
+        StringBuilder out = scratch.out();
+        if (append(value, out) == false) {
+            return null;
+        }
+        return out.toString();
+    }
+
+    // append the base64 encoded value to the given buffer (false if the type is not supported)
+    public static boolean append(Object value, StringBuilder out) {
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            appendLong(((Number)value).longValue(), out);
+            return true;
+        }
+        if (value instanceof Double) {
+            appendDouble((Double)value, out);
+            return true;
+        }
+        if (value instanceof Float) {
+            appendFloat((Float)value, out);
+            return true;
+        }
+        if (value instanceof Boolean) {
+            appendBoolean((Boolean)value, out);
+            return true;
+        }
+        if (value instanceof String) {
+            appendString((String)value, out);
+            return true;
+        }
+        return false;
+    }
+
+    // integer: minimal big-endian two's complement bytes
+    public static void appendLong(long value, StringBuilder out) {
+        byte[] bytes = SCRATCH.get().m_bytes;
+        int length = integerLength(value);
+        for (int i=length-1;i>=0;--i) {
+            bytes[i] = (byte)value;
+            value >>= 8;
+        }
+        appendBase64(bytes, length, out);
+    }
+
+    // boolean: the integers 0/1
+    public static void appendBoolean(boolean value, StringBuilder out) {
+        appendLong(value ? 1 : 0, out);
+    }
+
+    // float: decimal text
+    public static void appendFloat(float value, StringBuilder out) {
+        appendAscii(Float.toString(value), out);
+    }
+
+    // double: decimal text
+    public static void appendDouble(double value, StringBuilder out) {
+        appendAscii(Double.toString(value), out);
+    }
+
+    // string: UTF-8 bytes (ASCII is encoded straight from the chars)
+    public static void appendString(String value, StringBuilder out) {
+        for (int i=0;i<value.length();++i) {
+            if (value.charAt(i) >= 0x80) {
+                byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+                appendBase64(utf8, utf8.length, out);
+                return;
+            }
+        }
+        appendAscii(value, out);
+    }
+
+    // decode a base64 integer payload (big-endian two's complement, up to 8 bytes)
+    public static long decodeLong(String b64) {
+        byte[] bytes = SCRATCH.get().decoded(decodedSize(b64));
+        int length = decodeBase64(b64, bytes);
+        if (length == 0 || length > 8) {
+            throw new IllegalArgumentException("integer payload of " + length + " bytes");
+        }
+        long value = bytes[0];                      // sign extended
+        for (int i=1;i<length;++i) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+
+    // decode a base64 floating point payload (big-endian IEEE 754 double, or float if 4 bytes)
+    public static double decodeDouble(String b64) {
+        byte[] bytes = SCRATCH.get().decoded(decodedSize(b64));
+        int length = decodeBase64(b64, bytes);
+        if (length == 8) {
+            long bits = 0;
+            for (int i=0;i<8;++i) {
+                bits = (bits << 8) | (bytes[i] & 0xFF);
+            }
+            return Double.longBitsToDouble(bits);
+        }
+        if (length == 4) {
+            int bits = 0;
+            for (int i=0;i<4;++i) {
+                bits = (bits << 8) | (bytes[i] & 0xFF);
+            }
+            return Float.intBitsToFloat(bits);
+        }
+        throw new IllegalArgumentException("floating point payload of " + length + " bytes");
+    }
+
+    // decode a base64 string payload (UTF-8)
+    public static String decodeString(String b64) {
+        byte[] bytes = SCRATCH.get().decoded(decodedSize(b64));
+        int length = decodeBase64(b64, bytes);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // bytes needed for the minimal two's complement form (as BigInteger.toByteArray())
+    private static int integerLength(long value) {
+        int bits = 64 - Long.numberOfLeadingZeros(value < 0 ? ~value : value);
+        return bits / 8 + 1;
+    }
+
+    // base64 encode the ASCII chars of the given text
+    private static void appendAscii(String text, StringBuilder out) {
+        int length = text.length();
+        char[] chars = SCRATCH.get().chars(((length + 2) / 3) * 4);
+        int i = 0;
+        int o = 0;
+        for (;i+2<length;i+=3) {
+            o = encodeQuantum(text.charAt(i), text.charAt(i+1), text.charAt(i+2), 3, chars, o);
+        }
+        if (i < length) {
+            o = encodeQuantum(text.charAt(i), (i+1 < length) ? text.charAt(i+1) : 0, 0, length - i, chars, o);
+        }
+        out.append(chars, 0, o);
+    }
+
+    // base64 encode the first length bytes
+    private static void appendBase64(byte[] bytes, int length, StringBuilder out) {
+        char[] chars = SCRATCH.get().chars(((length + 2) / 3) * 4);
+        int i = 0;
+        int o = 0;
+        for (;i+2<length;i+=3) {
+            o = encodeQuantum(bytes[i] & 0xFF, bytes[i+1] & 0xFF, bytes[i+2] & 0xFF, 3, chars, o);
+        }
+        if (i < length) {
+            o = encodeQuantum(bytes[i] & 0xFF, (i+1 < length) ? bytes[i+1] & 0xFF : 0, 0, length - i, chars, o);
+        }
+        out.append(chars, 0, o);
+    }
+
+    // encode up to 3 bytes as 4 base64 chars (padded)
+    private static int encodeQuantum(int b0, int b1, int b2, int count, char[] chars, int o) {
+        int bits = (b0 << 16) | (b1 << 8) | b2;
+        chars[o] = BASE64[(bits >>> 18) & 0x3F];
+        chars[o+1] = BASE64[(bits >>> 12) & 0x3F];
+        chars[o+2] = (count > 1) ? BASE64[(bits >>> 6) & 0x3F] : '=';
+        chars[o+3] = (count > 2) ? BASE64[bits & 0x3F] : '=';
+        return o + 4;
+    }
+
+    // decode buffer size needed for a base64 payload
+    private static int decodedSize(String b64) {
+        return (b64.length() * 3) / 4 + 3;
+    }
+
+    // base64 decode into the given buffer (returns the number of bytes)
+    private static int decodeBase64(String b64, byte[] decoded) {
+        int length = b64.length();
+        while (length > 0 && b64.charAt(length-1) == '=') {
+            --length;
+        }
+        int out = 0;
+        int i = 0;
+        
+        // whole quanta
+        for (;i+3<length;i+=4) {
+            int bits = (index(b64.charAt(i)) << 18) | (index(b64.charAt(i+1)) << 12) | (index(b64.charAt(i+2)) << 6) | index(b64.charAt(i+3));
+            decoded[out] = (byte)(bits >> 16);
+            decoded[out+1] = (byte)(bits >> 8);
+            decoded[out+2] = (byte)bits;
+            out += 3;
+        }
+        
+        // trailing (unpadded) chars
+        int bits = 0;
+        int count = 0;
+        for (;i<length;++i) {
+            bits = (bits << 6) | index(b64.charAt(i));
+            ++count;
+        }
+        if (count == 3) {
+            decoded[out++] = (byte)(bits >> 10);
+            decoded[out++] = (byte)(bits >> 2);
+        }
+        else if (count == 2) {
+            decoded[out++] = (byte)(bits >> 4);
+        }
+        else if (count == 1) {
+            throw new IllegalArgumentException("truncated base64 payload");
+        }
+        return out;
+    }
+
+    // base64 char value
+    private static int index(char c) {
+        int index = (c < 128) ? BASE64_INDEX[c] : -1;
+        if (index < 0) {
+            throw new IllegalArgumentException("invalid base64 character: " + c);
+        }
+        return index;
+    }
+
+    // per-thread scratch space
+    private static final class Scratch {
+        private final byte[] m_bytes = new byte[8];
+        private StringBuilder m_out = new StringBuilder(64);
+        private byte[] m_decoded = new byte[64];
+        private char[] m_chars = new char[64];
+
+        // empty output buffer (a large one left by a big string is dropped)
+        StringBuilder out() {
+            if (this.m_out.capacity() > MAX_RETAINED_CHARS) {
+                this.m_out = new StringBuilder(64);
+            }
+            this.m_out.setLength(0);
+            return this.m_out;
+        }
+
+        // encode buffer of at least the given size (one-off beyond the retained cap)
+        char[] chars(int size) {
+            if (size > MAX_RETAINED_CHARS) {
+                return new char[size];
+            }
+            if (this.m_chars.length < size) {
+                this.m_chars = new char[Math.min(MAX_RETAINED_CHARS, Math.max(size, this.m_chars.length * 2))];
+            }
+            return this.m_chars;
+        }
+
+        // decode buffer of at least the given size (one-off beyond the retained cap)
+        byte[] decoded(int size) {
+            if (size > MAX_RETAINED_BYTES) {
+                return new byte[size];
+            }
+            if (this.m_decoded.length < size) {
+                this.m_decoded = new byte[Math.min(MAX_RETAINED_BYTES, Math.max(size, this.m_decoded.length * 2))];
+            }
+            return this.m_decoded;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/**
+ * @file PTSession.java
+ * @brief a single protocol translator session (websocket + registration) with mbed-edge core
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.edge.core.client.api;
+
+import com.arm.pelion.shadow.service.core.BaseClass;
+import com.arm.pelion.shadow.service.core.ErrorLogger;
+import com.arm.pelion.shadow.service.preferences.PreferenceManager;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import org.kurento.jsonrpc.JsonRpcHandler;
+import org.kurento.jsonrpc.client.JsonRpcClient;
+import org.kurento.jsonrpc.client.JsonRpcClientNettyWebSocket;
+import org.kurento.jsonrpc.client.JsonRpcWSConnectionListener;
+
+/**
+ * Protocol translator session: one PT websocket registered under its own name, with its own in-flight RPC window.
+ * Sessions are independent... a stalled session only holds up the devices hashed to it. RPCs issued while the window
+ * is full wait (in order, in memory) for a slot: each completing RPC hands its slot straight to the next waiting one.
+ * @author Doug Anson
+ */
+public class PTSession extends BaseClass {
+    private String m_name = null;
+    private String m_uri = null;
+    private volatile JsonRpcClient m_client = null;
+    private volatile boolean m_connected = false;
+    private volatile boolean m_registered = false;
+    private volatile int m_epoch = 0;
+    private Semaphore m_inflight = null;
+    private int m_max_inflight = 0;
+    
+    // RPCs waiting for an in-flight slot (dispatched in order on the dispatcher)
+    private final Object m_pending_lock = new Object();
+    private final ArrayDeque<Runnable> m_pending = new ArrayDeque<>();
+    private int m_handoffs = 0;
+    private int m_max_pending = 0;
+    private Executor m_dispatcher = null;
+    
+    // default constructor
+    public PTSession(ErrorLogger logger,PreferenceManager preferences,String name,String uri,int max_inflight,int max_pending,Executor dispatcher) {
+        super(logger,preferences);
+        this.m_name = name;
+        this.m_uri = uri;
+        this.m_max_inflight = max_inflight;
+        this.m_inflight = new Semaphore(max_inflight);
+        this.m_max_pending = max_pending;
+        this.m_dispatcher = dispatcher;
+    }
+    
+    // PT name (as registered via protocol_translator_register)
+    public String name() {
+        return this.m_name;
+    }
+    
+    // JSON-RPC client handle
+    public JsonRpcClient client() {
+        return this.m_client;
+    }
+    
+    // number of RPCs in flight
+    public int inflightCount() {
+        return this.m_max_inflight - this.m_inflight.availablePermits();
+    }
+    
+    // number of RPCs waiting for a slot
+    public int pendingCount() {
+        synchronized (this.m_pending_lock) {
+            return this.m_pending.size();
+        }
+    }
+    
+    // take an in-flight slot (TRUE: the caller dispatches now) or queue the dispatch behind those already waiting (FALSE)
+    public boolean acquireOrQueue(Runnable dispatch) {
+        synchronized (this.m_pending_lock) {
+            if (this.m_pending.isEmpty() == true && this.m_handoffs == 0 && this.m_inflight.tryAcquire() == true) {
+                return true;
+            }
+            if (this.m_pending.size() >= this.m_max_pending) {
+                throw new RejectedExecutionException("PT session " + this.m_name + " has " + this.m_pending.size() + " RPCs waiting for a slot");
+            }
+            this.m_pending.addLast(dispatch);
+            this.handoff();
+            return false;
+        }
+    }
+    
+    // release an in-flight slot (handed to the next waiting RPC, if any)
+    public void release() {
+        synchronized (this.m_pending_lock) {
+            this.m_inflight.release();
+            this.handoff();
+        }
+    }
+    
+    // hand free slots to waiting RPCs (caller holds the pending lock)
+    private void handoff() {
+        while (this.m_pending.isEmpty() == false && this.m_inflight.tryAcquire() == true) {
+            final Runnable dispatch = this.m_pending.pollFirst();
+            ++this.m_handoffs;
+            try {
+                this.m_dispatcher.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            dispatch.run();
+                        }
+                        finally {
+                            handedOff();
+                        }
+                    }
+                });
+            }
+            catch (RejectedExecutionException ex) {
+                // shutting down
+                --this.m_handoffs;
+                this.m_inflight.release();
+                return;
+            }
+        }
+    }
+    
+    // a handed off RPC has been dispatched (until then new RPCs queue behind it to keep their order)
+    private void handedOff() {
+        synchronized (this.m_pending_lock) {
+            --this.m_handoffs;
+            this.handoff();
+        }
+    }
+    
+    // is connected?
+    public boolean isConnected() {
+        return this.m_connected && this.m_client != null;
+    }
+    
+    // is registered?
+    public boolean isRegistered() {
+        return this.m_registered;
+    }
+    
+    // set the registration state
+    public void registered(boolean registered) {
+        this.m_registered = registered;
+    }
+    
+    // websocket state change (ignored if it comes from a client we have since replaced)
+    private void connectionChanged(int epoch,boolean connected,boolean same_session) {
+        if (epoch != this.m_epoch) {
+            return;
+        }
+        this.m_connected = connected;
+        if (connected == false || same_session == false) {
+            // edge core no longer knows us... must re-register
+            this.m_registered = false;
+        }
+    }
+    
+    // wrap the caller's listener so that this session tracks its own websocket state
+    private JsonRpcWSConnectionListener sessionListener(final int epoch,final JsonRpcWSConnectionListener listener) {
+        return new JsonRpcWSConnectionListener() {
+            @Override
+            public void connected() {
+                connectionChanged(epoch,true,true);
+                listener.connected();
+            }
+
+            @Override
+            public void connectionFailed() {
+                connectionChanged(epoch,false,false);
+                listener.connectionFailed();
+            }
+
+            @Override
+            public void disconnected() {
+                connectionChanged(epoch,false,false);
+                listener.disconnected();
+            }
+
+            @Override
+            public void reconnected(boolean same_server) {
+                connectionChanged(epoch,true,same_server);
+                listener.reconnected(same_server);
+            }
+
+            @Override
+            public void reconnecting() {
+                listener.reconnecting();
+            }
+        };
+    }
+    
+    // open the PT websocket (no-op if already connected)
+    public synchronized boolean open(JsonRpcHandler<Object> handler,JsonRpcWSConnectionListener listener,long request_timeout_ms) throws IOException {
+        if (this.isConnected()) {
+            return true;
+        }
+        
+        // discard any stale client
+        this.close();
+        
+        // DEBUG
+        this.errorLogger().info("PTSession(" + this.m_name + "): PT Connecting to: " + this.m_uri);
+        
+        // connect PT
+        int epoch = ++this.m_epoch;
+        JsonRpcClient client = new JsonRpcClientNettyWebSocket(this.m_uri,this.sessionListener(epoch,listener));
+        client.setServerRequestHandler(handler);
+        client.setRequestTimeout(request_timeout_ms);
+        client.connect();
+        this.m_client = client;
+        this.m_registered = false;
+        this.m_connected = true;
+        
+        // DEBUG
+        this.errorLogger().warning("PTSession(" + this.m_name + "): PT WS CONNECTED: " + this.m_uri);
+        return true;
+    }
+    
+    // use an already connected JSON-RPC client instead of opening the PT websocket (in-process transports)
+    public synchronized void attach(JsonRpcClient client) {
+        this.close();
+        ++this.m_epoch;
+        this.m_client = client;
+        this.m_registered = false;
+        this.m_connected = true;
+    }
+    
+    // close the PT websocket
+    public synchronized void close() {
+        JsonRpcClient client = this.m_client;
+        this.m_client = null;
+        this.m_connected = false;
+        this.m_registered = false;
+        if (client != null) {
+            try {
+                client.close();
+            }
+            catch (IOException ex) {
+                this.errorLogger().info("PTSession(" + this.m_name + "): Exception in close(): " + ex.getMessage());
+            }
+        }
+    }
+}
@@ -24,25 +24,43 @@ package com.arm.pelion.edge.core.client.api;
 
 import com.arm.pelion.rest.client.api.PelionRestClientAPI;
 import com.arm.pelion.shadow.service.coordinator.Orchestrator;
+import com.arm.pelion.shadow.service.coordinator.ShardCoordinator;
 import com.arm.pelion.shadow.service.core.BaseClass;
+import com.arm.pelion.shadow.service.core.ConnectionSupervisor;
+import com.arm.pelion.shadow.service.core.ConsistentHashRing;
 import com.arm.pelion.shadow.service.core.ErrorLogger;
 import com.arm.pelion.shadow.service.core.Utils;
+import com.arm.pelion.shadow.service.metrics.Gauge;
+import com.arm.pelion.shadow.service.metrics.LatencyHistogram;
+import com.arm.pelion.shadow.service.metrics.MetricsRegistry;
+import com.arm.pelion.shadow.service.metrics.PipelineStage;
 import com.arm.pelion.shadow.service.preferences.PreferenceManager;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import java.io.IOException;
-import java.math.BigInteger;
 import java.util.ArrayList;
-import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 import org.kurento.jsonrpc.JsonRpcHandler;
 import org.kurento.jsonrpc.Session;
 import org.kurento.jsonrpc.Transaction;
+import org.kurento.jsonrpc.client.Continuation;
 import org.kurento.jsonrpc.client.JsonRpcClient;
 import org.kurento.jsonrpc.client.JsonRpcClientNettyWebSocket;
+import org.kurento.jsonrpc.client.JsonRpcWSConnectionListener;
 import org.kurento.jsonrpc.message.Request;
 import org.kurento.jsonrpc.message.Response;
 import org.kurento.jsonrpc.message.ResponseError;
@@ -52,8 +70,13 @@ import org.kurento.jsonrpc.message.ResponseError;
  * @author Doug Anson
  */
 public class PelionEdgeCoreClientAPI extends BaseClass implements JsonRpcHandler<Object> {  
-    // try this many times to connect to the underlying WS service
-    private static final int MAX_CONNECTION_ATTEMPTS = 10;
+    // our link name (connection supervisor)
+    public static final String LINK_NAME = "edge-core";
+    
+    // async RPC defaults
+    private static final int DEF_RPC_MAX_INFLIGHT = 32;            // max outstanding RPCs per PT session
+    private static final int DEF_RPC_MAX_PENDING = 1024;           // max RPCs waiting (in memory) for a slot per PT session
+    private static final int DEF_RPC_TIMEOUT_MS = 10000;           // per-request timeout (10 seconds)
     
     // fake resources as RW to test out bidirectional path (default: false)
     public static final boolean FAKE_RW_RESOURCES = false;
@@ -64,8 +87,7 @@ public class PelionEdgeCoreClientAPI extends BaseClass implements JsonRpcHandler
     // mbed-edge core PT config
     private String m_edge_core_ws_pt_uri = null;
     private String m_edge_core_ws_mgmt_uri = null;
-    private boolean m_connected = false;
-    private boolean m_registered = false;
+    private volatile boolean m_connected = false;
     private String m_name = null;
     
     // websocket configuration (must have socat in container runtime)
@@ -74,90 +96,258 @@ public class PelionEdgeCoreClientAPI extends BaseClass implements JsonRpcHandler
     private int m_ws_port_mgmt = 4456;
     private String m_ws_host = "localhost";
     
-    // JSON-RPC/WS 
-    private JsonRpcClient m_client_pt = null;
+    // liveness probe (fed by the PT/MGMT websocket connection listeners)
+    private EdgeCoreLivenessProbe m_probe = null;
+    
+    // connection supervisor (restores lost PT/MGMT connections in the background)
+    private ConnectionSupervisor m_supervisor = null;
+    
+    // JSON-RPC/WS (PT sessions are sharded across devices by consistent hashing of the endpoint name)
+    private PTSession[] m_sessions = null;
+    private ConsistentHashRing<PTSession> m_ring = null;
     private JsonRpcClient m_client_mgmt = null;
     
+    // async (pipelined) RPC: bounded in-flight requests (per PT session) with per-request timeouts
+    private int m_rpc_max_inflight = DEF_RPC_MAX_INFLIGHT;
+    private int m_rpc_max_pending = DEF_RPC_MAX_PENDING;
+    private int m_rpc_timeout_ms = DEF_RPC_TIMEOUT_MS;
+    private ScheduledExecutorService m_rpc_timer = null;
+    
     // Orchestrator
     private Orchestrator m_orchestrator = null;
+    
+    // Metrics
+    private LatencyHistogram m_rpc_latency = null;
+    private LongAdder m_rpc_count = null;
+    private LongAdder m_rpc_failures = null;
         
     // default constructor
     public PelionEdgeCoreClientAPI(ErrorLogger logger,PreferenceManager preferences,Orchestrator orchestrator) {
         super(logger,preferences);
         this.m_orchestrator = orchestrator;
+        
+        // the liveness probe owns the websocket host/port configuration
+        this.m_probe = EdgeCoreLivenessProbe.getInstance(logger,preferences);
+        this.m_ws_host = this.m_probe.host();
+        this.m_ws_port_pt = this.m_probe.ptPort();
+        this.m_ws_port_mgmt = this.m_probe.mgmtPort();
+        this.m_supervisor = ConnectionSupervisor.getInstance(logger,preferences);
+        
+        // Metrics
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        this.m_rpc_latency = metrics.stage(PipelineStage.EDGE_CORE_RPC);
+        this.m_rpc_count = metrics.counter("edge_core_rpc_total","Edge core JSON-RPC requests issued");
+        this.m_rpc_failures = metrics.counter("edge_core_rpc_failures_total","Edge core JSON-RPC requests that failed");
+        
+        // async RPC configuration
+        this.m_rpc_max_inflight = this.preferences().intValueOf("edge_core_rpc_max_inflight");
+        if (this.m_rpc_max_inflight <= 0) {
+            this.m_rpc_max_inflight = DEF_RPC_MAX_INFLIGHT;
+        }
+        this.m_rpc_max_pending = this.preferences().intValueOf("edge_core_rpc_max_pending");
+        if (this.m_rpc_max_pending <= 0) {
+            this.m_rpc_max_pending = DEF_RPC_MAX_PENDING;
+        }
+        this.m_rpc_timeout_ms = this.preferences().intValueOf("edge_core_rpc_timeout_ms");
+        if (this.m_rpc_timeout_ms <= 0) {
+            this.m_rpc_timeout_ms = DEF_RPC_TIMEOUT_MS;
+        }
+        this.m_rpc_timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r,"edge-core-rpc-timer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        metrics.gauge("edge_core_rpc_inflight","Edge core JSON-RPC requests in flight",new Gauge() {
+            @Override
+            public long value() {
+                long inflight = 0;
+                for(PTSession session : m_sessions) {
+                    inflight += session.inflightCount();
+                }
+                return inflight;
+            }
+        });
+        metrics.gauge("edge_core_rpc_pending","Edge core JSON-RPC requests waiting for an in-flight slot",new Gauge() {
+            @Override
+            public long value() {
+                long pending = 0;
+                for(PTSession session : m_sessions) {
+                    pending += session.pendingCount();
+                }
+                return pending;
+            }
+        });
       
         // set the URI for our mbed-edge instance
         this.m_edge_core_ws_pt_uri = "ws://" + this.m_ws_host + ":" + this.m_ws_port_pt + "/1/pt";
         this.m_edge_core_ws_mgmt_uri = "ws://" + this.m_ws_host + ":" + this.m_ws_port_mgmt + "/1/mgmt";
         this.m_name = "edgex";
         
+        // sharded: each service instance registers its own protocol translator ("edgex-<instance>")
+        ShardCoordinator shards = ShardCoordinator.getInstance(logger,preferences);
+        if (shards.isEnabled() == true) {
+            this.m_name = "edgex-" + shards.instanceId();
+        }
+        
+        // create our PT sessions ("edgex", "edgex-1", ... each registers under its own name)
+        int num_shards = this.preferences().intValueOf("edge_core_pt_shards");
+        if (num_shards <= 0) {
+            num_shards = 1;
+        }
+        this.m_sessions = new PTSession[num_shards];
+        this.m_ring = new ConsistentHashRing<>();
+        for(int i=0;i<num_shards;++i) {
+            String name = (i == 0) ? this.m_name : this.m_name + "-" + i;
+            this.m_sessions[i] = new PTSession(logger,preferences,name,this.m_edge_core_ws_pt_uri,this.m_rpc_max_inflight,this.m_rpc_max_pending,this.m_rpc_timer);
+            this.m_ring.add(name,this.m_sessions[i]);
+        }
+        
         // Announce
-        this.errorLogger().warning("PelionDeviceAPI: Using EdgeCore Client API PT: " + this.m_edge_core_ws_pt_uri + " MGMT: " + this.m_edge_core_ws_mgmt_uri);
+        this.errorLogger().warning("PelionDeviceAPI: Using EdgeCore Client API PT: " + this.m_edge_core_ws_pt_uri + " (" + num_shards + " session(s)) MGMT: " + this.m_edge_core_ws_mgmt_uri);
       
     }
     
-    // connect to the PT
+    // the PT session that owns the given device (endpoint name)
+    private PTSession sessionFor(String ep) {
+        if (this.m_sessions.length == 1 || ep == null) {
+            return this.m_sessions[0];
+        }
+        return this.m_ring.get(ep);
+    }
+    
+    // open a PT session (a session that fails to open only takes its own shard down)
+    private boolean openSession(PTSession session) {
+        try {
+            return session.open(this,this.createConnectionListener(true),this.m_rpc_timeout_ms);
+        }
+        catch (IOException ex) {
+            this.errorLogger().info("PelionEdgeCoreClientAPI: PT session " + session.name() + " connection failed: " + ex.getMessage());
+        }
+        return false;
+    }
+    
+    // connect to the PT (single attempt... the connection supervisor retries with backoff)
     public synchronized boolean connect() {
         try {
-            if (!this.m_connected) {
-                for(int i=0;i<MAX_CONNECTION_ATTEMPTS && this.m_connected == false;++i) {
-                    try {
-                        if (this.m_client_pt == null) {
-                            // Connect PT
-                            // DEBUG
-                            this.errorLogger().info("PelionEdgeCoreClientAPI: PT Connecting to: " + this.m_edge_core_ws_pt_uri);
-
-                            // not registered
-                            this.m_registered = false;
-                        
-                            // connect PT 
-                            this.m_client_pt = new JsonRpcClientNettyWebSocket(this.m_edge_core_ws_pt_uri);
-                            this.m_client_pt.setServerRequestHandler(this);
-                            this.m_client_pt.connect();
-                        }
-                        
-                        if (this.m_client_mgmt == null) {
-                            // Connect MGMT
-                            // DEBUG
-                            this.errorLogger().info("PelionEdgeCoreClientAPI: MGMT Connecting to: " + this.m_edge_core_ws_mgmt_uri);
-
-                            // connect MGMT 
-                            this.m_client_mgmt = new JsonRpcClientNettyWebSocket(this.m_edge_core_ws_mgmt_uri);
-                            this.m_client_mgmt.connect();
-                        }
+            // Connect PT sessions (only those that are down)
+            int num_connected = 0;
+            for(PTSession session : this.m_sessions) {
+                if (session.isConnected() || this.openSession(session)) {
+                    ++num_connected;
+                }
+            }
+            if (num_connected == 0) {
+                throw new IOException("no PT sessions connected");
+            }
 
-                        // PT + MGMT connected!!
-                        this.m_connected = true;
+            if (!this.m_connected) {
+                if (this.m_client_mgmt == null) {
+                    // Connect MGMT
+                    // DEBUG
+                    this.errorLogger().info("PelionEdgeCoreClientAPI: MGMT Connecting to: " + this.m_edge_core_ws_mgmt_uri);
 
-                        // DEBUG
-                        this.errorLogger().warning("PelionEdgeCoreClientAPI: PT WS CONNECTED: " + this.m_edge_core_ws_pt_uri);
-                        this.errorLogger().warning("PelionEdgeCoreClientAPI: MGMT WS CONNECTED: " + this.m_edge_core_ws_mgmt_uri);
-                    }
-                    catch (IOException ioex) {
-                        // Wait for a bit and try again
-                        this.errorLogger().info("PelionEdgeCoreClientAPI: Connection retry: " + ioex.getMessage());
-                        Utils.waitForABit(this.errorLogger(), 2500);
-                    }
+                    // connect MGMT 
+                    JsonRpcClient mgmt = new JsonRpcClientNettyWebSocket(this.m_edge_core_ws_mgmt_uri,this.createConnectionListener(false));
+                    mgmt.setRequestTimeout(this.m_rpc_timeout_ms);
+                    mgmt.connect();
+                    this.m_client_mgmt = mgmt;
                 }
+
+                // PT + MGMT connected!!
+                this.m_connected = true;
+
+                // DEBUG
+                this.errorLogger().warning("PelionEdgeCoreClientAPI: PT WS CONNECTED: " + this.m_edge_core_ws_pt_uri + " (" + num_connected + " of " + this.m_sessions.length + " session(s))");
+                this.errorLogger().warning("PelionEdgeCoreClientAPI: MGMT WS CONNECTED: " + this.m_edge_core_ws_mgmt_uri);
             }
         }
+        catch (IOException ioex) {
+            // the supervisor will try again
+            this.errorLogger().info("PelionEdgeCoreClientAPI: Connection failed: " + ioex.getMessage());
+        }
         catch (Exception ex) {
             this.errorLogger().info("PelionEdgeCoreClientAPI: Exception in connect(): " + ex.getMessage());
         }
         return this.m_connected;
     }
     
+    // connect over already connected JSON-RPC clients instead of the edge core websockets (in-process transports, e.g. benchmarks)
+    public synchronized boolean connect(JsonRpcClient pt_client,JsonRpcClient mgmt_client) {
+        this.disconnect();
+        pt_client.setServerRequestHandler(this);
+        for(PTSession session : this.m_sessions) {
+            session.attach(pt_client);
+        }
+        this.m_client_mgmt = mgmt_client;
+        this.m_connected = true;
+        
+        // no websocket listeners here... tell the liveness probe ourselves
+        this.m_probe.ptConnectionChanged(true);
+        this.m_probe.mgmtConnectionChanged(true);
+        
+        // register our PT sessions as usual
+        return this.register();
+    }
+    
+    // create a websocket connection listener that pushes PT/MGMT connection state into the liveness probe
+    private JsonRpcWSConnectionListener createConnectionListener(final boolean is_pt) {
+        final EdgeCoreLivenessProbe probe = this.m_probe;
+        final ConnectionSupervisor supervisor = this.m_supervisor;
+        final ErrorLogger logger = this.errorLogger();
+        final String label = is_pt ? "PT" : "MGMT";
+        return new JsonRpcWSConnectionListener() {
+            @Override
+            public void connected() {
+                this.changed(true);
+            }
+
+            @Override
+            public void connectionFailed() {
+                this.changed(false);
+            }
+
+            @Override
+            public void disconnected() {
+                this.changed(false);
+            }
+
+            @Override
+            public void reconnected(boolean same_server) {
+                this.changed(true);
+            }
+
+            @Override
+            public void reconnecting() {
+                // DEBUG
+                logger.info("PelionEdgeCoreClientAPI: " + label + " WS reconnecting...");
+            }
+            
+            // update the probe
+            private void changed(boolean connected) {
+                // DEBUG
+                logger.info("PelionEdgeCoreClientAPI: " + label + " WS connected: " + connected);
+                if (is_pt) {
+                    probe.ptConnectionChanged(connected);
+                }
+                else {
+                    probe.mgmtConnectionChanged(connected);
+                }
+                if (connected == false) {
+                    supervisor.linkLost(LINK_NAME);
+                }
+            }
+        };
+    }
+    
     // disconnect from the PT
     public void disconnect() {
         if (this.m_connected) {
-            // mbed-edge: closedown the WS socket (PT)
-            if (this.m_client_pt != null) {
-                try {
-                    this.m_client_pt.close();
-                }
-                catch (IOException ex) {
-                    this.errorLogger().info("PelionEdgeCoreClientAPI: Exception in PT disconnect(): " + ex.getMessage());
-                }
+            // mbed-edge: closedown the WS sockets (PT)
+            for(PTSession session : this.m_sessions) {
+                session.close();
             }
                         
             // mbed-edge: closedown the WS socket (MGMT)
@@ -173,9 +363,7 @@ public class PelionEdgeCoreClientAPI extends BaseClass implements JsonRpcHandler
         
         // we are disconnected
         this.m_connected = false;
-        this.m_client_pt = null;
         this.m_client_mgmt = null;
-        this.m_registered = false;
     }
     
     // is connected?
@@ -184,6 +372,28 @@ public class PelionEdgeCoreClientAPI extends BaseClass implements JsonRpcHandler
         return this.m_connected;
     }
     
+    // is ready? (connected, with every PT session connected and registered)
+    public boolean isReady() {
+        if (this.m_connected == false) {
+            return false;
+        }
+        for(PTSession session : this.m_sessions) {
+            if (session.isConnected() == false || session.isRegistered() == false) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    // is the given device (endpoint) ready? (connected, with the PT session that owns it connected and registered)
+    public boolean isReady(String ep) {
+        if (this.m_connected == false) {
+            return false;
+        }
+        PTSession session = this.sessionFor(ep);
+        return session.isConnected() == true && session.isRegistered() == true;
+    }
+    
     // get devices
     private String getDevices() {
         HashMap<String,String> req = new HashMap<>();
@@ -263,7 +473,17 @@ public class PelionEdgeCoreClientAPI extends BaseClass implements JsonRpcHandler
     public boolean unregisterDevice(String deviceId) {
         HashMap<String,String> req = new HashMap<>();
         req.put("deviceId",deviceId);
-        return this.invokeRPC(this.m_client_pt,this.createRequest("device_unregister", req));
+        
+        // must go to the PT session that registered the device (sharded by endpoint name)
+        String ep = null;
+        try {
+            ep = this.m_orchestrator.getMbedEdgeCoreServiceProcessor().getDB().lookupEdgeXName(deviceId);
+        }
+        catch (Exception ex) {
+            // not available... fall back to the device ID
+            ep = null;
+        }
+        return this.invokeRPC(this.sessionFor(ep != null ? ep : deviceId),this.createRequest("device_unregister", req));
     }
     
     // register device
@@ -361,7 +581,7 @@ public class PelionEdgeCoreClientAPI extends BaseClass implements JsonRpcHandler
             //this.errorLogger().info("registerDevice(Edge): Converted JSON: " + req);
 
             // call to register the device...
-            String reply =  this.invokeRPCWithResult(this.m_client_pt,this.createRequest("device_register", req));
+            String reply =  this.invokeRPCWithResult(this.sessionFor((String)device.get("ep")),this.createRequest("device_register", req));
             if (reply != null) {                
                 // get the mbed device ID and save it...
                 String id = this.getPelionDeviceIDForDeviceName((String)device.get("ep"));
@@ -493,8 +713,19 @@ public class PelionEdgeCoreClientAPI extends BaseClass implements JsonRpcHandler
         return null;
     }
     
-     // dispatch an observation
+    // dispatch an observation (waits for the reply)
     public boolean sendObservation(String ep,String uri,Object value) {
+        try {
+            return this.sendObservationAsync(ep,uri,value).get();
+        }
+        catch (InterruptedException | ExecutionException ex) {
+            // failure already noted in the completion handler
+            return false;
+        }
+    }
+    
+    // dispatch an observation (pipelined: completes when edge core replies, fails, or times out)
+    public CompletableFuture<Boolean> sendObservationAsync(final String ep,final String uri,Object value) {
         // DEBUG
         this.errorLogger().warning("PelionEdgeCoreClientAPI: sendObservation: EP: " + ep + " URI: " + uri + " VALUE: " + value);
         
@@ -538,30 +769,28 @@ public class PelionEdgeCoreClientAPI extends BaseClass implements JsonRpcHandler
         // DEBUG
         //this.errorLogger().warning("sendObservation: REQUEST: " + req);
         
-        // make the call to PT to update the value
-        return this.invokeRPC(this.m_client_pt,this.createRequest("write", req));
+        // make the (pipelined) call to PT to update the value (transport failures complete exceptionally, rejections with false)
+        CompletableFuture<String> rpc = this.invokeRPCAsync(this.sessionFor(ep),this.createRequest("write", req));
+        rpc.whenComplete(new BiConsumer<String,Throwable>() {
+            @Override
+            public void accept(String reply,Throwable error) {
+                if (error != null) {
+                    // failure
+                    errorLogger().warning("PelionEdgeCoreClientAPI: sendObservation FAILED: EP: " + ep + " URI: " + uri + " ERROR: " + error.getMessage());
+                }
+            }
+        });
+        return rpc.thenApply(new Function<String,Boolean>() {
+            @Override
+            public Boolean apply(String reply) {
+                return (reply != null && reply.length() > 0);
+            }
+        });
     }
     
     // encode the value to Base64 
     private String encodeValue(Object value) {
-        String encoded_value = null;
-        
-        if (value instanceof Integer) {
-            int i = ((Integer)value);
-            encoded_value = Base64.getEncoder().encodeToString(BigInteger.valueOf(i).toByteArray());
-        }
-        if (value instanceof String) {
-            encoded_value = Base64.getEncoder().encodeToString(((String)value).getBytes());
-        }
-        if (value instanceof Float) {
-            float f = ((Float)value);
-            encoded_value = Base64.getEncoder().encodeToString(("" + f).getBytes());
-        }
-        if (value instanceof Double) {
-            double d = ((Double)value);
-            encoded_value = Base64.getEncoder().encodeToString(("" + d).getBytes());
-        }
-        return encoded_value;
+        return LwM2MValueCodec.encode(value);
     }
     
     // get the object id from the URI
@@ -604,25 +833,37 @@ public class PelionEdgeCoreClientAPI extends BaseClass implements JsonRpcHandler
     
     // register our API
     public boolean register() {    
+        boolean status = true;
+        for(PTSession session : this.m_sessions) {
+            if (session.isConnected() && session.isRegistered() == false) {
+                status = this.registerSession(session) && status;
+            }
+        }
+        return status;
+    }
+    
+    // register a single PT session under its own name
+    private boolean registerSession(PTSession session) {
         HashMap<String,String> req = new HashMap<>();
-        req.put("name",this.m_name);
+        req.put("name",session.name());
         String rpc_method_name = "protocol_translator_register";
         
         // DEBUG
         this.errorLogger().info("PelionEdgeCoreClientAPI: PT Registration: FN: " + rpc_method_name + " PARAM: " + req);
         
         // issue the registration request
-        boolean status = this.invokeRPC(this.m_client_pt,this.createRequest(rpc_method_name, req));
+        boolean status = this.invokeRPC(session.client(),this.createRequest(rpc_method_name, req));
         if (status) {
             // success
-            this.errorLogger().info("PelionEdgeCoreClientAPI: PT registration SUCCESS");
+            this.errorLogger().info("PelionEdgeCoreClientAPI: PT registration SUCCESS: " + session.name());
+            session.registered(true);
         }
         else {
             // failure
-            this.errorLogger().warning("PelionEdgeCoreClientAPI: PT registration FAILURE");
+            this.errorLogger().warning("PelionEdgeCoreClientAPI: PT registration FAILURE: " + session.name());
             
-            // disconnect
-            this.disconnect();
+            // disconnect (this shard only... the connection supervisor re-opens and re-registers it)
+            session.close();
         }
         return status;
     }
@@ -658,6 +899,24 @@ public class PelionEdgeCoreClientAPI extends BaseClass implements JsonRpcHandler
         return request;
     }
     
+    // execute RPC on a PT session (boolean return)
+    private boolean invokeRPC(PTSession session,Request<JsonObject> request) {
+        if (this.ensureSession(session) == false) {
+            this.errorLogger().info("PelionEdgeCoreClientAPI: RPC(" + request.getMethod() + ") FAILURE: PT session " + session.name() + " not ready");
+            return false;
+        }
+        return this.invokeRPC(session.client(),request);
+    }
+    
+    // execute RPC on a PT session (with result)
+    private String invokeRPCWithResult(PTSession session,Request<JsonObject> request) {
+        if (this.ensureSession(session) == false) {
+            this.errorLogger().info("PelionEdgeCoreClientAPI: RPC(" + request.getMethod() + ") FAILURE: PT session " + session.name() + " not ready");
+            return null;
+        }
+        return this.invokeRPCWithResult(session.client(),request);
+    }
+    
     // execute RPC (boolean return)
     private boolean invokeRPC(JsonRpcClient handle,Request<JsonObject> request) {
         String reply = this.invokeRPCWithResult(handle,request);
@@ -672,21 +931,140 @@ public class PelionEdgeCoreClientAPI extends BaseClass implements JsonRpcHandler
         // return failure
         return false;
     }
+    // ensure we are connected (fail fast: the supervisor restores the connection in the background)
+    private void ensureConnected() {
+        if (this.m_connected == false) {
+            this.m_supervisor.linkLost(LINK_NAME);
+        }
+    }
+    
+    // ensure the given PT session is connected and registered (fail fast: only this shard is unavailable until restored)
+    private boolean ensureSession(PTSession session) {
+        this.ensureConnected();
+        if (this.m_connected == true && session.isConnected() == true && session.isRegistered() == true) {
+            return true;
+        }
+        if (this.m_connected == true) {
+            this.m_supervisor.linkLost(LINK_NAME);
+        }
+        return false;
+    }
+    
+    // execute RPC asynchronously on a PT session (bounded in-flight window, per-request timeout)
+    private CompletableFuture<String> invokeRPCAsync(final PTSession session,final Request<JsonObject> request) {
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        try {
+            // ensure we are connected
+            if (this.ensureSession(session) == false || session.client() == null) {
+                throw new IOException("PT session " + session.name() + " not connected");
+            }
+            
+            // take an in-flight slot... if this session's window is full, wait (in memory, off the caller's thread) for one
+            Runnable dispatch = new Runnable() {
+                @Override
+                public void run() {
+                    dispatchRPC(session,request,future);
+                }
+            };
+            if (session.acquireOrQueue(dispatch) == true) {
+                dispatch.run();
+            }
+        }
+        catch (Exception ex) {
+            // unable to dispatch
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+    
+    // dispatch an RPC holding one of the session's in-flight slots (released on completion)
+    private void dispatchRPC(final PTSession session,final Request<JsonObject> request,final CompletableFuture<String> future) {
+        // on completion (of any kind): release the slot and record
+        final long start_ns = System.nanoTime();
+        future.whenComplete(new BiConsumer<String,Throwable>() {
+            @Override
+            public void accept(String reply,Throwable error) {
+                session.release();
+                m_rpc_latency.recordSince(start_ns);
+                if (error != null || reply == null) {
+                    m_rpc_failures.increment();
+                }
+            }
+        });
+        try {
+            // the session may have gone while we waited for the slot
+            JsonRpcClient handle = session.client();
+            if (session.isConnected() == false || session.isRegistered() == false || handle == null) {
+                throw new IOException("PT session " + session.name() + " not connected");
+            }
+            
+            // per-request timeout (cancelled once the request completes)
+            final ScheduledFuture<?> timeout = this.m_rpc_timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    future.completeExceptionally(new TimeoutException("RPC(" + request.getMethod() + ") timed out after " + m_rpc_timeout_ms + "ms"));
+                }
+            },this.m_rpc_timeout_ms,TimeUnit.MILLISECONDS);
+            future.whenComplete(new BiConsumer<String,Throwable>() {
+                @Override
+                public void accept(String reply,Throwable error) {
+                    timeout.cancel(false);
+                }
+            });
+            
+            // DEBUG
+            this.errorLogger().info("PelionEdgeCoreClientAPI: RPC(" + request.getMethod() + ") ASYNC PARAMS: " + request.getParams().toString());
+            
+            // dispatch
+            this.m_rpc_count.increment();
+            handle.sendRequest(request,new Continuation<Response<JsonElement>>() {
+                @Override
+                public void onSuccess(Response<JsonElement> response) {
+                    future.complete(replyFromResponse(request,response));
+                }
+
+                @Override
+                public void onError(Throwable cause) {
+                    future.completeExceptionally(cause);
+                }
+            });
+        }
+        catch (Exception ex) {
+            // unable to dispatch
+            future.completeExceptionally(ex);
+        }
+    }
+    
+    // extract the reply from an RPC response
+    private String replyFromResponse(Request<JsonObject> request,Response<JsonElement> response) {
+        String reply = null;
+        if (response != null) {
+            try {
+                if (response.getError() != null) {
+                    this.errorLogger().warning("PelionEdgeCoreClientAPI: RPC(" + request.getMethod() + ") FAILURE: Error: " + response.getError().getMessage());
+                }
+                else if (response.getResult() != null) {
+                    reply = response.getResult().toString();
+                }
+                else {
+                    reply = "ok";
+                }
+            }
+            catch (Exception ex) {
+                this.errorLogger().info("PelionEdgeCoreClientAPI: RPC(" + request.getMethod() + ") (result parsing) FAILURE: Exception: " + ex.toString());
+                reply = null;
+            }
+        }
+        return reply;
+    }
+    
     // execute RPC (with result)
     private String invokeRPCWithResult(JsonRpcClient handle,Request<JsonObject> request) {
         String reply = null;
         
         try{
             // ensure we are connected
-            if (this.m_connected == false) {
-                // attempt a connection and registration
-                this.m_connected = this.connect();
-                
-                // if connected and !registered
-                if (this.m_connected == true && handle == this.m_client_pt && this.m_registered == false) {
-                    this.m_registered = this.register();
-                }
-            }
+            this.ensureConnected();
 
             // continue only if connected
             if (this.m_connected && handle != null) {
@@ -695,7 +1073,10 @@ public class PelionEdgeCoreClientAPI extends BaseClass implements JsonRpcHandler
                     this.errorLogger().info("PelionEdgeCoreClientAPI: RPC(" + request.getMethod() + ") PARAMS: " + request.getParams().toString());
                     
                     // invoke the RPC with our params
+                    this.m_rpc_count.increment();
+                    long start_ns = System.nanoTime();
                     Response<JsonElement> response = handle.sendRequest(request);
+                    this.m_rpc_latency.recordSince(start_ns);
                     if (response != null) {
                         try {
                             if (response.getResult() != null) {
@@ -713,6 +1094,7 @@ public class PelionEdgeCoreClientAPI extends BaseClass implements JsonRpcHandler
 
                     // DEBUG
                     if (reply == null) {
+                        this.m_rpc_failures.increment();
                         this.errorLogger().warning("PelionEdgeCoreClientAPI: RPC(" + request.getMethod() + ") FAILURE: Reply: <empty>");
                     }
                     else {
@@ -720,6 +1102,7 @@ public class PelionEdgeCoreClientAPI extends BaseClass implements JsonRpcHandler
                     }
                 } 
                 catch (IOException ex) {
+                    this.m_rpc_failures.increment();
                     this.errorLogger().warning("PelionEdgeCoreClientAPI: RPC(" + request.getMethod() + ") FAILURE: Exception: " + ex.getMessage());
                     reply = null;
                 }
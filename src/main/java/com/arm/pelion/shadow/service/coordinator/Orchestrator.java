@@ -23,6 +23,7 @@
 package com.arm.pelion.shadow.service.coordinator;
 
 import com.arm.pelion.shadow.service.core.BaseClass;
+import com.arm.pelion.shadow.service.core.ConnectionSupervisor;
 import com.arm.pelion.shadow.service.core.ErrorLogger;
 import com.arm.pelion.shadow.service.health.HealthCheckServiceProvider;
 import com.arm.pelion.shadow.service.health.interfaces.HealthStatisticListenerInterface;
@@ -31,7 +32,7 @@ import com.arm.pelion.shadow.service.json.JSONGeneratorFactory;
 import com.arm.pelion.shadow.service.json.JSONParser;
 import com.arm.pelion.shadow.service.preferences.PreferenceManager;
 import com.arm.pelion.shadow.service.processors.edgex.EdgeXServiceProcessor;
-import java.util.Set;
+import java.lang.management.ManagementFactory;
 import com.arm.pelion.shadow.service.interfaces.DeviceShadowProcessorInterface;
 
 /**
@@ -39,8 +40,8 @@ import com.arm.pelion.shadow.service.interfaces.DeviceShadowProcessorInterface;
  * @author Doug Anson
  */
 public class Orchestrator extends BaseClass implements HealthStatisticListenerInterface { 
-    // Default Health Check Service Provider Sleep time in MS
-    private static final int DEF_HEALTH_CHECK_SERVICE_PROVIDER_SLEEP_TIME_MS = (60000 * 10);    // 10 minutes
+    // Default minimum interval between health statistic publications in MS
+    private static final int DEF_HEALTH_STATS_MIN_PUBLISH_INTERVAL_MS = 5000;                 // 5 seconds
     
     // Health Stats Key 
     public static final String HEALTH_STATS_KEY = "[HEALTH_STATS]";        
@@ -59,10 +60,12 @@ public class Orchestrator extends BaseClass implements HealthStatisticListenerIn
     // Health Check Services Provider/Manager
     private boolean m_enable_health_checks = true;                 // true: enabled, false: disabled
     private HealthCheckServiceProvider m_health_check_service_provider = null;
-    private Thread m_health_check_service_provider_thread = null;
     
-    // Health Check Services Provider Sleep time (in ms)
-    private int m_health_check_service_provider_sleep_time_ms = DEF_HEALTH_CHECK_SERVICE_PROVIDER_SLEEP_TIME_MS;
+    // Health statistics publication: minimum interval (in ms) and delivery channels
+    private int m_health_stats_min_publish_interval_ms = DEF_HEALTH_STATS_MIN_PUBLISH_INTERVAL_MS;
+    private boolean m_health_stats_log_enabled = false;
+    private String m_health_stats_mqtt_topic = null;
+    private volatile String m_health_stats_json = null;
     
     private int m_thread_count = 0;
         
@@ -81,16 +84,23 @@ public class Orchestrator extends BaseClass implements HealthStatisticListenerIn
         
         // Get the health check service provider sleep time
         if (this.m_enable_health_checks == true) {
-            this.m_health_check_service_provider_sleep_time_ms = preferences().intValueOf("heath_check_sleep_time_ms");
-            if (this.m_health_check_service_provider_sleep_time_ms <= 0) {
-                this.m_health_check_service_provider_sleep_time_ms = DEF_HEALTH_CHECK_SERVICE_PROVIDER_SLEEP_TIME_MS;
+            this.m_health_stats_min_publish_interval_ms = preferences().intValueOf("health_stats_min_publish_interval_ms");
+            if (this.m_health_stats_min_publish_interval_ms <= 0) {
+                this.m_health_stats_min_publish_interval_ms = DEF_HEALTH_STATS_MIN_PUBLISH_INTERVAL_MS;
+            }
+            
+            // delivery channels (the /health endpoint always has the latest stats)
+            this.m_health_stats_log_enabled = preferences().booleanValueOf("health_stats_log_enabled");
+            this.m_health_stats_mqtt_topic = preferences().valueOf("health_stats_mqtt_topic");
+            if (this.m_health_stats_mqtt_topic != null && this.m_health_stats_mqtt_topic.length() == 0) {
+                this.m_health_stats_mqtt_topic = null;
             }
 
             // DEBUG
-            this.errorLogger().warning("Orchestrator: Stats Check Sleep Interval (ms): " + this.m_health_check_service_provider_sleep_time_ms);
+            this.errorLogger().warning("Orchestrator: Stats Min Publish Interval (ms): " + this.m_health_stats_min_publish_interval_ms + " Log: " + this.m_health_stats_log_enabled + " MQTT Topic: " + this.m_health_stats_mqtt_topic);
 
-            // create our health check service provider and its runtime thread...
-            this.m_health_check_service_provider = new HealthCheckServiceProvider(this,this.m_health_check_service_provider_sleep_time_ms); 
+            // create our health check service provider (validators run on its scheduler)...
+            this.m_health_check_service_provider = new HealthCheckServiceProvider(this,this.m_health_stats_min_publish_interval_ms); 
             this.m_health_check_service_provider.initialize();
             this.m_health_check_service_provider.addListener(this);
         }
@@ -137,8 +147,12 @@ public class Orchestrator extends BaseClass implements HealthStatisticListenerIn
     
     // closedown the manager instance
     public void closedown() {
+        if (this.m_health_check_service_provider != null) {
+            this.m_health_check_service_provider.halt();
+        }
         this.m_pelion_shadow_processor.closedown();
         this.m_edgex_processor.closedown();
+        ConnectionSupervisor.getInstance(this.errorLogger(),this.preferences()).halt();
     }
     
     // get the JSON parser instance
@@ -151,23 +165,6 @@ public class Orchestrator extends BaseClass implements HealthStatisticListenerIn
         return this.m_json_generator;
     }
     
-    // start statistics gathering
-    private void startStatisticsMonitoring() {
-        if (this.m_enable_health_checks == true) {
-            try {
-                // DEBUG
-                this.errorLogger().warning("Orchestrator: Statistics and health monitoring starting...");
-                this.m_health_check_service_provider_thread = new Thread(this.m_health_check_service_provider);
-                if (this.m_health_check_service_provider_thread != null) {
-                    this.m_health_check_service_provider_thread.start();
-                }
-            }
-            catch (Exception ex) {
-                this.errorLogger().critical("Orchestrator: Exception caught while starting health check provider: " + ex.getMessage());
-            }
-        }
-    }
-    
     // refresh the health stats
     public void refreshHealthStats() {
         if (this.m_health_check_service_provider != null) {
@@ -175,31 +172,32 @@ public class Orchestrator extends BaseClass implements HealthStatisticListenerIn
         }
     }
 
+    // get the latest published health stats (JSON)
+    public String getHealthStatisticsJSON() {
+        return this.m_health_stats_json;
+    }
+
     @Override
     public void publish(String json) {
-       // dump to error logger with a KEY that the properties-editor will detect
-       this.errorLogger().critical(HEALTH_STATS_KEY + json);
+       // always retained for the /health endpoint
+       this.m_health_stats_json = json;
+       
+       // optionally publish to our MQTT topic
+       if (this.m_health_stats_mqtt_topic != null && this.m_edgex_processor != null) {
+           this.m_edgex_processor.publishMessage(this.m_health_stats_mqtt_topic,json);
+       }
        
-       // note in log so that log moves...
-       this.errorLogger().info("Health Stats: Updated (OK).");
+       // optionally dump to error logger with a KEY that the properties-editor will detect
+       if (this.m_health_stats_log_enabled == true) {
+           this.errorLogger().critical(HEALTH_STATS_KEY + json);
+       }
     }
     
     // get the active thread count
     public int getActiveThreadCount() {
         try {
-            int count = 0;
-            Set<Thread> threadSet = Thread.getAllStackTraces().keySet();
-            for (Thread t : threadSet) {
-                if (t.isDaemon() || t.isAlive()) {
-                    ++count;
-                }
-            }
-                        
-            // add one for main...
-            ++count;
-            
-            // record the count
-            this.m_thread_count = count;
+            // ThreadMXBean keeps a live count... no safepoint or stack capture needed
+            this.m_thread_count = ManagementFactory.getThreadMXBean().getThreadCount();
         }
         catch (Exception ex) {
             this.errorLogger().warning("Orchestrator: Exception caught while counting threads: " + ex.getMessage());
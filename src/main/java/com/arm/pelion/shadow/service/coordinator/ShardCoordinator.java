@@ -0,0 +1,389 @@
+/**
+ * @file ShardCoordinator.java
+ * @brief shard membership (MQTT heartbeats) and device ownership for multi-instance deployments
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.shadow.service.coordinator;
+
+import com.arm.pelion.shadow.service.core.BaseClass;
+import com.arm.pelion.shadow.service.core.ConsistentHashRing;
+import com.arm.pelion.shadow.service.core.ErrorLogger;
+import com.arm.pelion.shadow.service.metrics.Gauge;
+import com.arm.pelion.shadow.service.metrics.MetricsRegistry;
+import com.arm.pelion.shadow.service.preferences.PreferenceManager;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shard coordinator: lets several service instances share the EdgeX event stream. Each instance heartbeats on
+ * an MQTT membership topic and tracks the others... EdgeX devices are consistently hashed (by device name) onto
+ * the live instances and each instance only shadows the devices it owns. When an instance joins or leaves (or
+ * stops heart beating) only ~1/N of the devices move: listeners are told to release/pick up their shadows.
+ * @author Doug Anson
+ */
+public class ShardCoordinator extends BaseClass {
+    // Defaults
+    private static final String DEF_MEMBERSHIP_TOPIC = "edgex-shadow/members";
+    private static final int DEF_HEARTBEAT_MS = 2000;              // heartbeat every 2 seconds
+    private static final int DEF_MEMBER_TIMEOUT_MS = 6000;         // members missing 3 heartbeats are dropped
+    
+    /**
+     * Membership heartbeat publisher (our MQTT connection)
+     */
+    public interface Publisher {
+        // publish (best effort)
+        public boolean publish(String topic,String message);
+    }
+    
+    /**
+     * Rebalance listener
+     */
+    public interface Listener {
+        // the membership changed: device ownership may have moved
+        public void rebalanced(List<String> members);
+    }
+    
+    // singleton
+    private static volatile ShardCoordinator m_self = null;
+    
+    // configuration
+    private boolean m_enabled = false;
+    private String m_instance_id = null;
+    private String m_membership_topic = DEF_MEMBERSHIP_TOPIC;
+    private int m_heartbeat_ms = DEF_HEARTBEAT_MS;
+    private int m_member_timeout_ms = DEF_MEMBER_TIMEOUT_MS;
+    
+    // membership: instance id -> last heartbeat (ms)... the ring is rebuilt (and swapped) when it changes
+    private final Map<String,Long> m_members = new ConcurrentHashMap<>();
+    private volatile ConsistentHashRing<String> m_ring = null;
+    private volatile List<String> m_view = Collections.emptyList();
+    private final CopyOnWriteArrayList<Listener> m_listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean m_settled = false;
+    
+    // heartbeat scheduler + rebalance worker (a slow rebalance must not delay our heartbeats)
+    private ScheduledExecutorService m_scheduler = null;
+    private ExecutorService m_rebalancer = null;
+    private Publisher m_publisher = null;
+    
+    // Metrics
+    private LongAdder m_rebalances = null;
+
+    /**
+     * Instance Factory
+     *
+     * @param error_logger
+     * @param preference_manager
+     * @return
+     */
+    public static ShardCoordinator getInstance(ErrorLogger error_logger,PreferenceManager preference_manager) {
+        if (ShardCoordinator.m_self == null) {
+            synchronized (ShardCoordinator.class) {
+                if (ShardCoordinator.m_self == null) {
+                    // create our coordinator
+                    ShardCoordinator.m_self = new ShardCoordinator(error_logger,preference_manager);
+                }
+            }
+        }
+        return ShardCoordinator.m_self;
+    }
+    
+    // default constructor
+    private ShardCoordinator(ErrorLogger logger,PreferenceManager preferences) {
+        super(logger,preferences);
+        
+        // configuration
+        this.m_enabled = this.preferences().booleanValueOf("shard_enabled");
+        this.m_instance_id = this.preferences().valueOf("shard_instance_id");
+        if (this.m_instance_id == null || this.m_instance_id.length() == 0) {
+            // not stable across restarts... configure shard_instance_id to keep the shadow DB partition
+            this.m_instance_id = ManagementFactory.getRuntimeMXBean().getName();
+            if (this.m_enabled == true) {
+                this.errorLogger().warning("ShardCoordinator: shard_instance_id not set. Using: " + this.m_instance_id + " (shadow partition will not survive a restart)");
+            }
+        }
+        this.m_instance_id = this.m_instance_id.replaceAll("[^A-Za-z0-9_\\-]","_");
+        String topic = this.preferences().valueOf("shard_membership_topic");
+        if (topic != null && topic.length() > 0) {
+            this.m_membership_topic = topic;
+        }
+        this.m_heartbeat_ms = this.preferences().intValueOf("shard_heartbeat_ms");
+        if (this.m_heartbeat_ms <= 0) {
+            this.m_heartbeat_ms = DEF_HEARTBEAT_MS;
+        }
+        this.m_member_timeout_ms = this.preferences().intValueOf("shard_member_timeout_ms");
+        if (this.m_member_timeout_ms <= this.m_heartbeat_ms) {
+            this.m_member_timeout_ms = Math.max(DEF_MEMBER_TIMEOUT_MS,3 * this.m_heartbeat_ms);
+        }
+        
+        // we are always a member
+        this.m_members.put(this.m_instance_id,System.currentTimeMillis());
+        this.rebuild();
+        
+        // Metrics
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        this.m_rebalances = metrics.counter("shard_rebalances_total","Shard membership changes (device ownership rebalanced)");
+        metrics.gauge("shard_members","Live service instances sharing the EdgeX devices",new Gauge() {
+            @Override
+            public long value() {
+                return m_view.size();
+            }
+        });
+        
+        // DEBUG
+        if (this.m_enabled == true) {
+            this.errorLogger().warning("ShardCoordinator: sharding ENABLED. Instance: " + this.m_instance_id + " Membership: " + this.m_membership_topic + " Heartbeat: " + this.m_heartbeat_ms + "ms Timeout: " + this.m_member_timeout_ms + "ms");
+        }
+    }
+    
+    // is sharding enabled?
+    public boolean isEnabled() {
+        return this.m_enabled;
+    }
+    
+    // our instance id
+    public String instanceId() {
+        return this.m_instance_id;
+    }
+    
+    // the membership subscription (topic filter)
+    public String membershipTopicFilter() {
+        return this.m_membership_topic + "/+";
+    }
+    
+    // is this a membership topic?
+    public boolean isMembershipTopic(String topic) {
+        return topic != null && topic.startsWith(this.m_membership_topic + "/");
+    }
+    
+    // have we heard from the other members yet? (always true if sharding is disabled)
+    public boolean isSettled() {
+        return this.m_enabled == false || this.m_settled == true;
+    }
+    
+    // the live members (sorted)
+    public List<String> members() {
+        return this.m_view;
+    }
+    
+    // do we own the given EdgeX device? (always true if sharding is disabled)
+    public boolean owns(String edgex_name) {
+        if (this.m_enabled == false || edgex_name == null) {
+            return true;
+        }
+        return this.m_instance_id.equals(this.m_ring.get(edgex_name));
+    }
+    
+    // add/remove a rebalance listener
+    public void addListener(Listener listener) {
+        this.m_listeners.add(listener);
+    }
+    public void removeListener(Listener listener) {
+        this.m_listeners.remove(listener);
+    }
+    
+    // start heart beating (and expiring silent members)
+    public void start(Publisher publisher) {
+        if (this.m_enabled == false || this.m_scheduler != null) {
+            return;
+        }
+        this.m_publisher = publisher;
+        this.m_rebalancer = Executors.newSingleThreadExecutor(this.daemon("shard-rebalancer"));
+        this.m_scheduler = Executors.newSingleThreadScheduledExecutor(this.daemon("shard-coordinator"));
+        this.m_scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                heartbeat();
+            }
+        },0,this.m_heartbeat_ms,TimeUnit.MILLISECONDS);
+        
+        // once everyone has had a chance to be heard, settle our initial view
+        this.m_scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                m_settled = true;
+                errorLogger().warning("ShardCoordinator: initial membership: " + m_view);
+                notifyListeners();
+            }
+        },this.m_member_timeout_ms,TimeUnit.MILLISECONDS);
+    }
+    
+    // stop heart beating (announce that we are leaving so the others pick up our devices right away)
+    public void stop() {
+        if (this.m_scheduler != null) {
+            this.m_scheduler.shutdownNow();
+            this.m_rebalancer.shutdownNow();
+            this.publish("down");
+            this.m_scheduler = null;
+        }
+    }
+    
+    // membership heartbeat received
+    public void onMembershipMessage(String topic,String message) {
+        try {
+            Map heartbeat = this.jsonParser().parseJson(message);
+            String id = (heartbeat != null) ? (String)heartbeat.get("id") : null;
+            if (id == null || id.equals(this.m_instance_id)) {
+                // not a heartbeat or our own
+                return;
+            }
+            boolean changed = false;
+            if ("down".equalsIgnoreCase((String)heartbeat.get("state"))) {
+                changed = (this.m_members.remove(id) != null);
+            }
+            else {
+                changed = (this.m_members.put(id,System.currentTimeMillis()) == null);
+            }
+            if (changed == true) {
+                this.membershipChanged();
+            }
+        }
+        catch (Exception ex) {
+            this.errorLogger().info("ShardCoordinator: ignoring malformed heartbeat on: " + topic);
+        }
+    }
+    
+    // extract the device name from an EdgeX event without parsing it (null if it cannot be found cheaply)
+    public static String deviceOf(String message) {
+        if (message == null) {
+            return null;
+        }
+        int key = message.indexOf("\"device\"");
+        if (key < 0) {
+            return null;
+        }
+        int i = key + 8;
+        while (i < message.length() && (message.charAt(i) == ' ' || message.charAt(i) == ':' || message.charAt(i) == '\t')) {
+            ++i;
+        }
+        if (i >= message.length() || message.charAt(i) != '"') {
+            return null;
+        }
+        int end = message.indexOf('"',i + 1);
+        if (end < 0 || message.lastIndexOf('\\',end) > i) {
+            // escaped characters... let the JSON parser handle it
+            return null;
+        }
+        return message.substring(i + 1,end);
+    }
+    
+    // heartbeat: announce ourselves and drop members we have not heard from
+    private void heartbeat() {
+        try {
+            this.publish("up");
+            long now = System.currentTimeMillis();
+            this.m_members.put(this.m_instance_id,now);
+            boolean changed = false;
+            for (Map.Entry<String,Long> member : this.m_members.entrySet()) {
+                if (member.getKey().equals(this.m_instance_id) == false && (now - member.getValue()) > this.m_member_timeout_ms) {
+                    this.m_members.remove(member.getKey());
+                    this.errorLogger().warning("ShardCoordinator: instance: " + member.getKey() + " timed out");
+                    changed = true;
+                }
+            }
+            if (changed == true) {
+                this.membershipChanged();
+            }
+        }
+        catch (Exception ex) {
+            this.errorLogger().warning("ShardCoordinator: Exception during heartbeat: " + ex.getMessage());
+        }
+    }
+    
+    // publish our heartbeat
+    private void publish(String state) {
+        if (this.m_publisher != null) {
+            HashMap<String,Object> heartbeat = new HashMap<>();
+            heartbeat.put("id",this.m_instance_id);
+            heartbeat.put("state",state);
+            heartbeat.put("ts",System.currentTimeMillis());
+            this.m_publisher.publish(this.m_membership_topic + "/" + this.m_instance_id,this.jsonGenerator().generateJson(heartbeat));
+        }
+    }
+    
+    // membership changed: rebuild the ring and rebalance
+    private synchronized void membershipChanged() {
+        if (this.rebuild() == true) {
+            this.m_rebalances.increment();
+            this.errorLogger().warning("ShardCoordinator: membership changed: " + this.m_view);
+            this.notifyListeners();
+        }
+    }
+    
+    // rebuild the ring from the current members (returns true if the view changed)
+    private synchronized boolean rebuild() {
+        ArrayList<String> view = new ArrayList<>(this.m_members.keySet());
+        Collections.sort(view);
+        if (view.equals(this.m_view) == true) {
+            return false;
+        }
+        ConsistentHashRing<String> ring = new ConsistentHashRing<>();
+        for (String member : view) {
+            ring.add(member,member);
+        }
+        this.m_ring = ring;
+        this.m_view = Collections.unmodifiableList(view);
+        return true;
+    }
+    
+    // tell the listeners (on the rebalance worker)
+    private void notifyListeners() {
+        final List<String> view = this.m_view;
+        if (this.m_rebalancer == null) {
+            return;
+        }
+        this.m_rebalancer.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : m_listeners) {
+                    try {
+                        listener.rebalanced(view);
+                    }
+                    catch (Exception ex) {
+                        errorLogger().warning("ShardCoordinator: Exception during rebalance: " + ex.getMessage());
+                    }
+                }
+            }
+        });
+    }
+    
+    // named daemon thread factory
+    private ThreadFactory daemon(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r,name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+}
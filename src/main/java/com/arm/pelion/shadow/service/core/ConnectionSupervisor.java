@@ -0,0 +1,377 @@
+/**
+ * @file ConnectionSupervisor.java
+ * @brief background supervisor that restores lost connections with exponential backoff
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.shadow.service.core;
+
+import com.arm.pelion.shadow.service.metrics.Gauge;
+import com.arm.pelion.shadow.service.metrics.MetricsRegistry;
+import com.arm.pelion.shadow.service.preferences.PreferenceManager;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connection supervisor: owns the (re)connection of named links (MQTT, edge-core, ...). Data path callers
+ * report a lost link via linkLost() and fail fast... the supervisor restores the link in the background using
+ * exponential backoff with jitter and notifies its listeners as links go down and come back up.
+ * @author Doug Anson
+ */
+public class ConnectionSupervisor extends BaseClass {
+    // Defaults
+    private static final int DEF_INITIAL_BACKOFF_MS = 500;         // first retry after ~1/2 second
+    private static final int DEF_MAX_BACKOFF_MS = 30000;           // never wait more than 30 seconds between retries
+    private static final int DEF_JITTER_PCT = 20;                  // +/- 20% jitter on each retry delay
+    private static final int DEF_CHECK_INTERVAL_MS = 10000;        // check the links every 10 seconds
+    private static final int DEF_NUM_THREADS = 2;                  // a slow link should not hold up the other
+
+    /**
+     * A supervised link
+     */
+    public interface Link {
+        // is the link up?
+        public boolean isConnected();
+
+        // make a single attempt to restore the link (must not loop or sleep)
+        public boolean reconnect();
+    }
+
+    /**
+     * Link state listener
+     */
+    public interface Listener {
+        // the link has been (re)established
+        public void linkUp(String name);
+
+        // the link is down... the next attempt is made in retry_in_ms
+        public void linkDown(String name, int attempts, long retry_in_ms);
+    }
+
+    // singleton
+    private static volatile ConnectionSupervisor m_self = null;
+
+    // backoff configuration
+    private long m_initial_backoff_ms = DEF_INITIAL_BACKOFF_MS;
+    private long m_max_backoff_ms = DEF_MAX_BACKOFF_MS;
+    private int m_jitter_pct = DEF_JITTER_PCT;
+    private int m_check_interval_ms = DEF_CHECK_INTERVAL_MS;
+
+    // supervised links and listeners
+    private final Map<String, LinkState> m_links = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<Listener> m_listeners = new CopyOnWriteArrayList<>();
+
+    // scheduler
+    private ScheduledExecutorService m_scheduler = null;
+
+    // Metrics
+    private LongAdder m_reconnect_attempts = null;
+    private LongAdder m_reconnect_failures = null;
+
+    /**
+     * Instance Factory
+     *
+     * @param error_logger
+     * @param preference_manager
+     * @return
+     */
+    public static ConnectionSupervisor getInstance(ErrorLogger error_logger, PreferenceManager preference_manager) {
+        if (ConnectionSupervisor.m_self == null) {
+            synchronized (ConnectionSupervisor.class) {
+                if (ConnectionSupervisor.m_self == null) {
+                    // create our supervisor
+                    ConnectionSupervisor.m_self = new ConnectionSupervisor(error_logger, preference_manager);
+                }
+            }
+        }
+        return ConnectionSupervisor.m_self;
+    }
+
+    // default constructor
+    private ConnectionSupervisor(ErrorLogger logger, PreferenceManager preferences) {
+        super(logger, preferences);
+
+        // backoff configuration
+        this.m_initial_backoff_ms = this.preferences().intValueOf("reconnect_initial_backoff_ms");
+        if (this.m_initial_backoff_ms <= 0) {
+            this.m_initial_backoff_ms = DEF_INITIAL_BACKOFF_MS;
+        }
+        this.m_max_backoff_ms = this.preferences().intValueOf("reconnect_max_backoff_ms");
+        if (this.m_max_backoff_ms <= 0) {
+            this.m_max_backoff_ms = DEF_MAX_BACKOFF_MS;
+        }
+        if (this.m_max_backoff_ms < this.m_initial_backoff_ms) {
+            this.m_max_backoff_ms = this.m_initial_backoff_ms;
+        }
+        this.m_jitter_pct = this.preferences().intValueOf("reconnect_jitter_pct");
+        if (this.m_jitter_pct <= 0 || this.m_jitter_pct > 100) {
+            this.m_jitter_pct = DEF_JITTER_PCT;
+        }
+        this.m_check_interval_ms = this.preferences().intValueOf("reconnect_check_interval_ms");
+        if (this.m_check_interval_ms <= 0) {
+            this.m_check_interval_ms = DEF_CHECK_INTERVAL_MS;
+        }
+
+        // daemon scheduler
+        this.m_scheduler = Executors.newScheduledThreadPool(DEF_NUM_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "connection-supervisor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        // periodic link check (catches links that drop without anyone noticing on the data path)
+        this.m_scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkLinks();
+            }
+        }, this.m_check_interval_ms, this.m_check_interval_ms, TimeUnit.MILLISECONDS);
+
+        // Metrics
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        this.m_reconnect_attempts = metrics.counter("reconnect_attempts_total", "Connection restore attempts made by the connection supervisor");
+        this.m_reconnect_failures = metrics.counter("reconnect_failures_total", "Connection restore attempts that failed");
+        metrics.gauge("links_down", "Supervised links currently down", new Gauge() {
+            @Override
+            public long value() {
+                return linksDown();
+            }
+        });
+
+        // DEBUG
+        this.errorLogger().info("ConnectionSupervisor: Backoff: " + this.m_initial_backoff_ms + "ms -> " + this.m_max_backoff_ms + "ms Jitter: " + this.m_jitter_pct + "% Check Interval: " + this.m_check_interval_ms + "ms");
+    }
+
+    // supervise a link (if it is not already up, restoring it starts right away)
+    public void supervise(String name, Link link) {
+        LinkState state = new LinkState(name, link);
+        this.m_links.put(name, state);
+
+        // DEBUG
+        this.errorLogger().info("ConnectionSupervisor: supervising link: " + name);
+
+        // kick off the initial connection if needed
+        this.schedule(state, 0);
+    }
+
+    // stop supervising a link
+    public void unsupervise(String name) {
+        LinkState state = this.m_links.remove(name);
+        if (state != null) {
+            state.m_removed = true;
+        }
+    }
+
+    // a data path caller has seen the link fail: restore it in the background (returns immediately)
+    public void linkLost(String name) {
+        LinkState state = this.m_links.get(name);
+        if (state != null) {
+            this.schedule(state, 0);
+        }
+    }
+
+    // is the link up (as last seen by the supervisor)?
+    public boolean isUp(String name) {
+        LinkState state = this.m_links.get(name);
+        return state != null && state.m_up == true;
+    }
+
+    // add a listener
+    public void addListener(Listener listener) {
+        if (listener != null) {
+            this.m_listeners.addIfAbsent(listener);
+        }
+    }
+
+    // remove a listener
+    public void removeListener(Listener listener) {
+        this.m_listeners.remove(listener);
+    }
+
+    // halt the supervisor
+    public void halt() {
+        this.m_scheduler.shutdownNow();
+    }
+
+    // number of links currently down
+    private long linksDown() {
+        long count = 0;
+        for (LinkState state : this.m_links.values()) {
+            if (state.m_up == false) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    // check all links
+    private void checkLinks() {
+        for (LinkState state : this.m_links.values()) {
+            try {
+                boolean connected = state.m_link.isConnected();
+                if (connected == false) {
+                    this.schedule(state, 0);
+                }
+                else if (state.m_up == false && state.m_pending.get() == false) {
+                    // restored outside of the supervisor (e.g. by the underlying client)
+                    this.restored(state);
+                }
+            }
+            catch (Exception ex) {
+                this.errorLogger().warning("ConnectionSupervisor: Exception checking link: " + state.m_name + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    // schedule a restore attempt (at most one is ever pending per link... callers during a backoff wait are no-ops)
+    private void schedule(LinkState state, long delay_ms) {
+        if (state.m_removed == false && state.m_pending.compareAndSet(false, true)) {
+            this.dispatch(state, delay_ms);
+        }
+    }
+
+    // dispatch a restore attempt (caller holds the pending flag)
+    private void dispatch(final LinkState state, long delay_ms) {
+        try {
+            this.m_scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    attempt(state);
+                }
+            }, delay_ms, TimeUnit.MILLISECONDS);
+        }
+        catch (Exception ex) {
+            // halted
+            state.m_pending.set(false);
+        }
+    }
+
+    // make a single restore attempt... reschedule with backoff on failure
+    private void attempt(LinkState state) {
+        boolean connected = false;
+        try {
+            connected = state.m_link.isConnected();
+            if (connected == false && state.m_removed == false) {
+                this.m_reconnect_attempts.increment();
+                connected = state.m_link.reconnect();
+            }
+        }
+        catch (Exception ex) {
+            this.errorLogger().warning("ConnectionSupervisor: Exception restoring link: " + state.m_name + ": " + ex.getMessage());
+            connected = false;
+        }
+
+        if (connected == true) {
+            // up again
+            state.m_pending.set(false);
+            this.restored(state);
+        }
+        else {
+            // still down... back off and try again
+            this.m_reconnect_failures.increment();
+            state.m_up = false;
+            int attempts = ++state.m_attempts;
+            long delay_ms = this.backoff(attempts);
+
+            // DEBUG
+            this.errorLogger().info("ConnectionSupervisor: link: " + state.m_name + " DOWN (attempt " + attempts + "). Retrying in " + delay_ms + "ms");
+
+            // notify
+            for (Listener listener : this.m_listeners) {
+                try {
+                    listener.linkDown(state.m_name, attempts, delay_ms);
+                }
+                catch (Exception ex) {
+                    this.errorLogger().warning("ConnectionSupervisor: Exception in linkDown() listener: " + ex.getMessage());
+                }
+            }
+
+            // reschedule (still pending)
+            if (state.m_removed == false) {
+                this.dispatch(state, delay_ms);
+            }
+            else {
+                state.m_pending.set(false);
+            }
+        }
+    }
+
+    // the link is up: reset the backoff and notify
+    private void restored(LinkState state) {
+        boolean was_down = (state.m_up == false);
+        state.m_up = true;
+        state.m_attempts = 0;
+        if (was_down) {
+            // DEBUG
+            this.errorLogger().warning("ConnectionSupervisor: link: " + state.m_name + " UP");
+
+            // notify
+            for (Listener listener : this.m_listeners) {
+                try {
+                    listener.linkUp(state.m_name);
+                }
+                catch (Exception ex) {
+                    this.errorLogger().warning("ConnectionSupervisor: Exception in linkUp() listener: " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    // exponential backoff with jitter: initial * 2^(attempts-1), capped, then +/- jitter_pct
+    private long backoff(int attempts) {
+        long delay_ms = this.m_max_backoff_ms;
+        if (attempts <= 31) {
+            delay_ms = Math.min(this.m_max_backoff_ms, this.m_initial_backoff_ms << (attempts - 1));
+            if (delay_ms <= 0) {
+                delay_ms = this.m_max_backoff_ms;
+            }
+        }
+        long spread = (delay_ms * this.m_jitter_pct) / 100;
+        if (spread > 0) {
+            delay_ms = delay_ms - spread + ThreadLocalRandom.current().nextLong(2 * spread + 1);
+        }
+        return Math.max(1, delay_ms);
+    }
+
+    // per-link state
+    private static class LinkState {
+        private final String m_name;
+        private final Link m_link;
+        private final AtomicBoolean m_pending = new AtomicBoolean(false);
+        private volatile boolean m_up = false;
+        private volatile boolean m_removed = false;
+        private int m_attempts = 0;
+
+        LinkState(String name, Link link) {
+            this.m_name = name;
+            this.m_link = link;
+        }
+    }
+}
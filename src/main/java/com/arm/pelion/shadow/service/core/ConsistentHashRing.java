@@ -0,0 +1,97 @@
+/**
+ * @file ConsistentHashRing.java
+ * @brief consistent hash ring with virtual nodes
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.shadow.service.core;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Consistent hash ring: keys map to the first node clockwise on the ring. Each node is placed at a number of
+ * virtual positions so that keys spread evenly and only ~1/N of them move when a node joins or leaves.
+ * Lookups are lock-free.
+ * @author Doug Anson
+ */
+public class ConsistentHashRing<T> {
+    // default number of virtual positions per node
+    public static final int DEF_VIRTUAL_NODES = 160;
+    
+    private final ConcurrentSkipListMap<Long,T> m_ring = new ConcurrentSkipListMap<>();
+    private final int m_virtual_nodes;
+    
+    // default constructor
+    public ConsistentHashRing() {
+        this(DEF_VIRTUAL_NODES);
+    }
+    
+    // constructor
+    public ConsistentHashRing(int virtual_nodes) {
+        this.m_virtual_nodes = (virtual_nodes > 0) ? virtual_nodes : DEF_VIRTUAL_NODES;
+    }
+    
+    // add a node
+    public synchronized void add(String node_name,T node) {
+        for(int i=0;i<this.m_virtual_nodes;++i) {
+            this.m_ring.put(ConsistentHashRing.hash(node_name + "#" + i),node);
+        }
+    }
+    
+    // remove a node
+    public synchronized void remove(String node_name) {
+        for(int i=0;i<this.m_virtual_nodes;++i) {
+            this.m_ring.remove(ConsistentHashRing.hash(node_name + "#" + i));
+        }
+    }
+    
+    // is the ring empty?
+    public boolean isEmpty() {
+        return this.m_ring.isEmpty();
+    }
+    
+    // get the node that owns the given key (null if the ring is empty)
+    public T get(String key) {
+        if (key == null || this.m_ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long,T> entry = this.m_ring.ceilingEntry(ConsistentHashRing.hash(key));
+        if (entry == null) {
+            // wrap around
+            entry = this.m_ring.firstEntry();
+        }
+        return (entry != null) ? entry.getValue() : null;
+    }
+    
+    // 64 bit FNV-1a over the characters with a murmur3 finalizer (stable across JVMs, unlike String.hashCode() spreading)
+    public static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for(int i=0;i<key.length();++i) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= (h >>> 33);
+        return h;
+    }
+}
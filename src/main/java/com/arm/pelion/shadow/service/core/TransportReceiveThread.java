@@ -27,9 +27,12 @@ package com.arm.pelion.shadow.service.core;
  *
  * @author Doug Anson
  */
-public class TransportReceiveThread extends Thread implements Transport.ReceiveListener {
+public class TransportReceiveThread extends Thread implements Transport.ReceiveListener, ConnectionSupervisor.Listener {
+    // while disconnected, re-check the connection at least this often (linkUp() wakes us sooner)
+    private static final int DISCONNECTED_WAIT_MS = 1000;
 
-    private boolean m_running = false;
+    private final Object m_connection_lock = new Object();
+    private volatile boolean m_running = false;
     private Transport m_transport = null;
     private Transport.ReceiveListener m_listener = null;
 
@@ -84,18 +87,54 @@ public class TransportReceiveThread extends Thread implements Transport.ReceiveL
     }
 
     /**
-     * main thread loop
+     * halt the thread loop
+     */
+    public void halt() {
+        this.m_running = false;
+        this.wakeup();
+    }
+
+    /**
+     * main thread loop (waits while the connection is down... the connection supervisor restores it).
+     * Receives block until a message arrives, so messages are drained back to back... we only back off
+     * (mqtt_receive_loop_sleep seconds) after a failed receive.
      */
     @SuppressWarnings("empty-statement")
     private void listenerThreadLoop() {
         int sleep_time = ((this.m_transport.preferences().intValueOf("mqtt_receive_loop_sleep")) * 1000);
-        while (this.m_running && this.m_transport.isConnected() == true) {
+        while (this.m_running) {
+            // wait for the connection
+            if (this.m_transport.isConnected() == false) {
+                this.waitForConnection();
+                continue;
+            }
+            
             // receive and process...
-            this.m_transport.receiveAndProcess();
+            if (this.m_transport.receiveAndProcess() == true) {
+                continue;
+            }
 
-            // sleep for a bit...
+            // receive failed... back off for a bit
+            if (sleep_time > 0) {
+                try {
+                    Thread.sleep(sleep_time);
+                }
+                catch (InterruptedException ex) {
+                    // silent
+                    ;
+                }
+            }
+        }
+    }
+
+    // wait (bounded) for the connection to be restored
+    @SuppressWarnings("empty-statement")
+    private void waitForConnection() {
+        synchronized (this.m_connection_lock) {
             try {
-                Thread.sleep(sleep_time);
+                if (this.m_running && this.m_transport.isConnected() == false) {
+                    this.m_connection_lock.wait(DISCONNECTED_WAIT_MS);
+                }
             }
             catch (InterruptedException ex) {
                 // silent
@@ -104,6 +143,35 @@ public class TransportReceiveThread extends Thread implements Transport.ReceiveL
         }
     }
 
+    // wake up the thread loop
+    private void wakeup() {
+        synchronized (this.m_connection_lock) {
+            this.m_connection_lock.notifyAll();
+        }
+    }
+
+    /**
+     * callback on link up events
+     *
+     * @param name
+     */
+    @Override
+    public void linkUp(String name) {
+        this.wakeup();
+    }
+
+    /**
+     * callback on link down events
+     *
+     * @param name
+     * @param attempts
+     * @param retry_in_ms
+     */
+    @Override
+    public void linkDown(String name, int attempts, long retry_in_ms) {
+        // nothing to do... we wait for linkUp()
+    }
+
     /**
      * set the receive listener
      *
@@ -0,0 +1,314 @@
+/**
+ * @file MappedSegmentQueue.java
+ * @brief bounded disk-backed FIFO queue of records in memory-mapped segment files
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.shadow.service.db;
+
+import com.arm.pelion.shadow.service.core.BaseClass;
+import com.arm.pelion.shadow.service.core.ErrorLogger;
+import com.arm.pelion.shadow.service.preferences.PreferenceManager;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Bounded, disk-backed FIFO queue of byte[] records. Records are appended to fixed size memory-mapped segment
+ * files (seg-NNNNNNNNNNNNNNNN.dat)... each segment header holds its write and read positions so the queue
+ * survives a restart. When the queue is full the oldest segment is dropped to make room: consumers that append
+ * while holding a record should take it with poll() (a peek()ed record may be in the segment dropped).
+ * @author Doug Anson
+ */
+public class MappedSegmentQueue extends BaseClass {
+    // segment layout: [magic][write_pos][read_pos][reserved] followed by [length][bytes] records
+    private static final int SEGMENT_MAGIC = 0x53454731;        // "SEG1"
+    private static final int HEADER_SIZE = 16;
+    private static final int WRITE_POS_OFFSET = 4;
+    private static final int READ_POS_OFFSET = 8;
+    private static final String SEGMENT_PREFIX = "seg-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    // configuration
+    private File m_dir = null;
+    private int m_segment_size = 0;
+    private int m_max_segments = 0;
+
+    // segments (head: read, tail: write)
+    private final ArrayDeque<Segment> m_segments = new ArrayDeque<>();
+    private long m_next_seq = 0;
+    private long m_size = 0;
+    private long m_dropped = 0;
+
+    // default constructor
+    public MappedSegmentQueue(ErrorLogger logger, PreferenceManager preferences, String dir, int segment_size, int max_segments) throws IOException {
+        super(logger, preferences);
+        this.m_dir = new File(dir);
+        this.m_segment_size = segment_size;
+        this.m_max_segments = Math.max(2, max_segments);
+        if (this.m_dir.isDirectory() == false && this.m_dir.mkdirs() == false) {
+            throw new IOException("unable to create queue directory: " + dir);
+        }
+        this.load();
+    }
+
+    // number of queued records
+    public synchronized long size() {
+        return this.m_size;
+    }
+
+    // is the queue empty?
+    public synchronized boolean isEmpty() {
+        return this.m_size == 0;
+    }
+
+    // number of records dropped (overflow or unable to append) since startup
+    public synchronized long dropped() {
+        return this.m_dropped;
+    }
+
+    // append a record (drops the oldest segment if the queue is full)
+    public synchronized boolean append(byte[] record) {
+        if (record == null || (4 + record.length) > (this.m_segment_size - HEADER_SIZE)) {
+            // record will never fit
+            ++this.m_dropped;
+            return false;
+        }
+        try {
+            Segment tail = this.m_segments.peekLast();
+            if (tail == null || tail.remaining() < (4 + record.length)) {
+                // make room if we are full
+                if (this.m_segments.size() >= this.m_max_segments) {
+                    Segment head = this.m_segments.pollFirst();
+                    this.m_size -= head.m_count;
+                    this.m_dropped += head.m_count;
+                    head.delete();
+
+                    // DEBUG
+                    this.errorLogger().warning("MappedSegmentQueue: FULL. Dropped " + head.m_count + " oldest record(s)");
+                }
+                tail = this.createSegment();
+            }
+            tail.write(record);
+            ++this.m_size;
+            return true;
+        }
+        catch (IOException ex) {
+            this.errorLogger().warning("MappedSegmentQueue: unable to append record: " + ex.getMessage());
+        }
+        ++this.m_dropped;
+        return false;
+    }
+
+    // the oldest record (not removed) or null if empty
+    public synchronized byte[] peek() {
+        Segment head = this.head();
+        return (head != null) ? head.peek() : null;
+    }
+
+    // remove and return the oldest record (null if empty)
+    public synchronized byte[] poll() {
+        Segment head = this.head();
+        if (head == null) {
+            return null;
+        }
+        byte[] record = head.peek();
+        head.advance();
+        --this.m_size;
+        return record;
+    }
+
+    // remove the oldest record
+    public synchronized void advance() {
+        Segment head = this.head();
+        if (head != null) {
+            head.advance();
+            --this.m_size;
+        }
+    }
+
+    // flush all segments to disk
+    public synchronized void force() {
+        for (Segment segment : this.m_segments) {
+            segment.m_buffer.force();
+        }
+    }
+
+    // flush and close
+    public synchronized void close() {
+        this.force();
+        for (Segment segment : this.m_segments) {
+            segment.close();
+        }
+        this.m_segments.clear();
+    }
+
+    // the head segment with unread records (fully read segments are deleted, except the tail which we still write to)
+    private Segment head() {
+        Segment head = this.m_segments.peekFirst();
+        while (head != null && head.m_count == 0 && head != this.m_segments.peekLast()) {
+            this.m_segments.pollFirst().delete();
+            head = this.m_segments.peekFirst();
+        }
+        return (head != null && head.m_count > 0) ? head : null;
+    }
+
+    // create a new (tail) segment
+    private Segment createSegment() throws IOException {
+        File file = new File(this.m_dir, String.format("%s%016d%s", SEGMENT_PREFIX, this.m_next_seq++, SEGMENT_SUFFIX));
+        Segment segment = new Segment(file, this.m_segment_size, true);
+        this.m_segments.addLast(segment);
+        return segment;
+    }
+
+    // load existing segments (in order)
+    private void load() throws IOException {
+        File[] files = this.m_dir.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        long seq = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                        Segment segment = new Segment(file, (int) file.length(), false);
+                        this.m_segments.addLast(segment);
+                        this.m_size += segment.m_count;
+                        this.m_next_seq = Math.max(this.m_next_seq, seq + 1);
+                    }
+                    catch (IOException | NumberFormatException ex) {
+                        // corrupt or foreign... skip it
+                        this.errorLogger().warning("MappedSegmentQueue: ignoring segment " + name + ": " + ex.getMessage());
+                    }
+                }
+            }
+        }
+
+        // DEBUG
+        this.errorLogger().info("MappedSegmentQueue: " + this.m_dir.getPath() + ": " + this.m_segments.size() + " segment(s) " + this.m_size + " record(s) restored");
+    }
+
+    // a memory-mapped segment file
+    private static class Segment {
+        private final File m_file;
+        private final RandomAccessFile m_raf;
+        private final MappedByteBuffer m_buffer;
+        private final int m_capacity;
+        private int m_write_pos = HEADER_SIZE;
+        private int m_read_pos = HEADER_SIZE;
+        private int m_count = 0;
+
+        Segment(File file, int size, boolean create) throws IOException {
+            if (size <= HEADER_SIZE) {
+                throw new IOException("segment too small");
+            }
+            this.m_file = file;
+            this.m_capacity = size;
+            this.m_raf = new RandomAccessFile(file, "rw");
+            try {
+                this.m_buffer = this.m_raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                if (create) {
+                    this.m_buffer.putInt(0, SEGMENT_MAGIC);
+                    this.m_buffer.putInt(WRITE_POS_OFFSET, this.m_write_pos);
+                    this.m_buffer.putInt(READ_POS_OFFSET, this.m_read_pos);
+                }
+                else {
+                    if (this.m_buffer.getInt(0) != SEGMENT_MAGIC) {
+                        throw new IOException("bad segment header");
+                    }
+                    this.m_write_pos = this.m_buffer.getInt(WRITE_POS_OFFSET);
+                    this.m_read_pos = this.m_buffer.getInt(READ_POS_OFFSET);
+                    if (this.m_write_pos < HEADER_SIZE || this.m_write_pos > size || this.m_read_pos < HEADER_SIZE || this.m_read_pos > this.m_write_pos) {
+                        throw new IOException("bad segment positions");
+                    }
+
+                    // count the unread records
+                    int pos = this.m_read_pos;
+                    while (pos < this.m_write_pos) {
+                        int length = this.m_buffer.getInt(pos);
+                        if (length < 0 || pos + 4 + length > this.m_write_pos) {
+                            throw new IOException("bad record at " + pos);
+                        }
+                        pos += 4 + length;
+                        ++this.m_count;
+                    }
+                }
+            }
+            catch (IOException ex) {
+                this.m_raf.close();
+                throw ex;
+            }
+        }
+
+        // space left for records
+        int remaining() {
+            return this.m_capacity - this.m_write_pos;
+        }
+
+        // append a record (the write position is published after the record bytes)
+        void write(byte[] record) {
+            this.m_buffer.putInt(this.m_write_pos, record.length);
+            ByteBuffer view = this.m_buffer.duplicate();
+            view.position(this.m_write_pos + 4);
+            view.put(record);
+            this.m_write_pos += 4 + record.length;
+            this.m_buffer.putInt(WRITE_POS_OFFSET, this.m_write_pos);
+            ++this.m_count;
+        }
+
+        // read the record at the read position
+        byte[] peek() {
+            int length = this.m_buffer.getInt(this.m_read_pos);
+            byte[] record = new byte[length];
+            ByteBuffer view = this.m_buffer.duplicate();
+            view.position(this.m_read_pos + 4);
+            view.get(record);
+            return record;
+        }
+
+        // move past the record at the read position
+        void advance() {
+            int length = this.m_buffer.getInt(this.m_read_pos);
+            this.m_read_pos += 4 + length;
+            this.m_buffer.putInt(READ_POS_OFFSET, this.m_read_pos);
+            --this.m_count;
+        }
+
+        // close the segment file
+        void close() {
+            try {
+                this.m_raf.close();
+            }
+            catch (IOException ex) {
+                // ignore
+            }
+        }
+
+        // close and remove the segment file
+        void delete() {
+            this.close();
+            this.m_file.delete();
+        }
+    }
+}
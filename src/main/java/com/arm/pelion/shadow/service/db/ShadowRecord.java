@@ -0,0 +1,119 @@
+/**
+ * @file ShadowRecord.java
+ * @brief a single device shadow: its ids plus its mbed/EdgeX records (in heap or in the shadow record file)
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.shadow.service.db;
+
+import java.io.IOException;
+
+/**
+ * Shadow record: immutable. New/changed records carry their JSON... stored ones just where it is on file
+ *
+ * @author Doug Anson
+ */
+public class ShadowRecord {
+    // ids
+    private final String m_mbed_id;
+    private final String m_edgex_name;
+    
+    // in heap records (null if stored)
+    private final String m_mbed_json;
+    private final String m_edgex_json;
+    
+    // stored records (null store if in heap)
+    private final ShadowRecordFile.Store m_store;
+    private final long m_mbed_offset;
+    private final int m_mbed_length;
+    private final long m_edgex_offset;
+    private final int m_edgex_length;
+    
+    // in heap (new or changed) record
+    public ShadowRecord(String mbed_id,String mbed_json,String edgex_name,String edgex_json) {
+        this.m_mbed_id = mbed_id;
+        this.m_edgex_name = edgex_name;
+        this.m_mbed_json = mbed_json;
+        this.m_edgex_json = edgex_json;
+        this.m_store = null;
+        this.m_mbed_offset = 0;
+        this.m_mbed_length = 0;
+        this.m_edgex_offset = 0;
+        this.m_edgex_length = 0;
+    }
+    
+    // stored record
+    public ShadowRecord(String mbed_id,String edgex_name,ShadowRecordFile.Store store,long mbed_offset,int mbed_length,long edgex_offset,int edgex_length) {
+        this.m_mbed_id = mbed_id;
+        this.m_edgex_name = edgex_name;
+        this.m_mbed_json = null;
+        this.m_edgex_json = null;
+        this.m_store = store;
+        this.m_mbed_offset = mbed_offset;
+        this.m_mbed_length = mbed_length;
+        this.m_edgex_offset = edgex_offset;
+        this.m_edgex_length = edgex_length;
+    }
+    
+    // ids
+    public String mbedId() {
+        return this.m_mbed_id;
+    }
+    public String edgexName() {
+        return this.m_edgex_name;
+    }
+    
+    // true if the records are held in heap (not yet flushed)
+    public boolean inHeap() {
+        return this.m_store == null;
+    }
+    
+    // in heap records (null if stored)
+    public String mbedJson() {
+        return this.m_mbed_json;
+    }
+    public String edgexJson() {
+        return this.m_edgex_json;
+    }
+    
+    // where the records are stored
+    public ShadowRecordFile.Store store() {
+        return this.m_store;
+    }
+    public long mbedOffset() {
+        return this.m_mbed_offset;
+    }
+    public int mbedLength() {
+        return this.m_mbed_length;
+    }
+    public long edgexOffset() {
+        return this.m_edgex_offset;
+    }
+    public int edgexLength() {
+        return this.m_edgex_length;
+    }
+    
+    // read the records (JSON) from the store: { mbed, edgex }
+    public String[] hydrate() throws IOException {
+        if (this.m_store == null) {
+            return new String[] { this.m_mbed_json,this.m_edgex_json };
+        }
+        return new String[] { this.m_store.readBody(this.m_mbed_offset,this.m_mbed_length),this.m_store.readBody(this.m_edgex_offset,this.m_edgex_length) };
+    }
+}
@@ -0,0 +1,198 @@
+/**
+ * @file ShadowRecordCache.java
+ * @brief heap budgeted cache of hydrated shadow records
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.shadow.service.db;
+
+import com.arm.pelion.shadow.service.metrics.MetricsRegistry;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shadow record cache: segmented LRU of the records (JSON) read from the shadow record file, bounded by
+ * their estimated heap size. New records enter probation... a second use promotes them to the protected
+ * segment, so a scan over many idle devices cannot flush out the ones that are actually publishing.
+ *
+ * @author Doug Anson
+ */
+public class ShadowRecordCache {
+    // share of the budget held by the protected segment (percent)
+    private static final int PROTECTED_PCT = 80;
+    
+    // estimated heap cost of a cached entry beyond its characters (entry, array, string headers)
+    private static final int ENTRY_OVERHEAD_BYTES = 160;
+    
+    // budgets
+    private final long m_max_bytes;
+    private final long m_protected_max_bytes;
+    
+    // segments (access ordered: eldest first)
+    private final LinkedHashMap<ShadowRecord,Entry> m_probation = new LinkedHashMap<>(16,0.75f,true);
+    private final LinkedHashMap<ShadowRecord,Entry> m_protected = new LinkedHashMap<>(16,0.75f,true);
+    private long m_probation_bytes = 0;
+    private long m_protected_bytes = 0;
+    
+    // statistics
+    private final LongAdder m_hits;
+    private final LongAdder m_misses;
+    private final LongAdder m_evictions;
+    
+    // default constructor
+    public ShadowRecordCache(long max_bytes) {
+        this.m_max_bytes = max_bytes;
+        this.m_protected_max_bytes = (max_bytes * PROTECTED_PCT) / 100;
+        
+        // metrics
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        this.m_hits = metrics.counter("shadow_cache_hits_total","Shadow record reads answered from heap");
+        this.m_misses = metrics.counter("shadow_cache_misses_total","Shadow record reads from the shadow record file");
+        this.m_evictions = metrics.counter("shadow_cache_evictions_total","Shadow records evicted from heap (heap budget)");
+    }
+    
+    // get the cached records { mbed, edgex } of a shadow record (null if not cached)
+    public synchronized String[] get(ShadowRecord record) {
+        Entry entry = this.m_protected.get(record);
+        if (entry == null) {
+            entry = this.m_probation.remove(record);
+            if (entry == null) {
+                this.m_misses.increment();
+                return null;
+            }
+            
+            // second use: promote (demoting the protected segment's eldest if over its share)
+            this.m_probation_bytes -= entry.m_weight;
+            this.m_protected.put(record,entry);
+            this.m_protected_bytes += entry.m_weight;
+            while (this.m_protected_bytes > this.m_protected_max_bytes && this.m_protected.size() > 1) {
+                Map.Entry<ShadowRecord,Entry> eldest = this.eldest(this.m_protected);
+                this.m_protected.remove(eldest.getKey());
+                this.m_protected_bytes -= eldest.getValue().m_weight;
+                this.m_probation.put(eldest.getKey(),eldest.getValue());
+                this.m_probation_bytes += eldest.getValue().m_weight;
+            }
+        }
+        this.m_hits.increment();
+        return entry.m_json;
+    }
+    
+    // cache the records of a shadow record (on probation)
+    public synchronized void put(ShadowRecord record,String[] json) {
+        this.remove(record);
+        long weight = weigh(json);
+        if (weight > this.m_max_bytes) {
+            // larger than the whole budget... not cached
+            return;
+        }
+        this.m_probation.put(record,new Entry(json,weight));
+        this.m_probation_bytes += weight;
+        
+        // evict down to the budget (probation first)
+        while (this.m_probation_bytes + this.m_protected_bytes > this.m_max_bytes) {
+            LinkedHashMap<ShadowRecord,Entry> segment = this.m_probation.isEmpty() ? this.m_protected : this.m_probation;
+            Map.Entry<ShadowRecord,Entry> eldest = this.eldest(segment);
+            segment.remove(eldest.getKey());
+            if (segment == this.m_probation) {
+                this.m_probation_bytes -= eldest.getValue().m_weight;
+            }
+            else {
+                this.m_protected_bytes -= eldest.getValue().m_weight;
+            }
+            this.m_evictions.increment();
+        }
+    }
+    
+    // remove a shadow record (returns its cached records, if any)
+    public synchronized String[] remove(ShadowRecord record) {
+        Entry entry = this.m_probation.remove(record);
+        if (entry != null) {
+            this.m_probation_bytes -= entry.m_weight;
+            return entry.m_json;
+        }
+        entry = this.m_protected.remove(record);
+        if (entry != null) {
+            this.m_protected_bytes -= entry.m_weight;
+            return entry.m_json;
+        }
+        return null;
+    }
+    
+    // a shadow record has moved (e.g. to a new shadow record file): its cached records stay in their segment
+    public synchronized void move(ShadowRecord from,ShadowRecord to) {
+        Entry entry = this.m_probation.remove(from);
+        if (entry != null) {
+            this.m_probation.put(to,entry);
+            return;
+        }
+        entry = this.m_protected.remove(from);
+        if (entry != null) {
+            this.m_protected.put(to,entry);
+        }
+    }
+    
+    // number of cached shadow records
+    public synchronized int size() {
+        return this.m_probation.size() + this.m_protected.size();
+    }
+    
+    // estimated heap used by the cached records
+    public synchronized long bytes() {
+        return this.m_probation_bytes + this.m_protected_bytes;
+    }
+    
+    // statistics
+    public long hits() {
+        return this.m_hits.sum();
+    }
+    public long misses() {
+        return this.m_misses.sum();
+    }
+    public long evictions() {
+        return this.m_evictions.sum();
+    }
+    
+    // estimated heap cost of a shadow's records
+    private static long weigh(String[] json) {
+        long chars = 0;
+        for (String value : json) {
+            chars += (value != null) ? value.length() : 0;
+        }
+        return ENTRY_OVERHEAD_BYTES + (2 * chars);
+    }
+    
+    // eldest entry of a segment
+    private Map.Entry<ShadowRecord,Entry> eldest(LinkedHashMap<ShadowRecord,Entry> segment) {
+        Iterator<Map.Entry<ShadowRecord,Entry>> it = segment.entrySet().iterator();
+        return it.next();
+    }
+    
+    // cached records and their estimated heap cost
+    private static class Entry {
+        private final String[] m_json;
+        private final long m_weight;
+        
+        Entry(String[] json,long weight) {
+            this.m_json = json;
+            this.m_weight = weight;
+        }
+    }
+}
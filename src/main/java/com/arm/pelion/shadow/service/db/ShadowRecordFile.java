@@ -0,0 +1,667 @@
+/**
+ * @file ShadowRecordFile.java
+ * @brief versioned compact binary file format for persisted shadow records
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.shadow.service.db;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Shadow record file: the persisted shadow database in a compact, versioned binary format
+ *
+ * Layout: magic "SHDB", varint version, records (each tagged), end tag, string dictionary, CRC32 trailer.
+ * Each record is its mbed ID and EdgeX name followed by the length prefixed mbed and EdgeX device bodies.
+ * Bodies are the JSON token stream with field names and short string values replaced by varint dictionary
+ * references and integers zig-zag varint encoded... so repeated keys (description, uom, rw), units, types
+ * and resource names are stored once per file. Opening a file only indexes it (ids + body offsets): bodies
+ * are read on demand. Each file's dictionary normally extends the one it was written from, so stored bodies
+ * are copied as-is into the next file. Strings only referenced by removed records would then accumulate, so
+ * the dictionary is rebuilt from the live records (stored bodies re-encoded) on the first write after a file
+ * is opened and whenever it grows past COMPACT_RATIO times the strings the live records still reference.
+ *
+ * @author Doug Anson
+ */
+public class ShadowRecordFile {
+    // file identification
+    public static final int MAGIC = 0x53484442;     // "SHDB"
+    public static final int VERSION = 2;
+    
+    // string values up to this length go in the dictionary (longer ones are stored inline)
+    private static final int MAX_DICTIONARY_STRING = 64;
+    
+    // rebuild the dictionary when it is this many times the live strings (and at least COMPACT_MIN_STRINGS long)
+    private static final int COMPACT_RATIO = 2;
+    private static final int COMPACT_MIN_STRINGS = 256;
+    
+    // record tags
+    private static final int TAG_END_OF_RECORDS = 0;
+    private static final int TAG_RECORD = 1;
+    
+    // body tokens
+    private static final int TAG_END = 0;
+    private static final int TAG_OBJECT = 1;
+    private static final int TAG_ARRAY = 2;
+    private static final int TAG_FIELD = 3;
+    private static final int TAG_STRING_REF = 4;
+    private static final int TAG_STRING = 5;
+    private static final int TAG_INT = 6;
+    private static final int TAG_DOUBLE = 7;
+    private static final int TAG_NUMBER = 8;
+    private static final int TAG_TRUE = 9;
+    private static final int TAG_FALSE = 10;
+    private static final int TAG_NULL = 11;
+    
+    // Jackson streaming factory (thread safe)
+    private static final JsonFactory JSON = new JsonFactory();
+    
+    // not instantiated
+    private ShadowRecordFile() {
+    }
+    
+    // write the records to a file (stored ones are copied from their store). Returns the file opened as a store... written maps each record to its stored equivalent
+    public static Store write(File file,Store previous,Collection<ShadowRecord> records,Map<ShadowRecord,ShadowRecord> written) throws IOException {
+        // dictionary: starts as the previous file's so its bodies can be copied as-is... unless it needs compacting
+        HashMap<String,Integer> dictionary = new HashMap<>();
+        ArrayList<String> strings = new ArrayList<>();
+        boolean compact = (previous == null || previous.needsCompaction());
+        if (compact == false) {
+            for (String string : previous.strings()) {
+                intern(string,dictionary,strings);
+            }
+        }
+        
+        // strings referenced by the records we write
+        BitSet live = new BitSet();
+        
+        Store store = new Store(file);
+        ArrayList<ShadowRecord[]> stored = new ArrayList<>();
+        FileOutputStream fos = new FileOutputStream(file);
+        try (Output output = new Output(fos)) {
+            // header
+            output.writeInt(MAGIC);
+            output.writeVarint(VERSION);
+            
+            // records
+            for (ShadowRecord record : records) {
+                byte[] mbed_body = null;
+                byte[] edgex_body = null;
+                if (record.inHeap() == true) {
+                    if (record.mbedJson() == null || record.edgexJson() == null) {
+                        // incomplete mapping... not persisted
+                        continue;
+                    }
+                    mbed_body = encodeBody(record.mbedJson(),dictionary,strings);
+                    edgex_body = encodeBody(record.edgexJson(),dictionary,strings);
+                }
+                else if (compact == true || record.store() != previous) {
+                    // re-encoded against the new dictionary
+                    mbed_body = encodeBody(record.store().readBody(record.mbedOffset(),record.mbedLength()),dictionary,strings);
+                    edgex_body = encodeBody(record.store().readBody(record.edgexOffset(),record.edgexLength()),dictionary,strings);
+                }
+                else {
+                    mbed_body = record.store().readRaw(record.mbedOffset(),record.mbedLength());
+                    edgex_body = record.store().readRaw(record.edgexOffset(),record.edgexLength());
+                }
+                references(mbed_body,live);
+                references(edgex_body,live);
+                output.write(TAG_RECORD);
+                output.writeString(record.mbedId());
+                output.writeString(record.edgexName());
+                output.writeVarint(mbed_body.length);
+                long mbed_offset = output.position();
+                output.write(mbed_body);
+                output.writeVarint(edgex_body.length);
+                long edgex_offset = output.position();
+                output.write(edgex_body);
+                stored.add(new ShadowRecord[] { record,new ShadowRecord(record.mbedId(),record.edgexName(),store,mbed_offset,mbed_body.length,edgex_offset,edgex_body.length) });
+            }
+            output.write(TAG_END_OF_RECORDS);
+            
+            // dictionary
+            output.writeVarint(strings.size());
+            for (String string : strings) {
+                output.writeString(string);
+            }
+            
+            // CRC32 trailer
+            output.writeChecksum();
+            
+            // on disk before the caller renames it into place
+            output.flush();
+            fos.getFD().sync();
+        }
+        
+        // the written file is now our store
+        store.open(strings.toArray(new String[strings.size()]),live.cardinality());
+        for (ShadowRecord[] pair : stored) {
+            written.put(pair[0],pair[1]);
+        }
+        return store;
+    }
+    
+    // open a record file: its records are indexed (ids + body offsets) into records... bodies stay on file
+    public static Store open(File file,List<ShadowRecord> records) throws IOException {
+        Store store = new Store(file);
+        String[] strings = null;
+        try (Input input = new Input(new FileInputStream(file))) {
+            // header
+            if (input.readInt() != MAGIC) {
+                throw new IOException("ShadowRecordFile: not a shadow record file");
+            }
+            long version = input.readVarint();
+            if (version != VERSION) {
+                throw new IOException("ShadowRecordFile: unsupported version: " + version);
+            }
+            
+            // records
+            ArrayList<ShadowRecord> indexed = new ArrayList<>();
+            int tag = input.read();
+            while (tag == TAG_RECORD) {
+                String mbed_id = input.readString();
+                String edgex_name = input.readString();
+                int mbed_length = (int)input.readVarint();
+                long mbed_offset = input.position();
+                input.skip(mbed_length);
+                int edgex_length = (int)input.readVarint();
+                long edgex_offset = input.position();
+                input.skip(edgex_length);
+                indexed.add(new ShadowRecord(mbed_id,edgex_name,store,mbed_offset,mbed_length,edgex_offset,edgex_length));
+                tag = input.read();
+            }
+            if (tag != TAG_END_OF_RECORDS) {
+                throw new IOException("ShadowRecordFile: corrupt record (tag " + tag + ")");
+            }
+            
+            // dictionary
+            strings = new String[(int)input.readVarint()];
+            for (int i=0;i<strings.length;++i) {
+                strings[i] = input.readString();
+            }
+            
+            // CRC32 trailer
+            input.verifyChecksum();
+            records.addAll(indexed);
+        }
+        // live strings unknown until the bodies are scanned... the first write compacts
+        store.open(strings,-1);
+        return store;
+    }
+    
+    // encode a JSON document as a body
+    private static byte[] encodeBody(String json,HashMap<String,Integer> dictionary,ArrayList<String> strings) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(json.length() / 2);
+        try (JsonParser parser = JSON.createParser(json)) {
+            JsonToken token = null;
+            while ((token = parser.nextToken()) != null) {
+                switch (token) {
+                    case START_OBJECT:
+                        body.write(TAG_OBJECT);
+                        break;
+                    case START_ARRAY:
+                        body.write(TAG_ARRAY);
+                        break;
+                    case END_OBJECT:
+                    case END_ARRAY:
+                        body.write(TAG_END);
+                        break;
+                    case FIELD_NAME:
+                        body.write(TAG_FIELD);
+                        writeVarint(body,intern(parser.getCurrentName(),dictionary,strings));
+                        break;
+                    case VALUE_STRING:
+                        String value = parser.getText();
+                        if (value.length() <= MAX_DICTIONARY_STRING) {
+                            body.write(TAG_STRING_REF);
+                            writeVarint(body,intern(value,dictionary,strings));
+                        }
+                        else {
+                            body.write(TAG_STRING);
+                            writeString(body,value);
+                        }
+                        break;
+                    case VALUE_NUMBER_INT:
+                        if (parser.getNumberType() == JsonParser.NumberType.INT || parser.getNumberType() == JsonParser.NumberType.LONG) {
+                            body.write(TAG_INT);
+                            writeVarint(body,zigzag(parser.getLongValue()));
+                        }
+                        else {
+                            body.write(TAG_NUMBER);
+                            writeString(body,parser.getText());
+                        }
+                        break;
+                    case VALUE_NUMBER_FLOAT:
+                        body.write(TAG_DOUBLE);
+                        long bits = Double.doubleToRawLongBits(parser.getDoubleValue());
+                        for (int shift=56;shift >= 0;shift -= 8) {
+                            body.write((int)(bits >>> shift));
+                        }
+                        break;
+                    case VALUE_TRUE:
+                        body.write(TAG_TRUE);
+                        break;
+                    case VALUE_FALSE:
+                        body.write(TAG_FALSE);
+                        break;
+                    case VALUE_NULL:
+                        body.write(TAG_NULL);
+                        break;
+                    default:
+                        throw new IOException("ShadowRecordFile: unsupported JSON token: " + token);
+                }
+            }
+        }
+        return body.toByteArray();
+    }
+    
+    // decode a body back into JSON
+    private static String decodeBody(byte[] data,String[] strings) throws IOException {
+        Cursor cursor = new Cursor(data);
+        StringWriter json = new StringWriter(data.length * 2);
+        try (JsonGenerator generator = JSON.createGenerator(json)) {
+            while (cursor.hasRemaining()) {
+                int tag = cursor.read();
+                switch (tag) {
+                    case TAG_OBJECT:
+                        generator.writeStartObject();
+                        break;
+                    case TAG_ARRAY:
+                        generator.writeStartArray();
+                        break;
+                    case TAG_END:
+                        if (generator.getOutputContext().inArray()) {
+                            generator.writeEndArray();
+                        }
+                        else {
+                            generator.writeEndObject();
+                        }
+                        break;
+                    case TAG_FIELD:
+                        generator.writeFieldName(cursor.readReference(strings));
+                        break;
+                    case TAG_STRING_REF:
+                        generator.writeString(cursor.readReference(strings));
+                        break;
+                    case TAG_STRING:
+                        generator.writeString(cursor.readString());
+                        break;
+                    case TAG_INT:
+                        generator.writeNumber(unzigzag(cursor.readVarint()));
+                        break;
+                    case TAG_DOUBLE:
+                        generator.writeNumber(Double.longBitsToDouble(cursor.readLong()));
+                        break;
+                    case TAG_NUMBER:
+                        generator.writeNumber(cursor.readString());
+                        break;
+                    case TAG_TRUE:
+                        generator.writeBoolean(true);
+                        break;
+                    case TAG_FALSE:
+                        generator.writeBoolean(false);
+                        break;
+                    case TAG_NULL:
+                        generator.writeNull();
+                        break;
+                    default:
+                        throw new IOException("ShadowRecordFile: corrupt body (tag " + tag + ")");
+                }
+            }
+        }
+        return json.toString();
+    }
+    
+    // mark the dictionary references of an encoded body
+    private static void references(byte[] data,BitSet live) throws IOException {
+        Cursor cursor = new Cursor(data);
+        while (cursor.hasRemaining()) {
+            int tag = cursor.read();
+            switch (tag) {
+                case TAG_FIELD:
+                case TAG_STRING_REF:
+                    live.set((int)cursor.readVarint());
+                    break;
+                case TAG_STRING:
+                case TAG_NUMBER:
+                    cursor.readString();
+                    break;
+                case TAG_INT:
+                    cursor.readVarint();
+                    break;
+                case TAG_DOUBLE:
+                    cursor.readLong();
+                    break;
+                default:
+                    // no payload
+                    break;
+            }
+        }
+    }
+    
+    // dictionary index of a string (added if new)
+    private static int intern(String string,HashMap<String,Integer> dictionary,ArrayList<String> strings) {
+        Integer index = dictionary.get(string);
+        if (index == null) {
+            index = strings.size();
+            dictionary.put(string,index);
+            strings.add(string);
+        }
+        return index;
+    }
+    
+    // zig-zag encode/decode (small negative numbers stay small)
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+    
+    // encoding primitives
+    private static void writeVarint(OutputStream os,long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            os.write((int)((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        os.write((int)value);
+    }
+    private static void writeString(OutputStream os,String value) throws IOException {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(os,utf8.length);
+        os.write(utf8,0,utf8.length);
+    }
+    
+    /**
+     * Opened record file: bodies are read (positionally, so concurrently) on demand
+     */
+    public static class Store {
+        private final File m_file;
+        private volatile FileChannel m_channel = null;
+        private String[] m_strings = new String[0];
+        private int m_live = -1;
+        
+        // not yet opened
+        private Store(File file) {
+            this.m_file = file;
+        }
+        
+        // open for reading (live: dictionary strings the records reference... -1 if unknown)
+        private void open(String[] strings,int live) throws IOException {
+            this.m_strings = strings;
+            this.m_live = live;
+            this.m_channel = FileChannel.open(this.m_file.toPath(),StandardOpenOption.READ);
+        }
+        
+        // dictionary
+        private String[] strings() {
+            return this.m_strings;
+        }
+        
+        // TRUE if the next file should rebuild its dictionary rather than extend ours
+        private boolean needsCompaction() {
+            if (this.m_live < 0) {
+                return true;
+            }
+            return this.m_strings.length >= COMPACT_MIN_STRINGS && this.m_strings.length > COMPACT_RATIO * this.m_live;
+        }
+        
+        // read a body as JSON
+        public String readBody(long offset,int length) throws IOException {
+            return decodeBody(this.readRaw(offset,length),this.m_strings);
+        }
+        
+        // read a body as stored
+        public byte[] readRaw(long offset,int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (this.m_channel.read(buffer,offset + buffer.position()) < 0) {
+                    throw new EOFException("ShadowRecordFile: truncated body");
+                }
+            }
+            return buffer.array();
+        }
+        
+        // close (the file may already have been replaced... we still hold the version we indexed)
+        public void close() {
+            try {
+                if (this.m_channel != null) {
+                    this.m_channel.close();
+                }
+            }
+            catch (IOException ex) {
+                // silent
+            }
+        }
+    }
+    
+    /**
+     * Checksummed, position tracking output
+     */
+    private static class Output extends OutputStream {
+        private final OutputStream m_os;
+        private final CRC32 m_crc = new CRC32();
+        private long m_position = 0;
+        
+        Output(OutputStream os) {
+            this.m_os = new BufferedOutputStream(os,64 * 1024);
+        }
+        long position() {
+            return this.m_position;
+        }
+        @Override
+        public void write(int b) throws IOException {
+            this.m_os.write(b);
+            this.m_crc.update(b);
+            ++this.m_position;
+        }
+        @Override
+        public void write(byte[] data,int offset,int length) throws IOException {
+            this.m_os.write(data,offset,length);
+            this.m_crc.update(data,offset,length);
+            this.m_position += length;
+        }
+        void writeVarint(long value) throws IOException {
+            ShadowRecordFile.writeVarint(this,value);
+        }
+        void writeString(String value) throws IOException {
+            ShadowRecordFile.writeString(this,value);
+        }
+        void writeInt(int value) throws IOException {
+            this.write(value >>> 24);
+            this.write(value >>> 16);
+            this.write(value >>> 8);
+            this.write(value);
+        }
+        void writeChecksum() throws IOException {
+            this.writeInt((int)this.m_crc.getValue());
+        }
+        @Override
+        public void flush() throws IOException {
+            this.m_os.flush();
+        }
+        @Override
+        public void close() throws IOException {
+            this.m_os.close();
+        }
+    }
+    
+    /**
+     * Checksummed, position tracking input
+     */
+    private static class Input extends InputStream {
+        private final InputStream m_is;
+        private final CRC32 m_crc = new CRC32();
+        private long m_position = 0;
+        
+        Input(InputStream is) {
+            this.m_is = new BufferedInputStream(is,64 * 1024);
+        }
+        long position() {
+            return this.m_position;
+        }
+        @Override
+        public int read() throws IOException {
+            int b = this.m_is.read();
+            if (b < 0) {
+                throw new EOFException("ShadowRecordFile: truncated file");
+            }
+            this.m_crc.update(b);
+            ++this.m_position;
+            return b;
+        }
+        void readFully(byte[] data,int offset,int length) throws IOException {
+            while (length > 0) {
+                int n = this.m_is.read(data,offset,length);
+                if (n < 0) {
+                    throw new EOFException("ShadowRecordFile: truncated file");
+                }
+                this.m_crc.update(data,offset,n);
+                this.m_position += n;
+                offset += n;
+                length -= n;
+            }
+        }
+        @Override
+        public long skip(long length) throws IOException {
+            // read through (the checksum covers everything)
+            byte[] scratch = new byte[(int)Math.min(length,8192)];
+            long remaining = length;
+            while (remaining > 0) {
+                int n = (int)Math.min(remaining,scratch.length);
+                this.readFully(scratch,0,n);
+                remaining -= n;
+            }
+            return length;
+        }
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift=0;shift < 64;shift += 7) {
+                int b = this.read();
+                value |= (long)(b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("ShadowRecordFile: corrupt varint");
+        }
+        String readString() throws IOException {
+            int length = (int)this.readVarint();
+            if (length < 0 || length > 16 * 1024 * 1024) {
+                throw new IOException("ShadowRecordFile: corrupt string length: " + length);
+            }
+            byte[] utf8 = new byte[length];
+            this.readFully(utf8,0,length);
+            return new String(utf8,StandardCharsets.UTF_8);
+        }
+        int readInt() throws IOException {
+            return (this.read() << 24) | (this.read() << 16) | (this.read() << 8) | this.read();
+        }
+        void verifyChecksum() throws IOException {
+            int expected = (int)this.m_crc.getValue();
+            if (this.readInt() != expected) {
+                throw new IOException("ShadowRecordFile: checksum mismatch");
+            }
+        }
+        @Override
+        public void close() throws IOException {
+            this.m_is.close();
+        }
+    }
+    
+    /**
+     * Body decoding cursor
+     */
+    private static class Cursor {
+        private final byte[] m_data;
+        private int m_position = 0;
+        
+        Cursor(byte[] data) {
+            this.m_data = data;
+        }
+        boolean hasRemaining() {
+            return this.m_position < this.m_data.length;
+        }
+        int read() throws IOException {
+            if (this.m_position >= this.m_data.length) {
+                throw new IOException("ShadowRecordFile: truncated body");
+            }
+            return this.m_data[this.m_position++] & 0xff;
+        }
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift=0;shift < 64;shift += 7) {
+                int b = this.read();
+                value |= (long)(b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("ShadowRecordFile: corrupt varint");
+        }
+        long readLong() throws IOException {
+            long value = 0;
+            for (int i=0;i<8;++i) {
+                value = (value << 8) | this.read();
+            }
+            return value;
+        }
+        String readString() throws IOException {
+            int length = (int)this.readVarint();
+            if (length < 0 || this.m_position + length > this.m_data.length) {
+                throw new IOException("ShadowRecordFile: truncated body string");
+            }
+            String value = new String(this.m_data,this.m_position,length,StandardCharsets.UTF_8);
+            this.m_position += length;
+            return value;
+        }
+        String readReference(String[] strings) throws IOException {
+            long index = this.readVarint();
+            if (index < 0 || index >= strings.length) {
+                throw new IOException("ShadowRecordFile: corrupt dictionary reference: " + index);
+            }
+            return strings[(int)index];
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * @file ShadowSnapshot.java
+ * @brief immutable, consistent view of the shadow database maps
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.shadow.service.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the shadow database: readers use it without locking, writers publish a new one
+ *
+ * @author Doug Anson
+ */
+public class ShadowSnapshot {
+    // the empty database
+    public static final ShadowSnapshot EMPTY = new ShadowSnapshot(new HashMap<String,ShadowRecord>());
+    
+    // mbed ID -> shadow record (ids + mbed/EdgeX device records)
+    private final Map<String,ShadowRecord> m_records;
+    
+    // case-insensitive lookup indexes: lower-cased EdgeX name -> mbed ID, lower-cased mbed ID -> mbed ID
+    private final Map<String,String> m_edgex_index;
+    private final Map<String,String> m_mbed_index;
+    
+    // build a snapshot from the given records (taken over... never modified afterwards)
+    private ShadowSnapshot(HashMap<String,ShadowRecord> records) {
+        HashMap<String,String> edgex_index = new HashMap<>();
+        HashMap<String,String> mbed_index = new HashMap<>();
+        for (ShadowRecord record : records.values()) {
+            edgex_index.put(key(record.edgexName()),record.mbedId());
+            mbed_index.put(key(record.mbedId()),record.mbedId());
+        }
+        this.m_records = Collections.unmodifiableMap(records);
+        this.m_edgex_index = edgex_index;
+        this.m_mbed_index = mbed_index;
+    }
+    
+    // snapshot of the given records
+    public static ShadowSnapshot of(Collection<ShadowRecord> records) {
+        HashMap<String,ShadowRecord> map = new HashMap<>();
+        for (ShadowRecord record : records) {
+            map.put(record.mbedId(),record);
+        }
+        return new ShadowSnapshot(map);
+    }
+    
+    // number of shadowed devices
+    public int size() {
+        return this.m_records.size();
+    }
+    
+    // lookup the mbed ID for a given EdgeX name (case-insensitive)
+    public String lookupMbedName(String edgex_name) {
+        return (edgex_name != null) ? this.m_edgex_index.get(key(edgex_name)) : null;
+    }
+    
+    // lookup the EdgeX name for a given mbed ID (case-insensitive)
+    public String lookupEdgeXName(String mbed_id) {
+        ShadowRecord record = this.record(mbed_id);
+        return (record != null) ? record.edgexName() : null;
+    }
+    
+    // the shadow record for a given mbed ID (case-insensitive)
+    public ShadowRecord record(String mbed_id) {
+        String key = (mbed_id != null) ? this.m_mbed_index.get(key(mbed_id)) : null;
+        return (key != null) ? this.m_records.get(key) : null;
+    }
+    
+    // the shadow record for a given EdgeX name (case-insensitive)
+    public ShadowRecord recordByEdgeXName(String edgex_name) {
+        String mbed_id = this.lookupMbedName(edgex_name);
+        return (mbed_id != null) ? this.m_records.get(mbed_id) : null;
+    }
+    
+    // the EdgeX names of all shadowed devices
+    public List<String> edgexNames() {
+        ArrayList<String> names = new ArrayList<>();
+        for (ShadowRecord record : this.m_records.values()) {
+            names.add(record.edgexName());
+        }
+        return names;
+    }
+    
+    // all records (read-only)
+    public Collection<ShadowRecord> records() {
+        return this.m_records.values();
+    }
+    
+    // start a set of changes (applied all at once by Editor.build())
+    public Editor edit() {
+        return new Editor(this);
+    }
+    
+    // index key
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+    
+    /**
+     * Private copy of a snapshot's records: each change replaces a device's ids and records together
+     */
+    public static class Editor {
+        private final HashMap<String,ShadowRecord> m_records;
+        
+        // copy the given snapshot
+        private Editor(ShadowSnapshot snapshot) {
+            this.m_records = new HashMap<>(snapshot.m_records);
+        }
+        
+        // add (or replace) a device
+        public Editor put(ShadowRecord record) {
+            this.m_records.put(record.mbedId(),record);
+            return this;
+        }
+        
+        // replace a device's record only if it is still the expected one
+        public Editor replace(ShadowRecord expected,ShadowRecord record) {
+            if (this.m_records.get(expected.mbedId()) == expected) {
+                this.m_records.put(record.mbedId(),record);
+            }
+            return this;
+        }
+        
+        // remove a device
+        public Editor remove(String mbed_id) {
+            this.m_records.remove(mbed_id);
+            return this;
+        }
+        
+        // the new snapshot (the editor must not be used afterwards)
+        public ShadowSnapshot build() {
+            return new ShadowSnapshot(this.m_records);
+        }
+    }
+}
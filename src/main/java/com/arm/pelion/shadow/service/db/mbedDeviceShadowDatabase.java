@@ -23,8 +23,11 @@
 package com.arm.pelion.shadow.service.db;
 
 import com.arm.pelion.shadow.service.coordinator.Orchestrator;
+import com.arm.pelion.shadow.service.coordinator.ShardCoordinator;
 import com.arm.pelion.shadow.service.core.BaseClass;
 import com.arm.pelion.shadow.service.core.ErrorLogger;
+import com.arm.pelion.shadow.service.metrics.Gauge;
+import com.arm.pelion.shadow.service.metrics.MetricsRegistry;
 import com.arm.pelion.shadow.service.preferences.PreferenceManager;
 import java.io.File;
 import java.io.FileInputStream;
@@ -32,8 +35,21 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import com.arm.pelion.shadow.service.interfaces.DeviceShadowProcessorInterface;
 
 /**
@@ -41,19 +57,43 @@ import com.arm.pelion.shadow.service.interfaces.DeviceShadowProcessorInterface;
  * @author Doug Anson
  */
 public class mbedDeviceShadowDatabase extends BaseClass {
-    // restoration files
+    // restoration files (the legacy serialized maps are read once and migrated to the shadow record file)
+    private static String DEF_SHADOW_CACHE = "shadow_db.bin";
     private static String EDGEX_CACHE = "edgex_devices.ser";
     private static String ID_MAP_CACHE = "id_map.ser";
     private static String MBED_CACHE = "mbed_devices.ser";
     private static String CLOUD_CERT_CACHE = "mbed_cloud_cert.ser";
     
+    // default max delay between a change being committed and it being flushed to the cache files
+    private static final int DEF_CACHE_FLUSH_MAX_DELAY_MS = 1000;
+    
+    // default heap budget for shadow records read from the shadow record file
+    private static final int DEF_SHADOW_CACHE_BUDGET_KB = 8192;
+    
     // enable/disable cache
     private boolean m_disable_cache = true;
     
-    // Our DBs
-    private HashMap<String,String> m_id_map_db = null;
-    private HashMap<String,String> m_edgex_db = null;
-    private HashMap<String,String> m_mbed_db = null;
+    // our shadow record file (sharded instances each keep their own partition: shadow_db-<instance>.bin)
+    private String m_shadow_cache = DEF_SHADOW_CACHE;
+    private boolean m_sharded = false;
+    
+    // group commit: changes are counted (under our lock) and flushed together by the flusher thread
+    private int m_flush_max_delay_ms = DEF_CACHE_FLUSH_MAX_DELAY_MS;
+    private ScheduledExecutorService m_flusher = null;
+    private final Object m_write_lock = new Object();
+    private long m_version = 0;
+    private long m_flushed_version = -1;
+    private boolean m_flush_scheduled = false;
+    private LongAdder m_flushes = null;
+    private LongAdder m_flush_failures = null;
+    
+    // Our DBs: readers use the current snapshot lock-free... writers (holding our lock) publish a new one
+    private volatile ShadowSnapshot m_snapshot = ShadowSnapshot.EMPTY;
+    
+    // shadow record file (stored records are read from it on demand... the previous one is closed a flush later)
+    private ShadowRecordFile.Store m_store = null;
+    private ShadowRecordFile.Store m_retired_store = null;
+    private ShadowRecordCache m_records_cache = null;
     private HashMap<String,String> m_mbed_cert = null;
     
     // Orchestrator
@@ -64,15 +104,149 @@ public class mbedDeviceShadowDatabase extends BaseClass {
         super(error_logger, preference_manager);
         this.m_orchestrator = orchestrator;
         this.m_disable_cache = !(preference_manager.booleanValueOf("cache_enabled"));
+        
+        // sharded: our own partition of the shadows
+        ShardCoordinator shards = ShardCoordinator.getInstance(error_logger,preference_manager);
+        if (shards.isEnabled() == true) {
+            this.m_sharded = true;
+            this.m_shadow_cache = "shadow_db-" + shards.instanceId() + ".bin";
+        }
+        
+        // group commit configuration
+        this.m_flush_max_delay_ms = preference_manager.intValueOf("cache_flush_max_delay_ms");
+        if (this.m_flush_max_delay_ms <= 0) {
+            this.m_flush_max_delay_ms = DEF_CACHE_FLUSH_MAX_DELAY_MS;
+        }
+        
+        // single daemon flusher thread (pending flushes are dropped at shutdown... closedown() flushes synchronously)
+        ScheduledThreadPoolExecutor flusher = new ScheduledThreadPoolExecutor(1,new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+                thread.setName("shadow-db-flusher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        flusher.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.m_flusher = flusher;
+        
+        // hydrated records cache (heap budget)
+        int budget_kb = preference_manager.intValueOf("shadow_cache_budget_kb");
+        if (budget_kb <= 0) {
+            budget_kb = DEF_SHADOW_CACHE_BUDGET_KB;
+        }
+        this.m_records_cache = new ShadowRecordCache(budget_kb * 1024L);
+        
+        // metrics
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        this.m_flushes = metrics.counter("shadow_db_flushes_total","Shadow database flushes to the cache files");
+        this.m_flush_failures = metrics.counter("shadow_db_flush_failures_total","Shadow database flushes that failed");
+        metrics.gauge("shadow_db_unflushed_changes","Shadow database changes committed but not yet flushed",new Gauge() {
+            @Override
+            public long value() {
+                return unflushedChanges();
+            }
+        });
+        metrics.gauge("shadow_db_hydrated_records","Shadows whose records are cached in heap",new Gauge() {
+            @Override
+            public long value() {
+                return m_records_cache.size();
+            }
+        });
+        metrics.gauge("shadow_cache_bytes","Estimated heap used by cached shadow records",new Gauge() {
+            @Override
+            public long value() {
+                return m_records_cache.bytes();
+            }
+        });
+    }
+    
+    // number of committed changes not yet flushed to the cache files
+    public synchronized long unflushedChanges() {
+        return this.m_version - Math.max(0,this.m_flushed_version);
+    }
+    
+    // commit a change: it is flushed (grouped with any others made meanwhile) within the max flush delay
+    public void commit() {
+        if (this.m_disable_cache == false) {
+            synchronized (this) {
+                ++this.m_version;
+                this.scheduleFlush();
+            }
+        }
+    }
+    
+    // close down: stop the flusher and flush anything outstanding (durability barrier)
+    public boolean closedown() {
+        this.m_flusher.shutdown();
+        return this.saveToCache();
+    }
+    
+    // schedule a flush unless one is already pending (caller holds our lock)
+    private void scheduleFlush() {
+        if (this.m_flush_scheduled == false && this.m_flusher.isShutdown() == false) {
+            this.m_flush_scheduled = true;
+            this.m_flusher.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flushCommitted();
+                }
+            },this.m_flush_max_delay_ms,TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    // flusher task: write out the committed changes (retried after the max flush delay on failure)
+    private void flushCommitted() {
+        synchronized (this) {
+            this.m_flush_scheduled = false;
+        }
+        if (this.saveToCache() == false) {
+            this.errorLogger().warning("mbedDeviceShadowDatabase: flush FAILED. Retrying in " + this.m_flush_max_delay_ms + "ms...");
+            synchronized (this) {
+                this.scheduleFlush();
+            }
+        }
     }
     
     // get the db shadow count
     public int getShadowCount() {
-        return this.m_id_map_db.size();
+        return this.m_snapshot.size();
+    }
+    
+    // get the shadow records cache
+    public ShadowRecordCache getRecordsCache() {
+        return this.m_records_cache;
+    }
+    
+    // get a consistent, read-only view of the db
+    public ShadowSnapshot snapshot() {
+        return this.m_snapshot;
     }
     
     // remove the cache files
     public void clearCacheFiles() {
+        try {
+            // delete the shadow record file
+            File f = new File(this.m_shadow_cache);
+            f.delete();
+            
+            // delete the legacy cache files (shared... not ours to delete when sharded)
+            if (this.m_sharded == false) {
+                this.clearLegacyCacheFiles();
+            }
+            
+            // delete the mbed Cloud Cert file
+            f = new File(CLOUD_CERT_CACHE);
+            f.delete();
+        }
+        catch (Exception ex) {
+            // silent exception
+        }
+    }
+    
+    // remove the legacy (serialized map) cache files
+    private void clearLegacyCacheFiles() {
         try {
             // delete EdgeX cache file
             File f = new File(EDGEX_CACHE);
@@ -85,10 +259,6 @@ public class mbedDeviceShadowDatabase extends BaseClass {
             // delete the ID mapping file
             f = new File(ID_MAP_CACHE);
             f.delete();
-            
-            // delete the mbed Cloud Cert file
-            f = new File(CLOUD_CERT_CACHE);
-            f.delete();
         }
         catch (Exception ex) {
             // silent exception
@@ -99,26 +269,30 @@ public class mbedDeviceShadowDatabase extends BaseClass {
     public boolean initialize(DeviceShadowProcessorInterface processor) {
         boolean status = false;
         
-        // reload edgex data from the file cache
-        this.m_edgex_db = this.reloadFromCache(EDGEX_CACHE);
-        if (this.m_edgex_db != null) {
-            // get the mbed data from the file cache
-            this.m_mbed_db = this.reloadFromCache(MBED_CACHE);
-            if (this.m_mbed_db != null) {
-                // get the ID map data from the file cache
-                this.m_id_map_db = this.reloadFromCache(ID_MAP_CACHE);
+        // reload from the shadow record file... or (once) from the legacy cache files
+        ShadowSnapshot reloaded = this.reloadRecords();
+        boolean legacy = (reloaded == null && this.m_disable_cache == false && this.m_sharded == false && new File(ID_MAP_CACHE).exists());
+        if (reloaded != null) {
+            // the reloaded records are already on file... they are not revalidated one by one here: our devices are
+            // only known to mbed-edge again once re-registered, and discovery/event handling re-syncs them
+            synchronized (this) {
+                this.m_snapshot = reloaded;
+                this.m_flushed_version = this.m_version;
             }
         }
-        
-        // continue if reloads succeed
-        if (this.m_edgex_db != null && this.m_mbed_db != null && this.m_id_map_db != null) {
-            // now revalidate each entry and prune any stale entries
-            this.validateAndPrune(processor);
+        else if (this.m_sharded == false) {
+            this.reloadLegacyCache(processor);
         }
         
-        // write to cache to re-sync
+        // write to cache to re-sync (only if anything was migrated or pruned)
         status = this.saveToCache();
         
+        // legacy cache files are no longer needed once migrated
+        if (legacy == true && status == true) {
+            this.errorLogger().warning("mbedDeviceShadowDatabase: migrated " + this.getShadowCount() + " shadow(s) from the legacy cache files to " + this.m_shadow_cache);
+            this.clearLegacyCacheFiles();
+        }
+        
         // also attempt to restore our cached certificate
         this.getCloudCert();
         
@@ -126,6 +300,36 @@ public class mbedDeviceShadowDatabase extends BaseClass {
         return status;
     }
     
+    // reload the legacy cache files (serialized maps)
+    private void reloadLegacyCache(DeviceShadowProcessorInterface processor) {
+        // reload edgex data from the file cache
+        HashMap<String,String> mbed_db = null;
+        HashMap<String,String> id_map_db = null;
+        HashMap<String,String> edgex_db = this.reloadFromCache(EDGEX_CACHE);
+        if (edgex_db != null) {
+            // get the mbed data from the file cache
+            mbed_db = this.reloadFromCache(MBED_CACHE);
+            if (mbed_db != null) {
+                // get the ID map data from the file cache
+                id_map_db = this.reloadFromCache(ID_MAP_CACHE);
+            }
+        }
+        
+        // continue if reloads succeed
+        if (edgex_db != null && mbed_db != null && id_map_db != null) {
+            ArrayList<ShadowRecord> records = new ArrayList<>();
+            for (Map.Entry<String,String> entry : id_map_db.entrySet()) {
+                records.add(new ShadowRecord(entry.getKey(),mbed_db.get(entry.getKey()),entry.getValue(),edgex_db.get(entry.getValue())));
+            }
+            synchronized (this) {
+                this.m_snapshot = ShadowSnapshot.of(records);
+            }
+            
+            // now revalidate each entry and prune any stale entries
+            this.validateAndPrune(processor);
+        }
+    }
+    
     // save the cert to cache if present
     public void saveCloudCert() {
         // write the cert to cache too...
@@ -179,55 +383,123 @@ public class mbedDeviceShadowDatabase extends BaseClass {
         // DEBUG
         this.errorLogger().info("addDevice: mbed_id: " + mbed_id + " mbed_device: " + mbed_json + " edgex_name: " + edgex_name + " edgex_device: " + edgex_json);
         
-        // save to the db
-        this.m_id_map_db.put(mbed_id, edgex_name);
-        this.m_mbed_db.put(mbed_id,this.m_orchestrator.getJSONGenerator().generateJson(mbed_json));
-        this.m_edgex_db.put(edgex_name,this.m_orchestrator.getJSONGenerator().generateJson(edgex_json));
+        // save to the db (all three maps change together)
+        String mbed_json_str = this.m_orchestrator.getJSONGenerator().generateJson(mbed_json);
+        String edgex_json_str = this.m_orchestrator.getJSONGenerator().generateJson(edgex_json);
+        synchronized (this) {
+            this.m_snapshot = this.m_snapshot.edit().put(new ShadowRecord(mbed_id,mbed_json_str,edgex_name,edgex_json_str)).build();
+        }
+    }
+    
+    // add a set of new devices at once (mbed device "id" and EdgeX device "name" are the keys)
+    public void addDevices(List<Map> mbed_devices,List<Map> edgex_devices) {
+        // serialize outside of our lock
+        ArrayList<String> mbed_json_strs = new ArrayList<>();
+        ArrayList<String> edgex_json_strs = new ArrayList<>();
+        for (int i=0;i<mbed_devices.size();++i) {
+            mbed_json_strs.add(this.m_orchestrator.getJSONGenerator().generateJson(mbed_devices.get(i)));
+            edgex_json_strs.add(this.m_orchestrator.getJSONGenerator().generateJson(edgex_devices.get(i)));
+        }
+        
+        // save to the db as a single change
+        synchronized (this) {
+            ShadowSnapshot.Editor editor = this.m_snapshot.edit();
+            for (int i=0;i<mbed_devices.size();++i) {
+                editor.put(new ShadowRecord((String)mbed_devices.get(i).get("id"),mbed_json_strs.get(i),(String)edgex_devices.get(i).get("name"),edgex_json_strs.get(i)));
+            }
+            this.m_snapshot = editor.build();
+        }
     }
     
     // get the mbed Device JSON
     public Map getMbedDevice(String mbed_id) {
-        String mbed_json_str = this.m_mbed_db.get(mbed_id);
-        if (mbed_json_str != null && mbed_json_str.length() > 0) {
+        return this.parseDevice("getMbedDevice",this.hydrate(this.m_snapshot.record(mbed_id)),0);
+    }
+    
+    // get the mbed Device JSON for a given EdgeX Name
+    public Map getMbedDeviceByEdgeXName(String edgex_name) {
+        return this.parseDevice("getMbedDevice",this.hydrate(this.m_snapshot.recordByEdgeXName(edgex_name)),0);
+    }
+    
+    // get the EdgeX Device JSON
+    public Map getEdgeXDevice(String edgex_name) {
+        return this.parseDevice("getEdgeXDevice",this.hydrate(this.m_snapshot.recordByEdgeXName(edgex_name)),1);
+    }
+    
+    // get the EdgeX Device JSON for a given mbed ID
+    public Map getEdgeXDeviceByMbedId(String mbed_id) {
+        return this.parseDevice("getEdgeXDevice",this.hydrate(this.m_snapshot.record(mbed_id)),1);
+    }
+    
+    // the records { mbed, edgex } of a shadow: in heap, cached or read from the shadow record file (then cached)
+    private String[] hydrate(ShadowRecord record) {
+        if (record == null || record.inHeap() == true) {
+            return (record != null) ? new String[] { record.mbedJson(),record.edgexJson() } : null;
+        }
+        String[] json = this.m_records_cache.get(record);
+        if (json == null) {
             try {
-                Map mbed_json = this.jsonParser().parseJson(mbed_json_str);
-                return mbed_json;
+                json = record.hydrate();
+                this.m_records_cache.put(record,json);
             }
-            catch (Exception ex) {
-                // parsing error
-                this.errorLogger().warning("getMbedDevice: JSON Parse exception: " + ex.getMessage() + " JSON: " + mbed_json_str,ex);
+            catch (IOException ex) {
+                // the record may have just moved to a new shadow record file... retry once with its current location
+                ShadowRecord current = this.m_snapshot.record(record.mbedId());
+                if (current != null && current != record) {
+                    return this.hydrate(current);
+                }
+                this.errorLogger().warning("mbedDeviceShadowDatabase: Unable to read shadow records for: " + record.mbedId() + ": " + ex.getMessage());
+                return null;
             }
         }
-        return null;
+        return json;
     }
     
-    // get the EdgeX Device JSON
-    public Map getEdgeXDevice(String edgex_name) {
-        String edgex_json_str = this.m_edgex_db.get(edgex_name);
-        if (edgex_json_str != null && edgex_json_str.length() > 0) {
+    // parse a device JSON (index 0: mbed, 1: EdgeX) of a shadow's records
+    private Map parseDevice(String caller,String[] records,int index) {
+        String json_str = (records != null) ? records[index] : null;
+        if (json_str != null && json_str.length() > 0) {
             try {
-                Map edgex_json = this.jsonParser().parseJson(edgex_json_str);
-                return edgex_json;
+                return this.jsonParser().parseJson(json_str);
             }
             catch (Exception ex) {
                 // parsing error
-                this.errorLogger().warning("getEdgeXDevice: JSON Parse exception: " + ex.getMessage() + " JSON: " + edgex_json_str,ex);
+                this.errorLogger().warning(caller + ": JSON Parse exception: " + ex.getMessage() + " JSON: " + json_str,ex);
             }
         }
         return null;
     }
     
-    // save to cache
+    // save to cache now (durability barrier: returns once every change committed so far is on file)
     public boolean saveToCache() {
         boolean status = false;
         if (this.m_disable_cache == false) {
-            // write to cache
-            this.errorLogger().info("mbedDeviceShadowDatabase: saveToCache: writing synced cache db...");
-            status = this.saveToCache(EDGEX_CACHE,this.m_edgex_db);
-            if (status == true) {
-                status = this.saveToCache(MBED_CACHE,this.m_mbed_db);
+            synchronized (this.m_write_lock) {
+                // take the snapshot matching the committed version... then write outside of our lock
+                long version = 0;
+                ShadowSnapshot snapshot = null;
+                synchronized (this) {
+                    if (this.m_version == this.m_flushed_version) {
+                        // nothing new since the last flush
+                        return true;
+                    }
+                    version = this.m_version;
+                    snapshot = this.m_snapshot;
+                }
+                
+                // write to cache
+                this.errorLogger().info("mbedDeviceShadowDatabase: saveToCache: writing synced cache db...");
+                status = this.saveRecords(snapshot);
+                
+                // note what is now on file
                 if (status == true) {
-                    status = this.saveToCache(ID_MAP_CACHE,this.m_id_map_db);
+                    synchronized (this) {
+                        this.m_flushed_version = version;
+                    }
+                    this.m_flushes.increment();
+                }
+                else {
+                    this.m_flush_failures.increment();
                 }
             }
         }
@@ -241,43 +513,24 @@ public class mbedDeviceShadowDatabase extends BaseClass {
     
     // lookup the mbed ID for a given EdgeX Name
     public String lookupMbedName(String edgex_name) {
-        // iterate over the db and validate each...
-        for (HashMap.Entry device : this.m_id_map_db.entrySet()) {
-            // get the ith entry...
-            String mbed_id = (String)device.getKey();
-            String tmp_edgex_name = (String)device.getValue();
-            
-            // if we match, return
-            if (tmp_edgex_name.equalsIgnoreCase(edgex_name) == true) {
-                // matched! return the mbed Name
-                return mbed_id;
-            }
-        }
-        return null;
+        return this.m_snapshot.lookupMbedName(edgex_name);
     }
     
     // lookup the EdgeX Name for a given mbed Name
     public String lookupEdgeXName(String mbed_id) {
-        // iterate over the db and validate each...
-        for (HashMap.Entry device : this.m_id_map_db.entrySet()) {
-            // get the ith entry...
-            String tmp_mbed_id = (String)device.getKey();
-            String edgex_name = (String)device.getValue();
-            
-            // if we match, return
-            if (tmp_mbed_id.equalsIgnoreCase(mbed_id) == true) {
-                // matched! return the EdgeX Name
-                return edgex_name;
-            }
-        }
-        return null;
+        return this.m_snapshot.lookupEdgeXName(mbed_id);
+    }
+    
+    // get the EdgeX names of all shadowed devices
+    public List<String> getEdgeXNames() {
+        return this.m_snapshot.edgexNames();
     }
     
     // remove a device
-    private void removeDevice(String mbed_id,String edgex_name) {
-        this.m_mbed_db.remove(mbed_id);
-        this.m_id_map_db.remove(mbed_id);
-        this.m_edgex_db.remove(edgex_name);
+    public void removeDevice(String mbed_id,String edgex_name) {
+        synchronized (this) {
+            this.m_snapshot = this.m_snapshot.edit().remove(mbed_id).build();
+        }
     }
     
     // save DB to Cache
@@ -286,8 +539,9 @@ public class mbedDeviceShadowDatabase extends BaseClass {
         
         if (this.m_disable_cache == false) {
             try {
-                // write to the cache DB file
-                FileOutputStream fos = new FileOutputStream(filename);
+                // write to a temporary cache DB file
+                File tmp = new File(filename + ".tmp");
+                FileOutputStream fos = new FileOutputStream(tmp);
                 ObjectOutputStream oos = new ObjectOutputStream(fos);
 
                 // save...
@@ -296,6 +550,9 @@ public class mbedDeviceShadowDatabase extends BaseClass {
                 // close...
                 oos.close();
                 fos.close();
+                
+                // then swap it in so a crash mid-write never leaves a torn cache file
+                Files.move(tmp.toPath(),new File(filename).toPath(),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
 
                 // OK
                 status = true;
@@ -316,6 +573,94 @@ public class mbedDeviceShadowDatabase extends BaseClass {
         return status;
     }
     
+    // save the DB to the shadow record file (caller holds the write lock)
+    private boolean saveRecords(ShadowSnapshot snapshot) {
+        try {
+            // write to a temporary shadow record file (stored records are copied from the current one)
+            File tmp = new File(this.m_shadow_cache + ".tmp");
+            IdentityHashMap<ShadowRecord,ShadowRecord> written = new IdentityHashMap<>();
+            ShadowRecordFile.Store store = ShadowRecordFile.write(tmp,this.m_store,snapshot.records(),written);
+            
+            // then swap it in so a crash mid-write never leaves a torn cache file
+            try {
+                Files.move(tmp.toPath(),new File(this.m_shadow_cache).toPath(),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (IOException ex) {
+                store.close();
+                throw ex;
+            }
+            
+            // make the rename itself durable
+            this.syncDirectory(new File(this.m_shadow_cache).getAbsoluteFile().getParentFile());
+            
+            // records now live in the new file (unless changed meanwhile)... in heap ones move to the cache
+            synchronized (this) {
+                ShadowSnapshot.Editor editor = this.m_snapshot.edit();
+                for (Map.Entry<ShadowRecord,ShadowRecord> entry : written.entrySet()) {
+                    ShadowRecord record = entry.getKey();
+                    if (record.inHeap() == true) {
+                        this.m_records_cache.put(entry.getValue(),new String[] { record.mbedJson(),record.edgexJson() });
+                    }
+                    else {
+                        this.m_records_cache.move(record,entry.getValue());
+                    }
+                    editor.replace(record,entry.getValue());
+                }
+                this.m_snapshot = editor.build();
+            }
+            
+            // retire the previous file (readers may still be using it briefly... it is closed after the next flush)
+            if (this.m_retired_store != null) {
+                this.m_retired_store.close();
+            }
+            this.m_retired_store = this.m_store;
+            this.m_store = store;
+            return true;
+        }
+        catch (IOException ex) {
+            // unable to write to cache file (ERROR)
+            this.errorLogger().warning("mbedDeviceShadowDatabase:saveRecords: Cannot write DB to " + this.m_shadow_cache + ": " + ex.getLocalizedMessage());
+            return false;
+        }
+    }
+    
+    // fsync a directory (not supported on every platform... best effort)
+    private void syncDirectory(File dir) {
+        if (dir == null) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(dir.toPath(),StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+        catch (IOException ex) {
+            // silent (e.g. directories cannot be opened for sync on Windows)
+        }
+    }
+    
+    // reload the DB from the shadow record file (null if there is none)
+    private ShadowSnapshot reloadRecords() {
+        File file = new File(this.m_shadow_cache);
+        if (this.m_disable_cache == true || file.exists() == false) {
+            return null;
+        }
+        try {
+            // index the records (ids + file offsets)... they are read when first needed
+            ArrayList<ShadowRecord> records = new ArrayList<>();
+            synchronized (this.m_write_lock) {
+                this.m_store = ShadowRecordFile.open(file,records);
+            }
+            
+            // DEBUG
+            this.errorLogger().info("mbedDeviceShadowDatabase:reloadRecords: indexed " + records.size() + " shadow(s) from " + this.m_shadow_cache);
+            return ShadowSnapshot.of(records);
+        }
+        catch (IOException ex) {
+            // unreadable... start empty (rewritten on the next flush)
+            this.errorLogger().warning("mbedDeviceShadowDatabase:reloadRecords: Unable to read " + this.m_shadow_cache + " (IGNORED): " + ex.getLocalizedMessage());
+            return ShadowSnapshot.EMPTY;
+        }
+    }
+    
     // reload the DB from Cache
     private HashMap reloadFromCache(String filename) {
         boolean status = false;
@@ -366,22 +711,25 @@ public class mbedDeviceShadowDatabase extends BaseClass {
     
     // validate and prune stale entries
     private void validateAndPrune(DeviceShadowProcessorInterface processor) {
-        // iterate over the db and validate each...
-        for (HashMap.Entry mbed_device : this.m_id_map_db.entrySet()) {
+        // iterate over the (reloaded) snapshot and validate each... pruning publishes new snapshots
+        for (ShadowRecord mbed_device : this.m_snapshot.records()) {
             // get the ith entry...
-            String mbed_id = (String)mbed_device.getKey();
-            String edgex_name = (String)mbed_device.getValue();
+            String mbed_id = mbed_device.mbedId();
+            String edgex_name = mbed_device.edgexName();
             
             // DEBUG
-            this.errorLogger().info("validateAndPrune: mbed ID: " + mbed_device.getKey() + " EdgeX Name: " + edgex_name);
+            this.errorLogger().info("validateAndPrune: mbed ID: " + mbed_id + " EdgeX Name: " + edgex_name);
             
             // validate with the mbed client service
             if (processor.validate(mbed_id,edgex_name) == false) {
                 // mbed client service does not recognize this device... so prune it...
-                this.errorLogger().info("validateAndPrune: mbed ID: " + mbed_device.getKey() + " and EdgeX Name: " + edgex_name + " no longer appears to be a valid mapping... prunning...");
+                this.errorLogger().info("validateAndPrune: mbed ID: " + mbed_id + " and EdgeX Name: " + edgex_name + " no longer appears to be a valid mapping... prunning...");
                 
                 // remove 
                 this.removeDevice(mbed_id, edgex_name);
+                synchronized (this) {
+                    ++this.m_version;
+                }
             }
         }
     }
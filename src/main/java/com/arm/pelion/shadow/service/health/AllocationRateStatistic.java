@@ -0,0 +1,57 @@
+/**
+ * @file AllocationRateStatistic.java
+ * @brief Pelion JVM allocation rate statistic
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.shadow.service.health;
+
+import com.arm.pelion.shadow.service.health.interfaces.HealthCheckServiceInterface;
+
+/**
+ * This class periodically reports the JVM heap allocation rate
+ *
+ * @author Doug Anson
+ */
+public class AllocationRateStatistic extends BaseValidatorClass implements Runnable {    
+    // default constructor
+    public AllocationRateStatistic(HealthCheckServiceInterface provider) {
+        super(provider,"alloc_rate");
+        this.m_value = (String)"";      // String value for this validator
+        this.m_publish_on_change = false;   // JVM gauge: changes on nearly every sample
+    }   
+    
+    // validate
+    @Override
+    protected void validate() {
+        long rate = this.m_provider.jvmStatistics().snapshot().allocationRate();
+        if (rate >= 0) {
+            // bytes/sec --> KB/sec
+            this.m_value = (String)((rate / 1024) + " KB/s");
+            this.updateStatisticAndNotify();
+            
+            // DEBUG
+            this.errorLogger().info("AllocationRateStatistic: " + (String)this.m_value);
+        }
+        else {
+            // no update (first sample or not supported by this JVM)
+            this.errorLogger().info("AllocationRateStatistic: <no update>");
+        }
+    }
+}
@@ -23,8 +23,12 @@
 package com.arm.pelion.shadow.service.health;
 
 import com.arm.pelion.shadow.service.core.BaseClass;
-import com.arm.pelion.shadow.service.core.Utils;
 import com.arm.pelion.shadow.service.health.interfaces.HealthCheckServiceInterface;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Base Validator Class
@@ -32,14 +36,22 @@ import com.arm.pelion.shadow.service.health.interfaces.HealthCheckServiceInterfa
  */
 public abstract class BaseValidatorClass extends BaseClass implements Runnable {
     private static final int DEF_CHECK_INTERVAL_MS = 15000;     // 15 seconds
+    private static final int DEF_JITTER_PCT = 10;               // +/- 10% of the interval
     protected HealthCheckServiceInterface m_provider = null;
     protected String m_key = null;
     protected Object m_value = false;
     protected String m_description = null;
-    protected boolean m_running = false;
+    protected volatile boolean m_running = false;
     protected int m_validator_interval_ms = 0;
+    protected boolean m_publish_on_change = true;       // false: volatile gauge (changes do not trigger a publication)
     private boolean m_override_check_interval = false;  // true: nail to default, false: from config file
     
+    // scheduling support (shared executor owned by the provider)
+    private ScheduledExecutorService m_scheduler = null;
+    private volatile ScheduledFuture<?> m_next_run = null;
+    private final AtomicBoolean m_in_progress = new AtomicBoolean(false);
+    private int m_jitter_pct = DEF_JITTER_PCT;
+    
     // constructor with  optional qualifier
     public BaseValidatorClass(HealthCheckServiceInterface provider,String key,String qualifier) {
         this(provider,key);
@@ -58,6 +70,10 @@ public abstract class BaseValidatorClass extends BaseClass implements Runnable {
         if (this.m_validator_interval_ms <= 0 || this.m_override_check_interval == true) {
             this.m_validator_interval_ms = DEF_CHECK_INTERVAL_MS;
         }
+        this.m_jitter_pct = this.preferences().intValueOf("health_check_jitter_pct");
+        if (this.m_jitter_pct < 0) {
+            this.m_jitter_pct = DEF_JITTER_PCT;
+        }
         this.m_value = null;
         this.m_running = false; 
     }
@@ -65,37 +81,77 @@ public abstract class BaseValidatorClass extends BaseClass implements Runnable {
     // update the statistic and notify
     protected void updateStatisticAndNotify() {
         // update the health statistic
-        this.m_provider.updateHealthStatistic(new HealthStatistic(this.m_key,this.m_description,this.m_value));
+        this.m_provider.updateHealthStatistic(new HealthStatistic(this.m_key,this.m_description,this.m_value,this.m_publish_on_change));
+    }
+    
+    // get our key
+    public String key() {
+        return this.m_key;
     }
     
-    // run 
+    // start running on the given (shared) scheduler
+    public void start(ScheduledExecutorService scheduler) {
+        this.m_scheduler = scheduler;
+        this.m_running = true;
+        
+        // spread the first runs across one interval so the validators do not fire in lock-step
+        this.scheduleNext(ThreadLocalRandom.current().nextInt(this.m_validator_interval_ms));
+    }
+    
+    // run a single validation pass
     @Override
     public void run() {
-        this.m_running = true;
-        this.validationLoop();
+        // overrun protection: never let a slow check stack up behind itself
+        if (this.m_in_progress.compareAndSet(false,true) == false) {
+            this.errorLogger().info("BaseValidator: " + this.m_key + " still running... skipping this pass");
+            return;
+        }
+        
+        try {
+            // validate the statistic
+            this.validate();
+        }
+        catch (Exception ex) {
+            this.errorLogger().warning("BaseValidator: Exception caught: " + ex.getMessage(),ex);
+        }
+        finally {
+            this.m_in_progress.set(false);
+        }
+        
+        // schedule our next pass only once this one has completed
+        this.scheduleNext(this.nextDelay());
     }
     
     // halt 
     public void halt() {
         this.m_running = false;
+        ScheduledFuture<?> next = this.m_next_run;
+        if (next != null) {
+            next.cancel(false);
+        }
     }
     
-    // main validation loop
-    private void validationLoop() {
-        while (this.m_running == true) {
+    // schedule the next validation pass
+    private void scheduleNext(long delay_ms) {
+        if (this.m_running == true && this.m_scheduler != null && this.m_scheduler.isShutdown() == false) {
             try {
-                // validate the statistic
-                this.validate();
-                
-                // sleep for a bit...
-                Utils.waitForABit(this.errorLogger(),this.m_validator_interval_ms);
+                this.m_next_run = this.m_scheduler.schedule(this,delay_ms,TimeUnit.MILLISECONDS);
             }
             catch (Exception ex) {
-                this.errorLogger().warning("BaseValidator: Exception caught: " + ex.getMessage(),ex);
+                this.errorLogger().warning("BaseValidator: Unable to schedule " + this.m_key + ": " + ex.getMessage());
             }
         }
     }
     
+    // our interval with some jitter applied
+    private long nextDelay() {
+        long jitter_ms = ((long)this.m_validator_interval_ms * this.m_jitter_pct) / 100;
+        if (jitter_ms <= 0) {
+            return this.m_validator_interval_ms;
+        }
+        return Math.max(1,this.m_validator_interval_ms + ThreadLocalRandom.current().nextLong(-jitter_ms,jitter_ms + 1));
+    }
+    
     // abstract method - validate()
     protected abstract void validate();
-}
\ No newline at end of file
+}
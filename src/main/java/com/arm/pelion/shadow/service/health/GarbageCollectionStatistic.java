@@ -0,0 +1,50 @@
+/**
+ * @file GarbageCollectionStatistic.java
+ * @brief Pelion JVM GC pause time statistic
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.shadow.service.health;
+
+import com.arm.pelion.shadow.service.health.interfaces.HealthCheckServiceInterface;
+
+/**
+ * This class periodically reports the total GC pause time and collections since JVM start (consumers derive rates)
+ *
+ * @author Doug Anson
+ */
+public class GarbageCollectionStatistic extends BaseValidatorClass implements Runnable {    
+    // default constructor
+    public GarbageCollectionStatistic(HealthCheckServiceInterface provider) {
+        super(provider,"gc_pause");
+        this.m_value = (String)"";      // String value for this validator
+        this.m_publish_on_change = false;   // JVM gauge: changes on nearly every sample
+    }   
+    
+    // validate
+    @Override
+    protected void validate() {
+        JvmStatisticsSampler.Snapshot snapshot = this.m_provider.jvmStatistics().snapshot();
+        this.m_value = (String)(snapshot.gcTimeMs() + " ms (" + snapshot.gcCount() + " collections)");
+        this.updateStatisticAndNotify();
+        
+        // DEBUG
+        this.errorLogger().info("GarbageCollectionStatistic: " + (String)this.m_value);
+    }
+}
@@ -23,36 +23,76 @@
 package com.arm.pelion.shadow.service.health;
 
 import com.arm.pelion.shadow.service.core.BaseClass;
-import com.arm.pelion.shadow.service.core.Utils;
 import com.arm.pelion.shadow.service.health.interfaces.HealthCheckServiceInterface;
 import com.arm.pelion.shadow.service.health.interfaces.HealthStatisticListenerInterface;
 import com.arm.pelion.shadow.service.coordinator.Orchestrator;
-import java.text.SimpleDateFormat;
+import com.arm.pelion.shadow.service.metrics.Gauge;
+import com.arm.pelion.shadow.service.metrics.MetricsRegistry;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Health Check Service Provider Instance
  * @author Doug Anson
  */
-public class HealthCheckServiceProvider extends BaseClass implements HealthCheckServiceInterface, Runnable {
+public class HealthCheckServiceProvider extends BaseClass implements HealthCheckServiceInterface {
+    // default number of threads servicing all of the validators
+    private static final int DEF_HEALTH_CHECK_THREADS = 2;
+    
+    // RFC 3339 formatted date (immutable and thread safe)
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssXXX");
+    
     private Orchestrator m_orchestrator = null;
-    private ArrayList<HealthStatisticListenerInterface> m_listeners = null;
-    private HashMap<String,HealthStatistic> m_statistics = null;
-    private boolean m_running = false;
-    private int m_health_status_update_ms = 0;
+    private CopyOnWriteArrayList<HealthStatisticListenerInterface> m_listeners = null;
+    private ConcurrentHashMap<String,HealthStatistic> m_statistics = null;
     private ArrayList<BaseValidatorClass> m_validator_list = null;
     
+    // change-driven publishing: publish only when a statistic changes, but no more often than the minimum interval
+    private int m_min_publish_interval_ms = 0;
+    private final AtomicBoolean m_publish_pending = new AtomicBoolean(false);
+    private volatile long m_last_publish_ms = 0;
+    
+    // descriptions only change when a new statistic appears... so they are rendered once
+    private ConcurrentHashMap<String,String> m_descriptions = null;
+    private volatile String m_descriptions_json = null;
+    private volatile String m_statistics_json = null;
+    
+    // shared JVM statistics (sampled once per interval for all JVM validators)
+    private JvmStatisticsSampler m_jvm_statistics = null;
+    
+    // single (small) scheduler that runs every validator and the publisher
+    private ScheduledExecutorService m_scheduler = null;
+    private int m_health_check_threads = DEF_HEALTH_CHECK_THREADS;
+    
     // primary constructor
-    public HealthCheckServiceProvider(Orchestrator orchestrator,int health_status_update_ms) {
+    public HealthCheckServiceProvider(Orchestrator orchestrator,int min_publish_interval_ms) {
         super(orchestrator.errorLogger(),orchestrator.preferences());
         this.m_orchestrator = orchestrator;
-        this.m_statistics = new HashMap<>();
+        this.m_statistics = new ConcurrentHashMap<>();
+        this.m_descriptions = new ConcurrentHashMap<>();
         this.m_validator_list = new ArrayList<>();
-        this.m_listeners = new ArrayList<>();
-        this.m_health_status_update_ms = health_status_update_ms;
+        this.m_listeners = new CopyOnWriteArrayList<>();
+        this.m_min_publish_interval_ms = min_publish_interval_ms;
+        this.m_jvm_statistics = new JvmStatisticsSampler(orchestrator.errorLogger(),orchestrator.preferences());
+        
+        // size of the health check scheduler pool
+        this.m_health_check_threads = this.preferences().intValueOf("health_check_threads");
+        if (this.m_health_check_threads <= 0) {
+            this.m_health_check_threads = DEF_HEALTH_CHECK_THREADS;
+        }
     }
     
     // add a listener
@@ -62,10 +102,22 @@ public class HealthCheckServiceProvider extends BaseClass implements HealthCheck
         }
     }
 
-    // update a given health statistic
+    // update a given health statistic (publishes only if the value has changed... volatile JVM gauges never trigger one)
     @Override
     public void updateHealthStatistic(HealthStatistic statistic) {
-        this.m_statistics.put(statistic.name(),statistic);
+        if (statistic != null && statistic.name() != null) {
+            HealthStatistic previous = this.m_statistics.put(statistic.name(),statistic);
+            if (previous == null) {
+                // new statistic... re-render the descriptions
+                this.m_descriptions.put(statistic.name(),statistic.description() != null ? statistic.description() : statistic.name());
+                this.renderDescriptions();
+                this.schedulePublish();
+            }
+            else if (statistic.publishOnChange() == true && Objects.equals(previous.value(),statistic.value()) == false) {
+                // changed
+                this.schedulePublish();
+            }
+        }
     }
    
     // initialize our stats
@@ -89,68 +141,138 @@ public class HealthCheckServiceProvider extends BaseClass implements HealthCheck
         this.m_validator_list.add(new MemoryStatistic(this,"used","MB"));
         this.m_validator_list.add(new MemoryStatistic(this,"max","MB"));
         this.m_validator_list.add(new MemoryStatistic(this,"processors","Processor(s)"));
+        this.m_validator_list.add(new GarbageCollectionStatistic(this));
+        this.m_validator_list.add(new AllocationRateStatistic(this));
+        this.m_validator_list.add(new MemoryPoolStatistic(this));
+        
+        // Observation Scheduler statistics (per-device rate limiting overflow)
+        this.m_validator_list.add(new ObservationSchedulerStatistic(this,"queued"));
+        this.m_validator_list.add(new ObservationSchedulerStatistic(this,"dropped"));
+        this.m_validator_list.add(new ObservationSchedulerStatistic(this,"coalesced"));
+        this.m_validator_list.add(new ObservationSchedulerStatistic(this,"throttled_devices"));
+        
+        // Shadow record cache statistics (heap budget)
+        this.m_validator_list.add(new ShadowCacheStatistic(this,"hits"));
+        this.m_validator_list.add(new ShadowCacheStatistic(this,"misses"));
+        this.m_validator_list.add(new ShadowCacheStatistic(this,"evictions"));
+        this.m_validator_list.add(new ShadowCacheStatistic(this,"kb"));
         
         // ADD other validators here...
         
+        // create our scheduler (daemon threads... health checks must not hold the JVM up)
+        this.m_scheduler = Executors.newScheduledThreadPool(this.m_health_check_threads,new ThreadFactory() {
+            private final AtomicInteger m_count = new AtomicInteger(0);
+            
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r,"health-check-" + this.m_count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        
+        // expose the scheduler queue depth
+        final ScheduledThreadPoolExecutor scheduler = (ScheduledThreadPoolExecutor)this.m_scheduler;
+        MetricsRegistry.getInstance().gauge("health_check_queue_depth","Pending health check tasks",new Gauge() {
+            @Override
+            public long value() {
+                return scheduler.getQueue().size();
+            }
+        });
+        
         // Run all..
         for(int i=0;i<this.m_validator_list.size();++i) {
-            Thread t = new Thread(this.m_validator_list.get(i));
-            t.start();
+            this.m_validator_list.get(i).start(this.m_scheduler);
+        }
+        
+        // DEBUG
+        this.errorLogger().warning("HealthCheckServiceProvider: " + this.m_validator_list.size() + " validators scheduled on " + this.m_health_check_threads + " thread(s). Min publish interval: " + this.m_min_publish_interval_ms + "ms");
+    }
+    
+    // schedule a publication (coalesces all changes seen within the minimum publish interval into one publication)
+    private void schedulePublish() {
+        if (this.m_scheduler == null || this.m_publish_pending.compareAndSet(false,true) == false) {
+            // not running yet or a publication is already pending
+            return;
+        }
+        long delay_ms = (this.m_last_publish_ms + this.m_min_publish_interval_ms) - System.currentTimeMillis();
+        try {
+            this.m_scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    m_publish_pending.set(false);
+                    try {
+                        checkAndPublish();
+                    }
+                    catch (Exception ex) {
+                        errorLogger().warning("HealthCheckServiceProvider: Exception caught while publishing: " + ex.getMessage(),ex);
+                    }
+                }
+            },Math.max(0,delay_ms),TimeUnit.MILLISECONDS);
+        }
+        catch (Exception ex) {
+            // scheduler has been shutdown
+            this.m_publish_pending.set(false);
         }
     }
     
     // create a JSON output of the stats
     @Override
     public String statisticsJSON() {
-        return this.m_orchestrator.getJSONGenerator().generateJson(this.createStatisticsJSON());
+        String json = this.m_statistics_json;
+        if (json == null) {
+            json = this.renderStatistics();
+        }
+        return json;
     }
     
     // create a JSON output of the stat descriptons 
     @Override
     public String descriptionsJSON() {
-        return this.m_orchestrator.getJSONGenerator().generateJson(this.createDescriptonJSON());
+        String json = this.m_descriptions_json;
+        if (json == null) {
+            json = this.renderDescriptions();
+        }
+        return json;
     }
     
     // get the current time (formatted) 
     private String getCurrentFormattedTime() {
         // RFC 3339 formatted date
-        return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX").format(new Date());
+        return OffsetDateTime.now().format(TIMESTAMP_FORMAT);
     }
     
-    // create a map of key,value pairs 
-    private Map createStatisticsJSON() {
+    // render the stats (key,value pairs + timestamp + descriptions)
+    private String renderStatistics() {
         HashMap<String,Object> stats = new HashMap<>();
         for (Map.Entry<String, HealthStatistic> entry : this.m_statistics.entrySet()) {
-            String name = entry.getKey();
-            HealthStatistic statistic = entry.getValue();
-            stats.put(name,statistic.value());
+            stats.put(entry.getKey(),entry.getValue().value());
         }
         
         // add a timestamp
         stats.put("timestamp",(String)this.getCurrentFormattedTime());
         
-        // Create the descriptions Map
-        Map descriptions = this.createDescriptonJSON();
+        // add the descriptions
+        stats.put("descriptions",this.descriptions());
         
-        // add a timestamp to the descriptions
-        descriptions.put("timestamp","Recorded Date/Time");
-        
-        // add the descriptions 
-        stats.put("descriptions",descriptions);
-        
-        // return the status
-        return (Map)stats;
+        String json = this.m_orchestrator.getJSONGenerator().generateJson(stats);
+        this.m_statistics_json = json;
+        return json;
     }
     
-    // create a map of key,description pairs 
-    private Map createDescriptonJSON() {
-        HashMap<String,String> descriptions = new HashMap<>();
-        for (Map.Entry<String, HealthStatistic> entry : this.m_statistics.entrySet()) {
-            String name = entry.getKey();
-            HealthStatistic statistic = entry.getValue();
-            descriptions.put(name,statistic.description());
-        }
-        return (Map)descriptions;
+    // render the map of key,description pairs (only when a new statistic appears)
+    private synchronized String renderDescriptions() {
+        this.m_descriptions_json = this.m_orchestrator.getJSONGenerator().generateJson(this.descriptions());
+        return this.m_descriptions_json;
+    }
+    
+    // the key,description pairs (plus the timestamp's)
+    private HashMap<String,String> descriptions() {
+        HashMap<String,String> descriptions = new HashMap<>(this.m_descriptions);
+        
+        // add a timestamp to the descriptions
+        descriptions.put("timestamp","Recorded Date/Time");
+        return descriptions;
     }
     
     // manually update the health stats
@@ -158,34 +280,22 @@ public class HealthCheckServiceProvider extends BaseClass implements HealthCheck
         this.checkAndPublish();
     }
     
-    // check and publish changes to listeners
+    // render and publish to listeners
     private void checkAndPublish() {
-        String json = this.statisticsJSON();
+        String json = this.renderStatistics();
+        this.m_last_publish_ms = System.currentTimeMillis();
         for(int i=0;i<this.m_listeners.size();++i) {
             this.m_listeners.get(i).publish(json);
         }
     }
 
-    // run statistics loop
-    @Override
-    public void run() {
-        this.m_running = true;
-        this.healthStatsUpdateLoop();
-    }
-    
     // halt 
     public void halt() {
-        this.m_running = false;
-    }
-    
-    // main health statistics update loop
-    private void healthStatsUpdateLoop() {
-        while (this.m_running == true) {
-            // validate the webhook
-            this.checkAndPublish();
-
-            // sleep for a bit...
-            Utils.waitForABit(this.errorLogger(),this.m_health_status_update_ms);
+        for(int i=0;i<this.m_validator_list.size();++i) {
+            this.m_validator_list.get(i).halt();
+        }
+        if (this.m_scheduler != null) {
+            this.m_scheduler.shutdownNow();
         }
     }
     
@@ -194,4 +304,10 @@ public class HealthCheckServiceProvider extends BaseClass implements HealthCheck
     public Orchestrator getOrchestrator() {
         return this.m_orchestrator;
     }
+    
+    // get the shared JVM statistics sampler
+    @Override
+    public JvmStatisticsSampler jvmStatistics() {
+        return this.m_jvm_statistics;
+    }
 }
\ No newline at end of file
@@ -30,12 +30,19 @@ public class HealthStatistic {
     private String m_name = null;
     private String m_description = null;
     private Object m_value = null;
+    private boolean m_publish_on_change = true;
     
     // constructor
     public HealthStatistic(String name,String description,Object value) {
+        this(name,description,value,true);
+    }
+    
+    // constructor (publish_on_change: false for gauges that change on nearly every sample... they ride along with other changes)
+    public HealthStatistic(String name,String description,Object value,boolean publish_on_change) {
         this.m_name = name;
         this.m_description = description;
         this.m_value = value;
+        this.m_publish_on_change = publish_on_change;
     }
     
     // get the name
@@ -52,4 +59,9 @@ public class HealthStatistic {
     public Object value() {
         return this.m_value;
     }
+    
+    // does a change in value trigger a publication?
+    public boolean publishOnChange() {
+        return this.m_publish_on_change;
+    }
 }
@@ -0,0 +1,290 @@
+/**
+ * @file JvmStatisticsSampler.java
+ * @brief JVM statistics sampler (MXBean based)
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.shadow.service.health;
+
+import com.arm.pelion.shadow.service.core.BaseClass;
+import com.arm.pelion.shadow.service.core.ErrorLogger;
+import com.arm.pelion.shadow.service.preferences.PreferenceManager;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Samples the JVM MXBeans at most once per sample interval and shares the result with all JVM validators
+ *
+ * @author Doug Anson
+ */
+public class JvmStatisticsSampler extends BaseClass {
+    // default sample interval (validators asking more often get the cached snapshot)
+    private static final int DEF_SAMPLE_INTERVAL_MS = 5000;     // 5 seconds
+    
+    // MXBeans
+    private ThreadMXBean m_thread_bean = null;
+    private MemoryMXBean m_memory_bean = null;
+    private List<MemoryPoolMXBean> m_pool_beans = null;
+    private List<GarbageCollectorMXBean> m_gc_beans = null;
+    
+    // HotSpot extension for per-thread allocation counters (null if unsupported)
+    private com.sun.management.ThreadMXBean m_alloc_bean = null;
+    
+    // latest snapshot
+    private volatile Snapshot m_snapshot = null;
+    private int m_sample_interval_ms = DEF_SAMPLE_INTERVAL_MS;
+    
+    // default constructor
+    public JvmStatisticsSampler(ErrorLogger error_logger, PreferenceManager preference_manager) {
+        super(error_logger, preference_manager);
+        this.m_thread_bean = ManagementFactory.getThreadMXBean();
+        this.m_memory_bean = ManagementFactory.getMemoryMXBean();
+        this.m_pool_beans = ManagementFactory.getMemoryPoolMXBeans();
+        this.m_gc_beans = ManagementFactory.getGarbageCollectorMXBeans();
+        
+        // allocation counters are a HotSpot extension
+        if (this.m_thread_bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)this.m_thread_bean;
+            try {
+                if (bean.isThreadAllocatedMemorySupported() == true) {
+                    if (bean.isThreadAllocatedMemoryEnabled() == false) {
+                        bean.setThreadAllocatedMemoryEnabled(true);
+                    }
+                    this.m_alloc_bean = bean;
+                }
+            }
+            catch (Exception ex) {
+                this.errorLogger().info("JvmStatisticsSampler: thread allocation counters unavailable: " + ex.getMessage());
+                this.m_alloc_bean = null;
+            }
+        }
+        
+        // configured sample interval
+        if (preference_manager != null) {
+            this.m_sample_interval_ms = preference_manager.intValueOf("jvm_stats_sample_interval_ms");
+        }
+        if (this.m_sample_interval_ms <= 0) {
+            this.m_sample_interval_ms = DEF_SAMPLE_INTERVAL_MS;
+        }
+    }
+    
+    // get the latest snapshot (re-sampled if the cached one is older than our sample interval)
+    public Snapshot snapshot() {
+        Snapshot current = this.m_snapshot;
+        if (current == null || (System.currentTimeMillis() - current.timestamp()) >= this.m_sample_interval_ms) {
+            current = this.sample();
+        }
+        return current;
+    }
+    
+    // sample all of the MXBeans once
+    private synchronized Snapshot sample() {
+        Snapshot previous = this.m_snapshot;
+        long now = System.currentTimeMillis();
+        
+        // another caller may have just sampled for us
+        if (previous != null && (now - previous.timestamp()) < this.m_sample_interval_ms) {
+            return previous;
+        }
+        
+        Snapshot snapshot = new Snapshot();
+        snapshot.m_timestamp = now;
+        
+        // threads
+        snapshot.m_thread_count = this.m_thread_bean.getThreadCount();
+        snapshot.m_daemon_thread_count = this.m_thread_bean.getDaemonThreadCount();
+        snapshot.m_peak_thread_count = this.m_thread_bean.getPeakThreadCount();
+        
+        // heap
+        MemoryUsage heap = this.m_memory_bean.getHeapMemoryUsage();
+        snapshot.m_heap_used = heap.getUsed();
+        snapshot.m_heap_committed = heap.getCommitted();
+        snapshot.m_heap_max = heap.getMax();
+        snapshot.m_non_heap_used = this.m_memory_bean.getNonHeapMemoryUsage().getUsed();
+        snapshot.m_processors = Runtime.getRuntime().availableProcessors();
+        
+        // per-pool occupancy (heap pools only)
+        LinkedHashMap<String,Integer> pools = new LinkedHashMap<>();
+        for (MemoryPoolMXBean pool : this.m_pool_beans) {
+            if (pool.isValid() == true && pool.getType() == MemoryType.HEAP) {
+                MemoryUsage usage = pool.getUsage();
+                long limit = usage.getMax() > 0 ? usage.getMax() : usage.getCommitted();
+                pools.put(pool.getName(),limit > 0 ? (int)((usage.getUsed() * 100) / limit) : 0);
+            }
+        }
+        snapshot.m_pool_occupancy = Collections.unmodifiableMap(pools);
+        
+        // garbage collection totals
+        for (GarbageCollectorMXBean gc : this.m_gc_beans) {
+            long count = gc.getCollectionCount();
+            long time = gc.getCollectionTime();
+            if (count > 0) {
+                snapshot.m_gc_count += count;
+            }
+            if (time > 0) {
+                snapshot.m_gc_time_ms += time;
+            }
+        }
+        
+        // total allocated bytes across live threads
+        snapshot.m_allocated_bytes = this.totalAllocatedBytes();
+        
+        // allocation rate relative to the previous snapshot (GC is reported as totals... consumers derive their own rates)
+        if (previous != null && now > previous.timestamp()) {
+            long elapsed_ms = now - previous.timestamp();
+            if (snapshot.m_allocated_bytes >= 0 && previous.m_allocated_bytes >= 0) {
+                // threads that exited take their counters with them... never report a negative rate
+                long delta = Math.max(0,snapshot.m_allocated_bytes - previous.m_allocated_bytes);
+                snapshot.m_allocation_rate = (delta * 1000) / elapsed_ms;
+            }
+        }
+        
+        this.m_snapshot = snapshot;
+        return snapshot;
+    }
+    
+    // sum of allocated bytes for all live threads (-1 if unsupported)
+    private long totalAllocatedBytes() {
+        if (this.m_alloc_bean != null) {
+            try {
+                long total = 0;
+                long[] allocated = this.m_alloc_bean.getThreadAllocatedBytes(this.m_thread_bean.getAllThreadIds());
+                for (int i=0;allocated != null && i<allocated.length;++i) {
+                    if (allocated[i] > 0) {
+                        total += allocated[i];
+                    }
+                }
+                return total;
+            }
+            catch (Exception ex) {
+                this.errorLogger().info("JvmStatisticsSampler: unable to read allocation counters: " + ex.getMessage());
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Immutable JVM statistics snapshot
+     */
+    public static class Snapshot {
+        private static final long MB = 1024 * 1024;
+        
+        private long m_timestamp = 0;
+        private int m_thread_count = 0;
+        private int m_daemon_thread_count = 0;
+        private int m_peak_thread_count = 0;
+        private long m_heap_used = 0;
+        private long m_heap_committed = 0;
+        private long m_heap_max = 0;
+        private long m_non_heap_used = 0;
+        private int m_processors = 0;
+        private long m_gc_count = 0;
+        private long m_gc_time_ms = 0;
+        private long m_allocated_bytes = -1;
+        private long m_allocation_rate = -1;
+        private Map<String,Integer> m_pool_occupancy = null;
+        
+        // sample time
+        public long timestamp() {
+            return this.m_timestamp;
+        }
+        
+        // thread counts
+        public int threadCount() {
+            return this.m_thread_count;
+        }
+        
+        public int daemonThreadCount() {
+            return this.m_daemon_thread_count;
+        }
+        
+        public int peakThreadCount() {
+            return this.m_peak_thread_count;
+        }
+        
+        // heap (bytes)
+        public long heapUsed() {
+            return this.m_heap_used;
+        }
+        
+        public long heapCommitted() {
+            return this.m_heap_committed;
+        }
+        
+        public long heapMax() {
+            return this.m_heap_max;
+        }
+        
+        public long nonHeapUsed() {
+            return this.m_non_heap_used;
+        }
+        
+        public int processors() {
+            return this.m_processors;
+        }
+        
+        // GC totals since JVM start
+        public long gcCount() {
+            return this.m_gc_count;
+        }
+        
+        public long gcTimeMs() {
+            return this.m_gc_time_ms;
+        }
+        
+        // allocation rate in bytes/sec (-1 if unsupported)
+        public long allocationRate() {
+            return this.m_allocation_rate;
+        }
+        
+        // heap pool name --> % occupied
+        public Map<String,Integer> poolOccupancy() {
+            return this.m_pool_occupancy;
+        }
+        
+        // legacy memory statistic lookup (MB) - total, free, used, max, processors
+        public Object memoryStatistic(String key) {
+            if ("total".equalsIgnoreCase(key)) {
+                return (Long)(this.m_heap_committed / MB);
+            }
+            if ("free".equalsIgnoreCase(key)) {
+                return (Long)((this.m_heap_committed - this.m_heap_used) / MB);
+            }
+            if ("used".equalsIgnoreCase(key)) {
+                return (Long)(this.m_heap_used / MB);
+            }
+            if ("max".equalsIgnoreCase(key)) {
+                return (Long)(this.m_heap_max / MB);
+            }
+            if ("processors".equalsIgnoreCase(key)) {
+                return (Integer)this.m_processors;
+            }
+            return null;
+        }
+    }
+}
@@ -22,78 +22,27 @@
  */
 package com.arm.pelion.shadow.service.health;
 
-import com.arm.pelion.shadow.service.core.Utils;
+import com.arm.pelion.edge.core.client.api.EdgeCoreLivenessProbe;
 import com.arm.pelion.shadow.service.health.interfaces.HealthCheckServiceInterface;
-import java.io.IOException;
 
 /**
  * Mbed Edge Core Service Health Status Checker
  * @author Doug Anson
  */
 public class MbedEdgeCoreServiceHealthStatistic extends BaseValidatorClass implements Runnable {
+    // in-process liveness probe
+    private EdgeCoreLivenessProbe m_probe = null;
+    
     // primary constructor
     public MbedEdgeCoreServiceHealthStatistic(HealthCheckServiceInterface provider) {
         super(provider,"mbed_edge_core");
+        this.m_probe = EdgeCoreLivenessProbe.getInstance(this.errorLogger(),this.preferences());
         this.updateMbedEdgeCoreStatus();
     }
     
-    // is mbed edge core running?
+    // is mbed edge core running? (the probe updates the preferences manager as the state changes)
     public boolean mbedEdgeRunning() {
-        // execute the script to check the latest status
-        String status = this.check().trim();
-        
-        //DEBUG
-        this.errorLogger().info("MbedEdgeCore: " + status);
-        
-        // set the status
-        if (status != null && status.equalsIgnoreCase("yes")) {
-            // update preferences manager as well
-            this.preferences().mbedEdgeRunning(true);
-            return true;
-        } 
-        this.preferences().mbedEdgeRunning(false);
-        return false;
-    }
-    
-    // execute script
-    private String check() {
-        // construct the arguments
-        String cmd = "./scripts/mbed_edge_running.sh";
-        String response = null;
-        String error = null;
-
-        try {
-            // invoke the AWS CLI
-            Process proc = Runtime.getRuntime().exec(cmd);
-            response = Utils.convertStreamToString(proc.getInputStream());
-            error = Utils.convertStreamToString(proc.getErrorStream());
-
-            // wait to completion
-            proc.waitFor();
-            int status = proc.exitValue();
-
-            // DEBUG
-            if (status != 0) {
-                // non-zero exit status
-                this.errorLogger().info("MbedEdgeCore: Invoked: " + cmd);
-                this.errorLogger().info("MbedEdgeCore: Response: " + response);
-                this.errorLogger().info("MbedEdgeCore: Error: " + error);
-                this.errorLogger().info("MbedEdgeCore: Exit Code: " + status);
-            }
-            else {
-                // successful exit status
-                this.errorLogger().info("MbedEdgeCore: Invoked: " + cmd);
-                this.errorLogger().info("MbedEdgeCore: Response: " + response);
-                this.errorLogger().info("MbedEdgeCore: Exit Code: " + status);
-            }
-        }
-        catch (IOException | InterruptedException ex) {
-            this.errorLogger().warning("MbedEdgeCore: Exception for command: " + cmd, ex);
-            response = null;
-        }
-
-        // return the resposne
-        return response;
+        return this.m_probe.isRunning();
     }
     
     // update the mbed edge core status
@@ -0,0 +1,56 @@
+/**
+ * @file MemoryPoolStatistic.java
+ * @brief Pelion JVM memory pool occupancy statistic
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.shadow.service.health;
+
+import com.arm.pelion.shadow.service.health.interfaces.HealthCheckServiceInterface;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class periodically reports the occupancy of each JVM heap memory pool
+ *
+ * @author Doug Anson
+ */
+public class MemoryPoolStatistic extends BaseValidatorClass implements Runnable {    
+    // default constructor
+    public MemoryPoolStatistic(HealthCheckServiceInterface provider) {
+        super(provider,"mem_pools");
+        this.m_value = new HashMap<String,String>();      // Map value for this validator
+        this.m_publish_on_change = false;   // JVM gauge: changes on nearly every sample
+    }   
+    
+    // validate
+    @Override
+    protected void validate() {
+        HashMap<String,String> pools = new HashMap<>();
+        Map<String,Integer> occupancy = this.m_provider.jvmStatistics().snapshot().poolOccupancy();
+        for (Map.Entry<String,Integer> pool : occupancy.entrySet()) {
+            pools.put(pool.getKey(),pool.getValue() + "%");
+        }
+        this.m_value = pools;
+        this.updateStatisticAndNotify();
+        
+        // DEBUG
+        this.errorLogger().info("MemoryPoolStatistic: " + pools);
+    }
+}
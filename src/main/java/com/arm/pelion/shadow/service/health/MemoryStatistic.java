@@ -22,9 +22,7 @@
  */
 package com.arm.pelion.shadow.service.health;
 
-import com.arm.pelion.shadow.service.core.Utils;
 import com.arm.pelion.shadow.service.health.interfaces.HealthCheckServiceInterface;
-import java.util.Map;
 
 /**
  * This class periodically checks how many device shadows its established
@@ -40,6 +38,7 @@ public class MemoryStatistic extends BaseValidatorClass implements Runnable {
         super(provider,"mem_" + mem_key);
         this.m_mem_key = mem_key;
         this.m_uom = uom;
+        this.m_publish_on_change = false;   // JVM gauge: changes on nearly every sample
         this.m_value = (String)"";      // String value for this validator
     }   
     
@@ -61,11 +60,11 @@ public class MemoryStatistic extends BaseValidatorClass implements Runnable {
         }
     }
 
-    // WORKER: how much memory have we consumed in the VM
+    // WORKER: how much memory have we consumed in the VM (from the shared JVM snapshot)
     private String gatherMemoryStatistic() {
-        Map json = Utils.gatherMemoryStatistics(this.errorLogger());
-        if (json != null && json.get(this.m_mem_key) != null) {
-            return "" + json.get(this.m_mem_key) + " " + this.m_uom;
+        Object value = this.m_provider.jvmStatistics().snapshot().memoryStatistic(this.m_mem_key);
+        if (value != null) {
+            return "" + value + " " + this.m_uom;
         }
         return null;
     }
@@ -0,0 +1,87 @@
+/**
+ * @file ObservationSchedulerStatistic.java
+ * @brief Observation scheduler (per-device rate limiting) statistics
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.shadow.service.health;
+
+import com.arm.pelion.shadow.service.coordinator.Orchestrator;
+import com.arm.pelion.shadow.service.health.interfaces.HealthCheckServiceInterface;
+import com.arm.pelion.shadow.service.processors.pelion.ObservationScheduler;
+
+/**
+ * This class periodically reports the observation scheduler's queue and overflow counts
+ *
+ * @author Doug Anson
+ */
+public class ObservationSchedulerStatistic extends BaseValidatorClass implements Runnable {    
+    private String m_stat_key = null;
+    
+    // default constructor
+    public ObservationSchedulerStatistic(HealthCheckServiceInterface provider,String stat_key) {
+        super(provider,"obs_" + stat_key);
+        this.m_stat_key = stat_key;
+        this.m_value = (String)"";      // String value for this validator
+    }   
+    
+    // validate
+    @Override
+    protected void validate() {
+        String val = (String)this.gatherSchedulerStatistic();
+        if (val != null) {
+            // update
+            this.m_value = (String)val;
+            this.updateStatisticAndNotify();
+
+            // DEBUG
+            this.errorLogger().info("ObservationSchedulerStatistic: (" + this.m_stat_key + "): " + (String)this.m_value);
+        }
+        else {
+            // no update
+            this.errorLogger().info("ObservationSchedulerStatistic: (" + this.m_stat_key + "): <no update>");
+        }
+    }
+
+    // WORKER: read the requested count from the observation scheduler
+    private String gatherSchedulerStatistic() {
+        try {
+            Orchestrator o = this.m_provider.getOrchestrator();
+            ObservationScheduler scheduler = o.getMbedEdgeCoreServiceProcessor().getObservationScheduler();
+            if (scheduler != null) {
+                if ("queued".equalsIgnoreCase(this.m_stat_key)) {
+                    return "" + scheduler.queued();
+                }
+                if ("dropped".equalsIgnoreCase(this.m_stat_key)) {
+                    return "" + scheduler.dropped();
+                }
+                if ("coalesced".equalsIgnoreCase(this.m_stat_key)) {
+                    return "" + scheduler.coalesced();
+                }
+                if ("throttled_devices".equalsIgnoreCase(this.m_stat_key)) {
+                    return "" + scheduler.throttledDevices();
+                }
+            }
+        }
+        catch (Exception ex) {
+            // not yet available
+        }
+        return null;
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * @file ShadowCacheStatistic.java
+ * @brief Shadow record cache (heap budget) statistics
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.shadow.service.health;
+
+import com.arm.pelion.shadow.service.coordinator.Orchestrator;
+import com.arm.pelion.shadow.service.db.ShadowRecordCache;
+import com.arm.pelion.shadow.service.health.interfaces.HealthCheckServiceInterface;
+
+/**
+ * This class periodically reports the shadow record cache's hit, miss, eviction and heap counts
+ *
+ * @author Doug Anson
+ */
+public class ShadowCacheStatistic extends BaseValidatorClass implements Runnable {    
+    private String m_stat_key = null;
+    
+    // default constructor
+    public ShadowCacheStatistic(HealthCheckServiceInterface provider,String stat_key) {
+        super(provider,"shadow_cache_" + stat_key);
+        this.m_stat_key = stat_key;
+        this.m_value = (String)"";      // String value for this validator
+    }   
+    
+    // validate
+    @Override
+    protected void validate() {
+        String val = (String)this.gatherCacheStatistic();
+        if (val != null) {
+            // update
+            this.m_value = (String)val;
+            this.updateStatisticAndNotify();
+
+            // DEBUG
+            this.errorLogger().info("ShadowCacheStatistic: (" + this.m_stat_key + "): " + (String)this.m_value);
+        }
+        else {
+            // no update
+            this.errorLogger().info("ShadowCacheStatistic: (" + this.m_stat_key + "): <no update>");
+        }
+    }
+
+    // WORKER: read the requested count from the shadow record cache
+    private String gatherCacheStatistic() {
+        try {
+            Orchestrator o = this.m_provider.getOrchestrator();
+            ShadowRecordCache cache = o.getMbedEdgeCoreServiceProcessor().getDB().getRecordsCache();
+            if (cache != null) {
+                if ("hits".equalsIgnoreCase(this.m_stat_key)) {
+                    return "" + cache.hits();
+                }
+                if ("misses".equalsIgnoreCase(this.m_stat_key)) {
+                    return "" + cache.misses();
+                }
+                if ("evictions".equalsIgnoreCase(this.m_stat_key)) {
+                    return "" + cache.evictions();
+                }
+                if ("kb".equalsIgnoreCase(this.m_stat_key)) {
+                    return "" + (cache.bytes() / 1024);
+                }
+            }
+        }
+        catch (Exception ex) {
+            // not yet available
+        }
+        return null;
+    }
+}
@@ -22,7 +22,6 @@
  */
 package com.arm.pelion.shadow.service.health;
 
-import com.arm.pelion.shadow.service.coordinator.Orchestrator;
 import com.arm.pelion.shadow.service.health.interfaces.HealthCheckServiceInterface;
 
 /**
@@ -35,6 +34,7 @@ public class ThreadCountStatistic extends BaseValidatorClass implements Runnable
     public ThreadCountStatistic(HealthCheckServiceInterface provider) {
         super(provider,"thread_count");
         this.m_value = (Integer)0;      // Integer value for this validator
+        this.m_publish_on_change = false;   // JVM gauge: changes on nearly every sample
     }   
     
     // validate
@@ -47,11 +47,10 @@ public class ThreadCountStatistic extends BaseValidatorClass implements Runnable
         this.errorLogger().info("ThreadCountStatistic: Updated active thread count: " + (Integer)this.m_value);
     }
 
-    // WORKER: query how many active threads we currently have
+    // WORKER: query how many active threads we currently have (ThreadMXBean - no stack capture)
     private int getActiveThreadCount() {
         try {
-            Orchestrator o = this.m_provider.getOrchestrator();
-            return o.getActiveThreadCount();
+            return this.m_provider.jvmStatistics().snapshot().threadCount();
         }
         catch (Exception ex) {
             return 1;
@@ -25,6 +25,7 @@ package com.arm.pelion.shadow.service.health.interfaces;
 import com.arm.pelion.shadow.service.coordinator.Orchestrator;
 import com.arm.pelion.shadow.service.core.ErrorLogger;
 import com.arm.pelion.shadow.service.health.HealthStatistic;
+import com.arm.pelion.shadow.service.health.JvmStatisticsSampler;
 import com.arm.pelion.shadow.service.preferences.PreferenceManager;
 
 
@@ -53,4 +54,7 @@ public interface HealthCheckServiceInterface {
     
     // get the orchestrator
     public Orchestrator getOrchestrator();
+    
+    // get the shared JVM statistics sampler
+    public JvmStatisticsSampler jvmStatistics();
 }
\ No newline at end of file
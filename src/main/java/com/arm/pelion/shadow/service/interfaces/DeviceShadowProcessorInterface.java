@@ -26,6 +26,7 @@ import com.arm.pelion.edge.core.client.api.PelionEdgeCoreClientAPI;
 import com.arm.pelion.rest.client.api.PelionRestClientAPI;
 import com.arm.pelion.shadow.service.db.mbedDeviceShadowDatabase;
 import com.arm.pelion.shadow.service.processors.edgex.EdgeXServiceProcessor;
+import com.arm.pelion.shadow.service.processors.pelion.ObservationScheduler;
 import java.util.Map;
 
 /**
@@ -60,6 +61,15 @@ public interface DeviceShadowProcessorInterface {
     // create a device shadow
     public boolean createDeviceShadow(Map edgex_message);
     
+    // bulk discover and shadow all EdgeX devices (returns the number of shadows created)
+    public int discoverDevices();
+    
+    // apply an EdgeX metadata change to a device shadow (creates or re-registers it as needed)
+    public boolean syncDeviceShadow(Map edgex_device);
+    
+    // remove the shadow of a device removed from EdgeX
+    public boolean removeDeviceShadow(String edgex_name);
+    
     // map a single EdgeX resource to its equivalent mbed Resource
     public String mapMbedResourcePathToEdgeXResource(String mbed_path);
     
@@ -77,4 +87,7 @@ public interface DeviceShadowProcessorInterface {
     
     // get the database interface
     public mbedDeviceShadowDatabase getDB();
+    
+    // get the observation scheduler
+    public ObservationScheduler getObservationScheduler();
 }
@@ -32,6 +32,8 @@ import java.util.Map;
  * @author Doug Anson
  */
 public class JSONGenerator {
+    // ObjectMapper is thread safe once configured... share a single instance
+    private final ObjectMapper m_mapper = new ObjectMapper();
 
     // default constructor
     public JSONGenerator() {
@@ -40,7 +42,7 @@ public class JSONGenerator {
     // create JSON (Map)
     public String generateJson(Map json) {
         try {
-            return new ObjectMapper().writeValueAsString(json);
+            return this.m_mapper.writeValueAsString(json);
         }
         catch (JsonProcessingException ex) {
             // silent
@@ -51,7 +53,7 @@ public class JSONGenerator {
     // create JSON (List)
     public String generateJson(List json) {
         try {
-            return new ObjectMapper().writeValueAsString(json);
+            return this.m_mapper.writeValueAsString(json);
         }
         catch (JsonProcessingException ex) {
             // silent
@@ -60,6 +60,10 @@ public class LoggerTracker implements Runnable {
         this.putMessage(message);
     }
     
+    public int queueDepth() {
+        return this.getMessageCount();
+    }
+    
     public boolean connected() {
         boolean is_connected = true;
         if (this.m_members != null) {
@@ -0,0 +1,32 @@
+/**
+ * @file Gauge.java
+ * @brief sampled metric value (e.g. queue depth) for the metrics registry
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.shadow.service.metrics;
+
+/**
+ * Gauge: a value sampled when the metrics are rendered (queue depths, counts, etc...)
+ * @author Doug Anson
+ */
+public interface Gauge {
+    // current value
+    public long value();
+}
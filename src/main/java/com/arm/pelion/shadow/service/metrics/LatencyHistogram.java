@@ -0,0 +1,154 @@
+/**
+ * @file LatencyHistogram.java
+ * @brief lock-free log-linear (HDR-style) latency histogram
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.shadow.service.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free log-linear latency histogram. Values (nanoseconds) land in power-of-two ranges that are each split
+ * into SUB_BUCKETS linear sub-buckets, bounding the relative error to 1/SUB_BUCKETS. Recording touches only
+ * striped LongAdders so the hot path never blocks.
+ * @author Doug Anson
+ */
+public class LatencyHistogram {
+    // log-linear layout: 16 linear sub-buckets per power of two (6.25% precision), values up to 2^MAX_EXPONENT ns (~18 minutes)
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int NUM_BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    
+    // buckets and running sum
+    private final LongAdder[] m_buckets = new LongAdder[NUM_BUCKETS];
+    private final LongAdder m_sum_ns = new LongAdder();
+    
+    // default constructor
+    public LatencyHistogram() {
+        for(int i=0;i<NUM_BUCKETS;++i) {
+            this.m_buckets[i] = new LongAdder();
+        }
+    }
+    
+    // record a latency in nanoseconds
+    public void record(long latency_ns) {
+        if (latency_ns < 0) {
+            latency_ns = 0;
+        }
+        this.m_buckets[LatencyHistogram.bucketIndex(latency_ns)].increment();
+        this.m_sum_ns.add(latency_ns);
+    }
+    
+    // record the elapsed time from a System.nanoTime() start stamp
+    public void recordSince(long start_ns) {
+        this.record(System.nanoTime() - start_ns);
+    }
+    
+    // take a point-in-time copy of the bucket counts
+    public Snapshot snapshot() {
+        long[] counts = new long[NUM_BUCKETS];
+        for(int i=0;i<NUM_BUCKETS;++i) {
+            counts[i] = this.m_buckets[i].sum();
+        }
+        return new Snapshot(counts,this.m_sum_ns.sum());
+    }
+    
+    // bucket index for a value
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int)value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return NUM_BUCKETS - 1;
+        }
+        int sub = (int)((value >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return ((exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS) + sub;
+    }
+    
+    // largest value (inclusive) that lands in a bucket
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = (index / SUB_BUCKETS) + SUB_BUCKET_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        return (((long)(SUB_BUCKETS + sub + 1)) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+    
+    /**
+     * Point-in-time histogram copy
+     */
+    public static class Snapshot {
+        private final long[] m_counts;
+        private final long m_count;
+        private final long m_sum_ns;
+        
+        // constructor
+        private Snapshot(long[] counts,long sum_ns) {
+            long count = 0;
+            for(int i=0;i<counts.length;++i) {
+                count += counts[i];
+            }
+            this.m_counts = counts;
+            this.m_count = count;
+            this.m_sum_ns = sum_ns;
+        }
+        
+        // number of recorded values
+        public long count() {
+            return this.m_count;
+        }
+        
+        // sum of the recorded values (ns)
+        public long sumNanos() {
+            return this.m_sum_ns;
+        }
+        
+        // number of recorded values that are <= the given bound (ns)
+        public long countAtOrBelow(long bound_ns) {
+            long count = 0;
+            for(int i=0;i<this.m_counts.length && LatencyHistogram.bucketUpperBound(i) <= bound_ns;++i) {
+                count += this.m_counts[i];
+            }
+            return count;
+        }
+        
+        // value (ns) at the given percentile (0.0 - 100.0)
+        public long percentile(double percentile) {
+            if (this.m_count == 0) {
+                return 0;
+            }
+            long rank = (long)Math.ceil((percentile / 100.0) * this.m_count);
+            if (rank < 1) {
+                rank = 1;
+            }
+            long seen = 0;
+            for(int i=0;i<this.m_counts.length;++i) {
+                seen += this.m_counts[i];
+                if (seen >= rank) {
+                    return LatencyHistogram.bucketUpperBound(i);
+                }
+            }
+            return LatencyHistogram.bucketUpperBound(this.m_counts.length - 1);
+        }
+    }
+}
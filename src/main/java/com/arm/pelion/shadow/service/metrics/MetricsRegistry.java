@@ -0,0 +1,209 @@
+/**
+ * @file MetricsRegistry.java
+ * @brief process-wide metrics registry with Prometheus text exposition
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.shadow.service.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide metrics registry: counters, per-stage latency histograms, per-device event counters and gauges.
+ * Recording is lock-free (LongAdder); rendering produces the Prometheus text exposition format (v0.0.4).
+ * @author Doug Anson
+ */
+public class MetricsRegistry {
+    // metric name prefix
+    public static final String PREFIX = "edgex_shadow_";
+    
+    // cap on the number of distinct device labels (the rest are folded into DEVICE_OVERFLOW_LABEL)
+    private static final int DEF_MAX_DEVICES = 1000;
+    private static final String DEVICE_OVERFLOW_LABEL = "_other";
+    
+    // exported histogram bounds (seconds)
+    private static final String[] LATENCY_BOUNDS_SEC = {
+        "0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10"
+    };
+    
+    // singleton
+    private static volatile MetricsRegistry m_self = null;
+    
+    // metrics
+    private final LatencyHistogram[] m_stages;
+    private final ConcurrentHashMap<String,LongAdder> m_counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String,Gauge> m_gauges = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String,String> m_help = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String,LongAdder> m_device_events = new ConcurrentHashMap<>();
+    private volatile int m_max_devices = DEF_MAX_DEVICES;
+    private final long[] m_bounds_ns = new long[LATENCY_BOUNDS_SEC.length];
+    
+    // instance factory
+    public static MetricsRegistry getInstance() {
+        if (MetricsRegistry.m_self == null) {
+            synchronized (MetricsRegistry.class) {
+                if (MetricsRegistry.m_self == null) {
+                    MetricsRegistry.m_self = new MetricsRegistry();
+                }
+            }
+        }
+        return MetricsRegistry.m_self;
+    }
+    
+    // constructor
+    private MetricsRegistry() {
+        this.m_stages = new LatencyHistogram[PipelineStage.values().length];
+        for(int i=0;i<this.m_stages.length;++i) {
+            this.m_stages[i] = new LatencyHistogram();
+        }
+        for(int i=0;i<LATENCY_BOUNDS_SEC.length;++i) {
+            this.m_bounds_ns[i] = (long)(Double.parseDouble(LATENCY_BOUNDS_SEC[i]) * 1000000000.0);
+        }
+    }
+    
+    // limit the number of distinct device labels
+    public void setMaxDevices(int max_devices) {
+        if (max_devices > 0) {
+            this.m_max_devices = max_devices;
+        }
+    }
+    
+    // latency histogram for a pipeline stage
+    public LatencyHistogram stage(PipelineStage stage) {
+        return this.m_stages[stage.ordinal()];
+    }
+    
+    // get (or create) a named counter (callers on hot paths should hold on to the returned adder)
+    public LongAdder counter(String name,String help) {
+        LongAdder counter = this.m_counters.get(name);
+        if (counter == null) {
+            LongAdder created = new LongAdder();
+            counter = this.m_counters.putIfAbsent(name,created);
+            if (counter == null) {
+                counter = created;
+                this.m_help.put(name,help);
+            }
+        }
+        return counter;
+    }
+    
+    // register (or replace) a named gauge
+    public void gauge(String name,String help,Gauge gauge) {
+        this.m_help.put(name,help);
+        this.m_gauges.put(name,gauge);
+    }
+    
+    // remove a named gauge
+    public void removeGauge(String name) {
+        this.m_gauges.remove(name);
+    }
+    
+    // count an event for a given device
+    public void deviceEvent(String device) {
+        if (device == null) {
+            return;
+        }
+        LongAdder counter = this.m_device_events.get(device);
+        if (counter == null) {
+            String key = (this.m_device_events.size() < this.m_max_devices) ? device : DEVICE_OVERFLOW_LABEL;
+            LongAdder created = new LongAdder();
+            counter = this.m_device_events.putIfAbsent(key,created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.increment();
+    }
+    
+    // render all metrics in the Prometheus text exposition format
+    public String render() {
+        StringBuilder sb = new StringBuilder(8192);
+        
+        // counters
+        for(Map.Entry<String,LongAdder> entry : new TreeMap<>(this.m_counters).entrySet()) {
+            String name = PREFIX + entry.getKey();
+            this.header(sb,name,this.m_help.get(entry.getKey()),"counter");
+            sb.append(name).append(' ').append(entry.getValue().sum()).append('\n');
+        }
+        
+        // gauges
+        for(Map.Entry<String,Gauge> entry : new TreeMap<>(this.m_gauges).entrySet()) {
+            String name = PREFIX + entry.getKey();
+            long value = 0;
+            try {
+                value = entry.getValue().value();
+            }
+            catch (Exception ex) {
+                // gauge unavailable... report zero
+                value = 0;
+            }
+            this.header(sb,name,this.m_help.get(entry.getKey()),"gauge");
+            sb.append(name).append(' ').append(value).append('\n');
+        }
+        
+        // per-device events
+        String device_name = PREFIX + "device_events_total";
+        this.header(sb,device_name,"EdgeX events received per device","counter");
+        for(Map.Entry<String,LongAdder> entry : new TreeMap<>(this.m_device_events).entrySet()) {
+            sb.append(device_name).append("{device=\"");
+            this.escapeLabel(sb,entry.getKey());
+            sb.append("\"} ").append(entry.getValue().sum()).append('\n');
+        }
+        
+        // per-stage latency histograms
+        String stage_name = PREFIX + "stage_latency_seconds";
+        this.header(sb,stage_name,"Pipeline stage latency","histogram");
+        for(PipelineStage stage : PipelineStage.values()) {
+            LatencyHistogram.Snapshot snapshot = this.stage(stage).snapshot();
+            for(int i=0;i<LATENCY_BOUNDS_SEC.length;++i) {
+                sb.append(stage_name).append("_bucket{stage=\"").append(stage.label()).append("\",le=\"").append(LATENCY_BOUNDS_SEC[i]).append("\"} ");
+                sb.append(snapshot.countAtOrBelow(this.m_bounds_ns[i])).append('\n');
+            }
+            sb.append(stage_name).append("_bucket{stage=\"").append(stage.label()).append("\",le=\"+Inf\"} ").append(snapshot.count()).append('\n');
+            sb.append(stage_name).append("_sum{stage=\"").append(stage.label()).append("\"} ").append(snapshot.sumNanos() / 1000000000.0).append('\n');
+            sb.append(stage_name).append("_count{stage=\"").append(stage.label()).append("\"} ").append(snapshot.count()).append('\n');
+        }
+        return sb.toString();
+    }
+    
+    // HELP/TYPE header
+    private void header(StringBuilder sb,String name,String help,String type) {
+        sb.append("# HELP ").append(name).append(' ').append(help != null ? help : name).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+    
+    // escape a label value
+    private void escapeLabel(StringBuilder sb,String value) {
+        for(int i=0;i<value.length();++i) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            }
+            else if (c == '\n') {
+                sb.append("\\n");
+            }
+            else {
+                sb.append(c);
+            }
+        }
+    }
+}
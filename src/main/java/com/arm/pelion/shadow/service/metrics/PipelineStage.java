@@ -0,0 +1,53 @@
+/**
+ * @file PipelineStage.java
+ * @brief instrumented stages of the observation pipeline
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.shadow.service.metrics;
+
+/**
+ * Instrumented pipeline stages (each has its own latency histogram)
+ * @author Doug Anson
+ */
+public enum PipelineStage {
+    MQTT_RECEIVE("mqtt_receive"),
+    JSON_PARSE("json_parse"),
+    SHADOW_LOOKUP("shadow_lookup"),
+    SHADOW_CREATE("shadow_create"),
+    EDGE_CORE_RPC("edge_core_rpc"),
+    EDGEX_HTTP_GET("edgex_http_get"),
+    EDGEX_HTTP_PUT("edgex_http_put"),
+    SHADOW_SAVE("shadow_save"),
+    OBSERVATION_QUEUE("observation_queue"),
+    END_TO_END("end_to_end");
+    
+    // label used in the exposition
+    private final String m_label;
+    
+    // constructor
+    private PipelineStage(String label) {
+        this.m_label = label;
+    }
+    
+    // exposition label
+    public String label() {
+        return this.m_label;
+    }
+}
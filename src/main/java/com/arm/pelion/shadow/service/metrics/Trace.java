@@ -0,0 +1,161 @@
+/**
+ * @file Trace.java
+ * @brief trace context for a single EdgeX event
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.shadow.service.metrics;
+
+/**
+ * Trace context for a single EdgeX event: the time spent in each pipeline stage, from MQTT receipt until the last of
+ * its readings is acknowledged by edge core. Contexts live in a per-thread ring (see Tracer) and are reused, so work
+ * that outlives the receiving call (queued observations, RPCs) holds the trace together with the id it was forked
+ * under... spans for a recycled context are ignored. A reading fanned out to several observations keeps the slowest
+ * time per stage.
+ * @author Doug Anson
+ */
+public class Trace {
+    // no tracing: stages are still recorded into the stage histograms
+    public static final Trace NONE = new Trace(null);
+    
+    // our tracer (null for NONE)
+    private final Tracer m_tracer;
+    
+    // per stage elapsed time (ns) and the trace state (guarded by this)
+    private final long[] m_stage_ns = new long[PipelineStage.values().length];
+    private long m_id = 0;
+    private long m_start_ns = 0;
+    private long m_start_ms = 0;
+    private String m_device = null;
+    private int m_readings = 0;
+    private int m_outstanding = 0;
+    
+    // constructor
+    Trace(Tracer tracer) {
+        this.m_tracer = tracer;
+    }
+    
+    // (re)start the trace... true if the previous trace was still outstanding (overrun)
+    synchronized boolean reset(long id) {
+        boolean overrun = (this.m_outstanding > 0);
+        for(int i=0;i<this.m_stage_ns.length;++i) {
+            this.m_stage_ns[i] = 0;
+        }
+        this.m_id = id;
+        this.m_start_ns = System.nanoTime();
+        this.m_start_ms = System.currentTimeMillis();
+        this.m_device = null;
+        this.m_readings = 0;
+        this.m_outstanding = 1;
+        return overrun;
+    }
+    
+    // trace id
+    public synchronized long id() {
+        return this.m_id;
+    }
+    
+    // start of the trace (System.nanoTime())
+    public synchronized long startNanos() {
+        return this.m_start_ns;
+    }
+    
+    // note the EdgeX device the event is for
+    public synchronized void device(String device) {
+        this.m_device = device;
+    }
+    
+    // record a stage that ran on the receiving thread (histogram and trace) from a System.nanoTime() start stamp
+    public void stage(PipelineStage stage,long start_ns) {
+        long elapsed_ns = System.nanoTime() - start_ns;
+        MetricsRegistry.getInstance().stage(stage).record(elapsed_ns);
+        if (this.m_tracer != null) {
+            synchronized (this) {
+                this.slowest(stage,elapsed_ns);
+            }
+        }
+    }
+    
+    // fork the trace for a reading handed off to another thread (returns the id to hand back in span()/release())
+    public synchronized long fork() {
+        if (this.m_tracer == null || this.m_outstanding <= 0) {
+            return 0;
+        }
+        ++this.m_readings;
+        ++this.m_outstanding;
+        return this.m_id;
+    }
+    
+    // record a stage (trace only) for a forked reading
+    public synchronized void span(long id,PipelineStage stage,long elapsed_ns) {
+        if (this.m_tracer != null && id == this.m_id && this.m_outstanding > 0) {
+            this.slowest(stage,elapsed_ns);
+        }
+    }
+    
+    // a forked reading is done (acknowledged, dropped or failed)
+    public void release(long id) {
+        String record = null;
+        long total_ns = 0;
+        synchronized (this) {
+            if (this.m_tracer == null || id != this.m_id || this.m_outstanding <= 0 || --this.m_outstanding > 0) {
+                return;
+            }
+            
+            // last one out: the trace is complete
+            total_ns = System.nanoTime() - this.m_start_ns;
+            if (this.m_tracer.sampleSlow(total_ns) == true) {
+                record = this.toJson(total_ns);
+            }
+        }
+        this.m_tracer.completed(total_ns,record);
+    }
+    
+    // the receiving thread is done with the trace
+    public void end() {
+        this.release(this.id());
+    }
+    
+    // keep the slowest time for a stage
+    private void slowest(PipelineStage stage,long elapsed_ns) {
+        if (elapsed_ns > this.m_stage_ns[stage.ordinal()]) {
+            this.m_stage_ns[stage.ordinal()] = elapsed_ns;
+        }
+    }
+    
+    // JSON record of the trace (stage times in microseconds)
+    private String toJson(long total_ns) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("{\"id\":").append(this.m_id);
+        sb.append(",\"device\":");
+        Tracer.appendJsonString(sb,this.m_device);
+        sb.append(",\"readings\":").append(this.m_readings);
+        sb.append(",\"started_ms\":").append(this.m_start_ms);
+        sb.append(",\"total_us\":").append(total_ns / 1000);
+        sb.append(",\"stages_us\":{");
+        boolean first = true;
+        for(PipelineStage stage : PipelineStage.values()) {
+            if (this.m_stage_ns[stage.ordinal()] > 0) {
+                sb.append(first ? "" : ",").append('"').append(stage.label()).append("\":").append(this.m_stage_ns[stage.ordinal()] / 1000);
+                first = false;
+            }
+        }
+        return sb.append("}}").toString();
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ * @file Tracer.java
+ * @brief per-event pipeline tracing and the slow trace dump
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.shadow.service.metrics;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide event tracer: begin() hands the receiving thread the next trace context from its own pre-allocated
+ * ring and makes it current() for the pipeline stages that run on that thread. Completed traces feed the end to end
+ * latency histogram... those slower than the threshold are sampled into a bounded dump (served at /traces).
+ * @author Doug Anson
+ */
+public class Tracer {
+    // Defaults
+    private static final int DEF_RING_SIZE = 1024;                 // trace contexts per receiving thread
+    private static final int DEF_SLOW_THRESHOLD_MS = 250;          // end to end latency for a trace to be "slow"
+    private static final int DEF_SLOW_SAMPLE = 1;                  // keep every Nth slow trace
+    private static final int DEF_SLOW_MAX = 100;                   // slow traces kept
+    
+    // singleton
+    private static volatile Tracer m_self = null;
+    
+    // configuration
+    private volatile boolean m_enabled = true;
+    private volatile int m_ring_size = DEF_RING_SIZE;
+    private volatile long m_slow_threshold_ns = DEF_SLOW_THRESHOLD_MS * 1000000L;
+    private volatile int m_slow_sample = DEF_SLOW_SAMPLE;
+    private volatile int m_slow_max = DEF_SLOW_MAX;
+    
+    // per-thread rings and the current trace of each thread
+    private final ThreadLocal<Ring> m_rings = new ThreadLocal<>();
+    private final ThreadLocal<Trace> m_current = new ThreadLocal<>();
+    private final AtomicLong m_next_id = new AtomicLong(0);
+    
+    // sampled slow traces, newest last (guarded by itself)
+    private final ArrayDeque<String> m_slow = new ArrayDeque<>();
+    private final AtomicLong m_slow_seen = new AtomicLong(0);
+    
+    // Metrics
+    private final LatencyHistogram m_end_to_end;
+    private final LongAdder m_completed;
+    private final LongAdder m_slow_count;
+    private final LongAdder m_overruns;
+    
+    // instance factory
+    public static Tracer getInstance() {
+        if (Tracer.m_self == null) {
+            synchronized (Tracer.class) {
+                if (Tracer.m_self == null) {
+                    Tracer.m_self = new Tracer();
+                }
+            }
+        }
+        return Tracer.m_self;
+    }
+    
+    // constructor
+    private Tracer() {
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        this.m_end_to_end = metrics.stage(PipelineStage.END_TO_END);
+        this.m_completed = metrics.counter("traces_completed_total","EdgeX event traces completed");
+        this.m_slow_count = metrics.counter("traces_slow_total","EdgeX event traces slower than the slow trace threshold");
+        this.m_overruns = metrics.counter("trace_overruns_total","Trace contexts recycled before their event completed (ring too small)");
+    }
+    
+    // configure (values <= 0 keep the defaults)
+    public void configure(boolean enabled,int ring_size,int slow_threshold_ms,int slow_sample,int slow_max) {
+        this.m_enabled = enabled;
+        this.m_ring_size = (ring_size > 0) ? ring_size : DEF_RING_SIZE;
+        this.m_slow_threshold_ns = ((slow_threshold_ms > 0) ? slow_threshold_ms : DEF_SLOW_THRESHOLD_MS) * 1000000L;
+        this.m_slow_sample = (slow_sample > 0) ? slow_sample : DEF_SLOW_SAMPLE;
+        this.m_slow_max = (slow_max > 0) ? slow_max : DEF_SLOW_MAX;
+    }
+    
+    // begin tracing an event on this thread (the trace becomes current until end())
+    public Trace begin() {
+        if (this.m_enabled == false) {
+            return Trace.NONE;
+        }
+        Ring ring = this.m_rings.get();
+        if (ring == null) {
+            ring = new Ring(this,this.m_ring_size);
+            this.m_rings.set(ring);
+        }
+        Trace trace = ring.next();
+        if (trace.reset(this.m_next_id.incrementAndGet()) == true) {
+            this.m_overruns.increment();
+        }
+        this.m_current.set(trace);
+        return trace;
+    }
+    
+    // end the receiving thread's part of the trace
+    public void end(Trace trace) {
+        this.m_current.remove();
+        trace.end();
+    }
+    
+    // the trace of the event being processed on this thread (NONE if none)
+    public Trace current() {
+        Trace trace = this.m_current.get();
+        return (trace != null) ? trace : Trace.NONE;
+    }
+    
+    // slow... and sampled? (called by a trace as it completes)
+    boolean sampleSlow(long total_ns) {
+        if (total_ns < this.m_slow_threshold_ns) {
+            return false;
+        }
+        this.m_slow_count.increment();
+        return (this.m_slow_seen.incrementAndGet() % this.m_slow_sample) == 0;
+    }
+    
+    // a trace completed (record is its JSON if it was sampled as slow)
+    void completed(long total_ns,String record) {
+        this.m_end_to_end.record(total_ns);
+        this.m_completed.increment();
+        if (record != null) {
+            synchronized (this.m_slow) {
+                this.m_slow.addLast(record);
+                while (this.m_slow.size() > this.m_slow_max) {
+                    this.m_slow.pollFirst();
+                }
+            }
+        }
+    }
+    
+    // render the sampled slow traces (newest first) as JSON
+    public String renderSlowTraces() {
+        StringBuilder sb = new StringBuilder(8192);
+        sb.append("{\"enabled\":").append(this.m_enabled);
+        sb.append(",\"slow_threshold_ms\":").append(this.m_slow_threshold_ns / 1000000L);
+        sb.append(",\"slow_sample\":").append(this.m_slow_sample);
+        sb.append(",\"completed\":").append(this.m_completed.sum());
+        sb.append(",\"slow\":").append(this.m_slow_count.sum());
+        sb.append(",\"overruns\":").append(this.m_overruns.sum());
+        sb.append(",\"traces\":[");
+        synchronized (this.m_slow) {
+            boolean first = true;
+            Iterator<String> it = this.m_slow.descendingIterator();
+            while (it.hasNext()) {
+                sb.append(first ? "" : ",").append(it.next());
+                first = false;
+            }
+        }
+        return sb.append("]}").toString();
+    }
+    
+    // append a JSON string value
+    static void appendJsonString(StringBuilder sb,String value) {
+        if (value == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for(int i=0;i<value.length();++i) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                sb.append(String.format("\\u%04x",(int)c));
+            }
+            else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+    
+    // pre-allocated ring of trace contexts (one per receiving thread)
+    private static class Ring {
+        private final Trace[] m_traces;
+        private int m_next = 0;
+        
+        Ring(Tracer tracer,int size) {
+            this.m_traces = new Trace[size];
+            for(int i=0;i<size;++i) {
+                this.m_traces[i] = new Trace(tracer);
+            }
+        }
+        
+        // next context (oldest first)
+        Trace next() {
+            Trace trace = this.m_traces[this.m_next];
+            this.m_next = (this.m_next + 1) % this.m_traces.length;
+            return trace;
+        }
+    }
+}
@@ -42,7 +42,7 @@ public class PreferenceManager extends BaseClass {
     private static final String DEFAULT_PROPERTIES_FILE = "WEB-INF/classes/service.properties";
     private String m_properties_file = null;
     private Object m_obj = null;
-    private boolean m_mbed_edge_running = false;
+    private volatile boolean m_mbed_edge_running = false;
 
     private Properties m_config_properties = null;        // DB config properties
 
@@ -0,0 +1,335 @@
+/**
+ * @file EdgeXMetadataSync.java
+ * @brief Incremental EdgeX metadata sync (change notifications or modified-watermark polling)
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.shadow.service.processors.edgex;
+
+import com.arm.pelion.shadow.service.core.BaseClass;
+import com.arm.pelion.shadow.service.core.ErrorLogger;
+import com.arm.pelion.shadow.service.interfaces.DeviceShadowProcessorInterface;
+import com.arm.pelion.shadow.service.metrics.MetricsRegistry;
+import com.arm.pelion.shadow.service.preferences.PreferenceManager;
+import com.arm.pelion.shadow.service.transport.HttpResponse;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the device shadows in step with EdgeX core-metadata. In "callback" mode we subscribe to the core-metadata
+ * device change notifications (via support-notifications) and sync just the device named in each notification. In
+ * "poll" mode (or if the subscription cannot be made) we periodically list the devices and sync only those whose
+ * "modified" time is past our watermark, and remove shadows of devices that are gone. Only the affected devices are
+ * re-registered with edge core.
+ *
+ * @author Doug Anson
+ */
+public class EdgeXMetadataSync extends BaseClass implements Runnable {
+    // sync modes
+    public static final String MODE_CALLBACK = "callback";
+    public static final String MODE_POLL = "poll";
+    public static final String MODE_OFF = "off";
+
+    // defaults
+    private static final int DEF_SYNC_INTERVAL_MS = 60000;             // 1 minute between polls
+    private static final int DEF_NOTIFICATIONS_PORT = 48060;           // EdgeX support-notifications
+    private static final String SUBSCRIPTION_SLUG = "pelion-shadow-device-changes";
+
+    // EdgeX processor and our shadow processor
+    private EdgeXServiceProcessor m_edgex = null;
+    private DeviceShadowProcessorInterface m_msp = null;
+
+    // configuration
+    private String m_mode = MODE_POLL;
+    private int m_sync_interval_ms = DEF_SYNC_INTERVAL_MS;
+    private int m_notifications_port = DEF_NOTIFICATIONS_PORT;
+    private String m_callback_url = null;
+
+    // sync thread, pending device syncs and the poll watermark (only touched on the sync thread)
+    private ScheduledExecutorService m_executor = null;
+    private final Set<String> m_pending = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean m_poll_pending = new AtomicBoolean(false);
+    private long m_watermark = 0;
+
+    // Metrics
+    private LongAdder m_changes_applied = null;
+    private LongAdder m_devices_removed = null;
+    private LongAdder m_sync_failures = null;
+
+    // default constructor
+    public EdgeXMetadataSync(ErrorLogger logger, PreferenceManager preferences, EdgeXServiceProcessor edgex, DeviceShadowProcessorInterface msp) {
+        super(logger, preferences);
+        this.m_edgex = edgex;
+        this.m_msp = msp;
+
+        // configuration
+        String mode = this.preferences().valueOf("edgex_metadata_sync_mode");
+        if (mode != null && mode.length() > 0) {
+            this.m_mode = mode.toLowerCase();
+        }
+        this.m_sync_interval_ms = this.preferences().intValueOf("edgex_metadata_sync_interval_ms");
+        if (this.m_sync_interval_ms <= 0) {
+            this.m_sync_interval_ms = DEF_SYNC_INTERVAL_MS;
+        }
+        this.m_notifications_port = this.preferences().intValueOf("edgex_notifications_port");
+        if (this.m_notifications_port <= 0) {
+            this.m_notifications_port = DEF_NOTIFICATIONS_PORT;
+        }
+        this.m_callback_url = this.preferences().valueOf("edgex_metadata_callback_url");
+
+        // Metrics
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        this.m_changes_applied = metrics.counter("edgex_metadata_changes_applied_total", "EdgeX device metadata changes applied to shadows");
+        this.m_devices_removed = metrics.counter("edgex_metadata_devices_removed_total", "Shadows removed because their EdgeX device was removed");
+        this.m_sync_failures = metrics.counter("edgex_metadata_sync_failures_total", "EdgeX device metadata changes that could not be applied");
+    }
+
+    // start syncing
+    public void start() {
+        if (MODE_OFF.equals(this.m_mode) == true || this.m_executor != null) {
+            return;
+        }
+        this.m_executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "edgex-metadata-sync");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // callback mode: subscribe to the device change notifications... otherwise (or on failure) poll
+        boolean subscribed = false;
+        if (MODE_CALLBACK.equals(this.m_mode) == true) {
+            subscribed = this.subscribe();
+            if (subscribed == false) {
+                this.errorLogger().warning("EdgeXMetadataSync: Unable to subscribe to EdgeX device change notifications. Polling instead...");
+            }
+        }
+        if (subscribed == true) {
+            // one pass to pick up any changes made while we were down
+            this.requestPoll();
+        }
+        else {
+            this.m_executor.scheduleWithFixedDelay(this, 0, this.m_sync_interval_ms, TimeUnit.MILLISECONDS);
+        }
+
+        // DEBUG
+        this.errorLogger().warning("EdgeXMetadataSync: started (" + (subscribed ? MODE_CALLBACK : MODE_POLL + " every " + this.m_sync_interval_ms + "ms") + ")");
+    }
+
+    // stop syncing
+    public void stop() {
+        if (this.m_executor != null) {
+            this.m_executor.shutdownNow();
+            this.m_executor = null;
+        }
+    }
+
+    // periodic poll (an exception must not cancel the schedule)
+    @Override
+    public void run() {
+        try {
+            this.poll();
+        }
+        catch (Exception ex) {
+            this.m_sync_failures.increment();
+            this.errorLogger().warning("EdgeXMetadataSync: Exception during poll: " + ex.getMessage());
+        }
+    }
+
+    // EdgeX change notification (content is "<prefix>: <device name>-<POST|PUT|DELETE>"). Unrecognized notifications trigger a poll
+    public void notification(String body) {
+        String content = body;
+        if (body != null && body.trim().startsWith("{") == true) {
+            // a JSON notification record
+            Map notification = this.jsonParser().parseJson(body);
+            if (notification != null && notification.get("name") instanceof String) {
+                this.deviceChanged((String)notification.get("name"));
+                return;
+            }
+            content = (notification != null && notification.get("content") instanceof String) ? (String)notification.get("content") : null;
+        }
+
+        // parse the device name from the notification content
+        String edgex_name = null;
+        if (content != null) {
+            int start = content.indexOf(':');
+            int end = content.lastIndexOf('-');
+            if (start >= 0 && end > start + 1) {
+                edgex_name = content.substring(start + 1, end).trim();
+            }
+        }
+        if (edgex_name != null && edgex_name.length() > 0) {
+            this.deviceChanged(edgex_name);
+        }
+        else {
+            this.errorLogger().info("EdgeXMetadataSync: unrecognized notification: " + body + ". Polling...");
+            this.requestPoll();
+        }
+    }
+
+    // sync a single device (coalesces repeated notifications for the same device)
+    public void deviceChanged(final String edgex_name) {
+        if (this.m_executor != null && this.m_pending.add(edgex_name) == true) {
+            this.m_executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    m_pending.remove(edgex_name);
+                    syncDevice(edgex_name);
+                }
+            });
+        }
+    }
+
+    // request a (coalesced) poll
+    public void requestPoll() {
+        if (this.m_executor != null && this.m_poll_pending.compareAndSet(false, true) == true) {
+            this.m_executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    m_poll_pending.set(false);
+                    EdgeXMetadataSync.this.run();
+                }
+            });
+        }
+    }
+
+    // fetch a single device from core-metadata and apply it (a 404 means it was removed)
+    private void syncDevice(String edgex_name) {
+        String url = this.m_edgex.buildEdgeXMetadataURL(edgex_name);
+        HttpResponse response = this.m_http.httpGetResponse(url);
+        String edgex_metadata_str = response.body();
+        int response_code = response.responseCode();
+
+        try {
+            if (response_code == 404) {
+                // removed from EdgeX
+                if (this.m_msp.removeDeviceShadow(edgex_name) == true) {
+                    this.m_devices_removed.increment();
+                }
+            }
+            else if (response_code < 300 && edgex_metadata_str != null && edgex_metadata_str.length() > 0) {
+                // added or changed
+                Map edgex_device = this.m_edgex.trimEdgeXMetadata(this.jsonParser().parseJson(edgex_metadata_str));
+                this.apply(edgex_device);
+            }
+            else {
+                // try again on the next poll
+                this.m_sync_failures.increment();
+                this.errorLogger().warning("EdgeXMetadataSync: unable to fetch EdgeX device: " + edgex_name + " Response Code: " + response_code);
+            }
+        }
+        catch (Exception ex) {
+            this.m_sync_failures.increment();
+            this.errorLogger().warning("EdgeXMetadataSync: Exception syncing EdgeX device: " + edgex_name + ": " + ex.getMessage());
+        }
+    }
+
+    // list the devices and apply only those modified past our watermark... remove shadows of devices EdgeX no longer lists
+    private void poll() {
+        // every listed name counts as present (a device skipped for invalid metadata has not been deleted)
+        Set<String> edgex_names = new HashSet<>();
+        List<Map> edgex_devices = this.m_edgex.discoverEdgeXDevices(edgex_names);
+        if (edgex_devices == null) {
+            return;
+        }
+
+        long watermark = this.m_watermark;
+        boolean advance = true;
+        for (Map edgex_device : edgex_devices) {
+            String edgex_name = (String)edgex_device.get("name");
+            long modified = (edgex_device.get("modified") instanceof Number) ? ((Number)edgex_device.get("modified")).longValue() : 0L;
+            watermark = Math.max(watermark, modified);
+            if (this.m_watermark == 0 || modified > this.m_watermark) {
+                // a failed change to an existing shadow holds the watermark so we retry it on the next poll
+                boolean shadowed = (this.m_msp.getDB().lookupMbedName(edgex_name) != null);
+                if (this.apply(edgex_device) == false && shadowed == true) {
+                    advance = false;
+                }
+            }
+        }
+
+        // devices no longer in EdgeX
+        for (String edgex_name : this.m_msp.getDB().getEdgeXNames()) {
+            if (edgex_names.contains(edgex_name) == false && this.m_msp.removeDeviceShadow(edgex_name) == true) {
+                this.m_devices_removed.increment();
+            }
+        }
+
+        // advance the watermark
+        if (advance == true) {
+            this.m_watermark = watermark;
+        }
+    }
+
+    // apply a device's metadata to its shadow
+    private boolean apply(Map edgex_device) {
+        boolean applied = this.m_msp.syncDeviceShadow(edgex_device);
+        if (applied == true) {
+            this.m_changes_applied.increment();
+        }
+        else {
+            this.m_sync_failures.increment();
+        }
+        return applied;
+    }
+
+    // subscribe our callback URL to the core-metadata device change notifications
+    private boolean subscribe() {
+        if (this.m_callback_url == null || this.m_callback_url.length() == 0) {
+            this.errorLogger().warning("EdgeXMetadataSync: edgex_metadata_callback_url not configured");
+            return false;
+        }
+
+        // REST channel to our callback
+        HashMap<String, Object> channel = new HashMap<>();
+        channel.put("type", "REST");
+        channel.put("url", this.m_callback_url);
+        List<Map> channels = new ArrayList<>();
+        channels.add(channel);
+
+        // core-metadata posts its device changes with the "metadata" label
+        List<String> labels = new ArrayList<>();
+        labels.add("metadata");
+        HashMap<String, Object> subscription = new HashMap<>();
+        subscription.put("slug", SUBSCRIPTION_SLUG);
+        subscription.put("receiver", "pelion-edgex-shadow-service");
+        subscription.put("subscribedLabels", labels);
+        subscription.put("channels", channels);
+
+        String url = "http://" + this.preferences().valueOf("edgex_ip_address") + ":" + this.m_notifications_port + "/api/v1/subscription";
+        int response_code = this.m_http.httpPostResponse(url, this.jsonGenerator().generateJson(subscription)).responseCode();
+
+        // 409: we are already subscribed (OK)
+        this.errorLogger().warning("EdgeXMetadataSync: subscription: URL: " + url + " Response Code: " + response_code);
+        return (response_code > 0 && response_code < 300) || response_code == 409;
+    }
+}
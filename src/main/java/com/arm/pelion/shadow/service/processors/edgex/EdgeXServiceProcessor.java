@@ -22,26 +22,36 @@
  */
 package com.arm.pelion.shadow.service.processors.edgex;
 
+import com.arm.pelion.edge.core.client.api.LwM2MValueCodec;
 import com.arm.pelion.edge.core.client.api.Operations;
 import com.arm.pelion.edge.core.client.api.PelionEdgeCoreClientAPI;
 import com.arm.pelion.shadow.service.coordinator.Orchestrator;
+import com.arm.pelion.shadow.service.coordinator.ShardCoordinator;
 import com.arm.pelion.shadow.service.core.BaseClass;
+import com.arm.pelion.shadow.service.core.ConnectionSupervisor;
 import com.arm.pelion.shadow.service.core.ErrorLogger;
 import com.arm.pelion.shadow.service.core.Transport.ReceiveListener;
 import com.arm.pelion.shadow.service.core.TransportReceiveThread;
 import com.arm.pelion.shadow.service.core.Utils;
+import com.arm.pelion.shadow.service.metrics.Gauge;
+import com.arm.pelion.shadow.service.metrics.LatencyHistogram;
+import com.arm.pelion.shadow.service.metrics.MetricsRegistry;
+import com.arm.pelion.shadow.service.metrics.PipelineStage;
+import com.arm.pelion.shadow.service.metrics.Trace;
+import com.arm.pelion.shadow.service.metrics.Tracer;
 import com.arm.pelion.shadow.service.preferences.PreferenceManager;
+import com.arm.pelion.shadow.service.transport.HttpResponse;
 import com.arm.pelion.shadow.service.transport.MQTTTransport;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import org.fusesource.mqtt.client.QoS;
 import org.fusesource.mqtt.client.Topic;
 import com.arm.pelion.shadow.service.interfaces.DeviceShadowProcessorInterface;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.Base64;
+import java.util.concurrent.atomic.LongAdder;
 
 //
 // Base Types
@@ -59,13 +69,25 @@ public class EdgeXServiceProcessor extends BaseClass implements ReceiveListener
     // if set to true, writeRequest processing will ignore the operations value in EdgeX resources (default: false - dont ignore)
     private static final boolean IGNORE_EDGEX_RESOURCE_OPERATIONS = false;
     
+    // our MQTT link name (connection supervisor)... additional consumers are "edgex-mqtt-1", "edgex-mqtt-2", ...
+    public static final String MQTT_LINK_NAME = "edgex-mqtt";
+    
+    // default MQTT consumers (parallel connections)... several consumers split the devices between them unless a shared subscription group is set
+    private static final int DEF_MQTT_CONSUMERS = 1;
+    
     private Orchestrator m_orchestrator = null;
-    private MQTTTransport m_mqtt = null;
+    private MQTTTransport[] m_mqtt = null;
     private String m_mqtt_hostname = null;
     private int m_mqtt_port = 1883;
     private String m_mqtt_event_topic = null;
+    private String[] m_mqtt_event_filters = null;
+    private Topic[] m_mqtt_event_subscriptions = null;
+    private boolean m_mqtt_partitioned = false;
     private DeviceShadowProcessorInterface m_msp = null;
-    private TransportReceiveThread m_receive = null;
+    private TransportReceiveThread[] m_receive = null;
+    private ConnectionSupervisor m_supervisor = null;
+    private EdgeXMetadataSync m_metadata_sync = null;
+    private ShardCoordinator m_shards = null;
     
     // Configuration
     private String m_edgex_ip_address = null;
@@ -73,11 +95,24 @@ public class EdgeXServiceProcessor extends BaseClass implements ReceiveListener
     private int m_edgex_event_port = 0;
     private int m_edgex_registration_port = 0;
     private String m_edgex_metadata_uri = null;
+    private String m_edgex_device_list_uri = null;
     private int m_mqtt_edgex_exporter_port = 0;
     
     private int m_edgex_resource_values_port = 0;
     private String m_edgex_value_request_uri = null;
     private String m_edgex_value_set_request_uri = null;
+    
+    // Metrics
+    private MetricsRegistry m_metrics = null;
+    private LatencyHistogram m_http_get_latency = null;
+    private LatencyHistogram m_http_put_latency = null;
+    private LongAdder m_messages_received = null;
+    private LongAdder m_messages_ignored = null;
+    private LongAdder m_parse_errors = null;
+    private LongAdder m_shadow_create_failures = null;
+    private LongAdder m_http_errors = null;
+    private LongAdder m_foreign_events = null;
+    private LongAdder m_unsettled_events = null;
 
     // base constructor
     public EdgeXServiceProcessor(ErrorLogger error_logger, PreferenceManager preference_manager,DeviceShadowProcessorInterface msp,Orchestrator orchestrator) {
@@ -92,23 +127,42 @@ public class EdgeXServiceProcessor extends BaseClass implements ReceiveListener
         // tie to edgex event processor
         this.m_msp.setEdgeXEventProcessor(this);
         
-        // create the MQTT transport
-        this.m_mqtt = new MQTTTransport(error_logger, preference_manager);
-        
-        // create the receive thread
-        this.m_receive = new TransportReceiveThread(this.m_mqtt);
-        
         // gather the configuration
         this.m_mqtt_hostname = preference_manager.valueOf("mqtt_hostname");
         this.m_mqtt_port = preference_manager.intValueOf("mqtt_port");
         this.m_mqtt_event_topic = preference_manager.valueOf("mqtt_edgex_events_topic");
         
+        // our shard coordinator (sharded instances only process the events of the devices they own)
+        this.m_shards = ShardCoordinator.getInstance(error_logger, preference_manager);
+        
+        // MQTT consumers: each has its own connection and receive thread
+        int num_consumers = preference_manager.intValueOf("mqtt_edgex_consumers");
+        if (num_consumers <= 0) {
+            num_consumers = DEF_MQTT_CONSUMERS;
+        }
+        this.initEventSubscriptions(preference_manager.valueOf("mqtt_edgex_events_topics"),preference_manager.valueOf("mqtt_edgex_shared_group"),num_consumers);
+        
+        // our connection supervisor (restores the MQTT connections in the background)
+        this.m_supervisor = ConnectionSupervisor.getInstance(error_logger, preference_manager);
+        
+        // create the MQTT transports and their receive threads
+        this.m_mqtt = new MQTTTransport[num_consumers];
+        this.m_receive = new TransportReceiveThread[num_consumers];
+        for(int i=0;i<num_consumers;++i) {
+            this.m_mqtt[i] = new MQTTTransport(error_logger, preference_manager);
+            this.m_receive[i] = new TransportReceiveThread(this.m_mqtt[i]);
+            this.m_mqtt[i].setConnectionSupervisor(this.m_supervisor, this.mqttLinkName(i));
+        }
         // EdgeX configuration
         this.m_edgex_ip_address = preference_manager.valueOf("edgex_ip_address");
         this.m_edgex_metadata_port = preference_manager.intValueOf("edgex_metadata_port");
         this.m_edgex_registration_port = preference_manager.intValueOf("edgex_registration_port");
         this.m_edgex_event_port = preference_manager.intValueOf("edgex_event_port");
         this.m_edgex_metadata_uri = preference_manager.valueOf("edgex_metadata_uri");
+        this.m_edgex_device_list_uri = preference_manager.valueOf("edgex_device_list_uri");
+        if (this.m_edgex_device_list_uri == null || this.m_edgex_device_list_uri.length() == 0) {
+            this.m_edgex_device_list_uri = "/api/v1/device";
+        }
         this.m_mqtt_edgex_exporter_port = preference_manager.intValueOf("mqtt_edgex_exporter_port");
         
         // EdgeX resource values editing
@@ -116,6 +170,33 @@ public class EdgeXServiceProcessor extends BaseClass implements ReceiveListener
         this.m_edgex_value_request_uri = preference_manager.valueOf("edgex_value_request_uri");
         this.m_edgex_value_set_request_uri = preference_manager.valueOf("edgex_value_set_request_uri");
         
+        // incremental EdgeX metadata sync
+        this.m_metadata_sync = new EdgeXMetadataSync(error_logger,preference_manager,this,msp);
+        
+        // Metrics
+        this.m_metrics = MetricsRegistry.getInstance();
+        this.m_http_get_latency = this.m_metrics.stage(PipelineStage.EDGEX_HTTP_GET);
+        this.m_http_put_latency = this.m_metrics.stage(PipelineStage.EDGEX_HTTP_PUT);
+        this.m_messages_received = this.m_metrics.counter("mqtt_messages_received_total","EdgeX MQTT messages received");
+        this.m_messages_ignored = this.m_metrics.counter("mqtt_messages_ignored_total","MQTT messages ignored (unknown topic)");
+        this.m_parse_errors = this.m_metrics.counter("json_parse_errors_total","EdgeX message processing/parse errors");
+        this.m_shadow_create_failures = this.m_metrics.counter("shadow_create_failures_total","Device shadow creation failures");
+        this.m_http_errors = this.m_metrics.counter("edgex_http_errors_total","EdgeX HTTP GET/PUT failures");
+        this.m_foreign_events = this.m_metrics.counter("shard_events_foreign_total","EdgeX events dropped because another instance owns the device");
+        this.m_unsettled_events = this.m_metrics.counter("shard_events_unsettled_total","EdgeX events for unshadowed devices dropped before the shard membership settled");
+        this.m_metrics.gauge("mqtt_consumers_connected","EdgeX MQTT consumer connections up",new Gauge() {
+            @Override
+            public long value() {
+                long connected = 0;
+                for(MQTTTransport mqtt : m_mqtt) {
+                    if (mqtt.isConnected() == true) {
+                        ++connected;
+                    }
+                }
+                return connected;
+            }
+        });
+        
         // announce
         this.errorLogger().warning("EdgeXServiceProcessor installed. Date: " + Utils.dateToString(Utils.now()));
     }
@@ -125,32 +206,171 @@ public class EdgeXServiceProcessor extends BaseClass implements ReceiveListener
         return this.m_msp;
     }
     
+    // get our metadata sync
+    public EdgeXMetadataSync metadataSync() {
+        return this.m_metadata_sync;
+    }
+    
     // initialize
     public boolean initialize() {
-        // setup the default credentials for connecting to the MQTT broker
-        this.m_receive.setOnReceiveListener(this);
-        boolean connect = this.m_mqtt.connect(this.m_mqtt_hostname,this.m_mqtt_port);
+        boolean connect = true;
+        for(int i=0;i<this.m_mqtt.length;++i) {
+            final int consumer = i;
+            
+            // setup the default credentials for connecting to the MQTT broker (partitioned consumers each keep only their devices)
+            if (this.m_mqtt_partitioned == true) {
+                this.m_receive[i].setOnReceiveListener(new ReceiveListener() {
+                    @Override
+                    public void onMessageReceive(String topic,String message) {
+                        receive(consumer,topic,message);
+                    }
+                });
+            }
+            else {
+                this.m_receive[i].setOnReceiveListener(this);
+            }
+
+            // initial connection attempt (the supervisor takes over if it fails)
+            if (this.connectMQTT(consumer) == false) {
+                connect = false;
+            }
+
+            // start listening (the receive thread waits while the connection is down)
+            this.m_supervisor.addListener(this.m_receive[i]);
+            this.m_receive[i].start();
+
+            // supervise the MQTT connection
+            this.m_supervisor.supervise(this.mqttLinkName(i), new ConnectionSupervisor.Link() {
+                @Override
+                public boolean isConnected() {
+                    return m_mqtt[consumer].isConnected();
+                }
+
+                @Override
+                public boolean reconnect() {
+                    return connectMQTT(consumer);
+                }
+            });
+        }
+        
+        // keep the shadows in step with EdgeX metadata changes
+        this.m_metadata_sync.start();
+        
+        // sharded: heartbeat on our MQTT connection
+        this.m_shards.start(new ShardCoordinator.Publisher() {
+            @Override
+            public boolean publish(String topic, String message) {
+                return publishMessage(topic, message);
+            }
+        });
+        
+        // return the connection status
+        return connect;
+    }
+    
+    // the connection supervisor link name of an MQTT consumer
+    private String mqttLinkName(int consumer) {
+        return (consumer == 0) ? MQTT_LINK_NAME : MQTT_LINK_NAME + "-" + consumer;
+    }
+    
+    // parse the event subscriptions ("topic[:qos];topic[:qos]...")... shared by the consumers if grouped
+    private void initEventSubscriptions(String topics,String group,int num_consumers) {
+        ArrayList<String> filters = new ArrayList<>();
+        ArrayList<QoS> qoses = new ArrayList<>();
+        if (topics != null) {
+            for(String entry : topics.split(";")) {
+                String filter = entry.trim();
+                QoS qos = QoS.AT_LEAST_ONCE;
+                int colon = filter.lastIndexOf(':');
+                if (colon > 0 && filter.substring(colon + 1).trim().matches("[012]")) {
+                    qos = QoS.values()[Integer.parseInt(filter.substring(colon + 1).trim())];
+                    filter = filter.substring(0,colon).trim();
+                }
+                if (filter.length() > 0) {
+                    filters.add(filter);
+                    qoses.add(qos);
+                }
+            }
+        }
+        if (filters.isEmpty() == true) {
+            // just the EdgeX exporter topic
+            filters.add(this.m_mqtt_event_topic);
+            qoses.add(QoS.AT_LEAST_ONCE);
+        }
+        if (this.m_mqtt_event_topic == null || this.m_mqtt_event_topic.length() == 0) {
+            this.m_mqtt_event_topic = filters.get(0);
+        }
+        
+        // several consumers without a shared group each receive every event and keep only the devices hashed to them (per-device order is kept)
+        this.m_mqtt_partitioned = ((group == null || group.length() == 0) && num_consumers > 1);
+        if (group != null && group.length() > 0 && this.m_shards.isEnabled() == true) {
+            // sharded instances each need the whole stream (they filter it by device)... share only among our own consumers
+            group = group + "-" + this.m_shards.instanceId();
+        }
+        
+        // our subscriptions
+        this.m_mqtt_event_filters = filters.toArray(new String[filters.size()]);
+        this.m_mqtt_event_subscriptions = new Topic[filters.size()];
+        for(int i=0;i<filters.size();++i) {
+            String topic = (group != null && group.length() > 0) ? "$share/" + group + "/" + filters.get(i) : filters.get(i);
+            this.m_mqtt_event_subscriptions[i] = new Topic(topic,qoses.get(i));
+        }
+        
+        // DEBUG
+        this.errorLogger().warning("EdgeXServiceProcessor: MQTT consumers: " + num_consumers + (this.m_mqtt_partitioned ? " (partitioned by device)" : "") + " subscriptions: " + Arrays.toString(this.m_mqtt_event_subscriptions));
+    }
+    
+    // partitioned consumers: process only the events of the devices hashed to this consumer (so a device's events stay in order)
+    private void receive(int consumer,String topic,String message) {
+        if (topic != null && this.isEventTopic(topic) == true && this.consumerOf(ShardCoordinator.deviceOf(message)) != consumer) {
+            // another of our consumers processes this device
+            return;
+        }
+        this.onMessageReceive(topic,message);
+    }
+    
+    // the consumer that processes a device's events (names the quick scan cannot extract all go to the first consumer)
+    private int consumerOf(String edgex_name) {
+        return (edgex_name != null) ? (edgex_name.hashCode() & 0x7fffffff) % this.m_mqtt.length : 0;
+    }
+    
+    // is this one of our event topics?
+    private boolean isEventTopic(String topic) {
+        for(String filter : this.m_mqtt_event_filters) {
+            if (MQTTTransport.topicMatches(filter, topic) == true) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    // single MQTT connection attempt for a consumer (connect + subscribe to the events topics)
+    private boolean connectMQTT(int consumer) {
+        // each consumer connects with its own client ID
+        String client_id = this.preferences().valueOf("mqtt_client_id");
+        if (consumer > 0 && client_id != null && client_id.length() > 0 && client_id.equalsIgnoreCase("off") == false) {
+            client_id = client_id + "-" + consumer;
+        }
+        boolean connect = this.m_mqtt[consumer].connectOnce(this.m_mqtt_hostname,this.m_mqtt_port,client_id);
         if (connect == true) {
             // success!
-            this.errorLogger().warning("EdgeXServiceProcessor: MQTT Connection (" + this.m_mqtt_hostname + ":" + this.m_mqtt_port + ") successful");
+            this.errorLogger().warning("EdgeXServiceProcessor: MQTT Connection (" + this.m_mqtt_hostname + ":" + this.m_mqtt_port + ") consumer: " + consumer + " successful");
         
-            // subscribe to the events topic
-            Topic[] topics = new Topic[1];
-            topics[0] = new Topic(this.m_mqtt_event_topic,QoS.AT_LEAST_ONCE);
+            // subscribe to the events topics (and, on our first consumer, the shard membership heartbeats if sharded)
+            Topic[] topics = this.m_mqtt_event_subscriptions;
+            if (consumer == 0 && this.m_shards.isEnabled() == true) {
+                topics = Arrays.copyOf(topics,topics.length + 1);
+                topics[topics.length - 1] = new Topic(this.m_shards.membershipTopicFilter(),QoS.AT_MOST_ONCE);
+            }
             
             // DEBUG
-            this.errorLogger().warning("EdgeXServiceProcessor: subscribing to: " + this.m_mqtt_event_topic + "...");
-            this.m_mqtt.subscribe(topics);
-            
-            // start listening
-            this.m_receive.start();
+            this.errorLogger().warning("EdgeXServiceProcessor: subscribing to: " + Arrays.toString(topics) + "...");
+            connect = this.m_mqtt[consumer].subscribe(topics);
         }
         else {
             // failure
-            this.errorLogger().warning("EdgeXServiceProcessor: MQTT Connection (" + this.m_mqtt_hostname + ":" + this.m_mqtt_port + ") FAILED");
+            this.errorLogger().warning("EdgeXServiceProcessor: MQTT Connection (" + this.m_mqtt_hostname + ":" + this.m_mqtt_port + ") consumer: " + consumer + " FAILED");
         }
-        
-        // return the connection status
         return connect;
     }
     
@@ -169,6 +389,11 @@ public class EdgeXServiceProcessor extends BaseClass implements ReceiveListener
         return "http://" + this.m_edgex_ip_address + ":" + this.m_edgex_metadata_port + this.m_edgex_metadata_uri + edgex_dev_name;
     }
     
+    // create the metadata URL for retrieving all EdgeX devices (bulk discovery)
+    private String buildEdgeXDeviceListURL() {
+        return "http://" + this.m_edgex_ip_address + ":" + this.m_edgex_metadata_port + this.m_edgex_device_list_uri;
+    }
+    
     // create the event processor URL
     private String buildEdgeXEventProcessorURL() {
         return "http://" + this.m_edgex_ip_address + ":" + this.m_edgex_event_port + "/api/v1/event";
@@ -181,38 +406,89 @@ public class EdgeXServiceProcessor extends BaseClass implements ReceiveListener
     
     // closedown the mbed Client service processor
     public void closedown() {
-        if (this.m_mqtt != null) {
-            if (this.m_mqtt.isConnected()) {
-                this.m_mqtt.disconnect(true);
+        this.m_metadata_sync.stop();
+        this.m_shards.stop();
+        for(int i=0;i<this.m_mqtt.length;++i) {
+            this.m_supervisor.unsupervise(this.mqttLinkName(i));
+            this.m_supervisor.removeListener(this.m_receive[i]);
+            this.m_receive[i].halt();
+            if (this.m_mqtt[i].isConnected()) {
+                this.m_mqtt[i].disconnect(true);
             }
         }
     }
 
+    // publish a message on our (first) MQTT connection (best effort - QoS 0)
+    public boolean publishMessage(String topic, String message) {
+        if (this.m_mqtt[0].isConnected()) {
+            return this.m_mqtt[0].sendMessage(topic,message,QoS.AT_MOST_ONCE);
+        }
+        return false;
+    }
+
     @Override
     public void onMessageReceive(String topic, String message) {
         boolean processed = false;
+        long start_ns = System.nanoTime();
+        Trace trace = Tracer.getInstance().current();
+        
+        // shard membership heartbeat
+        if (this.m_shards.isEnabled() == true && this.m_shards.isMembershipTopic(topic) == true) {
+            this.m_shards.onMembershipMessage(topic, message);
+            return;
+        }
+        
+        // sharded: drop events for devices another instance owns (before paying for the JSON parse)
+        if (this.m_shards.isEnabled() == true && this.m_shards.owns(ShardCoordinator.deviceOf(message)) == false) {
+            this.m_foreign_events.increment();
+            return;
+        }
         
-        // make sure its our topic
-        if (topic != null && topic.equalsIgnoreCase(this.m_mqtt_event_topic) == true) {
+        // make sure its one of our topics
+        if (topic != null && this.isEventTopic(topic) == true) {
            // DEBUG
            this.errorLogger().info("EdgeXServiceProcessor: onMessageReceive: topic: " + topic + " message: " + message);
+           this.m_messages_received.increment();
            
            try {
                 // Parse the JSON
+                long stage_ns = System.nanoTime();
                 Map edgex_message = this.jsonParser().parseJson(message);
+                trace.stage(PipelineStage.JSON_PARSE,stage_ns);
+                if (this.m_shards.owns((String)edgex_message.get("device")) == false) {
+                    // another instance owns this device (its name was not found by the quick scan)
+                    this.m_foreign_events.increment();
+                    return;
+                }
+                trace.device((String)edgex_message.get("device"));
+                this.m_metrics.deviceEvent((String)edgex_message.get("device"));
                 
                 // DEBUG
                 //this.errorLogger().warning("EdgeXServiceProcessor: Received Message: " + edgex_message);
 
                 // is the device shadowed already?
-                if (this.m_msp.deviceShadowed(edgex_message) == false) {
+                stage_ns = System.nanoTime();
+                boolean shadowed = this.m_msp.deviceShadowed(edgex_message);
+                trace.stage(PipelineStage.SHADOW_LOOKUP,stage_ns);
+                if (shadowed == false && this.m_shards.isSettled() == false) {
+                    // sharded: until we have heard from the other instances we cannot tell who owns a new device... dont claim it
+                    this.m_unsettled_events.increment();
+                    return;
+                }
+                if (shadowed == false) {
                     // first we have to create the device shadow
                     this.errorLogger().info("EdgeXServiceProcessor: Creating device shadow for EdgeX device: " + edgex_message.get("device"));
-                    if (this.m_msp.createDeviceShadow(edgex_message) == true) {
+                    stage_ns = System.nanoTime();
+                    shadowed = this.m_msp.createDeviceShadow(edgex_message);
+                    trace.stage(PipelineStage.SHADOW_CREATE,stage_ns);
+                    if (shadowed == true) {
                         // now that device shadow is created... send an observation for it
                         this.errorLogger().warning("EdgeXServiceProcessor: Device shadow creation for EdgeX device: " + edgex_message.get("device") + " SUCCESSFUL");   
                     }
                     else {
+                        // note the failure
+                        this.m_shadow_create_failures.increment();
+                        
                         // get the IP address for edgex
                         String ip = this.preferences().valueOf("edgex_ip_address");
                         
@@ -228,8 +504,8 @@ public class EdgeXServiceProcessor extends BaseClass implements ReceiveListener
                     }
                 }
 
-                // should always be shadowed now!
-                if (this.m_msp.deviceShadowed(edgex_message) == true) {
+                // should always be shadowed now! (re-check if creation reported failure - the shadow may still have been added)
+                if (shadowed == true || this.m_msp.deviceShadowed(edgex_message) == true) {
                     // DEBUG
                     this.errorLogger().info("EdgeXServiceProcessor: sending observation for EdgeX ID: " + edgex_message.get("id") + "...");
 
@@ -242,15 +518,64 @@ public class EdgeXServiceProcessor extends BaseClass implements ReceiveListener
            }
            catch (Exception ex) {
                // Parse error
+               this.m_parse_errors.increment();
                this.errorLogger().warning("EdgeXServiceProcessor: JSON parse error: " + ex.getMessage(),ex);
            }
+           
+           // record the end-to-end receive processing latency
+           trace.stage(PipelineStage.MQTT_RECEIVE,start_ns);
        }
        else {
            // ignore this message
+           this.m_messages_ignored.increment();
            this.errorLogger().info("EdgeXServiceProcessor: onMessageReceive IGNORE: topic: " + topic + " message: " + message);
        }
     }
     
+    // retrieve (and trim) the metadata for all EdgeX devices in a single call (null if EdgeX cannot be reached)
+    public List<Map> discoverEdgeXDevices() {
+        return this.discoverEdgeXDevices(null);
+    }
+    
+    // retrieve (and trim) the metadata for all EdgeX devices... every device name EdgeX listed (including those skipped for invalid metadata) is added to listed_names
+    public List<Map> discoverEdgeXDevices(Set<String> listed_names) {
+        String url = this.buildEdgeXDeviceListURL();
+        HttpResponse http_response = this.m_http.httpGetResponse(url);
+        String edgex_devices_str = http_response.body();
+        int response_code = http_response.responseCode();
+        
+        // make sure we got something back...
+        if (response_code >= 300 || edgex_devices_str == null || edgex_devices_str.length() == 0) {
+            this.errorLogger().warning("EdgeXServiceProcessor: device discovery FAILED... Response Code: " + response_code + " URL: " + url);
+            return null;
+        }
+        
+        // parse the device list
+        List raw_edgex_devices = this.jsonParser().parseJsonToArray(edgex_devices_str);
+        if (raw_edgex_devices == null) {
+            this.errorLogger().warning("EdgeXServiceProcessor: device discovery FAILED... unable to parse device list from: " + url);
+            return null;
+        }
+        
+        // trim each device (skip any without a usable profile)
+        ArrayList<Map> edgex_devices = new ArrayList<>();
+        for (Object raw_edgex_device : raw_edgex_devices) {
+            if (listed_names != null && raw_edgex_device instanceof Map && ((Map)raw_edgex_device).get("name") instanceof String) {
+                listed_names.add((String)((Map)raw_edgex_device).get("name"));
+            }
+            try {
+                edgex_devices.add(this.trimEdgeXMetadata((Map)raw_edgex_device));
+            }
+            catch (Exception ex) {
+                this.errorLogger().warning("EdgeXServiceProcessor: device discovery: skipping device: " + ((Map)raw_edgex_device).get("name") + " (invalid metadata)");
+            }
+        }
+        
+        // DEBUG
+        this.errorLogger().info("EdgeXServiceProcessor: device discovery: found " + edgex_devices.size() + " EdgeX device(s)");
+        return edgex_devices;
+    }
+    
     // trim and reduce the EdgeX metadata that we are interested in...
     public Map trimEdgeXMetadata(Map raw_edgex_metadata) {
         // DEBUG
@@ -263,6 +588,10 @@ public class EdgeXServiceProcessor extends BaseClass implements ReceiveListener
         edgex_metadata.put("id",(String)raw_edgex_metadata.get("id"));
         edgex_metadata.put("name",(String)raw_edgex_metadata.get("name"));
         
+        // last modification time (metadata sync watermark)
+        Object modified = raw_edgex_metadata.get("modified");
+        edgex_metadata.put("modified",(modified instanceof Number) ? ((Number)modified).longValue() : 0L);
+        
         // Endpoint "type", if present, should be in key "device_type" 
         //edgex_metadata.put("device_type", null);
         
@@ -321,14 +650,16 @@ public class EdgeXServiceProcessor extends BaseClass implements ReceiveListener
         HashMap<String,Object> response = new HashMap<>();
         
         // GET the EdgeX resource value...
-        String edgex_resource_value = this.getEdgeXResourceValue(edgex_device,edgex_resource);
-        if (this.m_http.getLastResponseCode() < 300 && edgex_resource_value != null) {
+        HttpResponse http_response = this.getEdgeXResourceValue(edgex_device,edgex_resource);
+        String edgex_resource_value = http_response.body();
+        int response_code = http_response.responseCode();
+        if (response_code < 300 && edgex_resource_value != null) {
             response.put("data",edgex_resource_value);
             response.put("success",(Boolean)true);
         }
         else {
             // unable to GET resource value
-            this.errorLogger().warning("EdgeXServiceProcessor: Unable to GET resource value for: " + edgex_device.get("name") + " resource: " + edgex_resource + " status: " + this.m_http.getLastResponseCode());
+            this.errorLogger().warning("EdgeXServiceProcessor: Unable to GET resource value for: " + edgex_device.get("name") + " resource: " + edgex_resource + " status: " + response_code);
         }
         
         // return the response as a JSON
@@ -340,62 +671,68 @@ public class EdgeXServiceProcessor extends BaseClass implements ReceiveListener
         HashMap<String,Object> response = new HashMap<>();
         
         // PUT the EdgeX resource value...
-        String put_response = this.setEdgeXResourceValue(edgex_device,edgex_resource,(String)data);
-        if (this.m_http.getLastResponseCode() < 300) {
+        HttpResponse http_response = this.setEdgeXResourceValue(edgex_device,edgex_resource,(String)data);
+        String put_response = http_response.body();
+        int response_code = http_response.responseCode();
+        if (response_code < 300) {
             response.put("data",put_response);
             response.put("success",(Boolean)true);
         }
         else {
             // unable to PUT value to resource
-            this.errorLogger().warning("EdgeXServiceProcessor: Unable to PUT EdgeX device: " + edgex_device.get("name") + " resource: " + edgex_resource + " with value: " + data + " status: " + this.m_http.getLastResponseCode());
+            this.errorLogger().warning("EdgeXServiceProcessor: Unable to PUT EdgeX device: " + edgex_device.get("name") + " resource: " + edgex_resource + " with value: " + data + " status: " + response_code);
         }
         
         // return the response as a JSON
         return this.jsonGenerator().generateJson(response);
     }
     
-    // process a PUT request to a specific EdgeX device
-    private String setEdgeXResourceValue(Map edgex_device,String edgex_resource,String value) {
+    // process a PUT request to a specific EdgeX device (the response carries its own status code)
+    private HttpResponse setEdgeXResourceValue(Map edgex_device,String edgex_resource,String value) {
         // create the URL to dispatch the GET request downstream within EdgeX
         String url = this.buildEdgeXResourceValueSetRequestURL(edgex_device,edgex_resource);
         
         // execute the request via HTTP
-        String response = this.m_http.httpPut(url,value);
-        if (this.m_http.getLastResponseCode() < 300) {
+        long start_ns = System.nanoTime();
+        HttpResponse response = this.m_http.httpPutResponse(url,value);
+        this.m_http_put_latency.recordSince(start_ns);
+        if (response.responseCode() < 300) {
             // success!
             this.errorLogger().info("EdgeXServiceProcessor: resource: " + edgex_resource + " set to value: " + value);
         }
         else {
             // ERROR
+            this.m_http_errors.increment();
             this.errorLogger().warning("EdgeXServiceProcessor: Unable to PUT resource: " + edgex_resource + " with value: " + value);
-            response = null;
+            response = new HttpResponse(null,response.responseCode());
         }
         
         // return the response
         return response;
     }
     
-    // process a GET request to a specific EdgeX device
-    private String getEdgeXResourceValue(Map edgex_device,String edgex_resource) {
-        String value = null;
-        
+    // process a GET request to a specific EdgeX device (the response carries its own status code)
+    private HttpResponse getEdgeXResourceValue(Map edgex_device,String edgex_resource) {
         // create the URL to dispatch the GET request downstream within EdgeX
         String url = this.buildEdgeXResourceValueRequestURL(edgex_device,edgex_resource);
         
         // execute the request via HTTP
-        value = this.m_http.httpGet(url);
-        if (this.m_http.getLastResponseCode() < 300) {
+        long start_ns = System.nanoTime();
+        HttpResponse response = this.m_http.httpGetResponse(url);
+        this.m_http_get_latency.recordSince(start_ns);
+        if (response.responseCode() < 300) {
             // success!
-            this.errorLogger().info("EdgeXServiceProcessor: resource: " + edgex_resource + " value: " + value);
+            this.errorLogger().info("EdgeXServiceProcessor: resource: " + edgex_resource + " value: " + response.body());
         }
         else {
             // ERROR
+            this.m_http_errors.increment();
             this.errorLogger().warning("EdgeXServiceProcessor: Unable to GET value for resource: " + edgex_resource);
-            value = null;
+            response = new HttpResponse(null,response.responseCode());
         }
         
-        // return the value
-        return value;
+        // return the response
+        return response;
     }
     
     // get the named resource from the list
@@ -492,26 +829,22 @@ public class EdgeXServiceProcessor extends BaseClass implements ReceiveListener
     
     // convert the Mbed Encoded payload to its native Java type
     private Object convertMbedEncodedPayloadToNativeType(String b64_payload,String edgex_name,String edgex_resource_name) {
-        byte decoded[] = Base64.getDecoder().decode(b64_payload);
-        
         // DEBUG
-        //this.errorLogger().info("convertMbedEncodedPayloadToNativeType: Base64: " + b64_payload + " len: " + decoded.length + " array: " + decoded);
+        //this.errorLogger().info("convertMbedEncodedPayloadToNativeType: Base64: " + b64_payload);
         
         Object value = null;
         EdgeXType type = this.getType(edgex_name,edgex_resource_name);
         if (type == EdgeXType.FLOAT) {
             // its a float/Double
-            value = (Object)ByteBuffer.wrap(decoded).order(ByteOrder.BIG_ENDIAN).getDouble();
+            value = (Object)LwM2MValueCodec.decodeDouble(b64_payload);
         }
         else if (type == EdgeXType.INTEGER) {
             // its an int/long
-            Long l = (Long)ByteBuffer.wrap(decoded).getLong();
-            value = (Object)l;
+            value = (Object)LwM2MValueCodec.decodeLong(b64_payload);
         }
         else {
             // its a string (default)
-            String s = new String(decoded);
-            value = (Object)s;
+            value = (Object)LwM2MValueCodec.decodeString(b64_payload);
         }
         
         return value;
@@ -546,8 +879,7 @@ public class EdgeXServiceProcessor extends BaseClass implements ReceiveListener
         }
         
         // call HTTP and return the status
-        this.m_http.httpPut(url, body);
-        int result = this.m_http.getLastResponseCode();
+        int result = this.m_http.httpPutResponse(url, body).responseCode();
         
         // process the result code 
         if (result < 300) {
@@ -707,8 +1039,7 @@ public class EdgeXServiceProcessor extends BaseClass implements ReceiveListener
         this.errorLogger().warning("PelionShadowServiceProcessor: Registering MQTT Exporter: URL: " + url + " BODY: " + body);
         
         // register and return the status
-        this.m_http.httpPost(url,body);
-        int http_code = this.m_http.getLastResponseCode();
+        int http_code = this.m_http.httpPostResponse(url,body).responseCode();
         if (http_code < 300) {
             // success!
             this.errorLogger().warning("PelionShadowServiceProcessor: Registering MQTT Exporter - SUCCESS");
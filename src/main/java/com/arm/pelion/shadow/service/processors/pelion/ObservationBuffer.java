@@ -0,0 +1,523 @@
+/**
+ * @file ObservationBuffer.java
+ * @brief store-and-forward buffer for observations while edge core is unavailable
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.shadow.service.processors.pelion;
+
+import com.arm.pelion.api.PelionDeviceAPI;
+import com.arm.pelion.edge.core.client.api.PelionEdgeCoreClientAPI;
+import com.arm.pelion.shadow.service.core.BaseClass;
+import com.arm.pelion.shadow.service.core.ConnectionSupervisor;
+import com.arm.pelion.shadow.service.core.ErrorLogger;
+import com.arm.pelion.shadow.service.db.MappedSegmentQueue;
+import com.arm.pelion.shadow.service.metrics.Gauge;
+import com.arm.pelion.shadow.service.metrics.MetricsRegistry;
+import com.arm.pelion.shadow.service.preferences.PreferenceManager;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Store-and-forward buffer for observations: while edge core is unavailable observations are appended to a bounded,
+ * disk-backed queue. When the link comes back the backlog is replayed in order: what was buffered during the outage at a
+ * rate-limited catch-up speed (optionally collapsed to the latest value per resource), live observations queued behind it at
+ * full speed, until observations flow directly again. Replays are pipelined up to the RPC window: records are taken off
+ * the queue as they are sent and retried (ahead of the queue) if they are not delivered... those in flight at a crash are lost.
+ * @author Doug Anson
+ */
+public class ObservationBuffer extends BaseClass implements Runnable, ConnectionSupervisor.Listener {
+    // Defaults
+    private static final String DEF_BUFFER_DIR = "observation_buffer";
+    private static final int DEF_SEGMENT_SIZE_KB = 4096;           // 4MB segments
+    private static final int DEF_MAX_SEGMENTS = 16;                 // 64MB max on disk
+    private static final int DEF_REPLAY_RATE = 100;                 // observations/sec during catch-up
+    private static final int DEF_MAX_REPLAY_ATTEMPTS = 3;           // an observation edge core keeps rejecting is dropped
+    private static final int DEF_REPLAY_WINDOW = 32;                // replays in flight (edge_core_rpc_max_inflight)
+    private static final int REPLAY_BACKOFF_MS = 100;               // first retry after a transport failure/timeout...
+    private static final int MAX_REPLAY_BACKOFF_MS = 5000;          // ...doubling up to this
+    private static final int IDLE_WAIT_MS = 1000;                   // re-check for backlog/link at least this often
+
+    // value types
+    private static final byte TYPE_STRING = 'S';
+    private static final byte TYPE_INTEGER = 'I';
+    private static final byte TYPE_FLOAT = 'F';
+    private static final byte TYPE_DOUBLE = 'D';
+
+    // our API and queue
+    private PelionDeviceAPI m_api = null;
+    private MappedSegmentQueue m_queue = null;
+
+    // replay configuration
+    private int m_replay_rate = DEF_REPLAY_RATE;
+    private boolean m_collapse = false;
+
+    // collapse support: latest sequence number buffered per resource (ep + uri)
+    private final Map<String, Long> m_latest = new ConcurrentHashMap<>();
+    private final AtomicLong m_seq = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    // catch-up: records up to this sequence number were buffered before the link came back (only these are rate limited)
+    private volatile long m_catchup_seq = 0;
+
+    // replay pass: devices whose PT session is down are rotated (in order) to the back so other shards keep replaying
+    private final Set<String> m_deferred = new HashSet<>();
+    private long m_deferred_first = -1;
+    private int m_pass_sent = 0;
+
+    // replays in flight (oldest first), undelivered ones to retry ahead of the queue, per-record rejection counts (replay thread only)
+    private final ArrayDeque<Replay> m_window = new ArrayDeque<>();
+    private final ArrayDeque<byte[]> m_retry = new ArrayDeque<>();
+    private final Map<Long, Integer> m_attempts = new HashMap<>();
+    private int m_replay_window = DEF_REPLAY_WINDOW;
+    private long m_backoff_until_ns = 0;
+    private int m_failures = 0;
+
+    // replay thread
+    private final Object m_lock = new Object();
+    private volatile boolean m_running = false;
+    private volatile boolean m_replaying = false;
+    private Thread m_thread = null;
+
+    // Metrics
+    private LongAdder m_buffered = null;
+    private LongAdder m_replayed = null;
+    private LongAdder m_collapsed = null;
+    private LongAdder m_rejected = null;
+
+    // default constructor
+    public ObservationBuffer(ErrorLogger logger, PreferenceManager preferences, PelionDeviceAPI api) throws IOException {
+        super(logger, preferences);
+        this.m_api = api;
+
+        // queue configuration
+        String dir = this.preferences().valueOf("observation_buffer_dir");
+        if (dir == null || dir.length() == 0) {
+            dir = DEF_BUFFER_DIR;
+        }
+        int segment_size_kb = this.preferences().intValueOf("observation_buffer_segment_size_kb");
+        if (segment_size_kb <= 0) {
+            segment_size_kb = DEF_SEGMENT_SIZE_KB;
+        }
+        int max_segments = this.preferences().intValueOf("observation_buffer_max_segments");
+        if (max_segments <= 0) {
+            max_segments = DEF_MAX_SEGMENTS;
+        }
+        this.m_queue = new MappedSegmentQueue(logger, preferences, dir, segment_size_kb * 1024, max_segments);
+
+        // replay configuration
+        this.m_replay_rate = this.preferences().intValueOf("observation_buffer_replay_rate");
+        if (this.m_replay_rate <= 0) {
+            this.m_replay_rate = DEF_REPLAY_RATE;
+        }
+        this.m_collapse = this.preferences().booleanValueOf("observation_buffer_collapse");
+        this.m_replay_window = this.preferences().intValueOf("edge_core_rpc_max_inflight");
+        if (this.m_replay_window <= 0) {
+            this.m_replay_window = DEF_REPLAY_WINDOW;
+        }
+
+        // Metrics
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        this.m_buffered = metrics.counter("observations_buffered_total", "Observations stored while edge core was unavailable");
+        this.m_replayed = metrics.counter("observations_replayed_total", "Buffered observations replayed to edge core");
+        this.m_collapsed = metrics.counter("observations_collapsed_total", "Buffered observations superseded by a later value (not replayed)");
+        this.m_rejected = metrics.counter("observations_replay_rejected_total", "Buffered observations dropped after repeated rejection by edge core");
+        metrics.gauge("observation_buffer_depth", "Observations waiting in the store-and-forward buffer", new Gauge() {
+            @Override
+            public long value() {
+                return m_queue.size();
+            }
+        });
+        metrics.gauge("observation_buffer_overflow_dropped", "Buffered observations dropped because the buffer was full", new Gauge() {
+            @Override
+            public long value() {
+                return m_queue.dropped();
+            }
+        });
+
+        // DEBUG
+        this.errorLogger().warning("ObservationBuffer: Dir: " + dir + " Segments: " + max_segments + " x " + segment_size_kb + "KB Replay Rate: " + this.m_replay_rate + "/sec Collapse: " + this.m_collapse);
+    }
+
+    // start the replay thread
+    public void start() {
+        if (this.m_running == false) {
+            this.m_running = true;
+            this.m_thread = new Thread(this, "observation-replay");
+            this.m_thread.setDaemon(true);
+            this.m_thread.start();
+        }
+    }
+
+    // stop the replay thread and flush the queue to disk
+    public void stop() {
+        this.m_running = false;
+        this.wakeup();
+        if (this.m_thread != null) {
+            try {
+                this.m_thread.interrupt();
+                this.m_thread.join(IDLE_WAIT_MS);
+            }
+            catch (InterruptedException ex) {
+                // silent
+            }
+        }
+        this.m_queue.close();
+    }
+
+    // is there a backlog? (if so, new observations must queue behind it to preserve ordering)
+    public boolean hasBacklog() {
+        return this.m_replaying == true || this.m_queue.isEmpty() == false;
+    }
+
+    // buffer an observation
+    public boolean offer(String mbed_id, String ep, String uri, Object value) {
+        try {
+            long seq = this.m_seq.incrementAndGet();
+            if (this.m_queue.append(this.encode(seq, mbed_id, ep, uri, value)) == true) {
+                if (this.m_collapse == true) {
+                    this.m_latest.put(this.key(ep, uri), seq);
+                }
+                this.m_buffered.increment();
+                this.wakeup();
+                return true;
+            }
+        }
+        catch (IOException ex) {
+            this.errorLogger().warning("ObservationBuffer: unable to buffer observation: EP: " + ep + " URI: " + uri + " ERROR: " + ex.getMessage());
+        }
+        return false;
+    }
+
+    // link up: start replaying
+    @Override
+    public void linkUp(String name) {
+        if (PelionEdgeCoreClientAPI.LINK_NAME.equals(name)) {
+            this.m_catchup_seq = this.m_seq.get();
+            this.wakeup();
+        }
+    }
+
+    // link down: nothing to do (observations are buffered by the caller)
+    @Override
+    public void linkDown(String name, int attempts, long retry_in_ms) {
+    }
+
+    // replay thread
+    @Override
+    public void run() {
+        long interval_ns = 1000000000L / this.m_replay_rate;
+        long next_ns = System.nanoTime();
+        while (this.m_running) {
+            try {
+                // settle the replays that have completed (in order)
+                this.settle();
+
+                // nothing to send (or no usable link): let the replays in flight complete, then wait for a backlog
+                boolean empty = (this.m_queue.isEmpty() == true && this.m_retry.isEmpty() == true);
+                if (empty == true || this.m_api.isConnected() == false) {
+                    if (this.m_window.isEmpty() == false) {
+                        this.awaitOldest();
+                        continue;
+                    }
+                    if (this.m_replaying == true && empty == true) {
+                        // caught up
+                        this.m_replaying = false;
+                        this.m_deferred.clear();
+                        this.m_deferred_first = -1;
+                        this.m_attempts.clear();
+                        this.errorLogger().warning("ObservationBuffer: replay complete");
+                    }
+                    this.idle();
+                    continue;
+                }
+                if (this.m_replaying == false) {
+                    this.m_replaying = true;
+                    this.m_catchup_seq = this.m_seq.get();
+                    this.errorLogger().warning("ObservationBuffer: replaying " + (this.m_queue.size() + this.m_retry.size()) + " buffered observation(s)...");
+                }
+
+                // window full: wait for the oldest replay
+                if (this.m_window.size() >= this.m_replay_window) {
+                    this.awaitOldest();
+                    continue;
+                }
+
+                // backing off after a transport failure
+                long backoff_ns = this.m_backoff_until_ns - System.nanoTime();
+                if (backoff_ns > 0) {
+                    if (this.m_window.isEmpty() == false) {
+                        this.awaitOldest();
+                    }
+                    else {
+                        Thread.sleep(backoff_ns / 1000000L, (int) (backoff_ns % 1000000L));
+                    }
+                    continue;
+                }
+
+                // next record: undelivered ones first (keeps their order), then off the queue
+                byte[] record = (this.m_retry.isEmpty() == false) ? this.m_retry.pollFirst() : this.m_queue.poll();
+                if (record == null) {
+                    continue;
+                }
+                long seq = 0;
+                String mbed_id = null;
+                String ep = null;
+                String uri = null;
+                Object value = null;
+                try {
+                    DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+                    seq = in.readLong();
+                    mbed_id = in.readUTF();
+                    ep = in.readUTF();
+                    uri = in.readUTF();
+                    value = this.decodeValue(in);
+                }
+                catch (IOException ex) {
+                    // undecodable record
+                    this.errorLogger().warning("ObservationBuffer: dropping undecodable record: " + ex.getMessage());
+                    continue;
+                }
+                String key = this.key(ep, uri);
+
+                // completed a pass over the deferred devices: retry them (wait first if nothing could be sent)
+                if (seq == this.m_deferred_first) {
+                    this.m_deferred.clear();
+                    this.m_deferred_first = -1;
+                    if (this.m_pass_sent == 0) {
+                        this.idle();
+                    }
+                    this.m_pass_sent = 0;
+                }
+
+                // collapse: skip values superseded by a later buffered value for the same resource
+                if (this.m_collapse == true) {
+                    Long latest = this.m_latest.get(key);
+                    if (latest != null && latest != seq) {
+                        this.m_collapsed.increment();
+                        continue;
+                    }
+                }
+
+                // this device's PT session is down: rotate it (and its later records) to the back
+                if (this.m_deferred.contains(ep) == true || this.m_api.isReady(ep) == false) {
+                    this.m_queue.append(record);
+                    this.m_deferred.add(ep);
+                    if (this.m_deferred_first < 0) {
+                        this.m_deferred_first = seq;
+                        this.m_pass_sent = 0;
+                    }
+                    continue;
+                }
+
+                // rate limit the catch-up (observations queued behind it since the link came back drain at full speed)
+                if (seq <= this.m_catchup_seq) {
+                    long wait_ns = next_ns - System.nanoTime();
+                    if (wait_ns > 0) {
+                        Thread.sleep(wait_ns / 1000000L, (int) (wait_ns % 1000000L));
+                    }
+                    next_ns = Math.max(next_ns, System.nanoTime() - interval_ns) + interval_ns;
+                }
+
+                // replay (pipelined up to the RPC window)
+                this.m_window.addLast(new Replay(seq, record, ep, uri, key, this.m_api.sendObservationAsync(mbed_id, ep, uri, value)));
+                ++this.m_pass_sent;
+            }
+            catch (InterruptedException ex) {
+                // halting
+            }
+        }
+
+        // halting: anything not confirmed goes back in the queue
+        for (byte[] record : this.m_retry) {
+            this.m_queue.append(record);
+        }
+        for (Replay replay : this.m_window) {
+            if (replay.delivered() == false) {
+                this.m_queue.append(replay.m_record);
+            }
+        }
+        this.m_retry.clear();
+        this.m_window.clear();
+    }
+
+    // settle the completed replays at the head of the window (in order)
+    private void settle() {
+        while (this.m_window.isEmpty() == false && this.m_window.peekFirst().m_result.isDone() == true) {
+            Replay replay = this.m_window.pollFirst();
+            Boolean sent = null;
+            try {
+                sent = replay.m_result.getNow(null);
+            }
+            catch (CompletionException | CancellationException ex) {
+                // a transport failure or timeout completes exceptionally... an edge core rejection is "false"
+                this.errorLogger().info("ObservationBuffer: replay failed (will retry): EP: " + replay.m_ep + " URI: " + replay.m_uri + " ERROR: " + ex.getMessage());
+            }
+            if (sent != null && sent == true) {
+                this.m_latest.remove(replay.m_key, replay.m_seq);
+                this.m_attempts.remove(replay.m_seq);
+                this.m_replayed.increment();
+                this.m_failures = 0;
+            }
+            else if (sent == null || this.m_api.isReady(replay.m_ep) == false) {
+                // not delivered: keep it and retry with backoff
+                this.m_retry.addLast(replay.m_record);
+                long backoff_ms = Math.min(MAX_REPLAY_BACKOFF_MS, (long) REPLAY_BACKOFF_MS << Math.min(this.m_failures++, 6));
+                this.m_backoff_until_ns = System.nanoTime() + backoff_ms * 1000000L;
+            }
+            else {
+                Integer attempts = this.m_attempts.get(replay.m_seq);
+                attempts = (attempts != null) ? attempts + 1 : 1;
+                if (attempts >= DEF_MAX_REPLAY_ATTEMPTS) {
+                    // edge core is up but keeps rejecting this one... drop it so that the backlog can drain
+                    this.errorLogger().warning("ObservationBuffer: dropping observation rejected " + attempts + " times: EP: " + replay.m_ep + " URI: " + replay.m_uri);
+                    this.m_latest.remove(replay.m_key, replay.m_seq);
+                    this.m_attempts.remove(replay.m_seq);
+                    this.m_rejected.increment();
+                }
+                else {
+                    this.m_attempts.put(replay.m_seq, attempts);
+                    this.m_retry.addLast(replay.m_record);
+                }
+            }
+        }
+    }
+
+    // wait (bounded) for the oldest replay in flight to complete
+    private void awaitOldest() throws InterruptedException {
+        Replay oldest = this.m_window.peekFirst();
+        if (oldest != null) {
+            try {
+                oldest.m_result.get(IDLE_WAIT_MS, TimeUnit.MILLISECONDS);
+            }
+            catch (ExecutionException | TimeoutException ex) {
+                // settled (or re-checked) on the next pass
+            }
+        }
+    }
+
+    // wait (bounded) for work
+    private void idle() {
+        synchronized (this.m_lock) {
+            try {
+                this.m_lock.wait(IDLE_WAIT_MS);
+            }
+            catch (InterruptedException ex) {
+                // silent
+            }
+        }
+    }
+
+    // wake up the replay thread
+    private void wakeup() {
+        synchronized (this.m_lock) {
+            this.m_lock.notifyAll();
+        }
+    }
+
+    // resource key
+    private String key(String ep, String uri) {
+        return ep + "|" + uri;
+    }
+
+    // encode an observation record
+    private byte[] encode(long seq, String mbed_id, String ep, String uri, Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(seq);
+        out.writeUTF(mbed_id != null ? mbed_id : "");
+        out.writeUTF(ep);
+        out.writeUTF(uri);
+        if (value instanceof Integer) {
+            out.writeByte(TYPE_INTEGER);
+            out.writeInt((Integer) value);
+        }
+        else if (value instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat((Float) value);
+        }
+        else if (value instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) value);
+        }
+        else {
+            out.writeByte(TYPE_STRING);
+            out.writeUTF(String.valueOf(value));
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // decode an observation value
+    private Object decodeValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case TYPE_INTEGER:
+                return in.readInt();
+            case TYPE_FLOAT:
+                return in.readFloat();
+            case TYPE_DOUBLE:
+                return in.readDouble();
+            case TYPE_STRING:
+                return in.readUTF();
+            default:
+                throw new IOException("unknown value type: " + type);
+        }
+    }
+
+    // a replay in flight
+    private static class Replay {
+        private final long m_seq;
+        private final byte[] m_record;
+        private final String m_ep;
+        private final String m_uri;
+        private final String m_key;
+        private final CompletableFuture<Boolean> m_result;
+
+        Replay(long seq, byte[] record, String ep, String uri, String key, CompletableFuture<Boolean> result) {
+            this.m_seq = seq;
+            this.m_record = record;
+            this.m_ep = ep;
+            this.m_uri = uri;
+            this.m_key = key;
+            this.m_result = result;
+        }
+
+        // confirmed by edge core?
+        boolean delivered() {
+            return this.m_result.isDone() == true && this.m_result.isCompletedExceptionally() == false && Boolean.TRUE.equals(this.m_result.getNow(null));
+        }
+    }
+}
@@ -0,0 +1,352 @@
+/**
+ * @file ObservationFilter.java
+ * @brief per-resource observation deduplication and deadband filter
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.shadow.service.processors.pelion;
+
+import com.arm.pelion.shadow.service.core.BaseClass;
+import com.arm.pelion.shadow.service.core.ErrorLogger;
+import com.arm.pelion.shadow.service.metrics.MetricsRegistry;
+import com.arm.pelion.shadow.service.preferences.PreferenceManager;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Observation filter: decides per device resource whether an observation is worth forwarding. Supports exact
+ * duplicate suppression, absolute/percentage deadband for numeric values and min/max publish intervals, configured
+ * per EdgeX resource name (e.g. observation_filter_mode_Temperature=deadband) with global defaults. Last published
+ * values live in an open-addressing table keyed by a 64-bit hash of the endpoint and resource URI... each entry also
+ * carries a hash of its endpoint so that a removed device's entries can be evicted (the table is rehashed without them).
+ * @author Doug Anson
+ */
+public class ObservationFilter extends BaseClass {
+    // filter modes
+    private static final int MODE_OFF = 0;                      // forward everything
+    private static final int MODE_DEDUP = 1;                    // suppress exact duplicates
+    private static final int MODE_DEADBAND = 2;                 // suppress numeric changes within the deadband (dedup for non-numeric)
+
+    // table defaults
+    private static final int INITIAL_CAPACITY = 1024;           // power of 2
+
+    // FNV-1a 64
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // per EdgeX resource configuration (resolved once per resource name)
+    private final Map<String, FilterConfig> m_configs = new ConcurrentHashMap<>();
+
+    // last published state (slot i is in use when m_keys[i] != 0)
+    private long[] m_keys = null;
+    private long[] m_devices = null;
+    private double[] m_last_number = null;
+    private Object[] m_last_value = null;
+    private long[] m_last_publish_ms = null;
+    private int m_count = 0;
+
+    // Metrics
+    private LongAdder m_suppressed_duplicate = null;
+    private LongAdder m_suppressed_deadband = null;
+    private LongAdder m_suppressed_interval = null;
+
+    // default constructor
+    public ObservationFilter(ErrorLogger logger, PreferenceManager preferences) {
+        super(logger, preferences);
+        this.allocate(INITIAL_CAPACITY);
+
+        // Metrics
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        this.m_suppressed_duplicate = metrics.counter("observations_suppressed_duplicate_total", "Observations suppressed as exact duplicates");
+        this.m_suppressed_deadband = metrics.counter("observations_suppressed_deadband_total", "Observations suppressed within the deadband");
+        this.m_suppressed_interval = metrics.counter("observations_suppressed_interval_total", "Observations suppressed by the minimum publish interval");
+
+        // DEBUG
+        FilterConfig defaults = this.configFor(null);
+        this.errorLogger().info("ObservationFilter: Default Mode: " + defaults.m_mode + " Deadband: " + defaults.m_deadband_abs + "/" + defaults.m_deadband_pct + "% Interval(ms): " + defaults.m_min_interval_ms + "/" + defaults.m_max_interval_ms);
+    }
+
+    // should this observation be forwarded? (call record() once it has actually been queued for publishing)
+    public boolean accept(String edgex_resource, String ep, String uri, Object value) {
+        FilterConfig config = this.configFor(edgex_resource);
+        if (config.m_mode == MODE_OFF && config.m_min_interval_ms <= 0) {
+            return true;
+        }
+
+        // numeric view of the value (deadband only)
+        double number = this.numberOf(config, value);
+        boolean numeric = !Double.isNaN(number);
+
+        long now = System.currentTimeMillis();
+        long key = this.key(ep, uri);
+        synchronized (this) {
+            int slot = this.find(key);
+            if (this.m_keys[slot] == 0) {
+                // first observation for this resource
+                return true;
+            }
+
+            long elapsed = now - this.m_last_publish_ms[slot];
+            if (config.m_min_interval_ms > 0 && elapsed < config.m_min_interval_ms) {
+                // too soon
+                this.m_suppressed_interval.increment();
+                return false;
+            }
+            if (config.m_max_interval_ms <= 0 || elapsed < config.m_max_interval_ms) {
+                if (config.m_mode == MODE_DEADBAND && numeric == true && this.m_last_value[slot] == null) {
+                    double last = this.m_last_number[slot];
+                    double delta = Math.abs(number - last);
+                    if (delta <= config.m_deadband_abs || (config.m_deadband_pct > 0 && delta <= Math.abs(last) * config.m_deadband_pct / 100.0)) {
+                        // within the deadband
+                        this.m_suppressed_deadband.increment();
+                        return false;
+                    }
+                }
+                else if (config.m_mode != MODE_OFF && this.sameValue(slot, numeric, number, value) == true) {
+                    // exact duplicate
+                    this.m_suppressed_duplicate.increment();
+                    return false;
+                }
+            }
+
+            // forward it (changed, or the max interval has elapsed)
+            return true;
+        }
+    }
+
+    // record an accepted observation as published
+    public void record(String edgex_resource, String ep, String uri, Object value) {
+        FilterConfig config = this.configFor(edgex_resource);
+        if (config.m_mode == MODE_OFF && config.m_min_interval_ms <= 0) {
+            return;
+        }
+        double number = this.numberOf(config, value);
+        boolean numeric = !Double.isNaN(number);
+        long now = System.currentTimeMillis();
+        long key = this.key(ep, uri);
+        synchronized (this) {
+            int slot = this.find(key);
+            if (this.m_keys[slot] == 0) {
+                this.insert(slot, key, this.deviceKey(ep), numeric, number, value, now);
+            }
+            else {
+                this.update(slot, numeric, number, value, now);
+            }
+        }
+    }
+
+    // forget a removed device (its entries are evicted... the table shrinks back once mostly empty)
+    public void removeDevice(String ep) {
+        long device = this.deviceKey(ep);
+        synchronized (this) {
+            int removed = 0;
+            for (int i = 0; i < this.m_keys.length; ++i) {
+                if (this.m_keys[i] != 0 && this.m_devices[i] == device) {
+                    ++removed;
+                }
+            }
+            if (removed > 0) {
+                int capacity = this.m_keys.length;
+                while (capacity > INITIAL_CAPACITY && (this.m_count - removed) * 8 < capacity) {
+                    capacity /= 2;
+                }
+                this.rehash(capacity, device);
+            }
+        }
+    }
+
+    // numeric view of a value for the deadband (NaN if not numeric or not in deadband mode)
+    private double numberOf(FilterConfig config, Object value) {
+        if (config.m_mode == MODE_DEADBAND) {
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            if (value instanceof String) {
+                try {
+                    return Double.parseDouble((String) value);
+                }
+                catch (NumberFormatException ex) {
+                    // not numeric
+                }
+            }
+        }
+        return Double.NaN;
+    }
+
+    // same as the last published value?
+    private boolean sameValue(int slot, boolean numeric, double number, Object value) {
+        Object last = this.m_last_value[slot];
+        if (numeric == true) {
+            return last == null && Double.doubleToLongBits(this.m_last_number[slot]) == Double.doubleToLongBits(number);
+        }
+        return last != null && last.equals(value);
+    }
+
+    // record the published value (numeric values are held unboxed, others by reference)
+    private void update(int slot, boolean numeric, double number, Object value, long now) {
+        this.m_last_number[slot] = number;
+        this.m_last_value[slot] = (numeric == true) ? null : ((value != null) ? value : "");
+        this.m_last_publish_ms[slot] = now;
+    }
+
+    // insert a new entry (grows the table at 1/2 load)
+    private void insert(int slot, long key, long device, boolean numeric, double number, Object value, long now) {
+        if ((this.m_count + 1) * 2 > this.m_keys.length) {
+            this.rehash(this.m_keys.length * 2, 0);
+            slot = this.find(key);
+        }
+        this.m_keys[slot] = key;
+        this.m_devices[slot] = device;
+        this.update(slot, numeric, number, value, now);
+        ++this.m_count;
+    }
+
+    // linear probe: the slot holding the key or the empty slot where it belongs
+    private int find(long key) {
+        int mask = this.m_keys.length - 1;
+        int slot = (int) (key ^ (key >>> 32)) & mask;
+        while (this.m_keys[slot] != 0 && this.m_keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // rebuild the table at the given capacity (dropping the entries of the excluded device... 0: none)
+    private void rehash(int capacity, long excluded_device) {
+        long[] keys = this.m_keys;
+        long[] devices = this.m_devices;
+        double[] numbers = this.m_last_number;
+        Object[] values = this.m_last_value;
+        long[] times = this.m_last_publish_ms;
+        this.allocate(capacity);
+        this.m_count = 0;
+        for (int i = 0; i < keys.length; ++i) {
+            if (keys[i] != 0 && (excluded_device == 0 || devices[i] != excluded_device)) {
+                int slot = this.find(keys[i]);
+                this.m_keys[slot] = keys[i];
+                this.m_devices[slot] = devices[i];
+                this.m_last_number[slot] = numbers[i];
+                this.m_last_value[slot] = values[i];
+                this.m_last_publish_ms[slot] = times[i];
+                ++this.m_count;
+            }
+        }
+    }
+
+    // allocate the table
+    private void allocate(int capacity) {
+        this.m_keys = new long[capacity];
+        this.m_devices = new long[capacity];
+        this.m_last_number = new double[capacity];
+        this.m_last_value = new Object[capacity];
+        this.m_last_publish_ms = new long[capacity];
+    }
+
+    // 64-bit key for endpoint + resource URI (FNV-1a + fmix64 finalizer, never 0)
+    private long key(String ep, String uri) {
+        long h = FNV_OFFSET_BASIS;
+        h = this.fnv(h, ep);
+        h = (h ^ '|') * FNV_PRIME;
+        h = this.fnv(h, uri);
+        return this.fmix(h);
+    }
+
+    // 64-bit key for an endpoint (never 0)
+    private long deviceKey(String ep) {
+        return this.fmix(this.fnv(FNV_OFFSET_BASIS, ep));
+    }
+
+    // fmix64 finalizer (never 0)
+    private long fmix(long h) {
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= (h >>> 33);
+        return (h != 0) ? h : 1;
+    }
+
+    // FNV-1a over the chars of a string
+    private long fnv(long h, String s) {
+        if (s != null) {
+            for (int i = 0; i < s.length(); ++i) {
+                h = (h ^ s.charAt(i)) * FNV_PRIME;
+            }
+        }
+        return h;
+    }
+
+    // filter configuration for an EdgeX resource (resource specific "<key>_<resource>" overrides the global "<key>")
+    private FilterConfig configFor(String edgex_resource) {
+        String name = (edgex_resource != null) ? edgex_resource : "";
+        FilterConfig config = this.m_configs.get(name);
+        if (config == null) {
+            config = new FilterConfig();
+            String mode = this.setting("observation_filter_mode", edgex_resource);
+            if ("dedup".equalsIgnoreCase(mode)) {
+                config.m_mode = MODE_DEDUP;
+            }
+            else if ("deadband".equalsIgnoreCase(mode)) {
+                config.m_mode = MODE_DEADBAND;
+            }
+            config.m_deadband_abs = this.doubleSetting("observation_filter_deadband_abs", edgex_resource);
+            config.m_deadband_pct = this.doubleSetting("observation_filter_deadband_pct", edgex_resource);
+            config.m_min_interval_ms = (long) this.doubleSetting("observation_filter_min_interval_ms", edgex_resource);
+            config.m_max_interval_ms = (long) this.doubleSetting("observation_filter_max_interval_ms", edgex_resource);
+            this.m_configs.put(name, config);
+        }
+        return config;
+    }
+
+    // resource specific setting, else the global setting
+    private String setting(String key, String edgex_resource) {
+        String value = null;
+        if (edgex_resource != null && edgex_resource.length() > 0) {
+            value = this.preferences().valueOf(key, edgex_resource);
+        }
+        if (value == null || value.length() == 0) {
+            value = this.preferences().valueOf(key);
+        }
+        return value;
+    }
+
+    // numeric setting (0 if unset or invalid)
+    private double doubleSetting(String key, String edgex_resource) {
+        String value = this.setting(key, edgex_resource);
+        try {
+            if (value != null && value.length() > 0) {
+                return Math.max(0.0, Double.parseDouble(value));
+            }
+        }
+        catch (NumberFormatException ex) {
+            this.errorLogger().warning("ObservationFilter: invalid value for " + key + ": " + value);
+        }
+        return 0.0;
+    }
+
+    // per resource filter configuration
+    private static class FilterConfig {
+        private int m_mode = MODE_OFF;
+        private double m_deadband_abs = 0.0;
+        private double m_deadband_pct = 0.0;
+        private long m_min_interval_ms = 0;
+        private long m_max_interval_ms = 0;
+    }
+}
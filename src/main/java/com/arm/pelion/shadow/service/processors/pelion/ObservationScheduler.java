@@ -0,0 +1,362 @@
+/**
+ * @file ObservationScheduler.java
+ * @brief per-device rate limiting and fair (deficit round robin) scheduling of observations
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.shadow.service.processors.pelion;
+
+import com.arm.pelion.shadow.service.core.BaseClass;
+import com.arm.pelion.shadow.service.core.ErrorLogger;
+import com.arm.pelion.shadow.service.metrics.Gauge;
+import com.arm.pelion.shadow.service.metrics.LatencyHistogram;
+import com.arm.pelion.shadow.service.metrics.MetricsRegistry;
+import com.arm.pelion.shadow.service.metrics.PipelineStage;
+import com.arm.pelion.shadow.service.metrics.Trace;
+import com.arm.pelion.shadow.service.preferences.PreferenceManager;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Observation scheduler: each device is admitted through its own token bucket into its own bounded queue, and a
+ * single writer thread drains the device queues in deficit round robin order (each device gets a weighted share
+ * per round). A device publishing too fast only fills its own queue... overflow is dropped or coalesced into the
+ * queued observation for the same resource, according to the configured policy.
+ * @author Doug Anson
+ */
+public class ObservationScheduler extends BaseClass implements Runnable {
+    // Defaults
+    private static final int DEF_DEVICE_RATE = 50;                 // observations/sec per device (sustained)
+    private static final int DEF_DEVICE_BURST = 100;               // token bucket depth per device
+    private static final int DEF_DEVICE_QUEUE = 64;                // max queued observations per device
+    private static final int DEF_DEVICE_WEIGHT = 1;                // observations per device per round
+    private static final String POLICY_DROP = "drop";
+    private static final String POLICY_COALESCE = "coalesce";
+
+    /**
+     * Observation dispatcher (called on the writer thread... release the trace once the observation is done with)
+     */
+    public interface Dispatcher {
+        public void dispatch(String mbed_id, String ep, String uri, Object value, Trace trace, long trace_id);
+    }
+
+    // our dispatcher
+    private Dispatcher m_dispatcher = null;
+
+    // configuration
+    private int m_device_rate = DEF_DEVICE_RATE;
+    private int m_device_burst = DEF_DEVICE_BURST;
+    private int m_device_queue = DEF_DEVICE_QUEUE;
+    private boolean m_coalesce = true;
+
+    // device queues and the DRR active list (guarded by m_lock)
+    private final Object m_lock = new Object();
+    private final Map<String, DeviceQueue> m_devices = new HashMap<>();
+    private final ArrayDeque<DeviceQueue> m_active = new ArrayDeque<>();
+    private int m_queued = 0;
+
+    // writer thread
+    private volatile boolean m_running = false;
+    private Thread m_thread = null;
+
+    // Metrics
+    private LongAdder m_dropped = null;
+    private LongAdder m_coalesced = null;
+    private LatencyHistogram m_queue_latency = null;
+
+    // default constructor
+    public ObservationScheduler(ErrorLogger logger, PreferenceManager preferences, Dispatcher dispatcher) {
+        super(logger, preferences);
+        this.m_dispatcher = dispatcher;
+
+        // configuration
+        this.m_device_rate = this.preferences().intValueOf("observation_device_rate");
+        if (this.m_device_rate <= 0) {
+            this.m_device_rate = DEF_DEVICE_RATE;
+        }
+        this.m_device_burst = this.preferences().intValueOf("observation_device_burst");
+        if (this.m_device_burst <= 0) {
+            this.m_device_burst = DEF_DEVICE_BURST;
+        }
+        this.m_device_queue = this.preferences().intValueOf("observation_device_queue");
+        if (this.m_device_queue <= 0) {
+            this.m_device_queue = DEF_DEVICE_QUEUE;
+        }
+        String policy = this.preferences().valueOf("observation_overflow_policy");
+        this.m_coalesce = (policy == null || policy.length() == 0 || POLICY_COALESCE.equalsIgnoreCase(policy));
+        if (this.m_coalesce == false && POLICY_DROP.equalsIgnoreCase(policy) == false) {
+            this.errorLogger().warning("ObservationScheduler: unknown overflow policy: " + policy + ". Using: " + POLICY_DROP);
+        }
+
+        // Metrics
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        this.m_dropped = metrics.counter("observations_overflow_dropped_total", "Observations dropped by per-device rate limiting");
+        this.m_queue_latency = metrics.stage(PipelineStage.OBSERVATION_QUEUE);
+        this.m_coalesced = metrics.counter("observations_overflow_coalesced_total", "Observations coalesced into a queued observation for the same resource");
+        metrics.gauge("observation_scheduler_queued", "Observations queued for the edge core writer", new Gauge() {
+            @Override
+            public long value() {
+                return queued();
+            }
+        });
+
+        // DEBUG
+        this.errorLogger().warning("ObservationScheduler: Device Rate: " + this.m_device_rate + "/sec Burst: " + this.m_device_burst + " Queue: " + this.m_device_queue + " Overflow: " + (this.m_coalesce ? POLICY_COALESCE : POLICY_DROP));
+    }
+
+    // start the writer thread
+    public void start() {
+        if (this.m_running == false) {
+            this.m_running = true;
+            this.m_thread = new Thread(this, "observation-writer");
+            this.m_thread.setDaemon(true);
+            this.m_thread.start();
+        }
+    }
+
+    // stop the writer thread
+    public void stop() {
+        this.m_running = false;
+        synchronized (this.m_lock) {
+            this.m_lock.notifyAll();
+        }
+    }
+
+    // observations currently queued
+    public int queued() {
+        synchronized (this.m_lock) {
+            return this.m_queued;
+        }
+    }
+
+    // observations dropped (overflow)
+    public long dropped() {
+        return this.m_dropped.sum();
+    }
+
+    // observations coalesced (overflow)
+    public long coalesced() {
+        return this.m_coalesced.sum();
+    }
+
+    // devices currently being throttled (queue non-empty and out of tokens)
+    public int throttledDevices() {
+        synchronized (this.m_lock) {
+            int count = 0;
+            long now = System.nanoTime();
+            for (DeviceQueue queue : this.m_active) {
+                if (queue.available(now) < 1.0) {
+                    ++count;
+                }
+            }
+            return count;
+        }
+    }
+
+    // submit an observation for a traced event (false if dropped)
+    public boolean submit(String mbed_id, String ep, String uri, Object value, Trace trace) {
+        synchronized (this.m_lock) {
+            DeviceQueue queue = this.m_devices.get(ep);
+            if (queue == null) {
+                queue = new DeviceQueue(this.deviceSetting("observation_device_rate", ep, this.m_device_rate), this.deviceSetting("observation_device_burst", ep, this.m_device_burst), this.deviceSetting("observation_device_weight", ep, DEF_DEVICE_WEIGHT));
+                this.m_devices.put(ep, queue);
+            }
+
+            // admission: within rate and room in the device queue (overflow is not traced... coalesced values ride on the queued trace)
+            long now = System.nanoTime();
+            if (queue.m_pending.size() >= this.m_device_queue || queue.take(now) == false) {
+                return this.overflow(queue, uri, value);
+            }
+
+            // enqueue (and activate the device for the writer)
+            queue.m_pending.addLast(new Observation(mbed_id, ep, uri, value, trace, trace.fork(), now));
+            ++this.m_queued;
+            if (queue.m_active == false) {
+                queue.m_active = true;
+                this.m_active.addLast(queue);
+                this.m_lock.notifyAll();
+            }
+            return true;
+        }
+    }
+
+    // forget a device (removed from EdgeX)... its queued observations are dropped and it leaves the DRR active list
+    public void removeDevice(String ep) {
+        List<Observation> discarded = null;
+        synchronized (this.m_lock) {
+            DeviceQueue queue = this.m_devices.remove(ep);
+            if (queue == null) {
+                return;
+            }
+            if (queue.m_active == true) {
+                this.m_active.remove(queue);
+                queue.m_active = false;
+                queue.m_deficit = 0;
+            }
+            discarded = new ArrayList<>(queue.m_pending);
+            queue.m_pending.clear();
+            this.m_queued -= discarded.size();
+        }
+
+        // release the traces of the dropped observations outside of the lock
+        for (Observation observation : discarded) {
+            observation.m_trace.release(observation.m_trace_id);
+        }
+        if (discarded.isEmpty() == false) {
+            // DEBUG
+            this.errorLogger().info("ObservationScheduler: removed device: " + ep + " dropped " + discarded.size() + " queued observation(s)");
+        }
+    }
+
+    // overflow policy
+    private boolean overflow(DeviceQueue queue, String uri, Object value) {
+        if (this.m_coalesce == true) {
+            // replace the value of a queued observation for the same resource
+            for (Observation observation : queue.m_pending) {
+                if (observation.m_uri.equals(uri)) {
+                    observation.m_value = value;
+                    this.m_coalesced.increment();
+                    return true;
+                }
+            }
+        }
+        this.m_dropped.increment();
+        return false;
+    }
+
+    // writer thread: deficit round robin over the active device queues
+    @Override
+    public void run() {
+        List<Observation> batch = new ArrayList<>();
+        while (this.m_running) {
+            synchronized (this.m_lock) {
+                while (this.m_running && this.m_active.isEmpty()) {
+                    try {
+                        this.m_lock.wait();
+                    }
+                    catch (InterruptedException ex) {
+                        // silent
+                    }
+                }
+                DeviceQueue queue = this.m_active.pollFirst();
+                if (queue == null) {
+                    continue;
+                }
+
+                // this device's share for the round
+                queue.m_deficit += queue.m_quantum;
+                while (queue.m_deficit >= 1 && queue.m_pending.isEmpty() == false) {
+                    batch.add(queue.m_pending.pollFirst());
+                    --queue.m_deficit;
+                    --this.m_queued;
+                }
+                if (queue.m_pending.isEmpty() == true) {
+                    // idle devices do not bank their deficit
+                    queue.m_active = false;
+                    queue.m_deficit = 0;
+                }
+                else {
+                    this.m_active.addLast(queue);
+                }
+            }
+
+            // dispatch outside of the lock
+            for (Observation observation : batch) {
+                long queued_ns = System.nanoTime() - observation.m_queued_ns;
+                this.m_queue_latency.record(queued_ns);
+                observation.m_trace.span(observation.m_trace_id, PipelineStage.OBSERVATION_QUEUE, queued_ns);
+                try {
+                    this.m_dispatcher.dispatch(observation.m_mbed_id, observation.m_ep, observation.m_uri, observation.m_value, observation.m_trace, observation.m_trace_id);
+                }
+                catch (Exception ex) {
+                    observation.m_trace.release(observation.m_trace_id);
+                    this.errorLogger().warning("ObservationScheduler: Exception in dispatch: " + ex.getMessage());
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    // device specific setting ("<key>_<ep>"), else the default
+    private int deviceSetting(String key, String ep, int def_value) {
+        int value = this.preferences().intValueOf(key, ep);
+        return (value > 0) ? value : def_value;
+    }
+
+    // a queued observation
+    private static class Observation {
+        private final String m_mbed_id;
+        private final String m_ep;
+        private final String m_uri;
+        private Object m_value;
+        private final Trace m_trace;
+        private final long m_trace_id;
+        private final long m_queued_ns;
+
+        Observation(String mbed_id, String ep, String uri, Object value, Trace trace, long trace_id, long queued_ns) {
+            this.m_mbed_id = mbed_id;
+            this.m_ep = ep;
+            this.m_uri = uri;
+            this.m_value = value;
+            this.m_trace = trace;
+            this.m_trace_id = trace_id;
+            this.m_queued_ns = queued_ns;
+        }
+    }
+
+    // per device queue, token bucket and DRR state
+    private static class DeviceQueue {
+        private final ArrayDeque<Observation> m_pending = new ArrayDeque<>();
+        private final double m_rate_per_ns;
+        private final double m_burst;
+        private final int m_quantum;
+        private double m_tokens;
+        private long m_last_ns;
+        private int m_deficit = 0;
+        private boolean m_active = false;
+
+        DeviceQueue(int rate, int burst, int quantum) {
+            this.m_rate_per_ns = rate / 1.0e9;
+            this.m_burst = burst;
+            this.m_quantum = quantum;
+            this.m_tokens = burst;
+            this.m_last_ns = System.nanoTime();
+        }
+
+        // tokens available now
+        double available(long now) {
+            return Math.min(this.m_burst, this.m_tokens + (now - this.m_last_ns) * this.m_rate_per_ns);
+        }
+
+        // take a token (false if the bucket is empty)
+        boolean take(long now) {
+            this.m_tokens = this.available(now);
+            this.m_last_ns = now;
+            if (this.m_tokens >= 1.0) {
+                this.m_tokens -= 1.0;
+                return true;
+            }
+            return false;
+        }
+    }
+}
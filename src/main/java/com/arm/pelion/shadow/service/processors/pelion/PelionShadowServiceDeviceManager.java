@@ -27,10 +27,14 @@ import com.arm.pelion.edge.core.client.api.PelionEdgeCoreClientAPI;
 import com.arm.pelion.rest.client.api.PelionRestClientAPI;
 import com.arm.pelion.shadow.service.coordinator.Orchestrator;
 import com.arm.pelion.shadow.service.core.BaseClass;
+import com.arm.pelion.shadow.service.core.ConnectionSupervisor;
 import com.arm.pelion.shadow.service.core.ErrorLogger;
 import com.arm.pelion.shadow.service.interfaces.DeviceResourceManagerInterface;
 import com.arm.pelion.shadow.service.preferences.PreferenceManager;
+import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
 
 /**
  * Pelion device shadow service device manager
@@ -40,6 +44,7 @@ public class PelionShadowServiceDeviceManager extends BaseClass implements Runna
     private DeviceResourceManagerInterface m_device_manager = null;
     private PelionDeviceAPI m_api = null;
     private Orchestrator m_orchestrator = null;
+    private ObservationBuffer m_buffer = null;
     
     // default constructor
     public PelionShadowServiceDeviceManager(ErrorLogger error_logger, PreferenceManager preference_manager, DeviceResourceManagerInterface device_manager,Orchestrator orchestrator) {
@@ -47,6 +52,17 @@ public class PelionShadowServiceDeviceManager extends BaseClass implements Runna
         this.m_device_manager = device_manager;
         this.m_orchestrator = orchestrator;
         this.m_api = new PelionDeviceAPI(error_logger,preference_manager,orchestrator);
+        
+        // store-and-forward buffer for observations while edge core is unavailable
+        if (preference_manager.booleanValueOf("observation_buffer_enabled") == true) {
+            try {
+                this.m_buffer = new ObservationBuffer(error_logger,preference_manager,this.m_api);
+            }
+            catch (IOException ex) {
+                this.errorLogger().warning("PelionShadowServiceDeviceManager: Unable to create observation buffer (disabled): " + ex.getMessage());
+                this.m_buffer = null;
+            }
+        }
     }
     
     // validate the underlying connection
@@ -54,22 +70,44 @@ public class PelionShadowServiceDeviceManager extends BaseClass implements Runna
         return this.connect();
     }
     
-    // connect the API
+    // hand the underlying connection over to the connection supervisor (connects in the background)
+    public void superviseConnection() {
+        ConnectionSupervisor supervisor = ConnectionSupervisor.getInstance(this.errorLogger(),this.preferences());
+        if (this.m_buffer != null) {
+            // replay buffered observations as the link comes back
+            supervisor.addListener(this.m_buffer);
+            this.m_buffer.start();
+        }
+        supervisor.supervise(PelionEdgeCoreClientAPI.LINK_NAME,new ConnectionSupervisor.Link() {
+            @Override
+            public boolean isConnected() {
+                return m_api.isReady();
+            }
+
+            @Override
+            public boolean reconnect() {
+                return connect();
+            }
+        });
+    }
+    
+    // connect the API (single attempt)
     private boolean connect() {
-        boolean connected = this.isConnected();
+        boolean connected = this.m_api.isReady();
         if (connected == false) {
             return this.m_api.connect();
         }
         return connected;
     }
     
-    // is connected?
-    private boolean isConnected() {
-        return this.m_api.isConnected();
-    }
-    
     // closedown 
     public void closedown() {
+        ConnectionSupervisor supervisor = ConnectionSupervisor.getInstance(this.errorLogger(),this.preferences());
+        supervisor.unsupervise(PelionEdgeCoreClientAPI.LINK_NAME);
+        if (this.m_buffer != null) {
+            supervisor.removeListener(this.m_buffer);
+            this.m_buffer.stop();
+        }
         this.m_api.disconnect();
     }
     
@@ -146,7 +184,40 @@ public class PelionShadowServiceDeviceManager extends BaseClass implements Runna
     
     // direct Pelion to create a device resource observation
     public boolean processDeviceObservation(String mbed_id,String ep,String uri,Object value) {
-        return this.m_api.sendObservation(mbed_id,ep,uri,value);
+        try {
+            return this.processDeviceObservationAsync(mbed_id,ep,uri,value).get();
+        }
+        catch (Exception ex) {
+            return false;
+        }
+    }
+    
+    // direct Pelion to create a device resource observation (pipelined... buffered while edge core is unavailable)
+    public CompletableFuture<Boolean> processDeviceObservationAsync(final String mbed_id,final String ep,final String uri,final Object value) {
+        if (this.m_buffer == null) {
+            return this.m_api.sendObservationAsync(mbed_id,ep,uri,value);
+        }
+        
+        // queue behind any backlog (preserves ordering) or while the device's PT session is down
+        if (this.m_buffer.hasBacklog() == true || this.m_api.isReady(ep) == false) {
+            return CompletableFuture.completedFuture(this.m_buffer.offer(mbed_id,ep,uri,value));
+        }
+        
+        // send directly (a full RPC window queues it in memory)... buffer it only if edge core has become unavailable
+        return this.m_api.sendObservationAsync(mbed_id,ep,uri,value).handle(new BiFunction<Boolean,Throwable,Boolean>() {
+            @Override
+            public Boolean apply(Boolean sent,Throwable error) {
+                if (error == null && sent != null && sent == true) {
+                    return true;
+                }
+                if (m_api.isReady(ep) == false) {
+                    return m_buffer.offer(mbed_id,ep,uri,value);
+                }
+                
+                // rejected, timed out or overloaded while edge core is up (not buffered)
+                return false;
+            }
+        });
     }
     
     // callback to process a device resource "get" request
@@ -25,17 +25,36 @@ package com.arm.pelion.shadow.service.processors.pelion;
 import com.arm.pelion.edge.core.client.api.PelionEdgeCoreClientAPI;
 import com.arm.pelion.rest.client.api.PelionRestClientAPI;
 import com.arm.pelion.shadow.service.coordinator.Orchestrator;
+import com.arm.pelion.shadow.service.coordinator.ShardCoordinator;
 import com.arm.pelion.shadow.service.db.mbedDeviceShadowDatabase;
 import com.arm.pelion.shadow.service.core.BaseClass;
+import com.arm.pelion.shadow.service.core.ConnectionSupervisor;
 import com.arm.pelion.shadow.service.core.ErrorLogger;
 import com.arm.pelion.shadow.service.core.Utils;
 import com.arm.pelion.shadow.service.interfaces.DeviceResourceManagerInterface;
+import com.arm.pelion.shadow.service.metrics.Gauge;
+import com.arm.pelion.shadow.service.metrics.MetricsRegistry;
+import com.arm.pelion.shadow.service.metrics.PipelineStage;
+import com.arm.pelion.shadow.service.metrics.Trace;
+import com.arm.pelion.shadow.service.metrics.Tracer;
 import com.arm.pelion.shadow.service.preferences.PreferenceManager;
 import com.arm.pelion.shadow.service.processors.edgex.EdgeXServiceProcessor;
+import com.arm.pelion.shadow.service.transport.HttpResponse;
 import java.util.Map;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.function.BiConsumer;
 import com.arm.pelion.shadow.service.interfaces.DeviceShadowProcessorInterface;
 
 /**
@@ -43,6 +62,11 @@ import com.arm.pelion.shadow.service.interfaces.DeviceShadowProcessorInterface;
  * @author Doug Anson
  */
 public class PelionShadowServiceProcessor extends BaseClass implements DeviceShadowProcessorInterface, DeviceResourceManagerInterface {
+    // Bulk discovery defaults
+    private static final int DEF_DISCOVERY_BATCH_SIZE = 16;            // devices registered per batch
+    private static final int DEF_DISCOVERY_PARALLELISM = 4;            // concurrent device_register RPCs
+    private static final int DEF_SHADOW_CREATE_WAIT_MS = 30000;        // max wait for a shadow created by another thread
+    
     // EdgeX Service processor
     private EdgeXServiceProcessor m_edgex = null;
     
@@ -58,11 +82,43 @@ public class PelionShadowServiceProcessor extends BaseClass implements DeviceSha
     // Orchestrator
     private Orchestrator m_orchestrator = null;
     
+    // per-resource observation filter (dedup/deadband/publish intervals)
+    private ObservationFilter m_filter = null;
+    
+    // per-device rate limiting and fair scheduling of observations
+    private ObservationScheduler m_scheduler = null;
+    
+    // bulk discovery (registers all EdgeX devices whenever edge core becomes available)... our existing shadows are
+    // re-registered first on each link up (edge core forgets a protocol translator's devices, reloaded ones included)
+    private boolean m_discovery_enabled = true;
+    private int m_discovery_batch_size = DEF_DISCOVERY_BATCH_SIZE;
+    private int m_discovery_parallelism = DEF_DISCOVERY_PARALLELISM;
+    private ExecutorService m_discovery_pool = null;
+    private final AtomicBoolean m_discovering = new AtomicBoolean(false);
+    private final AtomicBoolean m_rediscover = new AtomicBoolean(false);
+    private final AtomicBoolean m_reregister = new AtomicBoolean(true);
+    private ConnectionSupervisor.Listener m_discovery_listener = null;
+    
+    // sharding: we only shadow the EdgeX devices this instance owns
+    private ShardCoordinator m_shards = null;
+    
+    // shadows currently being created (EdgeX name -> creation outcome) so lazy creation and discovery never register twice
+    private final ConcurrentHashMap<String,CompletableFuture<Boolean>> m_pending_shadows = new ConcurrentHashMap<>();
+    
+    // Metrics
+    private LongAdder m_observations_sent = null;
+    private LongAdder m_observations_failed = null;
+    private LongAdder m_shadows_discovered = null;
+    private LongAdder m_shadows_reregistered = null;
+    
     // default constructor
     public PelionShadowServiceProcessor(ErrorLogger error_logger, PreferenceManager preference_manager,Orchestrator orchestrator) {
         super(error_logger, preference_manager);
         this.m_orchestrator = orchestrator;
         
+        // our shard coordinator
+        this.m_shards = ShardCoordinator.getInstance(error_logger,preference_manager);
+        
         // create the shadow database
         this.m_db = new mbedDeviceShadowDatabase(error_logger,preference_manager,orchestrator);
         
@@ -72,6 +128,41 @@ public class PelionShadowServiceProcessor extends BaseClass implements DeviceSha
         // create the mbed edge core client API
         this.m_device_manager = new PelionShadowServiceDeviceManager(error_logger,preference_manager,this,orchestrator);
         
+        // create the observation filter
+        this.m_filter = new ObservationFilter(error_logger,preference_manager);
+        
+        // create the observation scheduler (its writer thread dispatches to the device manager)
+        this.m_scheduler = new ObservationScheduler(error_logger,preference_manager,new ObservationScheduler.Dispatcher() {
+            @Override
+            public void dispatch(String mbed_id,String ep,String uri,Object value,Trace trace,long trace_id) {
+                dispatchObservation(mbed_id,ep,uri,value,trace,trace_id);
+            }
+        });
+        
+        // bulk discovery configuration
+        this.m_discovery_enabled = preference_manager.booleanValueOf("shadow_discovery_enabled");
+        this.m_discovery_batch_size = preference_manager.intValueOf("shadow_discovery_batch_size");
+        if (this.m_discovery_batch_size <= 0) {
+            this.m_discovery_batch_size = DEF_DISCOVERY_BATCH_SIZE;
+        }
+        this.m_discovery_parallelism = preference_manager.intValueOf("shadow_discovery_parallelism");
+        if (this.m_discovery_parallelism <= 0) {
+            this.m_discovery_parallelism = DEF_DISCOVERY_PARALLELISM;
+        }
+        
+        // Metrics
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        this.m_shadows_discovered = metrics.counter("shadows_discovered_total","Device shadows created by bulk discovery");
+        this.m_shadows_reregistered = metrics.counter("shadows_reregistered_total","Existing device shadows re-registered with edge core on link up");
+        this.m_observations_sent = metrics.counter("observations_sent_total","Observations dispatched to Pelion");
+        this.m_observations_failed = metrics.counter("observations_failed_total","Observations that could not be dispatched to Pelion");
+        metrics.gauge("shadow_device_count","Shadowed devices",new Gauge() {
+            @Override
+            public long value() {
+                return m_db.getShadowCount();
+            }
+        });
+        
         // announce
         this.errorLogger().warning("PelionShadowServiceProcessor installed. Date: " + Utils.dateToString(Utils.now()));
     }
@@ -79,7 +170,84 @@ public class PelionShadowServiceProcessor extends BaseClass implements DeviceSha
     @Override
     public boolean initialize() {
         this.errorLogger().info("PelionShadowServiceProcessor: in initialize()...");
-        return this.m_db.initialize(this);
+        boolean initialized = this.m_db.initialize(this);
+        
+        // start the observation writer
+        this.m_scheduler.start();
+        
+        // re-register our shadows (and bulk discover EdgeX devices) each time edge core becomes available
+        this.startDiscovery();
+        
+        // sharded: release/pick up shadows whenever device ownership moves
+        if (this.m_shards.isEnabled() == true) {
+            this.m_shards.addListener(new ShardCoordinator.Listener() {
+                @Override
+                public void rebalanced(List<String> members) {
+                    rebalanceShadows(members);
+                }
+            });
+        }
+        
+        // the connection supervisor connects (and keeps connected) our underlying API
+        this.m_device_manager.superviseConnection();
+        return initialized;
+    }
+    
+    // start re-registration/bulk discovery (runs in the background whenever the edge core link comes up)
+    private void startDiscovery() {
+        this.m_discovery_pool = Executors.newFixedThreadPool(this.m_discovery_parallelism + 1,new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable,"shadow-discovery");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.m_discovery_listener = new ConnectionSupervisor.Listener() {
+            @Override
+            public void linkUp(String name) {
+                if (PelionEdgeCoreClientAPI.LINK_NAME.equals(name)) {
+                    // a new link: edge core no longer knows any of our devices (the next pass re-registers them)
+                    m_reregister.set(true);
+                }
+                if (PelionEdgeCoreClientAPI.LINK_NAME.equals(name) && m_shards.isSettled() == true) {
+                    m_discovery_pool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            runDiscovery();
+                        }
+                    });
+                }
+            }
+
+            @Override
+            public void linkDown(String name,int attempts,long retry_in_ms) {
+                // nothing to do... discovery runs again once the link is restored
+            }
+        };
+        ConnectionSupervisor.getInstance(this.errorLogger(),this.preferences()).addListener(this.m_discovery_listener);
+    }
+    
+    // run discovery (re-registering our shadows first after a link up)... if a pass is already running, it runs again once it completes (so no request is lost)
+    private void runDiscovery() {
+        this.m_rediscover.set(true);
+        while (this.m_rediscover.get() == true && this.m_discovering.compareAndSet(false,true) == true) {
+            try {
+                this.m_rediscover.set(false);
+                if (this.m_reregister.getAndSet(false) == true) {
+                    this.reregisterShadows();
+                }
+                if (this.m_discovery_enabled == true) {
+                    this.discoverDevices();
+                }
+            }
+            catch (Exception ex) {
+                this.errorLogger().warning("PelionShadowServiceProcessor: Exception during device discovery: " + ex.getMessage());
+            }
+            finally {
+                this.m_discovering.set(false);
+            }
+        }
     }
     
     // validate the underlying connection
@@ -94,6 +262,12 @@ public class PelionShadowServiceProcessor extends BaseClass implements DeviceSha
         return this.m_db;
     }
     
+    // get the observation scheduler
+    @Override
+    public ObservationScheduler getObservationScheduler() {
+        return this.m_scheduler;
+    }
+    
     // create the device shadow
     private Map createShadow(Map mbed_device) {
         // create the device shadow in pelion
@@ -113,10 +287,11 @@ public class PelionShadowServiceProcessor extends BaseClass implements DeviceSha
         return removed;
     }
     
-    // send an observation to the device shadow...
+    // send an observation to the device shadow... (pipelined: returns once dispatched, outcomes are handled on completion)
     @Override
     public boolean sendObservation(Map message) {
         boolean sent = true;
+        Trace trace = Tracer.getInstance().current();
         
         // loop through the readings and process each one...
         List readings = (List)message.get("readings");
@@ -133,17 +308,27 @@ public class PelionShadowServiceProcessor extends BaseClass implements DeviceSha
 
                 // now send the observation into pelion if we have all of the data...
                 if (mbed_id != null && mbed_resource_uri != null && new_value != null) {
-                    // send the observation to pelion
-                    sent = this.m_device_manager.processDeviceObservation(mbed_id, edgex_name, mbed_resource_uri, new_value);
+                    // filter out duplicates/insignificant changes (OK... nothing to send)
+                    if (this.m_filter.accept(edgex_resource, edgex_name, mbed_resource_uri, new_value) == false) {
+                        continue;
+                    }
+                    
+                    // queue the observation for pelion (rate limited per device, dispatched fairly across devices)... the filter
+                    // only remembers it as published once queued (a dropped observation must not suppress the next reading)
+                    if (this.m_scheduler.submit(mbed_id, edgex_name, mbed_resource_uri, new_value, trace) == true) {
+                        this.m_filter.record(edgex_resource, edgex_name, mbed_resource_uri, new_value);
+                    }
                 }
                 else {
                     // error
+                    this.m_observations_failed.increment();
                     this.errorLogger().warning("PelionShadowServiceProcessor: Unable to dispatch observation to Pelion (mapping issues) MBED_ID: " + mbed_id + " URI: " + mbed_resource_uri + " VALUE: " + new_value);
                     sent = false;
                 }
             }
             catch (Exception ex) {
                 // error
+                this.m_observations_failed.increment();
                 this.errorLogger().warning("PelionShadowServiceProcessor: Unable to dispatch observation to Pelion (exception): " + ex.getMessage());
                 sent = false;
             }
@@ -154,6 +339,26 @@ public class PelionShadowServiceProcessor extends BaseClass implements DeviceSha
     }
     
     
+    // dispatch an observation to pelion (observation writer thread... do not wait for the reply)
+    private void dispatchObservation(String mbed_id,final String ep,final String uri,Object value,final Trace trace,final long trace_id) {
+        final long start_ns = System.nanoTime();
+        this.m_device_manager.processDeviceObservationAsync(mbed_id, ep, uri, value).whenComplete(new BiConsumer<Boolean,Throwable>() {
+            @Override
+            public void accept(Boolean ok,Throwable error) {
+                // the reading's trace ends with the edge core write acknowledgement
+                trace.span(trace_id,PipelineStage.EDGE_CORE_RPC,System.nanoTime() - start_ns);
+                trace.release(trace_id);
+                if (error == null && ok != null && ok == true) {
+                    m_observations_sent.increment();
+                }
+                else {
+                    m_observations_failed.increment();
+                    errorLogger().info("PelionShadowServiceProcessor: Observation dispatch FAILED: EP: " + ep + " URI: " + uri + ((error != null) ? " ERROR: " + error.getMessage() : ""));
+                }
+            }
+        });
+    }
+    
     // shadow requests resource value "get"
     @Override
     public String getDeviceResource(String mbed_id, String mbed_resource_uri, Object new_value) {        
@@ -163,8 +368,8 @@ public class PelionShadowServiceProcessor extends BaseClass implements DeviceSha
         // map the mbed LWM2M resource URI to the edgex equivalent
         String edgex_resource_id = this.mapMbedResourcePathToEdgeXResource(mbed_resource_uri);
         
-        // Call the EdgeX processor to process the modification request
-        return this.m_edgex.updateDeviceResourceValue(edgex,edgex_resource_id,new_value);
+        // Call the EdgeX processor to process the read request
+        return this.m_edgex.getDeviceResourceValue(edgex,edgex_resource_id,new_value);
     }
     
     // shadow requests resource modification/change
@@ -189,6 +394,7 @@ public class PelionShadowServiceProcessor extends BaseClass implements DeviceSha
         if (device != null) {
             // device exists in Pelion
             this.errorLogger().info("PelionShadowServiceProcessor: mbed ID: " + mbed_id + " exists in Pelion");
+            exists = true;
         }
         else {
             // device does not exist in Pelion
@@ -237,8 +443,17 @@ public class PelionShadowServiceProcessor extends BaseClass implements DeviceSha
 
     @Override
     public void closedown() {
-         // sync the cache to file if enabled
-        boolean saved = this.m_db.saveToCache();
+        // stop discovery
+        if (this.m_discovery_listener != null) {
+            ConnectionSupervisor.getInstance(this.errorLogger(),this.preferences()).removeListener(this.m_discovery_listener);
+            this.m_discovery_pool.shutdownNow();
+        }
+        
+        // stop the observation writer
+        this.m_scheduler.stop();
+        
+         // flush any outstanding changes to the cache file if enabled
+        boolean saved = this.m_db.closedown();
         if (saved == true) {
             // successfully cached mappings
             this.errorLogger().info("PelionShadowServiceProcessor:closedown: SUCCESS device mapping saved...");
@@ -341,9 +556,55 @@ public class PelionShadowServiceProcessor extends BaseClass implements DeviceSha
 
         // Get the EdgeX device name
         String edgex_dev_name = (String)edgex_message.get("device");
+        
+        // create the shadow (its metadata is looked up in EdgeX)
+        created = this.createDeviceShadow(edgex_dev_name,null);
+        return created;
+    }
+    
+    // create the shadow unless another thread already is (then wait for its outcome instead)
+    private boolean createDeviceShadow(String edgex_dev_name,Map edgex_device) {
+        boolean created = false;
+        if (this.m_shards.isSettled() == false) {
+            // sharded and we have not heard from the other instances yet... one of them may already shadow this device
+            this.errorLogger().info("PelionShadowServiceProcessor: shard membership not settled. Deferring shadow creation for: " + edgex_dev_name);
+            return false;
+        }
+        CompletableFuture<Boolean> pending = new CompletableFuture<>();
+        CompletableFuture<Boolean> existing = this.m_pending_shadows.putIfAbsent(edgex_dev_name,pending);
+        if (existing != null) {
+            return this.awaitShadow(edgex_dev_name,existing);
+        }
+        
+        try {
+            created = this.createAndCacheShadow(edgex_dev_name,edgex_device);
+        }
+        finally {
+            this.m_pending_shadows.remove(edgex_dev_name);
+            pending.complete(created);
+        }
+        return created;
+    }
+    
+    // wait for a shadow being created by another thread
+    private boolean awaitShadow(String edgex_dev_name,CompletableFuture<Boolean> pending) {
+        try {
+            return pending.get(DEF_SHADOW_CREATE_WAIT_MS,TimeUnit.MILLISECONDS);
+        }
+        catch (Exception ex) {
+            this.errorLogger().info("PelionShadowServiceProcessor: Timed out waiting for shadow creation of EdgeX device: " + edgex_dev_name);
+            return false;
+        }
+    }
+    
+    // create (and cache) the shadow for a single EdgeX device (its metadata is looked up if not given)
+    private boolean createAndCacheShadow(String edgex_dev_name,Map edgex_device) {
+        boolean created = false;
 
         // Get the resource information for the EdgeX device
-        Map edgex_device = this.lookupEdgeXDeviceDetails(edgex_dev_name);
+        if (edgex_device == null) {
+            edgex_device = this.lookupEdgeXDeviceDetails(edgex_dev_name);
+        }
         if (edgex_device != null) {
             // create the mbed Shadow + its resources
             Map mbed_device = this.createMbedDeviceShadow(edgex_device);
@@ -351,22 +612,18 @@ public class PelionShadowServiceProcessor extends BaseClass implements DeviceSha
                 // DEBUG
                 this.errorLogger().info("PelionShadowServiceProcessor: DEVICE: " + mbed_device);
                 
-                // save this new device off in the cache
+                // save this new device off in the cache (the flusher writes it to the cache file shortly)
                 String mbed_id = (String)mbed_device.get("id");
-                this.m_db.addDevice(mbed_id, mbed_device, edgex_dev_name, edgex_device);
-
-                // save the config to cache
-                created = this.m_db.saveToCache();
+                long save_ns = System.nanoTime();
+                synchronized (this.m_db) {
+                    this.m_db.addDevice(mbed_id, mbed_device, edgex_dev_name, edgex_device);
+                    this.m_db.commit();
+                }
+                Tracer.getInstance().current().stage(PipelineStage.SHADOW_SAVE,save_ns);
+                created = true;
 
                 // DEBUG
-                if (created == true) {
-                    // Successfully cache the shadow!
-                    this.errorLogger().info("PelionShadowServiceProcessor: SUCCESS. mbed shadow: " + mbed_id + " for EdgeX device: " + edgex_dev_name + " successfully cached");
-                }
-                else {
-                    // Unable to cache the shadow
-                    this.errorLogger().warning("PelionShadowServiceProcessor: FAILURE. mbed shadow: " + mbed_id + " for EdgeX device: " + edgex_dev_name + " NOT CACHED");
-                }
+                this.errorLogger().info("PelionShadowServiceProcessor: SUCCESS. mbed shadow: " + mbed_id + " for EdgeX device: " + edgex_dev_name + " successfully cached");
             }
             else {
                 // Unable to create shadow - no device map
@@ -378,16 +635,273 @@ public class PelionShadowServiceProcessor extends BaseClass implements DeviceSha
         return created;
     }
     
+    // apply an EdgeX metadata change: create the shadow, re-register it (mapped resources changed) or just refresh its metadata
+    @Override
+    public boolean syncDeviceShadow(Map edgex_device) {
+        String edgex_name = (String)edgex_device.get("name");
+        if (this.m_shards.owns(edgex_name) == false) {
+            // another instance shadows this device
+            return true;
+        }
+        String mbed_id = this.m_db.lookupMbedName(edgex_name);
+        if (mbed_id == null) {
+            // new device
+            return this.createDeviceShadow(edgex_name,edgex_device);
+        }
+        
+        // unchanged mapping (e.g. description, labels): refresh the cached EdgeX metadata only
+        Map cached_edgex_device = this.m_db.getEdgeXDevice(edgex_name);
+        if (cached_edgex_device != null && this.mappedResources(cached_edgex_device).equals(this.mappedResources(edgex_device))) {
+            synchronized (this.m_db) {
+                this.m_db.addDevice(mbed_id, this.m_db.getMbedDevice(mbed_id), edgex_name, edgex_device);
+                this.m_db.commit();
+            }
+            return true;
+        }
+        
+        // resources or types changed: re-register just this device (claimed so lazy creation and discovery wait for us)
+        boolean synced = false;
+        CompletableFuture<Boolean> pending = new CompletableFuture<>();
+        CompletableFuture<Boolean> existing = this.m_pending_shadows.putIfAbsent(edgex_name,pending);
+        if (existing != null) {
+            // already being (re)created... it will pick up the latest metadata
+            return this.awaitShadow(edgex_name,existing);
+        }
+        try {
+            // DEBUG
+            this.errorLogger().warning("PelionShadowServiceProcessor: EdgeX device: " + edgex_name + " resources changed. Re-registering its shadow...");
+            
+            // edge core knows the device by its endpoint (EdgeX) name... resources it no longer has are forgotten
+            this.removeShadow(edgex_name);
+            synchronized (this.m_db) {
+                this.m_db.removeDevice(mbed_id, edgex_name);
+                this.m_db.commit();
+            }
+            this.m_filter.removeDevice(edgex_name);
+            synced = this.createAndCacheShadow(edgex_name,edgex_device);
+        }
+        finally {
+            this.m_pending_shadows.remove(edgex_name);
+            pending.complete(synced);
+        }
+        return synced;
+    }
+    
+    // remove the shadow of a device that has been removed from EdgeX
+    @Override
+    public boolean removeDeviceShadow(String edgex_name) {
+        String mbed_id = this.m_db.lookupMbedName(edgex_name);
+        if (mbed_id == null) {
+            // not shadowed
+            return true;
+        }
+        
+        // DEBUG
+        this.errorLogger().warning("PelionShadowServiceProcessor: EdgeX device: " + edgex_name + " removed. Removing its shadow...");
+        
+        // edge core knows the device by its endpoint (EdgeX) name
+        boolean removed = this.removeShadow(edgex_name);
+        synchronized (this.m_db) {
+            this.m_db.removeDevice(mbed_id, edgex_name);
+            this.m_db.commit();
+        }
+        this.m_scheduler.removeDevice(edgex_name);
+        this.m_filter.removeDevice(edgex_name);
+        return removed;
+    }
+    
+    // shard membership changed: release the shadows we no longer own, then discover the ones we now own
+    private void rebalanceShadows(List<String> members) {
+        int released = 0;
+        for (String edgex_name : this.m_db.getEdgeXNames()) {
+            if (this.m_shards.owns(edgex_name) == false) {
+                this.removeDeviceShadow(edgex_name);
+                ++released;
+            }
+        }
+        
+        // DEBUG
+        this.errorLogger().warning("PelionShadowServiceProcessor: Rebalance: members: " + members + " released " + released + " device shadow(s)");
+        
+        // pick up the devices that moved to us (and re-register ours if the link came up before we settled)
+        this.runDiscovery();
+    }
+    
+    // re-register the shadows we own with edge core (parallel bounded batches)... edge core only knows a protocol
+    // translator's devices while its link is up, so shadows from before a reconnect or restart must be registered again
+    private int reregisterShadows() {
+        ArrayList<String> owned = new ArrayList<>();
+        for (String edgex_name : this.m_db.getEdgeXNames()) {
+            if (this.m_shards.owns(edgex_name) == true) {
+                owned.add(edgex_name);
+            }
+        }
+        
+        int registered = 0;
+        for (int start=0;start<owned.size();start += this.m_discovery_batch_size) {
+            List<String> batch = owned.subList(start,Math.min(owned.size(),start + this.m_discovery_batch_size));
+            ArrayList<Future<Boolean>> registrations = new ArrayList<>();
+            for (final String edgex_name : batch) {
+                registrations.add(CompletableFuture.supplyAsync(new Supplier<Boolean>() {
+                    @Override
+                    public Boolean get() {
+                        return reregisterShadow(edgex_name);
+                    }
+                },this.m_discovery_pool));
+            }
+            for (int i=0;i<batch.size();++i) {
+                try {
+                    if (registrations.get(i).get() == true) {
+                        ++registered;
+                    }
+                }
+                catch (Exception ex) {
+                    this.errorLogger().warning("PelionShadowServiceProcessor: Re-registration: Exception registering EdgeX device: " + batch.get(i) + ": " + ex.getMessage());
+                }
+            }
+        }
+        
+        // DEBUG
+        this.m_shadows_reregistered.add(registered);
+        this.errorLogger().warning("PelionShadowServiceProcessor: Re-registration: re-registered " + registered + " of " + owned.size() + " device shadow(s)");
+        return registered;
+    }
+    
+    // re-register a single existing shadow from its stored mbed device
+    private boolean reregisterShadow(String edgex_name) {
+        Map mbed_device = this.m_db.getMbedDeviceByEdgeXName(edgex_name);
+        if (mbed_device == null) {
+            return false;
+        }
+        
+        // the ID is only set again if edge core accepted the registration
+        String mbed_id = (String)mbed_device.get("id");
+        HashMap<String,Object> device = new HashMap<>(mbed_device);
+        device.remove("id");
+        Map registered = this.createShadow(device);
+        if (registered == null || registered.get("id") == null) {
+            this.errorLogger().warning("PelionShadowServiceProcessor: Re-registration: Unable to re-register EdgeX device: " + edgex_name);
+            return false;
+        }
+        if (mbed_id != null && mbed_id.equals(registered.get("id")) == false) {
+            // re-key the shadow under its new mbed ID
+            this.errorLogger().warning("PelionShadowServiceProcessor: Re-registration: EdgeX device: " + edgex_name + " now has mbed ID: " + registered.get("id") + " (was: " + mbed_id + ")");
+            Map edgex_device = this.m_db.getEdgeXDevice(edgex_name);
+            synchronized (this.m_db) {
+                this.m_db.removeDevice(mbed_id, edgex_name);
+                this.m_db.addDevice((String)registered.get("id"), registered, edgex_name, edgex_device);
+                this.m_db.commit();
+            }
+        }
+        return true;
+    }
+    
+    // the mbed resources an EdgeX device maps to (path, type, rw, etc.)
+    private List mappedResources(Map edgex_device) {
+        return (List)this.mapEdgeXResourcesToMbedResources(new HashMap<String,Object>(),edgex_device).get("resources");
+    }
+    
+    // bulk discovery: shadow every EdgeX device not yet shadowed (parallel bounded batches, one DB commit)
+    @Override
+    public int discoverDevices() {
+        // one call to EdgeX for all of the device metadata
+        List<Map> edgex_devices = this.m_edgex.discoverEdgeXDevices();
+        if (edgex_devices == null) {
+            return 0;
+        }
+        
+        // claim the devices that are not yet shadowed (or being shadowed by the lazy path)
+        ArrayList<Map> unshadowed = new ArrayList<>();
+        HashMap<String,CompletableFuture<Boolean>> claims = new HashMap<>();
+        for (Map edgex_device : edgex_devices) {
+            String edgex_name = (String)edgex_device.get("name");
+            if (edgex_name != null && this.m_shards.owns(edgex_name) == true && this.m_db.lookupMbedName(edgex_name) == null) {
+                CompletableFuture<Boolean> claim = new CompletableFuture<>();
+                if (this.m_pending_shadows.putIfAbsent(edgex_name,claim) == null) {
+                    claims.put(edgex_name,claim);
+                    unshadowed.add(edgex_device);
+                }
+            }
+        }
+        
+        // DEBUG
+        this.errorLogger().warning("PelionShadowServiceProcessor: Discovery: " + edgex_devices.size() + " EdgeX device(s), " + unshadowed.size() + " to shadow");
+        
+        int created = 0;
+        try {
+            // register in batches... each batch is registered in parallel
+            for (int start=0;start<unshadowed.size();start += this.m_discovery_batch_size) {
+                List<Map> batch = unshadowed.subList(start,Math.min(unshadowed.size(),start + this.m_discovery_batch_size));
+                ArrayList<Future<Map>> registrations = new ArrayList<>();
+                for (final Map edgex_device : batch) {
+                    registrations.add(CompletableFuture.supplyAsync(new Supplier<Map>() {
+                        @Override
+                        public Map get() {
+                            return createMbedDeviceShadow(edgex_device);
+                        }
+                    },this.m_discovery_pool));
+                }
+                
+                // add the registered devices as one change (committed once, below)
+                ArrayList<Map> mbed_devices = new ArrayList<>();
+                ArrayList<Map> edgex_devices_added = new ArrayList<>();
+                for (int i=0;i<batch.size();++i) {
+                    Map edgex_device = batch.get(i);
+                    String edgex_name = (String)edgex_device.get("name");
+                    Map mbed_device = null;
+                    try {
+                        mbed_device = registrations.get(i).get();
+                    }
+                    catch (Exception ex) {
+                        this.errorLogger().warning("PelionShadowServiceProcessor: Discovery: Exception registering EdgeX device: " + edgex_name + ": " + ex.getMessage());
+                    }
+                    if (mbed_device != null && mbed_device.get("id") != null) {
+                        mbed_devices.add(mbed_device);
+                        edgex_devices_added.add(edgex_device);
+                        ++created;
+                    }
+                    else {
+                        this.errorLogger().warning("PelionShadowServiceProcessor: Discovery: Unable to create shadow for EdgeX device: " + edgex_name);
+                    }
+                }
+                if (mbed_devices.isEmpty() == false) {
+                    this.m_db.addDevices(mbed_devices,edgex_devices_added);
+                }
+            }
+            
+            // single commit for the whole discovery pass
+            if (created > 0) {
+                this.m_db.commit();
+            }
+        }
+        finally {
+            // release our claims (anyone waiting sees whether the shadow now exists)
+            for (Map.Entry<String,CompletableFuture<Boolean>> claim : claims.entrySet()) {
+                this.m_pending_shadows.remove(claim.getKey());
+                claim.getValue().complete(this.m_db.lookupMbedName(claim.getKey()) != null);
+            }
+        }
+        
+        // DEBUG
+        this.m_shadows_discovered.add(created);
+        this.errorLogger().warning("PelionShadowServiceProcessor: Discovery: created " + created + " of " + unshadowed.size() + " device shadow(s)");
+        return created;
+    }
+    
     private Map lookupEdgeXDeviceDetails(String edgex_dev_name) {
        // create the URL to EdgeX that retrieves the metadata for the device
        String url = this.m_edgex.buildEdgeXMetadataURL(edgex_dev_name);
 
-       // call EdgeX to retrieve the metadata for the device
+       // call EdgeX to retrieve the metadata for the device (the response carries its own status code... the HTTP transport is shared)
        //this.errorLogger().warning("lookupEdgeXDeviceDetails: URL: " + url);
-       String edgex_metadata_str = this.m_http.httpGet(url);
+       long start_ns = System.nanoTime();
+       HttpResponse response = this.m_http.httpGetResponse(url);
+       String edgex_metadata_str = response.body();
+       int response_code = response.responseCode();
+       Tracer.getInstance().current().stage(PipelineStage.EDGEX_HTTP_GET,start_ns);
 
        // make sure we got something back...
-       if (this.m_http.getLastResponseCode() < 300 && edgex_metadata_str != null && edgex_metadata_str.length() > 0) {
+       if (response_code < 300 && edgex_metadata_str != null && edgex_metadata_str.length() > 0) {
             try {
                 // DEBUG
                 //this.errorLogger().info("lookupEdgeXDeviceDetails: EdgeX Metadata: " + edgex_metadata_str);
@@ -418,13 +932,13 @@ public class PelionShadowServiceProcessor extends BaseClass implements DeviceSha
                // not configured 
                this.errorLogger().warning("PelionShadowServiceProcessor: EdgeX IP address not configured. Unable to lookup device details");
            }
-           else if (this.m_http.getLastResponseCode() == 599) {
+           else if (response_code == 599) {
                // timed out... wrong IP address for EdgeX?
                this.errorLogger().warning("PelionShadowServiceProcessor: EdgeX not responding (IP address wrong?). Unable to lookup device details");
            }
            else {
                 // HTTP error
-                this.errorLogger().warning("PelionShadowServiceProcessor: metadata lookup FAILED... Response Code: " + this.m_http.getLastResponseCode() + " URL: " + url);
+                this.errorLogger().warning("PelionShadowServiceProcessor: metadata lookup FAILED... Response Code: " + response_code + " URL: " + url);
            }
        }
        return null;
@@ -491,23 +1005,13 @@ public class PelionShadowServiceProcessor extends BaseClass implements DeviceSha
 
     // lookup our mbed device shadow for this edgex device
     private Map edgexDeviceToMbedDevice(String edgex_name) {
-        // Get our mbed ID
-        String mbed_id = this.m_db.lookupMbedName(edgex_name);
-        if (mbed_id != null) {
-            return this.m_db.getMbedDevice(mbed_id);
-        }
-        return null;
+        return this.m_db.getMbedDeviceByEdgeXName(edgex_name);
     }
 
     // lookup our mbed device shadow for this edgex device
     @Override
     public Map mbedDeviceToEdgeXDevice(String mbed_name) {
-        // Get our mbed ID
-        String edgex_name = this.m_db.lookupEdgeXName(mbed_name);
-        if (edgex_name != null) {
-            return this.m_db.getEdgeXDevice(edgex_name);
-        }
-        return null;
+        return this.m_db.getEdgeXDeviceByMbedId(mbed_name);
     } 
     
     @Override
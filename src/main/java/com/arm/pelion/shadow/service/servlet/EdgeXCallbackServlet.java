@@ -0,0 +1,69 @@
+/**
+ * @file EdgeXCallbackServlet.java
+ * @brief EdgeX metadata change notification callback
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.shadow.service.servlet;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * EdgeX Callback Servlet (core-metadata device change notifications)
+ * @author Doug Anson
+ */
+public class EdgeXCallbackServlet extends HttpServlet {
+    private Manager m_manager = null;
+    
+    // default constructor
+    public EdgeXCallbackServlet(Manager manager) {
+        this.m_manager = manager;
+    }
+    
+    @Override
+    protected void doPost(HttpServletRequest request,HttpServletResponse response) throws IOException {
+        this.notification(request,response);
+    }
+    
+    @Override
+    protected void doPut(HttpServletRequest request,HttpServletResponse response) throws IOException {
+        this.notification(request,response);
+    }
+    
+    @Override
+    protected void doDelete(HttpServletRequest request,HttpServletResponse response) throws IOException {
+        this.notification(request,response);
+    }
+    
+    // hand the notification to the metadata sync (applied asynchronously)
+    private void notification(HttpServletRequest request,HttpServletResponse response) throws IOException {
+        StringBuilder body = new StringBuilder();
+        BufferedReader reader = request.getReader();
+        String line = null;
+        while ((line = reader.readLine()) != null) {
+            body.append(line);
+        }
+        this.m_manager.edgexMetadataChanged(body.toString());
+        response.setStatus(HttpServletResponse.SC_ACCEPTED);
+    }
+}
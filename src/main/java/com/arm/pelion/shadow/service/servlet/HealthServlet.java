@@ -0,0 +1,54 @@
+/**
+ * @file HealthServlet.java
+ * @brief serves the latest published health statistics
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.shadow.service.servlet;
+
+import java.io.IOException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Health Statistics Servlet (latest published health statistics as JSON)
+ * @author Doug Anson
+ */
+public class HealthServlet extends HttpServlet {
+    private Manager m_manager = null;
+    
+    // default constructor
+    public HealthServlet(Manager manager) {
+        this.m_manager = manager;
+    }
+    
+    @Override
+    protected void doGet(HttpServletRequest request,HttpServletResponse response) throws IOException {
+        String json = this.m_manager.healthStatisticsJSON();
+        if (json == null) {
+            // nothing published yet
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/json; charset=utf-8");
+        response.getWriter().write(json);
+    }
+}
@@ -103,6 +103,16 @@ public final class Manager {
         this.m_orchestrator.refreshHealthStats();
     }
     
+    // get the latest health statistics (JSON)
+    public String healthStatisticsJSON() {
+        return this.m_orchestrator.getHealthStatisticsJSON();
+    }
+    
+    // EdgeX metadata change notification
+    public void edgexMetadataChanged(String notification) {
+        this.m_orchestrator.getEdgeXServiceProcessor().metadataSync().notification(notification);
+    }
+    
     // validate underlying connections
     public void validateUnderlyingConnection() {
         this.m_orchestrator.validateUnderlyingConnection();
@@ -0,0 +1,48 @@
+/**
+ * @file HttpResponse.java
+ * @brief HTTP response (body and status code of a single request)
+ * @author Doug Anson
+ * @version 1.0
+ * @see
+ *
+ * Copyright 2020. ARM Ltd. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.arm.pelion.shadow.service.transport;
+
+/**
+ * HTTP Response: the body and status code of one request (safe to use when the transport is shared between threads)
+ * @author Doug Anson
+ */
+public class HttpResponse {
+    private String m_body = null;
+    private int m_response_code = 0;
+
+    // constructor
+    public HttpResponse(String body, int response_code) {
+        this.m_body = body;
+        this.m_response_code = response_code;
+    }
+
+    // get the body (null on failure)
+    public String body() {
+        return this.m_body;
+    }
+
+    // get the response code
+    public int responseCode() {
+        return this.m_response_code;
+    }
+}
@@ -205,6 +205,21 @@ public class HttpTransport extends BaseClass {
         return this.dispatchHTTPS("POST", url, null, null, value, "application/json", true, false, false, false, null);
     }
 
+    // HTTP Get (local... with its own response code: use these when the transport is shared between threads)
+    public HttpResponse httpGetResponse(String url) {
+        return this.dispatch("GET", url, null, null, null, "application/json", true, false, false, false, null, false);
+    }
+
+    // HTTP Put (local... with its own response code)
+    public HttpResponse httpPutResponse(String url,String value) {
+        return this.dispatch("PUT", url, null, null, value, "application/json", true, false, false, false, null, false);
+    }
+
+    // HTTP Post (local... with its own response code)
+    public HttpResponse httpPostResponse(String url,String value) {
+        return this.dispatch("POST", url, null, null, value, "application/json", true, false, false, false, null, false);
+    }
+
     // execute GET over https
     /**
      *
@@ -457,6 +472,7 @@ public class HttpTransport extends BaseClass {
         this.m_last_response_code = response_code;
     }
 
+    // response code of the last request (racy when the transport is shared: use the http*Response() calls instead)
     public int getLastResponseCode() {
         return this.m_last_response_code;
     }
@@ -482,7 +498,13 @@ public class HttpTransport extends BaseClass {
 
     // perform the HTTPS dispatch
     private String dispatchHTTPS(String verb, String url_str, String username, String password, String data, String content_type, boolean doInput, boolean doOutput, boolean doSSL, boolean use_api_token, String api_token, boolean persistent) {
+        return this.dispatch(verb, url_str, username, password, data, content_type, doInput, doOutput, doSSL, use_api_token, api_token, persistent).body();
+    }
+
+    // perform the HTTPS dispatch (the response code is returned with the body... and also saved as the last response code)
+    private HttpResponse dispatch(String verb, String url_str, String username, String password, String data, String content_type, boolean doInput, boolean doOutput, boolean doSSL, boolean use_api_token, String api_token, boolean persistent) {
         String result = "";
+        int response_code = 0;
         String line = "";
         URLConnection connection = null;
         
@@ -678,23 +700,23 @@ public class HttpTransport extends BaseClass {
                 
                 if (doSSL == true) {
                     // save off the HTTPS response code & ETag if we have one...
-                    this.saveResponseCode(((HttpsURLConnection) connection).getResponseCode());
+                    response_code = ((HttpsURLConnection) connection).getResponseCode();
                     this.saveETagValue(((HttpsURLConnection) connection).getHeaderFields());
                 }
                 else {
                     // save off the HTTP response code & ETag if we have one...
-                    this.saveResponseCode(((HttpURLConnection) connection).getResponseCode());
+                    response_code = ((HttpURLConnection) connection).getResponseCode();
                     this.saveETagValue(((HttpURLConnection) connection).getHeaderFields());
                 }
                 
                 // DEBUG
-                this.errorLogger().info("HttpTransport(" + verb +"):  URL: " + url_str + " CODE: " + this.getLastResponseCode() + " DATA: " + data + " RESULT: " + result);
+                this.errorLogger().info("HttpTransport(" + verb +"):  URL: " + url_str + " CODE: " + response_code + " DATA: " + data + " RESULT: " + result);
             }
             else {
                 // no security context setup...
                 this.errorLogger().critical("HttpTransport(" + verb + "): Secure Context NOT SETUP: URL: " + url_str);
-                this.saveResponseCode(598);
-                return null;
+                response_code = 598;
+                result = null;
             }
         }    
         catch (IOException ex) {
@@ -707,25 +729,26 @@ public class HttpTransport extends BaseClass {
                 if (connection != null) {
                     if (doSSL == true) {
                         // save off the HTTPS response code...
-                        this.saveResponseCode(((HttpsURLConnection) connection).getResponseCode());
+                        response_code = ((HttpsURLConnection) connection).getResponseCode();
                     }
                     else {
                         // save off the HTTP response code...
-                        this.saveResponseCode(((HttpURLConnection) connection).getResponseCode());
+                        response_code = ((HttpURLConnection) connection).getResponseCode();
                     }
                 }
                 else {
                     this.errorLogger().warning("HttpTransport(" + verb + "): ERROR in doHTTP(" + verb + "): Connection is NULL");
-                    this.saveResponseCode(597);
+                    response_code = 597;
                 }
             }
             catch (IOException ex2) {
                 this.errorLogger().info("HttpTransport(" + verb + "): Exception in doHTTP(" + verb + "): Unable to save last response code: " + ex2.getMessage());
-                this.saveResponseCode(599);        
+                response_code = 599;        
             }
         }
 
         // return the result
-        return result;
+        this.saveResponseCode(response_code);
+        return new HttpResponse(result, response_code);
     }
 }
\ No newline at end of file
@@ -22,10 +22,13 @@
  */
 package com.arm.pelion.shadow.service.transport;
 
+import com.arm.pelion.shadow.service.core.ConnectionSupervisor;
 import com.arm.pelion.shadow.service.core.Transport;
 import com.arm.pelion.shadow.service.core.ErrorLogger;
 import com.arm.pelion.shadow.service.core.Utils;
 import com.arm.pelion.shadow.service.interfaces.GenericSender;
+import com.arm.pelion.shadow.service.metrics.Trace;
+import com.arm.pelion.shadow.service.metrics.Tracer;
 import com.arm.pelion.shadow.service.preferences.PreferenceManager;
 import java.io.EOFException;
 import java.io.FileInputStream;
@@ -61,13 +64,12 @@ import org.fusesource.mqtt.client.Topic;
 public class MQTTTransport extends Transport implements GenericSender {
 
     private static volatile MQTTTransport m_self = null;
-    private BlockingConnection m_connection = null;
+    private volatile BlockingConnection m_connection = null;
     private byte[] m_qoses = null;
     private String m_suffix = null;
     private String m_username = null;
     private String m_password = null;
     private String m_host_url = null;
-    private int m_sleep_time = 0;
     private String m_client_id = null;
 
     private String m_connect_host = null;
@@ -75,8 +77,8 @@ public class MQTTTransport extends Transport implements GenericSender {
     private String m_connect_client_id = null;
     private boolean m_connect_clean_session = false;
 
-    private int m_num_retries = 0;
-    private int m_max_retries = 10;
+    private ConnectionSupervisor m_supervisor = null;
+    private String m_link_name = null;
     private Topic[] m_subscribe_topics = null;
     private String[] m_unsubscribe_topics = null;
     private boolean m_forced_ssl = false;
@@ -130,8 +132,6 @@ public class MQTTTransport extends Transport implements GenericSender {
 
         this.setUsername(this.prefValue("mqtt_username", this.m_suffix));
         this.setPassword(this.prefValue("mqtt_password", this.m_suffix));
-        this.m_max_retries = this.preferences().intValueOf("mqtt_connect_retries", this.m_suffix);
-        this.m_sleep_time = ((this.preferences().intValueOf("mqtt_receive_loop_sleep", this.m_suffix)) * 1000);
         this.m_keystore_pw = this.preferences().valueOf("mqtt_keystore_pw", this.m_suffix);
         this.m_base_dir = this.preferences().valueOf("mqtt_keystore_basedir", this.m_suffix);
         this.m_keystore_basename = this.preferences().valueOf("mqtt_keystore_basename", this.m_suffix);
@@ -155,8 +155,6 @@ public class MQTTTransport extends Transport implements GenericSender {
 
         this.setUsername(this.prefValue("mqtt_username", this.m_suffix));
         this.setPassword(this.prefValue("mqtt_password", this.m_suffix));
-        this.m_max_retries = this.preferences().intValueOf("mqtt_connect_retries", this.m_suffix);
-        this.m_sleep_time = ((this.preferences().intValueOf("mqtt_receive_loop_sleep", this.m_suffix)) * 1000);
         this.m_keystore_pw = this.preferences().valueOf("mqtt_keystore_pw", this.m_suffix);
         this.m_base_dir = this.preferences().valueOf("mqtt_keystore_basedir", this.m_suffix);
         this.m_keystore_basename = this.preferences().valueOf("mqtt_keystore_basename", this.m_suffix);
@@ -373,8 +371,69 @@ public class MQTTTransport extends Transport implements GenericSender {
      * @return
      */
     public boolean connect(String host, int port, String clientID, boolean clean_session) {
+        return this.connect(host, port, clientID, clean_session, this.prefIntValue("mqtt_connect_retries", this.m_suffix));
+    }
+
+    /**
+     * Make a single connection attempt to the MQTT broker (no retries... used by the connection supervisor)
+     *
+     * @param host
+     * @param port
+     * @return
+     */
+    public boolean connectOnce(String host, int port) {
+        return this.connectOnce(host, port, this.prefValue("mqtt_client_id", this.m_suffix));
+    }
+
+    /**
+     * Single connection attempt using the given client ID (parallel connections to the same broker each need their own)
+     *
+     * @param host
+     * @param port
+     * @param clientID
+     * @return
+     */
+    public boolean connectOnce(String host, int port, String clientID) {
+        // clean up a stale connection first
+        if (this.m_connection != null && this.isConnected() == false) {
+            this.disconnect(false);
+        }
+        return this.connect(host, port, clientID, this.prefBoolValue("mqtt_clean_session", this.m_suffix), 1);
+    }
+
+    /**
+     * Does the topic match the (MQTT) topic filter? ("+" matches one level, a trailing "#" any number of levels)
+     *
+     * @param filter
+     * @param topic
+     * @return
+     */
+    public static boolean topicMatches(String filter, String topic) {
+        if (filter == null || topic == null) {
+            return false;
+        }
+        if (filter.indexOf('+') < 0 && filter.indexOf('#') < 0) {
+            return filter.equalsIgnoreCase(topic);
+        }
+        String[] filter_levels = filter.split("/", -1);
+        String[] topic_levels = topic.split("/", -1);
+        for (int i = 0; i < filter_levels.length; ++i) {
+            if (filter_levels[i].equals("#")) {
+                return true;
+            }
+            if (i >= topic_levels.length) {
+                return false;
+            }
+            if (filter_levels[i].equals("+") == false && filter_levels[i].equalsIgnoreCase(topic_levels[i]) == false) {
+                return false;
+            }
+        }
+        return filter_levels.length == topic_levels.length;
+    }
+
+    // connect to the MQTT broker (num_tries attempts)
+    private boolean connect(String host, int port, String clientID, boolean clean_session, int num_tries) {
         int sleep_time = this.prefIntValue("mqtt_retry_sleep", this.m_suffix);
-        int num_tries = this.prefIntValue("mqtt_connect_retries", this.m_suffix);
         for (int i = 0; i < num_tries && !this.m_connected; ++i) {
             try {
                 // MQTT endpoint 
@@ -540,14 +599,6 @@ public class MQTTTransport extends Transport implements GenericSender {
                     }
                     this.errorLogger().warning("MQTT: host: " + host);
                     this.errorLogger().warning("MQTT: port: " + port);
-
-                    // sleep for a short bit...
-                    try {
-                        Thread.sleep(sleep_time);
-                    }
-                    catch (InterruptedException ex2) {
-                        this.errorLogger().critical("MQTTTransport(connect): sleep interrupted", ex2);
-                    }
                 }
             }
             catch (URISyntaxException ex) {
@@ -555,8 +606,8 @@ public class MQTTTransport extends Transport implements GenericSender {
                 this.m_connected = false;
             }
 
-            // if we have not yet connected... sleep a bit more and retry...
-            if (this.m_connected == false) {
+            // if we have not yet connected and have tries left... sleep a bit more and retry...
+            if (this.m_connected == false && (i + 1) < num_tries) {
                 try {
                     Thread.sleep(sleep_time);
                 }
@@ -581,16 +632,15 @@ public class MQTTTransport extends Transport implements GenericSender {
         //this.errorLogger().info("MQTTTransport: in receiveAndProcess()...");
         if (this.isConnected()) {
             try {
-                // receive the MQTT message and process it...
+                // receive the MQTT message and process it (no message: the receive failed... the caller backs off)
                 //this.errorLogger().info("MQTTTransport: in receiveAndProcess(). Calling receiveAndProcessMessage()...");
-                this.receiveAndProcessMessage();
+                return this.receiveAndProcessMessage() != null;
             }
             catch (Exception ex) {
                 // note
                 this.errorLogger().info("MQTTTransport: caught Exception in recieveAndProcess(): " + ex.getMessage());
                 return false;
             }
-            return true;
         }
         else {
             this.errorLogger().info("MQTTTransport: not connected (OK)");
@@ -598,105 +648,99 @@ public class MQTTTransport extends Transport implements GenericSender {
         }
     }
 
-    // reset our MQTT connection... sometimes it goes wonky...
-    private void resetConnection() {
-        try {
-            // disconnect()...
-            ++this.m_num_retries;
-            this.disconnect(false);
+    /**
+     * Hand our connection over to a connection supervisor: on failure we fail fast and the supervisor restores it
+     *
+     * @param supervisor
+     * @param link_name
+     */
+    public void setConnectionSupervisor(ConnectionSupervisor supervisor, String link_name) {
+        this.m_supervisor = supervisor;
+        this.m_link_name = link_name;
+    }
 
-            // sleep a bit
-            Thread.sleep(this.m_sleep_time);
+    // reset our MQTT connection... sometimes it goes wonky... (never sleeps or recurses: the supervisor restores it)
+    private void resetConnection(BlockingConnection failed) {
+        synchronized (this) {
+            // only tear down the connection that failed (it may already have been replaced)
+            if (failed != null && this.m_connection == failed) {
+                this.disconnect(false);
+            }
+        }
 
-            // reconnect()...
+        if (this.m_supervisor != null) {
+            // restore in the background
+            this.m_supervisor.linkLost(this.m_link_name);
+        }
+        else if (this.isConnected() == false) {
+            // no supervisor: make a single reconnect attempt
             if (this.reconnect() == true) {
                 // DEBUG
                 this.errorLogger().info("resetConnection: SUCCESS.");
-
-                // reconnected OK...
-                this.m_num_retries = 0;
-
-                // resubscribe
-                if (this.m_subscribe_topics != null) {
-                    // DEBUG
-                    this.errorLogger().info("resetConnection: SUCCESS. re-subscribing...");
-                    this.subscribe(this.m_subscribe_topics);
-                }
             }
             else {
                 // DEBUG
-                this.errorLogger().info("resetConnection: FAILURE num_tries = " + this.m_num_retries);
+                this.errorLogger().info("resetConnection: FAILURE");
             }
         }
-        catch (InterruptedException ex) {
-            this.errorLogger().info("resetConnection: Exception: " + ex.getMessage(), ex);
-        }
-    }
-
-    // have we exceeded our retry count?
-    private Boolean retriesExceeded() {
-        return (this.m_num_retries >= this.m_max_retries);
     }
 
     // subscribe to specific topics 
-    public void subscribe(Topic[] list) {
-        if (this.m_connection != null) {
-            try {
-                // DEBUG
-                this.errorLogger().info("MQTTTransport: Subscribing to " + list.length + " topics...");
-
-                // subscribe
-                this.m_subscribe_topics = list;
-                this.m_unsubscribe_topics = null;
-                this.m_qoses = this.m_connection.subscribe(list);
-
-                // DEBUG
-                this.errorLogger().info("MQTTTransport: Subscribed to  " + list.length + " SUCCESSFULLY");
+    public boolean subscribe(Topic[] list) {
+        BlockingConnection connection = this.m_connection;
+        if (connection != null) {
+            if (this.subscribe(connection, list) == true) {
+                return true;
             }
-            catch (Exception ex) {
-                if (this.retriesExceeded()) {
-                    // unable to subscribe to topic (final)
-                    this.errorLogger().critical("MQTTTransport: unable to subscribe to topic (final)", ex);
-                }
-                else {
-                    // unable to subscribe to topic
-                    this.errorLogger().warning("MQTTTransport: unable to subscribe to topic (" + this.m_num_retries + " of " + this.m_max_retries + ")", ex);
 
-                    // attempt reset
-                    this.resetConnection();
-                }
-            }
+            // attempt reset
+            this.resetConnection(connection);
         }
         else {
             // unable to subscribe - not connected... 
             this.errorLogger().info("MQTTTransport: unable to subscribe. Connection is missing and/or NULL");
         }
+        return false;
+    }
+
+    // subscribe to specific topics on the given connection
+    private boolean subscribe(BlockingConnection connection, Topic[] list) {
+        try {
+            // DEBUG
+            this.errorLogger().info("MQTTTransport: Subscribing to " + list.length + " topics...");
+
+            // subscribe
+            this.m_subscribe_topics = list;
+            this.m_unsubscribe_topics = null;
+            this.m_qoses = connection.subscribe(list);
+
+            // DEBUG
+            this.errorLogger().info("MQTTTransport: Subscribed to  " + list.length + " SUCCESSFULLY");
+            return true;
+        }
+        catch (Exception ex) {
+            // unable to subscribe to topic
+            this.errorLogger().warning("MQTTTransport: unable to subscribe to topic", ex);
+        }
+        return false;
     }
 
     // unsubscribe from specific topics
     public void unsubscribe(String[] list) {
-        if (this.m_connection != null) {
+        BlockingConnection connection = this.m_connection;
+        if (connection != null) {
             try {
                 this.m_subscribe_topics = null;
                 this.m_unsubscribe_topics = list;
-                this.m_connection.unsubscribe(list);
+                connection.unsubscribe(list);
                 //this.errorLogger().info("MQTTTransport: Unsubscribed from TOPIC(s): " + list.length);
             }
             catch (Exception ex) {
-                if (this.retriesExceeded()) {
-                    // unable to unsubscribe from topic (final)
-                    this.errorLogger().info("MQTTTransport: unable to unsubscribe from topic (final)", ex);
-                }
-                else {
-                    // unable to subscribe to topic
-                    this.errorLogger().info("MQTTTransport: unable to unsubscribe to topic (" + this.m_num_retries + " of " + this.m_max_retries + ")", ex);
-
-                    // attempt reset
-                    this.resetConnection();
+                // unable to unsubscribe from topic
+                this.errorLogger().info("MQTTTransport: unable to unsubscribe from topic", ex);
 
-                    // recall
-                    this.unsubscribe(list);
-                }
+                // attempt reset
+                this.resetConnection(connection);
             }
         }
         else {
@@ -726,77 +770,31 @@ public class MQTTTransport extends Transport implements GenericSender {
      */
     public boolean sendMessage(String topic, String message, QoS qos) {
         boolean sent = false;
-        if (this.m_connection != null && this.m_connection.isConnected() == true && message != null) {
+        BlockingConnection connection = this.m_connection;
+        if (connection != null && connection.isConnected() == true && message != null) {
             try {
                 // DEBUG
                 this.errorLogger().info("sendMessage: message: " + message + " Topic: " + topic);
-                this.m_connection.publish(topic, message.getBytes(), qos, false);
+                connection.publish(topic, message.getBytes(), qos, false);
 
                 // DEBUG
                 this.errorLogger().info("sendMessage(MQTT): message sent. SUCCESS");
                 sent = true;
             }
             catch (EOFException ex) {
-                if (this.retriesExceeded()) {
-                    // unable to send (EOF) - final
-                    this.errorLogger().critical("sendMessage:EOF on message send... resetting MQTT (final): " + message, ex);
-                }
-                else {
-                    // unable to send (EOF) - final
-                    this.errorLogger().warning("sendMessage:EOF on message send... resetting MQTT (" + this.m_num_retries + " of " + this.m_max_retries + "): " + message, ex);
-
-                    // reset the connection
-                    this.resetConnection();
-
-                    // resend
-                    if (this.m_connection.isConnected() == true) {
-                        this.errorLogger().info("sendMessage: retrying send() after EOF/reconnect....");
-                        sent = this.sendMessage(topic, message, qos);
-                    }
-                    else {
-                        // unable to send (not connected)
-                        this.errorLogger().warning("sendMessage: NOT CONNECTED after EOF/reconnect. Unable to send message: " + message);
-                    }
-                }
+                // unable to send (EOF) - fail fast and let the connection be restored in the background
+                this.errorLogger().warning("sendMessage:EOF on message send... resetting MQTT: " + message, ex);
+                this.resetConnection(connection);
             }
             catch (Exception ex) {
                 // unable to send (general fault)
                 this.errorLogger().critical("sendMessage: unable to send message: " + message, ex);
             }
         }
-        else if (this.m_connection != null && message != null) {
-            // unable to send (not connected)
-            this.errorLogger().warning("sendMessage: NOT CONNECTED. Unable to send message: " + message);
-
-            // reset the connection
-            this.resetConnection();
-
-            // resend
-            if (this.m_connection.isConnected() == true) {
-                this.errorLogger().info("sendMessage: retrying send() after EOF/reconnect....");
-                sent = this.sendMessage(topic, message, qos);
-            }
-            else {
-                // unable to send (not connected)
-                this.errorLogger().warning("sendMessage: NOT CONNECTED after EOF/reconnect. Unable to send message: " + message);
-            }
-        }
         else if (message != null) {
-            // unable to send (not connected)
-            this.errorLogger().warning("sendMessage: NOT CONNECTED (no handle). Unable to send message: " + message);
-
-            // reset the connection
-            this.resetConnection();
-
-            // resend
-            if (this.m_connection.isConnected() == true) {
-                this.errorLogger().info("sendMessage: retrying send() after EOF/reconnect....");
-                sent = this.sendMessage(topic, message, qos);
-            }
-            else {
-                // unable to send (not connected)
-                this.errorLogger().warning("sendMessage: NOT CONNECTED (no handle) after EOF/reconnect. Unable to send message: " + message);
-            }
+            // unable to send (not connected) - fail fast and let the connection be restored in the background
+            this.errorLogger().warning("sendMessage: NOT CONNECTED. Unable to send message: " + message);
+            this.resetConnection(connection);
         }
         else {
             // unable to send (empty message)
@@ -809,9 +807,9 @@ public class MQTTTransport extends Transport implements GenericSender {
     }
 
     // get the next MQTT message
-    private MQTTMessage getNextMessage() throws Exception {
+    private MQTTMessage getNextMessage(BlockingConnection connection) throws Exception {
         MQTTMessage message = null;
-        message = new MQTTMessage(this.m_connection.receive());
+        message = new MQTTMessage(connection.receive());
         message.ack();
         return message;
     }
@@ -823,15 +821,27 @@ public class MQTTTransport extends Transport implements GenericSender {
      */
     public MQTTMessage receiveAndProcessMessage() {
         MQTTMessage message = null;
+        BlockingConnection connection = this.m_connection;
+        if (connection == null) {
+            // not connected (OK)
+            return null;
+        }
         try {
             // DEBUG
             //this.errorLogger().info("receiveMessage: getting next MQTT message...");
-            message = this.getNextMessage();
+            message = this.getNextMessage(connection);
             if (this.m_listener != null && message != null) {
-                // call the registered listener to process the received message
-                this.errorLogger().info("receiveMessage: processing message: " + message);
-                //this.errorLogger().info("receiveAndProcessMessage(MQTT Transport): Topic: " + message.getTopic() + " message: " + message.getMessage());
-                this.m_listener.onMessageReceive(message.getTopic(), message.getMessage());
+                // call the registered listener to process the received message (traced from receipt)
+                Tracer tracer = Tracer.getInstance();
+                Trace trace = tracer.begin();
+                try {
+                    this.errorLogger().info("receiveMessage: processing message: " + message);
+                    //this.errorLogger().info("receiveAndProcessMessage(MQTT Transport): Topic: " + message.getTopic() + " message: " + message.getMessage());
+                    this.m_listener.onMessageReceive(message.getTopic(), message.getMessage());
+                }
+                finally {
+                    tracer.end(trace);
+                }
             }
             else if (this.m_listener != null) {
                 // no listener
@@ -843,23 +853,9 @@ public class MQTTTransport extends Transport implements GenericSender {
             }
         }
         catch (Exception ex) {
-            if (this.retriesExceeded()) {
-                // unable to receiveMessage - final
-                this.errorLogger().critical("receiveMessage: unable to receive message (final)", ex);
-            }
-            else {
-                // unable to receiveMessage - final
-                this.errorLogger().critical("receiveMessage: unable to receive message (" + this.m_num_retries + " of " + this.m_max_retries + "): " + ex.getMessage(), ex);
-
-                // reset the connection
-                this.resetConnection();
-
-                // re-receive
-                if (this.isConnected()) {
-                    this.errorLogger().info("receiveMessage: retrying receive() after EOF/reconnect...");
-                    this.receiveAndProcessMessage();
-                }
-            }
+            // unable to receiveMessage - the receive thread waits while the connection is restored
+            this.errorLogger().critical("receiveMessage: unable to receive message: " + ex.getMessage(), ex);
+            this.resetConnection(connection);
         }
         return message;
     }
@@ -908,10 +904,22 @@ public class MQTTTransport extends Transport implements GenericSender {
         }
     }
 
+    // single reconnect attempt with cached creds (resubscribes on success)
     private boolean reconnect() {
         if (this.m_connect_host != null) {
             // attempt reconnect with cached creds...
-            return this.connect(this.m_connect_host, this.m_connect_port, this.m_connect_client_id, this.m_connect_clean_session);
+            boolean connected = this.connect(this.m_connect_host, this.m_connect_port, this.m_connect_client_id, this.m_connect_clean_session, 1);
+            BlockingConnection connection = this.m_connection;
+            if (connected == true && connection != null && this.m_subscribe_topics != null) {
+                // DEBUG
+                this.errorLogger().info("reconnect: SUCCESS. re-subscribing...");
+                if (this.subscribe(connection, this.m_subscribe_topics) == false) {
+                    // not usable without our subscriptions
+                    this.disconnect(false);
+                    connected = false;
+                }
+            }
+            return connected;
         }
         else {
             // no initial connect() has succeeded... so no cached creds available